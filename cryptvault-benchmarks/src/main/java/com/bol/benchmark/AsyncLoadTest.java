@@ -0,0 +1,114 @@
+package com.bol.benchmark;
+
+import com.bol.crypt.CryptExecutor;
+import com.bol.crypt.CryptVault;
+import com.bol.crypt.KeyVersions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load test of {@link CryptVault#encryptAsync(byte[])} under a mix of small
+ * and large payloads. Not a JMH benchmark: it measures the tail latency of
+ * individual operations under sustained overload, which JMH does not model.
+ * <p>
+ * For each executor, a producer keeps a number of large (4 MiB) encryptions
+ * outstanding, while small (1 KiB) encryptions are submitted at a fixed rate
+ * and an "application" probe is scheduled on the common pool at a fixed
+ * rate, standing in for the rest of the application. Reported are latency
+ * percentiles of the small encryptions and of the probe, from submission to
+ * completion, and the peak payload bytes in flight.
+ * <p>
+ * Run with {@code java -cp cryptvault-benchmarks/target/benchmarks.jar com.bol.benchmark.AsyncLoadTest [seconds]}.
+ */
+public class AsyncLoadTest {
+    private static final int SMALL = 1024;
+    private static final int LARGE = 4 * 1024 * 1024;
+    private static final int LARGE_OUTSTANDING = 16;
+    private static final long SMALL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long PROBE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    public static void main(String[] args) throws InterruptedException {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 10;
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d cores, %d s per run, %d outstanding encryptions of %d bytes, one of %d bytes per ms%n%n",
+                cores, seconds, LARGE_OUTSTANDING, LARGE, SMALL);
+
+        // what applications do without an executor of their own
+        run("common pool, unbounded", CryptExecutor.of(ForkJoinPool.commonPool(), Long.MAX_VALUE, Integer.MAX_VALUE), seconds);
+        run("bounded, 16 MiB in flight", CryptExecutor.bounded(cores, 16L * 1024 * 1024, CryptExecutor.DEFAULT_MAX_QUEUED), seconds);
+    }
+
+    private static void run(String name, CryptExecutor executor, long seconds) throws InterruptedException {
+        CryptVault cryptVault = CryptVault.of(KeyVersions.of(Keys.keyVersion(1, Keys.AES_GCM)));
+        cryptVault.setAsyncExecutor(executor);
+        byte[] small = Keys.bytes(SMALL);
+        byte[] large = Keys.bytes(LARGE);
+        cryptVault.encrypt(large);
+
+        ConcurrentLinkedQueue<Long> smallLatencies = new ConcurrentLinkedQueue<>();
+        ConcurrentLinkedQueue<Long> probeLatencies = new ConcurrentLinkedQueue<>();
+        AtomicLong peakBytesInFlight = new AtomicLong();
+        AtomicLong largeCompleted = new AtomicLong();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        Thread largeProducer = new Thread(() -> {
+            Semaphore outstanding = new Semaphore(LARGE_OUTSTANDING);
+            while (System.nanoTime() < end) {
+                outstanding.acquireUninterruptibly();
+                cryptVault.encryptAsync(large).whenComplete((blob, t) -> {
+                    largeCompleted.incrementAndGet();
+                    outstanding.release();
+                });
+            }
+        });
+        Thread smallProducer = new Thread(() -> {
+            long next = System.nanoTime();
+            while (next < end) {
+                long submitted = next;
+                cryptVault.encryptAsync(small).whenComplete((blob, t) -> smallLatencies.add(System.nanoTime() - submitted));
+                CompletableFuture.runAsync(() -> probeLatencies.add(System.nanoTime() - submitted), ForkJoinPool.commonPool());
+                peakBytesInFlight.accumulateAndGet(executor.getBytesInFlight(), Math::max);
+                next += SMALL_INTERVAL_NANOS;
+                LockSupport.parkNanos(next - System.nanoTime());
+            }
+        });
+
+        largeProducer.start();
+        smallProducer.start();
+        largeProducer.join();
+        smallProducer.join();
+        // let the backlog drain, so that its latencies count
+        while (executor.getBytesInFlight() > 0 || executor.getQueued() > 0) Thread.sleep(10);
+        ForkJoinPool.commonPool().awaitQuiescence(1, TimeUnit.MINUTES);
+        executor.close();
+
+        System.out.println(name);
+        System.out.printf("  large encryptions completed: %d%n", largeCompleted.get());
+        System.out.printf("  peak payload bytes in flight: %d MiB%n", peakBytesInFlight.get() / (1024 * 1024));
+        print("small encryption latency", smallLatencies);
+        print("application probe latency", probeLatencies);
+        System.out.println();
+    }
+
+    private static void print(String name, ConcurrentLinkedQueue<Long> latencies) {
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        System.out.printf("  %s (ms, n=%d): p50 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n", name, sorted.size(),
+                percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999), percentile(sorted, 1.0));
+    }
+
+    private static double percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) return Double.NaN;
+        int index = (int) Math.min(sorted.size() - 1, Math.ceil(p * sorted.size()) - 1);
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+}
@@ -0,0 +1,83 @@
+package com.bol.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the benchmarks at 1, 4 and as many threads as there are processors,
+ * each once for throughput (ops/s) and once for latency percentiles (µs/op),
+ * with allocation rates from the GC profiler.
+ * <p>
+ * Every run writes a JSON result file to
+ * {@code results/<timestamp>/<mode>-<threads>t.json}, so that runs of
+ * different releases can be compared, e.g. with the JMH visualizer. Regular
+ * JMH arguments are honoured; passing {@code -t} or {@code -bm} restricts the
+ * runs to just that thread count or mode.
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException, IOException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        File resultDir = new File("results", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")));
+        if (!resultDir.mkdirs()) throw new IllegalStateException("cannot create " + resultDir);
+
+        for (int threads : threadCounts(commandLine)) {
+            for (Measure measure : Measure.values()) {
+                if (!commandLine.getBenchModes().isEmpty() && !commandLine.getBenchModes().contains(measure.mode)) continue;
+
+                ChainedOptionsBuilder options = new OptionsBuilder()
+                        .parent(commandLine)
+                        .threads(threads)
+                        .mode(measure.mode)
+                        .timeUnit(measure.timeUnit)
+                        .addProfiler(GCProfiler.class)
+                        .resultFormat(ResultFormatType.JSON)
+                        .result(new File(resultDir, measure.name().toLowerCase() + "-" + threads + "t.json").getPath());
+                new Runner(options.build()).run();
+            }
+        }
+    }
+
+    private static List<Integer> threadCounts(CommandLineOptions commandLine) {
+        List<Integer> threadCounts = new ArrayList<>();
+        if (commandLine.getThreads().hasValue()) {
+            threadCounts.add(commandLine.getThreads().get());
+            return threadCounts;
+        }
+        for (int threads : new int[]{1, 4, Runtime.getRuntime().availableProcessors()}) {
+            if (!threadCounts.contains(threads)) threadCounts.add(threads);
+        }
+        return threadCounts;
+    }
+
+    private enum Measure {
+        THROUGHPUT(org.openjdk.jmh.annotations.Mode.Throughput, TimeUnit.SECONDS),
+        LATENCY(org.openjdk.jmh.annotations.Mode.SampleTime, TimeUnit.MICROSECONDS);
+
+        final org.openjdk.jmh.annotations.Mode mode;
+        final TimeUnit timeUnit;
+
+        Measure(org.openjdk.jmh.annotations.Mode mode, TimeUnit timeUnit) {
+            this.mode = mode;
+            this.timeUnit = timeUnit;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.bol.benchmark;
+
+import com.bol.crypt.CryptVault;
+import com.bol.crypt.KeyVersion;
+import com.bol.crypt.KeyVersions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single-shot {@link CryptVault#encrypt(byte[])} and
+ * {@link CryptVault#decrypt(byte[])} per transformation and payload size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptVaultBenchmark {
+    @Param({Keys.AES_CBC, Keys.AES_GCM, Keys.CHACHA20_POLY1305})
+    public String transformation;
+
+    @Param({"16", "256", "4096", "65536", "1048576", "16777216"})
+    public int payloadSize;
+
+    @Param({"false", "true"})
+    public boolean compactBlobs;
+
+    private CryptVault cryptVault;
+    private byte[] cleartext;
+    private byte[] blob;
+
+    @Setup
+    public void setup() {
+        KeyVersion keyVersion = Keys.keyVersion(1, transformation);
+        cryptVault = CryptVault.of(KeyVersions.of(keyVersion));
+        cryptVault.setCompactBlobs(compactBlobs);
+        cleartext = Keys.bytes(payloadSize);
+        blob = cryptVault.encrypt(cleartext);
+    }
+
+    @Benchmark
+    public byte[] encrypt() {
+        return cryptVault.encrypt(cleartext);
+    }
+
+    @Benchmark
+    public byte[] decrypt() {
+        return cryptVault.decrypt(blob);
+    }
+}
@@ -0,0 +1,56 @@
+package com.bol.benchmark;
+
+import com.bol.crypt.CryptVault;
+import com.bol.crypt.IvGenerator;
+import com.bol.crypt.KeyVersions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Small-value encryption from many threads at once, where IV generation
+ * makes up a large part of the work, per {@link IvGenerator}; {@code jca} is
+ * the default of letting the {@code Cipher} draw its own IV.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class IvGeneratorBenchmark {
+    @Param({Keys.AES_CBC, Keys.AES_GCM})
+    public String transformation;
+
+    @Param({"jca", "drbg", "pooled", "counter"})
+    public String ivGenerator;
+
+    private CryptVault cryptVault;
+    private byte[] cleartext;
+
+    @Setup
+    public void setup() {
+        cryptVault = CryptVault.of(KeyVersions.of(Keys.keyVersion(1, transformation)));
+        cryptVault.setIvGenerator(switch (ivGenerator) {
+            case "jca" -> null;
+            case "drbg" -> IvGenerator.threadLocalDrbg();
+            case "pooled" -> IvGenerator.pooled(64);
+            case "counter" -> IvGenerator.counter(1);
+            default -> throw new IllegalArgumentException(ivGenerator);
+        });
+        cleartext = Keys.bytes(16);
+    }
+
+    @Benchmark
+    public byte[] encrypt() {
+        return cryptVault.encrypt(cleartext);
+    }
+}
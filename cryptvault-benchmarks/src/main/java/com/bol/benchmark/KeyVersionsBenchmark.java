@@ -0,0 +1,52 @@
+package com.bol.benchmark;
+
+import com.bol.crypt.KeyVersion;
+import com.bol.crypt.KeyVersions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+
+/**
+ * Key version lookups, which happen on every decryption.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyVersionsBenchmark {
+    @Param({"1", "16", "255"})
+    public int versionCount;
+
+    private KeyVersions keyVersions;
+    private int lastVersion;
+
+    @Setup
+    public void setup() {
+        KeyVersion[] versions = new KeyVersion[versionCount];
+        for (int i = 0; i < versionCount; i++) {
+            versions[i] = Keys.keyVersion(i + 1, Keys.AES_GCM);
+        }
+        keyVersions = KeyVersions.of(versions);
+        lastVersion = versionCount;
+    }
+
+    @Benchmark
+    public Optional<KeyVersion> get() {
+        return keyVersions.get(lastVersion);
+    }
+
+    @Benchmark
+    public KeyVersion getDefault() {
+        return keyVersions.getDefault();
+    }
+}
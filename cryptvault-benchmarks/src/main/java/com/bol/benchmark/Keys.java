@@ -0,0 +1,33 @@
+package com.bol.benchmark;
+
+import com.bol.crypt.KeyVersion;
+
+import java.security.SecureRandom;
+
+/**
+ * Fixed, randomly generated keys for the transformations under benchmark.
+ */
+final class Keys {
+    static final String AES_CBC = "AES/CBC/PKCS5Padding";
+    static final String AES_GCM = "AES/GCM/NoPadding";
+    static final String CHACHA20_POLY1305 = "ChaCha20-Poly1305";
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private Keys() {
+    }
+
+    static KeyVersion keyVersion(int version, String transformation) {
+        return new KeyVersion(version, transformation, bytes(32));
+    }
+
+    static KeyVersion legacyKeyVersion(int version) {
+        return new KeyVersion(version, AES_CBC, bytes(32), true);
+    }
+
+    static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
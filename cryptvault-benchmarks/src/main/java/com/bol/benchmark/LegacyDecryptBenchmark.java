@@ -0,0 +1,67 @@
+package com.bol.benchmark;
+
+import com.bol.crypt.CryptVault;
+import com.bol.crypt.KeyVersion;
+import com.bol.crypt.KeyVersions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * Decryption of blobs written by version 1 of this library, which
+ * {@link CryptVault#decrypt(byte[])} hands to its legacy path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LegacyDecryptBenchmark {
+    @Param({"16", "256", "4096", "65536", "1048576", "16777216"})
+    public int payloadSize;
+
+    private CryptVault cryptVault;
+    private byte[] blob;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        KeyVersion legacy = Keys.legacyKeyVersion(1);
+        KeyVersion current = Keys.keyVersion(2, Keys.AES_GCM);
+        cryptVault = CryptVault.of(KeyVersions.of(legacy, current));
+        blob = legacyBlob(legacy, Keys.bytes(payloadSize));
+    }
+
+    @Benchmark
+    public byte[] decrypt() {
+        return cryptVault.decrypt(blob);
+    }
+
+    /**
+     * Key version offset by 128, a 16-byte IV and AES/CBC/PKCS5Padding
+     * ciphertext.
+     */
+    private static byte[] legacyBlob(KeyVersion keyVersion, byte[] cleartext) throws GeneralSecurityException {
+        byte[] iv = Keys.bytes(16);
+        Cipher cipher = Cipher.getInstance(Keys.AES_CBC);
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyVersion.key, "AES"), new IvParameterSpec(iv));
+        byte[] ciphertext = cipher.doFinal(cleartext);
+
+        byte[] blob = new byte[1 + iv.length + ciphertext.length];
+        blob[0] = (byte) (keyVersion.version + 0x80);
+        System.arraycopy(iv, 0, blob, 1, iv.length);
+        System.arraycopy(ciphertext, 0, blob, 1 + iv.length, ciphertext.length);
+        return blob;
+    }
+}
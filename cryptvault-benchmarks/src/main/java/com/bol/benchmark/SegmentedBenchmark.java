@@ -0,0 +1,57 @@
+package com.bol.benchmark;
+
+import com.bol.crypt.CryptVault;
+import com.bol.crypt.KeyVersions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Segmented blobs, of which the segments are spread over the common
+ * ForkJoinPool, against the single-shot format for large payloads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentedBenchmark {
+    @Param({Keys.AES_GCM, Keys.CHACHA20_POLY1305})
+    public String transformation;
+
+    @Param({"1048576", "16777216", "134217728"})
+    public int payloadSize;
+
+    private CryptVault cryptVault;
+    private byte[] cleartext;
+    private byte[] blob;
+
+    @Setup
+    public void setup() {
+        cryptVault = CryptVault.of(KeyVersions.of(Keys.keyVersion(1, transformation)));
+        cleartext = Keys.bytes(payloadSize);
+        blob = cryptVault.encryptSegmented(cleartext);
+    }
+
+    @Benchmark
+    public byte[] encryptSingleShot() {
+        return cryptVault.encrypt(cleartext);
+    }
+
+    @Benchmark
+    public byte[] encryptSegmented() {
+        return cryptVault.encryptSegmented(cleartext);
+    }
+
+    @Benchmark
+    public byte[] decryptSegmented() {
+        return cryptVault.decrypt(blob);
+    }
+}
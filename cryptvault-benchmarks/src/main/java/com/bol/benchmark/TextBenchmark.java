@@ -0,0 +1,67 @@
+package com.bol.benchmark;
+
+import com.bol.crypt.CryptVault;
+import com.bol.crypt.KeyVersions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Encryption of text fields to Base64 and back, the usual way of chaining
+ * {@code getBytes}, {@code encrypt} and {@code Base64} against the fused
+ * {@code encryptToString} and {@code decryptToString}. Compare
+ * {@code gc.alloc.rate.norm} (bytes per operation) from the GC profiler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TextBenchmark {
+    @Param({Keys.AES_GCM, Keys.AES_CBC})
+    public String transformation;
+
+    @Param({"16", "256", "4096"})
+    public int textLength;
+
+    private CryptVault cryptVault;
+    private String text;
+    private String blob;
+
+    @Setup
+    public void setup() {
+        cryptVault = CryptVault.of(KeyVersions.of(Keys.keyVersion(1, transformation)));
+        text = "Zoë".repeat(textLength / 3 + 1).substring(0, textLength);
+        blob = cryptVault.encryptToString(text);
+    }
+
+    @Benchmark
+    public String encryptChained() {
+        return Base64.getEncoder().encodeToString(cryptVault.encrypt(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Benchmark
+    public String encryptToString() {
+        return cryptVault.encryptToString(text);
+    }
+
+    @Benchmark
+    public String decryptChained() {
+        return new String(cryptVault.decrypt(Base64.getDecoder().decode(blob)), StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String decryptToString() {
+        return cryptVault.decryptToString(blob);
+    }
+}
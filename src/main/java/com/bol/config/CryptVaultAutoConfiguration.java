@@ -1,24 +1,66 @@
 package com.bol.config;
 
+import com.bol.crypt.CompressionCodec;
+import com.bol.crypt.CryptExecutor;
+import com.bol.crypt.CryptMetrics;
 import com.bol.crypt.CryptVault;
+import com.bol.crypt.CryptVaultJacksonModule;
+import com.bol.crypt.DataKeyCache;
+import com.bol.crypt.DecryptionCache;
+import com.bol.crypt.IvGenerator;
+import com.bol.crypt.KeyEncryptionService;
+import com.bol.crypt.KeyFileWatcher;
 import com.bol.crypt.KeyVersion;
 import com.bol.crypt.KeyVersions;
+import com.bol.crypt.MicrometerCryptMetrics;
+import com.bol.crypt.ProviderTuning;
+import com.bol.crypt.ReactiveCryptVault;
+import com.bol.crypt.WarmUp;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.autoconfigure.AutoConfiguration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
 
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
 
-@AutoConfiguration
+// after the actuator's meter registries, so that the metrics configuration can see them
+@AutoConfiguration(afterName = "org.springframework.boot.actuate.autoconfigure.metrics.CompositeMeterRegistryAutoConfiguration")
 @ConditionalOnProperty("cryptvault.keys[0].key")
 @EnableConfigurationProperties(value = {CryptVaultAutoConfiguration.CryptVaultConfigurationProperties.class})
 public class CryptVaultAutoConfiguration {
+    /**
+     * Value of a key version's {@code provider} that picks the fastest
+     * installed provider at startup.
+     */
+    static final String AUTO_PROVIDER = "auto";
+
+    private static final Log log = LogFactory.getLog(CryptVaultAutoConfiguration.class);
 
     @Bean
-    CryptVault cryptVault(CryptVaultConfigurationProperties properties) {
+    CryptVault cryptVault(CryptVaultConfigurationProperties properties, ProviderTuningReport providerTuning, CryptExecutor asyncExecutor, ObjectProvider<CryptMetrics> metrics, ObjectProvider<IvGenerator> ivGenerator,
+                           ObjectProvider<KeyEncryptionService> keyEncryptionService, ObjectProvider<DataKeyCache> dataKeyCache, ObjectProvider<CompressionCodec> compressionCodecs,
+                           ObjectProvider<DecryptionCache> decryptionCache) {
         if (properties.keys == null || properties.keys.isEmpty()) {
             throw new IllegalStateException("property 'keys' is not set");
         }
@@ -30,7 +72,8 @@ public class CryptVaultAutoConfiguration {
                 throw new IllegalArgumentException(String.format("version should be [1, 255], got %d", props.version));
             }
             if (props.transformation == null) props.transformation = "AES/CBC/PKCS5Padding";
-            versions.addVersion(new KeyVersion(props.version, props.transformation, props.key, props.legacy));
+            String provider = AUTO_PROVIDER.equals(props.provider) ? providerTuning.getResults().get(props.version).getProvider() : props.provider;
+            versions.addVersion(new KeyVersion(props.version, props.transformation, Base64.getDecoder().decode(props.key), props.legacy, provider));
         }
 
         if (properties.defaultKey != null) {
@@ -46,13 +89,219 @@ public class CryptVaultAutoConfiguration {
                     });
         }
 
-        return CryptVault.of(versions);
+        CryptVault cryptVault = CryptVault.of(versions);
+        cryptVault.setCipherPooling(properties.cipherPooling);
+        cryptVault.setCompactBlobs(properties.compactBlobs);
+        cryptVault.setAsyncExecutor(asyncExecutor);
+        if (properties.tenantKeyCacheSize != null) cryptVault.setTenantKeyCacheSize(properties.tenantKeyCacheSize);
+        cryptVault.setIvGenerator(ivGenerator.getIfAvailable(() -> ivGenerator(properties.ivGenerator, properties.instanceId)));
+        if (properties.parallelism != null) {
+            if (properties.parallelism < 1) {
+                throw new IllegalStateException(String.format("parallelism should be at least 1, was %d", properties.parallelism));
+            }
+            // worker threads are daemons and retire when idle, so the pool needs no shutdown
+            cryptVault.setForkJoinPool(new ForkJoinPool(properties.parallelism));
+        }
+        compressionCodecs.orderedStream().forEach(cryptVault::addCompressionCodec);
+        for (KeyVersionProperties props : properties.keys) {
+            if (props.compression == null) continue;
+            CompressionCodec codec = "deflate".equals(props.compression)
+                    ? CompressionCodec.deflate()
+                    : compressionCodecs.orderedStream().filter(c -> c.name().equals(props.compression)).findFirst()
+                    .orElseThrow(() -> new IllegalStateException(String.format("key version %d compresses with %s, which is neither deflate nor the name of a CompressionCodec bean", props.version, props.compression)));
+            cryptVault.setCompression(props.version, codec, (int) Math.min(Integer.MAX_VALUE, props.compressionThreshold.toBytes()));
+        }
+        // before metrics and the cache are set, so that they do not see the warm-up
+        if (properties.warmUp.enabled) warmUp(cryptVault, properties.warmUp);
+        metrics.ifAvailable(cryptVault::setMetrics);
+        decryptionCache.ifAvailable(cryptVault::setDecryptionCache);
+        keyEncryptionService.ifAvailable(service -> cryptVault.setEnvelopeEncryption(service, dataKeyCache.getObject(), properties.dataKeys.blobsPerKey));
+        return cryptVault;
+    }
+
+    private static void warmUp(CryptVault cryptVault, WarmUpProperties props) {
+        if (props.iterations < 1) {
+            throw new IllegalStateException(String.format("warm-up.iterations should be at least 1, was %d", props.iterations));
+        }
+        int[] sizes = props.payloadSizes.stream().mapToInt(size -> (int) Math.min(Integer.MAX_VALUE, size.toBytes())).toArray();
+        WarmUp.Result result = WarmUp.run(cryptVault, props.iterations, sizes);
+        log.info(String.format("warmed up key versions %s with %d round trips of %s in %d ms", result.getKeyVersions(), result.getRoundTrips(), props.payloadSizes, result.getDuration().toMillis()));
+    }
+
+    /**
+     * Runs the asynchronous operations of the {@link CryptVault}; closed
+     * with the application context.
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    CryptExecutor cryptVaultAsyncExecutor(CryptVaultConfigurationProperties properties) {
+        AsyncProperties async = properties.async;
+        long maxBytesInFlight = async.maxBytesInFlight.toBytes();
+        if (async.virtualThreads) return CryptExecutor.virtualThreads(maxBytesInFlight, async.maxQueued);
+
+        int threads = async.threads == null ? Runtime.getRuntime().availableProcessors() : async.threads;
+        if (threads < 1) {
+            throw new IllegalStateException(String.format("async.threads should be at least 1, was %d", threads));
+        }
+        return CryptExecutor.bounded(threads, maxBytesInFlight, async.maxQueued);
+    }
+
+    /**
+     * Caches unwrapped data keys when envelope encryption is enabled by
+     * defining a {@link KeyEncryptionService} bean.
+     */
+    @Bean
+    @ConditionalOnBean(KeyEncryptionService.class)
+    @ConditionalOnMissingBean
+    DataKeyCache cryptVaultDataKeyCache(CryptVaultConfigurationProperties properties) {
+        return new DataKeyCache(properties.dataKeys.cacheSize, properties.dataKeys.timeToLive);
+    }
+
+    /**
+     * Caches decrypted cleartexts when {@code cryptvault.decryption-cache.enabled}
+     * is true.
+     */
+    @Bean
+    @ConditionalOnProperty("cryptvault.decryption-cache.enabled")
+    @ConditionalOnMissingBean
+    DecryptionCache cryptVaultDecryptionCache(CryptVaultConfigurationProperties properties) {
+        DecryptionCacheProperties props = properties.decryptionCache;
+        DecryptionCache cache = new DecryptionCache(props.maximumSize, props.timeToLive);
+        cache.setBypassLegacy(props.bypassLegacy);
+        cache.setMaximumCleartextSize(Math.toIntExact(props.maximumCleartextSize.toBytes()));
+        return cache;
+    }
+
+    /**
+     * Adds key versions from {@code cryptvault.key-file.location}, and keeps
+     * watching it unless {@code cryptvault.key-file.watch} is false. The
+     * location is read once here, so that invalid key versions fail the
+     * startup. Changes are published as {@link KeyFileWatcher.Event}s.
+     */
+    @Bean
+    @ConditionalOnProperty("cryptvault.key-file.location")
+    KeyFileWatcher cryptVaultKeyFileWatcher(CryptVault cryptVault, CryptVaultConfigurationProperties properties, ApplicationEventPublisher publisher, ObjectProvider<CryptMetrics> metrics) {
+        KeyFileProperties props = properties.keyFile;
+        KeyFileWatcher watcher = new KeyFileWatcher(props.location, cryptVault.keyVersions);
+        watcher.setSettleTime(props.settleTime);
+        watcher.addListener(event -> {
+            if (event.getType() == KeyFileWatcher.Event.Type.FAILED) {
+                log.warn(String.format("key versions in %s rejected, keeping the current ones: %s", props.location, event.getFailure().getMessage()));
+            } else {
+                log.info(String.format("key versions in %s applied: added %s, default version %d%s", props.location, event.getAddedVersions(), event.getDefaultVersion(),
+                        event.getPendingDefaultVersion() == null ? "" : String.format(", promoting version %d at %s", event.getPendingDefaultVersion(), event.getPendingDefaultFrom())));
+            }
+        });
+        watcher.addListener(publisher::publishEvent);
+        metrics.ifAvailable(m -> watcher.addListener(event -> m.recordKeyFileEvent(event.getType())));
+        watcher.reload();
+        if (props.watch) watcher.start();
+        return watcher;
+    }
+
+    /**
+     * Benchmarks the installed providers for every key version configured
+     * with {@code provider: auto}, logging the outcome.
+     */
+    @Bean
+    ProviderTuningReport cryptVaultProviderTuning(CryptVaultConfigurationProperties properties) {
+        Map<Integer, ProviderTuning.Result> results = new LinkedHashMap<>();
+        Map<String, ProviderTuning.Result> byTransformation = new HashMap<>();
+        if (properties.keys == null) return new ProviderTuningReport(results);
+
+        for (KeyVersionProperties props : properties.keys) {
+            if (!AUTO_PROVIDER.equals(props.provider) || props.key == null) continue;
+
+            String transformation = props.transformation == null ? "AES/CBC/PKCS5Padding" : props.transformation;
+            ProviderTuning.Result result = byTransformation.computeIfAbsent(transformation, t -> ProviderTuning.tune(t, Base64.getDecoder().decode(props.key)));
+            if (result.getProvider() == null) {
+                throw new IllegalStateException(String.format("no installed provider round-trips %s for key version %d: %s", transformation, props.version, result.getRejected()));
+            }
+            log.info(String.format("key version %d uses provider %s for %s; round trips of 4 KiB per second: %s", props.version, result.getProvider(), transformation, result.getOpsPerSecond()));
+            if (!result.getRejected().isEmpty()) {
+                log.info(String.format("providers rejected for %s: %s", transformation, result.getRejected()));
+            }
+            results.put(props.version, result);
+        }
+        return new ProviderTuningReport(results);
+    }
+
+    private static IvGenerator ivGenerator(String name, Integer instanceId) {
+        if (name == null) return null;
+        return switch (name) {
+            case "jca" -> null;
+            case "drbg" -> IvGenerator.threadLocalDrbg();
+            case "pooled" -> IvGenerator.pooled(64);
+            case "counter" -> {
+                if (instanceId == null) throw new IllegalStateException("iv-generator counter needs an instance-id that is unique per running instance");
+                yield IvGenerator.counter(instanceId);
+            }
+            default -> throw new IllegalStateException(String.format("iv-generator should be one of jca, drbg, pooled or counter, was %s", name));
+        };
+    }
+
+    /**
+     * Publishes metrics when Micrometer is in use, unless
+     * {@code cryptvault.metrics.enabled} is false. Nested, so that the
+     * Micrometer classes are only loaded when they are on the classpath.
+     */
+    @Configuration(proxyBeanMethods = false)
+    @ConditionalOnClass(MeterRegistry.class)
+    @ConditionalOnProperty(value = "cryptvault.metrics.enabled", matchIfMissing = true)
+    static class MetricsConfiguration {
+        @Bean
+        @ConditionalOnBean(MeterRegistry.class)
+        @ConditionalOnMissingBean(CryptMetrics.class)
+        CryptMetrics cryptVaultMetrics(MeterRegistry registry) {
+            return new MicrometerCryptMetrics(registry);
+        }
+    }
+
+    /**
+     * Encrypts and decrypts {@code Flux<DataBuffer>} when Reactor is on the
+     * classpath. Nested, so that the Reactor classes are only loaded then.
+     */
+    @Configuration(proxyBeanMethods = false)
+    @ConditionalOnClass(Flux.class)
+    static class ReactiveConfiguration {
+        @Bean
+        @ConditionalOnMissingBean
+        ReactiveCryptVault reactiveCryptVault(CryptVault cryptVault) {
+            return new ReactiveCryptVault(cryptVault);
+        }
+    }
+
+    /**
+     * Encrypts {@code @Encrypted} properties when Jackson is on the
+     * classpath; Spring Boot registers the module with its
+     * {@code ObjectMapper}. Nested, so that the Jackson classes are only
+     * loaded then.
+     */
+    @Configuration(proxyBeanMethods = false)
+    @ConditionalOnClass(ObjectMapper.class)
+    static class JacksonConfiguration {
+        @Bean
+        @ConditionalOnMissingBean
+        CryptVaultJacksonModule cryptVaultJacksonModule(CryptVault cryptVault) {
+            return new CryptVaultJacksonModule(cryptVault);
+        }
     }
 
     @ConfigurationProperties("cryptvault")
     public static class CryptVaultConfigurationProperties {
         List<KeyVersionProperties> keys;
         Integer defaultKey;
+        boolean cipherPooling = true;
+        boolean compactBlobs = false;
+        String ivGenerator;
+        Integer instanceId;
+        Integer parallelism;
+        Integer tenantKeyCacheSize;
+        DataKeyProperties dataKeys = new DataKeyProperties();
+        AsyncProperties async = new AsyncProperties();
+        DecryptionCacheProperties decryptionCache = new DecryptionCacheProperties();
+        KeyFileProperties keyFile = new KeyFileProperties();
+        WarmUpProperties warmUp = new WarmUpProperties();
 
         public void setKeys(List<KeyVersionProperties> keys) {
             this.keys = keys;
@@ -61,6 +310,167 @@ public class CryptVaultAutoConfiguration {
         public void setDefaultKey(Integer defaultKey) {
             this.defaultKey = defaultKey;
         }
+
+        public void setCipherPooling(boolean cipherPooling) {
+            this.cipherPooling = cipherPooling;
+        }
+
+        public void setCompactBlobs(boolean compactBlobs) {
+            this.compactBlobs = compactBlobs;
+        }
+
+        public void setIvGenerator(String ivGenerator) {
+            this.ivGenerator = ivGenerator;
+        }
+
+        public void setInstanceId(Integer instanceId) {
+            this.instanceId = instanceId;
+        }
+
+        public void setParallelism(Integer parallelism) {
+            this.parallelism = parallelism;
+        }
+
+        public void setTenantKeyCacheSize(Integer tenantKeyCacheSize) {
+            this.tenantKeyCacheSize = tenantKeyCacheSize;
+        }
+
+        public void setDataKeys(DataKeyProperties dataKeys) {
+            this.dataKeys = dataKeys;
+        }
+
+        public void setAsync(AsyncProperties async) {
+            this.async = async;
+        }
+
+        public void setDecryptionCache(DecryptionCacheProperties decryptionCache) {
+            this.decryptionCache = decryptionCache;
+        }
+
+        public void setKeyFile(KeyFileProperties keyFile) {
+            this.keyFile = keyFile;
+        }
+
+        public void setWarmUp(WarmUpProperties warmUp) {
+            this.warmUp = warmUp;
+        }
+    }
+
+    public static class WarmUpProperties {
+        boolean enabled = false;
+        List<DataSize> payloadSizes = List.of(DataSize.ofBytes(128), DataSize.ofKilobytes(4));
+        int iterations = 1000;
+
+        /**
+         * @param enabled Whether to round-trip every key version at startup, failing it when one does not.
+         */
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public void setPayloadSizes(List<DataSize> payloadSizes) {
+            this.payloadSizes = payloadSizes;
+        }
+
+        /**
+         * @param iterations Round trips per key version and payload size.
+         */
+        public void setIterations(int iterations) {
+            this.iterations = iterations;
+        }
+    }
+
+    public static class KeyFileProperties {
+        Path location;
+        boolean watch = true;
+        Duration settleTime = KeyFileWatcher.DEFAULT_SETTLE_TIME;
+
+        /**
+         * @param location A keys file, or a directory of {@code *.properties} keys files.
+         */
+        public void setLocation(Path location) {
+            this.location = location;
+        }
+
+        public void setWatch(boolean watch) {
+            this.watch = watch;
+        }
+
+        public void setSettleTime(Duration settleTime) {
+            this.settleTime = settleTime;
+        }
+    }
+
+    public static class DecryptionCacheProperties {
+        boolean enabled = false;
+        int maximumSize = DecryptionCache.DEFAULT_MAXIMUM_SIZE;
+        Duration timeToLive = DecryptionCache.DEFAULT_TIME_TO_LIVE;
+        DataSize maximumCleartextSize = DataSize.ofBytes(DecryptionCache.DEFAULT_MAXIMUM_CLEARTEXT_SIZE);
+        boolean bypassLegacy = false;
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public void setMaximumSize(int maximumSize) {
+            this.maximumSize = maximumSize;
+        }
+
+        public void setTimeToLive(Duration timeToLive) {
+            this.timeToLive = timeToLive;
+        }
+
+        public void setMaximumCleartextSize(DataSize maximumCleartextSize) {
+            this.maximumCleartextSize = maximumCleartextSize;
+        }
+
+        public void setBypassLegacy(boolean bypassLegacy) {
+            this.bypassLegacy = bypassLegacy;
+        }
+    }
+
+    public static class DataKeyProperties {
+        int cacheSize = DataKeyCache.DEFAULT_MAXIMUM_SIZE;
+        Duration timeToLive = DataKeyCache.DEFAULT_TIME_TO_LIVE;
+        long blobsPerKey = 1 << 16;
+
+        public void setCacheSize(int cacheSize) {
+            this.cacheSize = cacheSize;
+        }
+
+        public void setTimeToLive(Duration timeToLive) {
+            this.timeToLive = timeToLive;
+        }
+
+        public void setBlobsPerKey(long blobsPerKey) {
+            this.blobsPerKey = blobsPerKey;
+        }
+    }
+
+    public static class AsyncProperties {
+        Integer threads;
+        boolean virtualThreads = false;
+        DataSize maxBytesInFlight = DataSize.ofBytes(CryptExecutor.DEFAULT_MAX_BYTES_IN_FLIGHT);
+        int maxQueued = CryptExecutor.DEFAULT_MAX_QUEUED;
+
+        public void setThreads(Integer threads) {
+            this.threads = threads;
+        }
+
+        /**
+         * @param virtualThreads Whether to run every operation on a virtual thread instead of a pool; needs Java 21.
+         */
+        public void setVirtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+        }
+
+        public void setMaxBytesInFlight(DataSize maxBytesInFlight) {
+            this.maxBytesInFlight = maxBytesInFlight;
+        }
+
+        public void setMaxQueued(int maxQueued) {
+            this.maxQueued = maxQueued;
+        }
     }
 
     public static class KeyVersionProperties {
@@ -68,6 +478,9 @@ public class CryptVaultAutoConfiguration {
         String transformation;
         String key;
         boolean legacy;
+        String provider;
+        String compression;
+        DataSize compressionThreshold = DataSize.ofKilobytes(1);
 
         public void setVersion(int version) {
             this.version = version;
@@ -85,12 +498,35 @@ public class CryptVaultAutoConfiguration {
             this.legacy = legacy;
         }
 
+        /**
+         * @param provider The name of a JCA provider, or {@code auto} to pick the fastest one at startup.
+         */
+        public void setProvider(String provider) {
+            this.provider = provider;
+        }
+
+        /**
+         * @param compression {@code deflate}, or the name of a {@link CompressionCodec} bean, to compress cleartexts before encryption.
+         */
+        public void setCompression(String compression) {
+            this.compression = compression;
+        }
+
+        /**
+         * @param compressionThreshold Cleartexts shorter than this are not compressed; defaults to 1KB.
+         */
+        public void setCompressionThreshold(DataSize compressionThreshold) {
+            this.compressionThreshold = compressionThreshold;
+        }
+
         @Override
         public String toString() {
             return "KeyVersionProperties{" +
                     "version=" + version +
                     ", transformation='" + transformation + '\'' +
                     ", keyBase64='" + key + '\'' +
+                    ", provider='" + provider + '\'' +
+                    ", compression='" + compression + '\'' +
                     '}';
         }
     }
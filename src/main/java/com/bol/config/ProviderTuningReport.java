@@ -0,0 +1,32 @@
+package com.bol.config;
+
+import com.bol.crypt.ProviderTuning;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The providers chosen for key versions configured with
+ * {@code provider: auto}, and the measurements they were chosen by.
+ */
+public class ProviderTuningReport {
+    private final Map<Integer, ProviderTuning.Result> results;
+
+    ProviderTuningReport(Map<Integer, ProviderTuning.Result> results) {
+        this.results = Collections.unmodifiableMap(results);
+    }
+
+    /**
+     * The tuning results, per key version.
+     */
+    public Map<Integer, ProviderTuning.Result> getResults() {
+        return results;
+    }
+
+    @Override
+    public String toString() {
+        return "ProviderTuningReport{" +
+                "results=" + results +
+                '}';
+    }
+}
@@ -0,0 +1,86 @@
+package com.bol.crypt;
+
+import org.springframework.lang.Nullable;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The outcome of encrypting or decrypting a batch of values. Every item
+ * either succeeded or failed on its own; a failing item does not affect the
+ * rest of the batch. Items are reported in the order they were passed in.
+ */
+public class BatchResult {
+    private final byte[][] values;
+    private final CryptOperationException[] failures;
+    private final int failureCount;
+
+    BatchResult(byte[][] values, CryptOperationException[] failures) {
+        this.values = values;
+        this.failures = failures;
+        this.failureCount = (int) Arrays.stream(failures).filter(f -> f != null).count();
+    }
+
+    /**
+     * Amount of items in the batch.
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * Whether the item at {@code index} was encrypted or decrypted successfully.
+     */
+    public boolean isSuccess(int index) {
+        return failures[index] == null;
+    }
+
+    /**
+     * Whether any item in the batch failed.
+     */
+    public boolean hasFailures() {
+        return failureCount > 0;
+    }
+
+    /**
+     * Gets the result for the item at {@code index}.
+     *
+     * @return The encrypted blob or recovered cleartext.
+     * @throws CryptOperationException the failure of this item, if it failed.
+     */
+    public byte[] get(int index) throws CryptOperationException {
+        if (failures[index] != null) throw failures[index];
+        return values[index];
+    }
+
+    /**
+     * Gets the failure of the item at {@code index}.
+     *
+     * @return The failure, or null if the item succeeded.
+     */
+    @Nullable
+    public CryptOperationException getFailure(int index) {
+        return failures[index];
+    }
+
+    /**
+     * All failures, keyed by item index in ascending order.
+     */
+    public Map<Integer, CryptOperationException> getFailures() {
+        Map<Integer, CryptOperationException> result = new TreeMap<>();
+        for (int i = 0; i < failures.length; i++) {
+            if (failures[i] != null) result.put(i, failures[i]);
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * All results in item order, with {@code null} for items that failed.
+     */
+    public List<byte[]> getValues() {
+        return Collections.unmodifiableList(Arrays.asList(values));
+    }
+}
@@ -0,0 +1,235 @@
+package com.bol.crypt;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.UnaryOperator;
+
+/**
+ * Computes blind index tokens: keyed, truncated HMAC-SHA256 digests of
+ * values that are stored encrypted under a random IV. Storing the token next
+ * to the blob, in an indexed column, turns a lookup by value into an index
+ * lookup, without making the blob itself deterministic.
+ * <pre>
+ * token = key version (8) || HMAC-SHA256(mac key, value), truncated
+ * mac key = HKDF-SHA256(key, no salt, "cryptvault blind index" || kind (8) || key version (8) || UTF-8 index name)
+ * </pre>
+ * MAC keys are derived from the key versions of a {@link KeyVersions}, so
+ * they rotate along with the encryption keys, and are bound to the name of
+ * the index, so that tokens of different columns cannot be correlated.
+ * Tokens of prefixes use keys of their own, so they never equal the token of
+ * a full value.
+ * <p>
+ * Equal values have equal tokens, which is exactly what a token reveals;
+ * truncation additionally makes distinct values share a token now and then,
+ * so a lookup by token should still compare the decrypted values. Instances
+ * are thread-safe; every thread keeps its own {@code Mac} per key version.
+ */
+public class BlindIndexer {
+    public static final int DEFAULT_TOKEN_LENGTH = 16;
+    /**
+     * Trims and lower-cases values, for case-insensitive lookups.
+     */
+    public static final UnaryOperator<String> TRIM_LOWER_CASE = value -> value.strip().toLowerCase(Locale.ROOT);
+
+    private static final String HMAC = "HmacSHA256";
+    private static final byte[] INFO = "cryptvault blind index".getBytes(StandardCharsets.US_ASCII);
+    private static final int VALUE = 0;
+    private static final int PREFIX = 1;
+
+    private final KeyVersions keyVersions;
+    private final byte[] name;
+    private int tokenLength = DEFAULT_TOKEN_LENGTH;
+    private UnaryOperator<String> normalizer = UnaryOperator.identity();
+    // indexed by kind * 256 + key version
+    private final ThreadLocal<CachedMac[]> macs = ThreadLocal.withInitial(() -> new CachedMac[2 * 256]);
+
+    /**
+     * @param keyVersions The key versions the MAC keys are derived from.
+     * @param name        Name of the index, e.g. the column; part of every MAC key.
+     */
+    public BlindIndexer(KeyVersions keyVersions, String name) {
+        this.keyVersions = keyVersions;
+        this.name = name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Amount of HMAC bytes kept per token, in [8, 32]. Defaults to 16. Shorter
+     * tokens save space and reveal less, at the cost of more collisions.
+     */
+    public void setTokenLength(int tokenLength) {
+        if (tokenLength < 8 || tokenLength > 32) throw new IllegalArgumentException("token length should be in [8, 32], was " + tokenLength);
+        this.tokenLength = tokenLength;
+    }
+
+    /**
+     * Applied to every {@code String} value before its token is computed,
+     * e.g. {@link #TRIM_LOWER_CASE}. Defaults to none.
+     */
+    public void setNormalizer(UnaryOperator<String> normalizer) {
+        this.normalizer = normalizer;
+    }
+
+    /**
+     * The token of {@code value} under the default key version.
+     */
+    public byte[] token(byte[] value) throws CryptOperationException {
+        return token(keyVersions.getDefault(), value);
+    }
+
+    /**
+     * The token of the normalized, UTF-8 encoded {@code value} under the
+     * default key version.
+     */
+    public byte[] token(String value) throws CryptOperationException {
+        return token(keyVersions.getDefault(), normalize(value));
+    }
+
+    /**
+     * The token of {@code value} under the given key version, which must be
+     * registered: tokens of other key versions would never be looked up.
+     */
+    public byte[] token(KeyVersion keyVersion, byte[] value) throws CryptOperationException {
+        return token(registeredPlan(keyVersion), VALUE, value);
+    }
+
+    /**
+     * The tokens of all {@code values} under the default key version, in
+     * order; cheaper than computing them one by one.
+     */
+    public List<byte[]> tokens(List<byte[]> values) throws CryptOperationException {
+        CipherPlan plan = registeredPlan(keyVersions.getDefault());
+        Mac mac = mac(plan, VALUE);
+        List<byte[]> tokens = new ArrayList<>(values.size());
+        for (byte[] value : values) tokens.add(token(plan, mac, value));
+        return tokens;
+    }
+
+    /**
+     * The tokens of {@code value} under every registered key version, newest
+     * first. While key versions are being rotated, stored tokens are of
+     * several key versions; looking a value up by all of these tokens, e.g.
+     * with {@code WHERE email_token IN (...)}, finds it under any of them.
+     */
+    public List<byte[]> tokensForLookup(byte[] value) throws CryptOperationException {
+        return tokensForLookup(VALUE, value);
+    }
+
+    /**
+     * The tokens of the normalized {@code value} under every registered key
+     * version. See {@link #tokensForLookup(byte[])}.
+     */
+    public List<byte[]> tokensForLookup(String value) throws CryptOperationException {
+        return tokensForLookup(VALUE, normalize(value));
+    }
+
+    /**
+     * The tokens of the prefixes of the normalized {@code value} of
+     * {@code minLength} up to {@code maxLength} code points, under the default
+     * key version, shortest first. Storing these enables lookups by prefix
+     * through {@link #prefixTokensForLookup(String)}; a value shorter than
+     * {@code minLength} has none.
+     */
+    public List<byte[]> prefixTokens(String value, int minLength, int maxLength) throws CryptOperationException {
+        if (minLength < 1 || maxLength < minLength) throw new IllegalArgumentException(String.format("prefix lengths should satisfy 1 <= min <= max, were %d and %d", minLength, maxLength));
+        String normalized = normalizer.apply(value);
+        CipherPlan plan = registeredPlan(keyVersions.getDefault());
+        Mac mac = mac(plan, PREFIX);
+
+        int length = normalized.codePointCount(0, normalized.length());
+        List<byte[]> tokens = new ArrayList<>(Math.max(0, Math.min(length, maxLength) - minLength + 1));
+        for (int n = minLength; n <= Math.min(length, maxLength); n++) {
+            String prefix = normalized.substring(0, normalized.offsetByCodePoints(0, n));
+            tokens.add(token(plan, mac, prefix.getBytes(StandardCharsets.UTF_8)));
+        }
+        return tokens;
+    }
+
+    /**
+     * The tokens of the normalized {@code prefix} under every registered key
+     * version, to find values stored with {@link #prefixTokens(String, int, int)}.
+     */
+    public List<byte[]> prefixTokensForLookup(String prefix) throws CryptOperationException {
+        return tokensForLookup(PREFIX, normalize(prefix));
+    }
+
+    private byte[] normalize(String value) {
+        return normalizer.apply(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The plan of {@code keyVersion}. Only registered plans are looked up,
+     * which keeps {@code Mac}s cached by plan from being derived anew on
+     * every call.
+     */
+    private CipherPlan registeredPlan(KeyVersion keyVersion) {
+        CipherPlan plan = keyVersions.plan(keyVersion.version);
+        if (plan == null || plan.keyVersion != keyVersion) throw new CryptOperationException("key version " + keyVersion.version + " is not registered");
+        return plan;
+    }
+
+    private List<byte[]> tokensForLookup(int kind, byte[] value) {
+        List<byte[]> tokens = new ArrayList<>(1);
+        for (int version = 255; version > 0; version--) {
+            CipherPlan plan = keyVersions.plan(version);
+            if (plan != null) tokens.add(token(plan, kind, value));
+        }
+        return tokens;
+    }
+
+    private byte[] token(CipherPlan plan, int kind, byte[] value) {
+        return token(plan, mac(plan, kind), value);
+    }
+
+    private byte[] token(CipherPlan plan, Mac mac, byte[] value) {
+        byte[] hmac = mac.doFinal(value);
+        byte[] token = new byte[1 + tokenLength];
+        token[0] = (byte) plan.keyVersion.version;
+        System.arraycopy(hmac, 0, token, 1, tokenLength);
+        return token;
+    }
+
+    /**
+     * This thread's {@code Mac} for the given key version, initialized with
+     * the MAC key.
+     */
+    private Mac mac(CipherPlan plan, int kind) {
+        CachedMac[] cache = macs.get();
+        int slot = kind * 256 + plan.keyVersion.version;
+        CachedMac cached = cache[slot];
+        // compared by plan, so that a key version that is replaced does not hit the MAC of its predecessor
+        if (cached == null || cached.plan != plan) {
+            cache[slot] = cached = new CachedMac(plan, newMac(plan.keyVersion, kind));
+        }
+        return cached.mac;
+    }
+
+    private Mac newMac(KeyVersion keyVersion, int kind) {
+        byte[] info = new byte[INFO.length + 2 + name.length];
+        System.arraycopy(INFO, 0, info, 0, INFO.length);
+        info[INFO.length] = (byte) kind;
+        info[INFO.length + 1] = (byte) keyVersion.version;
+        System.arraycopy(name, 0, info, INFO.length + 2, name.length);
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(Hkdf.derive(keyVersion.key, new byte[0], info, 32), HMAC));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new CryptOperationException("JCA exception caught while deriving blind index key of key version " + keyVersion.version, e);
+        }
+    }
+
+    private static final class CachedMac {
+        final CipherPlan plan;
+        final Mac mac;
+
+        CachedMac(CipherPlan plan, Mac mac) {
+            this.plan = plan;
+            this.mac = mac;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.bol.crypt;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.security.spec.AlgorithmParameterSpec;
+
+/**
+ * Everything about a key version that can be worked out once, when it is
+ * registered, instead of on every encryption or decryption.
+ */
+final class CipherPlan {
+    /**
+     * The JCA default, and the maximum.
+     */
+    private static final int GCM_TAG_BITS = 128;
+
+    final KeyVersion keyVersion;
+    /**
+     * The algorithm part of the transformation, e.g. {@code "AES"} for
+     * {@code "AES/CBC/PKCS5Padding"}.
+     */
+    final String algorithm;
+    final SecretKeySpec keySpec;
+    /**
+     * The provider pinned by the key version, or null for the default.
+     */
+    final Provider provider;
+    /**
+     * The name under which the transformation's {@link AlgorithmParameters}
+     * are known, e.g. {@code "AES"} or {@code "GCM"}. Null when the
+     * transformation takes no parameters (e.g. ECB) or could not be resolved.
+     */
+    final String paramsAlgorithm;
+    /**
+     * How the parameters of the transformation are built from a raw IV, e.g.
+     * the one stored in a compact blob, or null when the transformation
+     * takes other parameters than an IV.
+     */
+    final IvParameters ivParameters;
+    final boolean legacy;
+    /**
+     * Key used by version 1 of this library, which always used AES.
+     */
+    final SecretKeySpec legacyKeySpec;
+    /**
+     * Set for deterministic key versions ({@code AES/SIV/NoPadding}), which
+     * are not encrypted through a single JCA cipher.
+     */
+    final Siv siv;
+
+    private volatile Sizing sizing;
+    private volatile int ivLength = -1;
+
+    private CipherPlan(KeyVersion keyVersion, boolean resolveParams) {
+        this.keyVersion = keyVersion;
+        this.legacy = keyVersion.legacy;
+        this.algorithm = keyVersion.transformation == null ? null : keyVersion.transformation.split("/", 2)[0];
+        this.keySpec = algorithm == null ? null : new SecretKeySpec(keyVersion.key, algorithm);
+        this.provider = resolveProvider(keyVersion);
+        this.legacyKeySpec = legacy ? new SecretKeySpec(keyVersion.key, "AES") : null;
+        this.paramsAlgorithm = resolveParams ? resolveParamsAlgorithm(keyVersion.transformation, provider) : null;
+        this.ivParameters = ivParameters(keyVersion.transformation);
+        this.siv = Siv.isSiv(keyVersion.transformation) && !legacy ? new Siv(keyVersion.version, keyVersion.key, provider) : null;
+    }
+
+    /**
+     * A copy of {@code master} for a key derived from its key, e.g. per
+     * tenant. Shares everything that was resolved for the master.
+     */
+    private CipherPlan(CipherPlan master, byte[] derivedKey) {
+        KeyVersion masterVersion = master.keyVersion;
+        this.keyVersion = new KeyVersion(masterVersion.version, masterVersion.transformation, derivedKey, false, masterVersion.provider);
+        this.legacy = false;
+        this.algorithm = master.algorithm;
+        this.keySpec = new SecretKeySpec(derivedKey, algorithm);
+        this.provider = master.provider;
+        this.legacyKeySpec = null;
+        this.paramsAlgorithm = master.paramsAlgorithm;
+        this.ivParameters = master.ivParameters;
+        this.siv = master.siv == null ? null : new Siv(masterVersion.version, derivedKey, provider);
+        this.sizing = master.sizing;
+        this.ivLength = master.ivLength;
+    }
+
+    /**
+     * Builds the plan for a key derived from this plan's key.
+     */
+    CipherPlan derive(byte[] derivedKey) {
+        return new CipherPlan(this, derivedKey);
+    }
+
+    /**
+     * Builds the full plan for a key version that is being registered.
+     */
+    static CipherPlan of(KeyVersion keyVersion) {
+        return new CipherPlan(keyVersion, true);
+    }
+
+    /**
+     * Builds just enough of a plan to encrypt under a key version that was
+     * never registered.
+     */
+    static CipherPlan forEncryption(KeyVersion keyVersion) {
+        return new CipherPlan(keyVersion, false);
+    }
+
+    /**
+     * The exact size of a proto version 0 blob holding {@code cleartextLength}
+     * bytes, encrypted with the default parameters of the transformation.
+     */
+    int encryptedSize(CipherPool cipherPool, int cleartextLength) throws GeneralSecurityException, IOException {
+        return sizing(cipherPool).blobSize(cleartextLength);
+    }
+
+    /**
+     * The exact size of a compact blob (proto version 2) holding
+     * {@code cleartextLength} bytes, encrypted with the default parameters of
+     * the transformation.
+     */
+    int compactEncryptedSize(CipherPool cipherPool, int cleartextLength) throws GeneralSecurityException, IOException {
+        return sizing(cipherPool).compactBlobSize(CompactBlobs.headerLength(this), cleartextLength);
+    }
+
+    private Sizing sizing(CipherPool cipherPool) throws GeneralSecurityException, IOException {
+        Sizing s = sizing;
+        if (s == null) {
+            sizing = s = new Sizing(cipherPool.init(keyVersion.transformation, provider, Cipher.ENCRYPT_MODE, keySpec, (AlgorithmParameterSpec) null));
+        }
+        return s;
+    }
+
+    /**
+     * Length of the IV the transformation takes; 0 when it takes none.
+     * Only defined when {@link #ivParameters} is not null.
+     */
+    int ivLength() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        int n = ivLength;
+        if (n < 0) {
+            ivLength = n = switch (ivParameters) {
+                case NONE -> 0;
+                case GCM, NONCE -> 12;
+                case IV -> newCipher().getBlockSize();
+            };
+        }
+        return n;
+    }
+
+    /**
+     * Builds the parameters for encryption under the given, fresh IV.
+     * Only defined when {@link #ivParameters} is not null.
+     *
+     * @return The parameters, or null when the transformation takes no IV.
+     */
+    AlgorithmParameterSpec params(byte[] iv) {
+        return switch (ivParameters) {
+            case NONE -> null;
+            case GCM -> new GCMParameterSpec(GCM_TAG_BITS, iv);
+            case IV, NONCE -> new IvParameterSpec(iv);
+        };
+    }
+
+    /**
+     * Whether the transformation authenticates the ciphertext, and so takes
+     * additional authenticated data.
+     */
+    boolean isAead() {
+        return ivParameters != null && ivParameters.isNonce();
+    }
+
+    enum IvParameters {
+        /**
+         * No parameters at all (ECB).
+         */
+        NONE,
+        /**
+         * An {@code IvParameterSpec} holding an IV that must be unpredictable
+         * (e.g. CBC) or must never overlap another's counter range (CTR).
+         */
+        IV,
+        /**
+         * An {@code IvParameterSpec} holding an AEAD nonce, which only needs
+         * to be unique under the key (ChaCha20-Poly1305).
+         */
+        NONCE,
+        /**
+         * A {@code GCMParameterSpec}, which also needs the tag length. Its
+         * IV only needs to be unique under the key.
+         */
+        GCM;
+
+        /**
+         * Whether the IV only needs to be unique under the key, as opposed to
+         * unpredictable.
+         */
+        boolean isNonce() {
+            return this == NONCE || this == GCM;
+        }
+    }
+
+    private static IvParameters ivParameters(String transformation) {
+        if (transformation == null) return null;
+        String[] parts = transformation.toUpperCase().split("/");
+        if (parts.length == 1) return parts[0].equals("CHACHA20-POLY1305") ? IvParameters.NONCE : null;
+
+        String mode = parts[1];
+        if (mode.equals("GCM")) return IvParameters.GCM;
+        if (mode.equals("ECB")) return IvParameters.NONE;
+        if (mode.equals("CBC") || mode.equals("PCBC") || mode.equals("CTR") || mode.equals("CTS")
+                || mode.matches("(CFB|OFB)\\d*")) return IvParameters.IV;
+        return null;
+    }
+
+    /**
+     * A new, uninitialized cipher for this key version.
+     */
+    Cipher newCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        return provider == null ? Cipher.getInstance(keyVersion.transformation) : Cipher.getInstance(keyVersion.transformation, provider);
+    }
+
+    private static Provider resolveProvider(KeyVersion keyVersion) {
+        if (keyVersion.provider == null) return null;
+        Provider provider = Security.getProvider(keyVersion.provider);
+        if (provider == null) throw new IllegalArgumentException(String.format("provider %s of key version %d is not installed", keyVersion.provider, keyVersion.version));
+        return provider;
+    }
+
+    private static String resolveParamsAlgorithm(String transformation, Provider provider) {
+        if (transformation == null) return null;
+        try {
+            Cipher cipher = provider == null ? Cipher.getInstance(transformation) : Cipher.getInstance(transformation, provider);
+            AlgorithmParameters params = cipher.getParameters();
+            return params == null ? null : params.getAlgorithm();
+        } catch (GeneralSecurityException e) {
+            // unusable transformation; encrypt and decrypt will report it when they try to get a cipher for it
+            return null;
+        }
+    }
+
+    /**
+     * How the size of a blob follows from the size of its cleartext, as
+     * measured on a cipher freshly initialized for encryption.
+     */
+    private static final class Sizing {
+        final int encodedParamsLength;
+        final int ivLength;
+        final int blockSize;
+        final boolean padded;
+        /**
+         * Output size for empty input: a full block of padding for padded
+         * modes, the tag for AEAD modes, nothing otherwise.
+         */
+        final int overhead;
+
+        Sizing(Cipher cipher) throws IOException {
+            AlgorithmParameters params = cipher.getParameters();
+            this.encodedParamsLength = params == null ? 0 : params.getEncoded().length;
+            byte[] iv = cipher.getIV();
+            this.ivLength = iv == null ? 0 : iv.length;
+            this.blockSize = cipher.getBlockSize();
+            this.overhead = cipher.getOutputSize(0);
+            this.padded = blockSize > 1 && overhead > 0 && cipher.getOutputSize(1) == overhead;
+        }
+
+        int blobSize(int cleartextLength) {
+            return 1 + 1 + 1 + encodedParamsLength + ciphertextLength(cleartextLength);
+        }
+
+        int compactBlobSize(int headerLength, int cleartextLength) {
+            return headerLength + ivLength + ciphertextLength(cleartextLength);
+        }
+
+        private int ciphertextLength(int cleartextLength) {
+            return padded
+                    ? (cleartextLength / blockSize) * blockSize + overhead
+                    : cleartextLength + overhead;
+        }
+    }
+}
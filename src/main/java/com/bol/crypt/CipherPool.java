@@ -0,0 +1,122 @@
+package com.bol.crypt;
+
+import org.springframework.lang.Nullable;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import java.security.AlgorithmParameters;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out initialized {@link Cipher} instances for a given transformation
+ * and provider.
+ * <p>
+ * A pooled cipher is always {@code init}-ed before it is handed out, which
+ * fully resets it, so no key, IV or buffered data carries over from one call
+ * to the next.
+ */
+abstract class CipherPool {
+    /**
+     * Creates a new {@code Cipher} on every call; this is what this library
+     * did before pooling was introduced.
+     */
+    static final CipherPool NONE = new CipherPool() {
+        @Override
+        Cipher get(String transformation, @Nullable Provider provider) throws NoSuchAlgorithmException, NoSuchPaddingException {
+            return newCipher(transformation, provider);
+        }
+
+        @Override
+        void evict(String transformation, @Nullable Provider provider) {
+        }
+    };
+
+    /**
+     * Keeps one {@code Cipher} per transformation and provider per thread. A
+     * cipher takes a new key on every {@code init} call, so a single
+     * instance can serve every key version that shares a transformation and
+     * provider. It holds on to the key it was last initialized with until the
+     * next {@code init}.
+     */
+    static final CipherPool THREAD_LOCAL = new CipherPool() {
+        /**
+         * Per provider (null for the default provider), per transformation.
+         */
+        private final ThreadLocal<Map<Provider, Map<String, Cipher>>> ciphers = ThreadLocal.withInitial(HashMap::new);
+
+        @Override
+        Cipher get(String transformation, @Nullable Provider provider) throws NoSuchAlgorithmException, NoSuchPaddingException {
+            Map<String, Cipher> perProvider = ciphers.get().computeIfAbsent(provider, p -> new HashMap<>());
+            Cipher cipher = perProvider.get(transformation);
+            if (cipher == null) {
+                cipher = newCipher(transformation, provider);
+                perProvider.put(transformation, cipher);
+            }
+            return cipher;
+        }
+
+        @Override
+        void evict(String transformation, @Nullable Provider provider) {
+            Map<String, Cipher> perProvider = ciphers.get().get(provider);
+            if (perProvider != null) perProvider.remove(transformation);
+        }
+    };
+
+    /**
+     * Gets a cipher for the given transformation. The caller must not hand
+     * the returned instance to another thread, nor hold on to it after the
+     * current operation has finished.
+     *
+     * @param provider The provider to take the cipher from, or null for the highest-priority provider that supports
+     *                 the transformation.
+     */
+    abstract Cipher get(String transformation, @Nullable Provider provider) throws NoSuchAlgorithmException, NoSuchPaddingException;
+
+    /**
+     * Drops the cipher for the given transformation, so that the next
+     * {@code get} creates a new one.
+     */
+    abstract void evict(String transformation, @Nullable Provider provider);
+
+    Cipher init(String transformation, int mode, Key key, AlgorithmParameterSpec params) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+        return init(transformation, null, mode, key, params);
+    }
+
+    Cipher init(String transformation, @Nullable Provider provider, int mode, Key key, AlgorithmParameterSpec params) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+        return init(transformation, provider, cipher -> cipher.init(mode, key, params));
+    }
+
+    Cipher init(String transformation, @Nullable Provider provider, int mode, Key key, AlgorithmParameters params) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+        return init(transformation, provider, cipher -> cipher.init(mode, key, params));
+    }
+
+    private Cipher init(String transformation, @Nullable Provider provider, Initializer initializer) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+        Cipher cipher = get(transformation, provider);
+        try {
+            initializer.init(cipher);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+            // AEAD ciphers refuse to be re-initialized with the key and nonce they last saw (e.g. when decrypting
+            // what was just encrypted on this thread, or when the caller reuses an IV on purpose); a fresh
+            // instance has no such memory, and rethrows if the key or parameters are really at fault
+            evict(transformation, provider);
+            cipher = get(transformation, provider);
+            initializer.init(cipher);
+        }
+        return cipher;
+    }
+
+    private static Cipher newCipher(String transformation, @Nullable Provider provider) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        return provider == null ? Cipher.getInstance(transformation) : Cipher.getInstance(transformation, provider);
+    }
+
+    private interface Initializer {
+        void init(Cipher cipher) throws InvalidKeyException, InvalidAlgorithmParameterException;
+    }
+}
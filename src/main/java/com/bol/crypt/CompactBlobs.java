@@ -0,0 +1,93 @@
+package com.bol.crypt;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import java.security.spec.AlgorithmParameterSpec;
+
+/**
+ * The compact blob format (proto version 2), which stores the raw IV instead
+ * of DER-encoded {@code AlgorithmParameters}:
+ * <pre>
+ * 0         8         16        24        32
+ * +---------+---------+---------+---------+--------------------+--------------------+
+ * |proto    |key      |IV       |tag      |IV                  |ciphertext          |
+ * |version  |version  |length   |length   |         ...        |            ...     |
+ * |8        |8        |8        |8, GCM   |[0,255]             |[0,inf)             |
+ * |         |         |         |only     |                    |                    |
+ * +---------+---------+---------+---------+--------------------+--------------------+
+ * </pre>
+ * The key version defines the transformation, so whether the tag length (in
+ * bytes) is present follows from it. On decryption, the parameters are
+ * rebuilt as an {@code IvParameterSpec} or {@code GCMParameterSpec} without
+ * any parsing. This saves 2 to 6 bytes per blob, and the
+ * {@code AlgorithmParameters} lookup and decoding per decryption.
+ * <p>
+ * Only transformations whose parameters are just an IV can use this format;
+ * see {@link CipherPlan#ivParameters}.
+ */
+final class CompactBlobs {
+    static final byte PROTO_VERSION = 2;
+    /**
+     * Length of the fixed part of the header, common to all transformations.
+     */
+    static final int MIN_HEADER_LENGTH = 1 + 1 + 1;
+
+    private CompactBlobs() {
+    }
+
+    /**
+     * Length of the header, without the IV, for blobs of the given key
+     * version.
+     */
+    static int headerLength(CipherPlan plan) {
+        return plan.ivParameters == CipherPlan.IvParameters.GCM ? MIN_HEADER_LENGTH + 1 : MIN_HEADER_LENGTH;
+    }
+
+    /**
+     * The header of a compact blob encrypted by {@code cipher}, IV included.
+     */
+    static byte[] header(CipherPlan plan, Cipher cipher) {
+        byte[] iv = cipher.getIV();
+        int ivLength = iv == null ? 0 : iv.length;
+        int headerLength = headerLength(plan);
+
+        byte[] header = new byte[headerLength + ivLength];
+        header[0] = PROTO_VERSION;
+        header[1] = (byte) plan.keyVersion.version;
+        header[2] = (byte) ivLength;
+        // for encryption, GCM's output size of nothing is exactly the tag
+        if (plan.ivParameters == CipherPlan.IvParameters.GCM) header[3] = (byte) cipher.getOutputSize(0);
+        if (ivLength > 0) System.arraycopy(iv, 0, header, headerLength, ivLength);
+        return header;
+    }
+
+    /**
+     * Validates the header of a compact blob of {@code blobLength} bytes.
+     *
+     * @param ivLength The IV length from the header.
+     * @return The length of the header, IV included.
+     */
+    static int headerLength(CipherPlan plan, int blobLength, int ivLength) {
+        if (plan.ivParameters == null)
+            throw new CryptOperationException("key version " + plan.keyVersion.version + " cannot be used with compact blobs; its transformation takes other parameters than an IV");
+        int headerLength = headerLength(plan) + ivLength;
+        if (blobLength < headerLength) throw new CryptOperationException("compact blob is truncated");
+        return headerLength;
+    }
+
+    /**
+     * Rebuilds the parameters from a complete, validated header.
+     *
+     * @return The parameters, or null when the blob holds no IV.
+     */
+    static AlgorithmParameterSpec params(CipherPlan plan, byte[] header, int offset) {
+        int ivLength = header[offset + 2] & 0xFF;
+        if (ivLength == 0) return null;
+
+        int ivOffset = offset + headerLength(plan);
+        return plan.ivParameters == CipherPlan.IvParameters.GCM
+                ? new GCMParameterSpec((header[offset + 3] & 0xFF) * 8, header, ivOffset, ivLength)
+                : new IvParameterSpec(header, ivOffset, ivLength);
+    }
+}
@@ -0,0 +1,165 @@
+package com.bol.crypt;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The compressed blob format (proto version 6): a proto version 0 or compact
+ * blob of the compressed cleartext, behind a header of its own.
+ * <pre>
+ * 0         8         16        24                  56
+ * +---------+---------+---------+-------------------+--------------------+
+ * |proto    |key      |codec    |cleartext length   |inner blob          |
+ * |version  |version  |         |(big endian)       |            ...     |
+ * |8        |8        |8        |32                 |                    |
+ * +---------+---------+---------+-------------------+--------------------+
+ * </pre>
+ * The key version is repeated from the inner blob, so that it is found at
+ * the same offset as in every other format, and must match it. The cleartext
+ * length sizes the output of decompression, which must match it exactly.
+ * Under an AEAD transformation, the header is authenticated as additional
+ * data of the inner blob.
+ * <p>
+ * Compressed cleartext is encrypted as it comes out of the codec, without
+ * buffering it in full. It is decompressed only after decryption has
+ * authenticated it (under an AEAD transformation).
+ */
+final class CompressedBlobs {
+    static final byte PROTO_VERSION = 6;
+    static final int HEADER_LENGTH = 1 + 1 + 1 + 4;
+
+    private CompressedBlobs() {
+    }
+
+    /**
+     * Compresses {@code cleartext} into {@code cipher}, which is initialized
+     * for encryption and belongs to {@code innerHeader}.
+     *
+     * @return The blob, or null when it would not be smaller than the blob of
+     * the uncompressed cleartext, so that {@link CryptVault#encryptedSize} is
+     * an upper bound on compressed blobs too.
+     */
+    static byte[] encrypt(CipherPlan plan, Cipher cipher, byte[] innerHeader, CompressionCodec codec, byte[] cleartext)
+            throws IOException, IllegalBlockSizeException, BadPaddingException, ShortBufferException {
+        int uncompressedSize = innerHeader.length + cipher.getOutputSize(cleartext.length);
+        // a guess for compressible payloads; the buffer grows if needed
+        BlobBuffer blob = new BlobBuffer(HEADER_LENGTH + innerHeader.length + cleartext.length / 4 + 64);
+        blob.buf[0] = PROTO_VERSION;
+        blob.buf[1] = (byte) plan.keyVersion.version;
+        blob.buf[2] = (byte) codec.id();
+        ByteBuffer.wrap(blob.buf).putInt(3, cleartext.length);
+        if (plan.isAead()) cipher.updateAAD(blob.buf, 0, HEADER_LENGTH);
+        blob.count = HEADER_LENGTH;
+        blob.write(innerHeader, 0, innerHeader.length);
+
+        EncryptingStream encrypting = new EncryptingStream(cipher, blob);
+        try (OutputStream compressing = codec.compress(encrypting)) {
+            compressing.write(cleartext);
+        }
+        if (encrypting.written >= cleartext.length) return null;
+
+        blob.ensure(cipher.getOutputSize(0));
+        blob.count += cipher.doFinal(blob.buf, blob.count);
+        if (blob.count >= uncompressedSize) return null;
+        return blob.count == blob.buf.length ? blob.buf : Arrays.copyOf(blob.buf, blob.count);
+    }
+
+    /**
+     * The length of the cleartext, as recorded in the header.
+     */
+    static int cleartextLength(ByteBuffer blob) {
+        int start = blob.position();
+        if (blob.remaining() < HEADER_LENGTH) throw new CryptOperationException("compressed blob is truncated");
+        int length = blob.getInt(start + 3);
+        if (length < 0) throw new CryptOperationException("compressed blob records a negative cleartext length: " + length);
+        return length;
+    }
+
+    /**
+     * Decompresses {@code compressed}, which must hold exactly {@code length}
+     * bytes of cleartext. Output is allocated as it is produced, so a forged
+     * length does not allocate more than the codec actually outputs.
+     */
+    static byte[] decompress(CompressionCodec codec, byte[] compressed, int length) {
+        byte[] cleartext = new byte[(int) Math.min(length, compressed.length * 8L + 8192)];
+        int n = 0;
+        try (InputStream in = codec.decompress(new ByteArrayInputStream(compressed))) {
+            while (true) {
+                if (n == cleartext.length) {
+                    if (n == length) break;
+                    byte[] grown = Arrays.copyOf(cleartext, (int) Math.min(length, cleartext.length * 2L));
+                    Arrays.fill(cleartext, (byte) 0);
+                    cleartext = grown;
+                }
+                int read = in.read(cleartext, n, cleartext.length - n);
+                if (read < 0) break;
+                n += read;
+            }
+            if (n != length || in.read() >= 0) {
+                throw new CryptOperationException("compressed blob does not decompress to its recorded length of " + length + " bytes");
+            }
+            return cleartext;
+        } catch (IOException | RuntimeException e) {
+            Arrays.fill(cleartext, (byte) 0);
+            if (e instanceof CryptOperationException) throw (CryptOperationException) e;
+            throw new CryptOperationException("cannot decompress blob with codec " + codec.name(), e);
+        }
+    }
+
+    private static final class BlobBuffer {
+        byte[] buf;
+        int count;
+
+        BlobBuffer(int capacity) {
+            this.buf = new byte[capacity];
+        }
+
+        void ensure(int n) {
+            if (count + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + n));
+        }
+
+        void write(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Feeds compressed cleartext straight into the cipher.
+     */
+    private static final class EncryptingStream extends OutputStream {
+        private final Cipher cipher;
+        private final BlobBuffer blob;
+        long written;
+
+        EncryptingStream(Cipher cipher, BlobBuffer blob) {
+            this.cipher = cipher;
+            this.blob = blob;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            written += len;
+            blob.ensure(cipher.getOutputSize(len));
+            try {
+                blob.count += cipher.update(b, off, len, blob.buf, blob.count);
+            } catch (ShortBufferException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
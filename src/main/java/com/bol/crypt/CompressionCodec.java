@@ -0,0 +1,53 @@
+package com.bol.crypt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compresses cleartext before it is encrypted, see
+ * {@link CryptVault#setCompression(int, CompressionCodec, int)}. The codec
+ * is recorded by {@link #id()} in every compressed blob, so that decryption
+ * picks the same codec.
+ * <p>
+ * Implementations must be thread-safe.
+ */
+public interface CompressionCodec {
+    /**
+     * Identifies the codec in blobs, in [1, 255]. 1 is taken by
+     * {@link #deflate()}. Must never change, nor be reused for another format.
+     */
+    int id();
+
+    /**
+     * Names the codec in configuration, e.g. {@code deflate}.
+     */
+    String name();
+
+    /**
+     * Wraps {@code out} in a stream that compresses what is written to it;
+     * closing the stream finishes the compressed data and closes {@code out}.
+     */
+    OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * Wraps {@code in} in a stream that decompresses what is read from it.
+     */
+    InputStream decompress(InputStream in) throws IOException;
+
+    /**
+     * Raw Deflate (RFC 1951) at the default compression level, always
+     * available to decryption. Native compressor state is reused per thread.
+     */
+    static CompressionCodec deflate() {
+        return DeflateCodec.DEFAULT;
+    }
+
+    /**
+     * Raw Deflate at the given level, from 0 (none) to 9 (best); blobs are
+     * interchangeable with those of {@link #deflate()}.
+     */
+    static CompressionCodec deflate(int level) {
+        return new DeflateCodec(level);
+    }
+}
@@ -0,0 +1,102 @@
+package com.bol.crypt;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * See {@link IvGenerator#counter(int)}. Nonces are the 32-bit instance id
+ * (the fixed field of NIST SP 800-38D), random bytes per key version for
+ * nonces longer than 12 bytes, and a 64-bit big endian counter (the
+ * invocation field) that starts at a random offset per key version. Threads
+ * reserve ranges of the counter at once, so the shared counter is only
+ * touched once per {@link #RANGE} nonces.
+ */
+class CounterNonceGenerator implements IvGenerator {
+    static final int RANGE = 1 << 16;
+    static final int FIXED_LENGTH = 4;
+    private static final int COUNTER_LENGTH = 8;
+
+    private final int instanceId;
+    private final ThreadLocalDrbgIvGenerator random;
+    private final Counter[] counters = new Counter[256];
+    private final ThreadLocal<Reservation[]> reservations = ThreadLocal.withInitial(() -> new Reservation[256]);
+
+    CounterNonceGenerator(int instanceId, ThreadLocalDrbgIvGenerator random) {
+        this.instanceId = instanceId;
+        this.random = random;
+    }
+
+    @Override
+    public byte[] nextIv(KeyVersion keyVersion, int length, boolean nonce) {
+        if (!nonce || length < FIXED_LENGTH + COUNTER_LENGTH) return random.nextIv(keyVersion, length, nonce);
+
+        Counter counter = counter(keyVersion);
+        Reservation[] perVersion = reservations.get();
+        Reservation reservation = perVersion[keyVersion.version & 0xFF];
+        if (reservation == null || reservation.counter != counter || reservation.next == reservation.end) {
+            perVersion[keyVersion.version & 0xFF] = reservation = new Reservation(counter);
+        }
+        // may wrap around past 2^64 - 1; reservations run out long before it comes back to the offset
+        long value = counter.offset + reservation.next++;
+
+        byte[] iv = new byte[length];
+        int prefixLength = length - COUNTER_LENGTH;
+        System.arraycopy(counter.prefix, 0, iv, 0, Math.min(prefixLength, counter.prefix.length));
+        for (int i = 0; i < COUNTER_LENGTH; i++) {
+            iv[length - 1 - i] = (byte) (value >>> (8 * i));
+        }
+        return iv;
+    }
+
+    /**
+     * The counter of the given key version; a key version that is replaced
+     * by another one under the same number gets a fresh counter.
+     */
+    private Counter counter(KeyVersion keyVersion) {
+        int index = keyVersion.version & 0xFF;
+        Counter counter = counters[index];
+        if (counter == null || counter.keyVersion != keyVersion) {
+            synchronized (counters) {
+                counter = counters[index];
+                if (counter == null || counter.keyVersion != keyVersion) {
+                    byte[] prefix = new byte[16];
+                    random.nextBytes(prefix);
+                    for (int i = 0; i < FIXED_LENGTH; i++) {
+                        prefix[i] = (byte) (instanceId >>> (8 * (FIXED_LENGTH - 1 - i)));
+                    }
+                    // a random start keeps a restarted instance from repeating the nonces of its previous run
+                    byte[] offset = new byte[COUNTER_LENGTH];
+                    random.nextBytes(offset);
+                    counters[index] = counter = new Counter(keyVersion, prefix, ByteBuffer.wrap(offset).getLong());
+                }
+            }
+        }
+        return counter;
+    }
+
+    private static final class Counter {
+        final KeyVersion keyVersion;
+        final byte[] prefix;
+        final long offset;
+        final AtomicLong next = new AtomicLong();
+
+        Counter(KeyVersion keyVersion, byte[] prefix, long offset) {
+            this.keyVersion = keyVersion;
+            this.prefix = prefix;
+            this.offset = offset;
+        }
+    }
+
+    private static final class Reservation {
+        final Counter counter;
+        long next;
+        final long end;
+
+        Reservation(Counter counter) {
+            this.counter = counter;
+            this.next = counter.next.getAndAdd(RANGE);
+            if (next < 0) throw new CryptOperationException("nonce counter exhausted for key version " + counter.keyVersion.version);
+            this.end = next + RANGE;
+        }
+    }
+}
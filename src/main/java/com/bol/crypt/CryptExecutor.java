@@ -0,0 +1,193 @@
+package com.bol.crypt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the asynchronous operations of a {@link CryptVault}, e.g.
+ * {@link CryptVault#encryptAsync(byte[])}, off the calling thread, so that
+ * event loops and virtual threads are not blocked by CPU-bound encryption.
+ * <p>
+ * Every operation holds a permit per byte of its payload while it runs, up
+ * to a limit; operations that do not fit wait in a FIFO queue, without
+ * blocking their caller. A burst of large payloads therefore cannot take
+ * more than the limit of memory and CPU. Once the queue is full too, new
+ * operations fail with a {@code RejectedExecutionException}.
+ */
+public final class CryptExecutor implements AutoCloseable {
+    public static final long DEFAULT_MAX_BYTES_IN_FLIGHT = 64L * 1024 * 1024;
+    public static final int DEFAULT_MAX_QUEUED = 10_000;
+
+    private final Executor executor;
+    private final boolean owned;
+    private final long maxBytesInFlight;
+    private final int maxQueued;
+
+    private final Object lock = new Object();
+    private long available;
+    private final ArrayDeque<Task<?>> queue = new ArrayDeque<>();
+
+    private CryptExecutor(Executor executor, boolean owned, long maxBytesInFlight, int maxQueued) {
+        if (maxBytesInFlight < 1) throw new IllegalArgumentException("max bytes in flight should be at least 1, was " + maxBytesInFlight);
+        if (maxQueued < 0) throw new IllegalArgumentException("max queued should not be negative, was " + maxQueued);
+        this.executor = executor;
+        this.owned = owned;
+        this.maxBytesInFlight = maxBytesInFlight;
+        this.maxQueued = maxQueued;
+        this.available = maxBytesInFlight;
+    }
+
+    /**
+     * Runs operations on a pool of its own, of daemon threads named
+     * {@code cryptvault-async-<n>}.
+     *
+     * @param threads          Size of the pool, e.g. the amount of cores.
+     * @param maxBytesInFlight Payload bytes of all running operations together, at most; a larger payload runs alone.
+     * @param maxQueued        Operations waiting for permits, at most.
+     */
+    public static CryptExecutor bounded(int threads, long maxBytesInFlight, int maxQueued) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread thread = new Thread(r, "cryptvault-async-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new CryptExecutor(Executors.newFixedThreadPool(threads, threadFactory), true, maxBytesInFlight, maxQueued);
+    }
+
+    /**
+     * Runs every operation on a virtual thread of its own; the permits are
+     * all that bound them. Needs Java 21 or later at runtime.
+     *
+     * @throws UnsupportedOperationException when the runtime has no virtual threads
+     * @see #bounded(int, long, int)
+     */
+    public static CryptExecutor virtualThreads(long maxBytesInFlight, int maxQueued) {
+        ExecutorService executor;
+        try {
+            // looked up reflectively, as this library is built for Java 17
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("virtual threads need Java 21 or later, running on " + Runtime.version().feature());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot create virtual thread executor", e);
+        }
+        return new CryptExecutor(executor, true, maxBytesInFlight, maxQueued);
+    }
+
+    /**
+     * Runs operations on the given executor, which is not shut down by
+     * {@link #close()}.
+     *
+     * @see #bounded(int, long, int)
+     */
+    public static CryptExecutor of(Executor executor, long maxBytesInFlight, int maxQueued) {
+        return new CryptExecutor(executor, false, maxBytesInFlight, maxQueued);
+    }
+
+    /**
+     * Runs {@code operation} once permits for {@code payloadLength} bytes
+     * are available.
+     *
+     * @return The outcome of the operation.
+     */
+    <T> CompletableFuture<T> submit(int payloadLength, Supplier<T> operation) {
+        Task<T> task = new Task<>((int) Math.min(Math.max(1, payloadLength), maxBytesInFlight), operation);
+        synchronized (lock) {
+            if (queue.isEmpty() && available >= task.permits) {
+                available -= task.permits;
+            } else if (queue.size() < maxQueued) {
+                queue.add(task);
+                return task.future;
+            } else {
+                task.future.completeExceptionally(new RejectedExecutionException("too many cryptvault operations queued: " + maxQueued));
+                return task.future;
+            }
+        }
+        dispatch(task);
+        return task.future;
+    }
+
+    /**
+     * @return Payload bytes of the operations running right now.
+     */
+    public long getBytesInFlight() {
+        synchronized (lock) {
+            return maxBytesInFlight - available;
+        }
+    }
+
+    /**
+     * @return Amount of operations waiting for permits right now.
+     */
+    public int getQueued() {
+        synchronized (lock) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * Shuts down the executor, if it was created by this class. Operations
+     * already running complete.
+     */
+    @Override
+    public void close() {
+        if (owned) ((ExecutorService) executor).shutdown();
+    }
+
+    private void dispatch(Task<?> task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    release(task.permits);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            task.future.completeExceptionally(e);
+            release(task.permits);
+        }
+    }
+
+    private void release(int permits) {
+        List<Task<?>> ready = new ArrayList<>();
+        synchronized (lock) {
+            available += permits;
+            while (!queue.isEmpty() && available >= queue.peek().permits) {
+                Task<?> task = queue.poll();
+                available -= task.permits;
+                ready.add(task);
+            }
+        }
+        for (Task<?> task : ready) dispatch(task);
+    }
+
+    private static final class Task<T> {
+        final int permits;
+        final Supplier<T> operation;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Task(int permits, Supplier<T> operation) {
+            this.permits = permits;
+            this.operation = operation;
+        }
+
+        void run() {
+            try {
+                future.complete(operation.get());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }
+    }
+}
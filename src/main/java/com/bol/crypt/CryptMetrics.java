@@ -0,0 +1,65 @@
+package com.bol.crypt;
+
+import org.springframework.lang.Nullable;
+
+/**
+ * Receives the outcome of every encryption and decryption of a
+ * {@link CryptVault}, e.g. to publish them as metrics. See
+ * {@link CryptVault#setMetrics(CryptMetrics)}.
+ * <p>
+ * Implementations are called on the encrypting or decrypting thread, so they
+ * must be thread-safe and cheap.
+ */
+public interface CryptMetrics {
+    enum Operation {
+        ENCRYPT, DECRYPT
+    }
+
+    /**
+     * A value was encrypted or decrypted successfully.
+     *
+     * @param operation       Whether it was encrypted or decrypted.
+     * @param keyVersion      The key version used.
+     * @param cleartextLength Amount of cleartext encrypted or recovered.
+     * @param nanos           Time taken, in nanoseconds.
+     */
+    void recordSuccess(Operation operation, KeyVersion keyVersion, int cleartextLength, long nanos);
+
+    /**
+     * Encrypting or decrypting a value failed.
+     *
+     * @param operation  Whether it was encrypted or decrypted.
+     * @param keyVersion The key version used, or null when the blob refers to an unknown key version or could not be read.
+     * @param e          The failure.
+     */
+    void recordFailure(Operation operation, @Nullable KeyVersion keyVersion, CryptOperationException e);
+
+    /**
+     * The data key of an envelope-encrypted blob was looked up in the
+     * {@link DataKeyCache}. Does nothing by default.
+     *
+     * @param keyVersion The key version the data key is wrapped under.
+     * @param hit        Whether it was cached; if not, it was unwrapped by the {@link KeyEncryptionService}.
+     */
+    default void recordDataKeyLookup(KeyVersion keyVersion, boolean hit) {
+    }
+
+    /**
+     * A blob was looked up in the {@link DecryptionCache}. Does nothing by
+     * default.
+     *
+     * @param keyVersion The key version of the blob.
+     * @param hit        Whether its cleartext was cached; if not, it was decrypted.
+     */
+    default void recordDecryptionCacheLookup(KeyVersion keyVersion, boolean hit) {
+    }
+
+    /**
+     * A {@link KeyFileWatcher} changed the key versions, or failed to. Does
+     * nothing by default.
+     *
+     * @param type What happened.
+     */
+    default void recordKeyFileEvent(KeyFileWatcher.Event.Type type) {
+    }
+}
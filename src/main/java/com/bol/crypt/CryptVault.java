@@ -6,14 +6,29 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.bol.crypt.CryptMetrics.Operation.DECRYPT;
+import static com.bol.crypt.CryptMetrics.Operation.ENCRYPT;
 
 /**
  * The main encryptor and decryptor class.
@@ -26,6 +41,14 @@ import java.security.spec.AlgorithmParameterSpec;
  * |version  |version  |length   |         ...        |            ...     |
  * |8        |8        |8        |[0,255]             |[16,inf)            |
  * +---------+---------+---------+--------------------+--------------------+
+ * </pre>
+ * That is proto version 0. The first byte tells the other formats apart:
+ * 1 segmented ({@link Segments}), 2 compact ({@link CompactBlobs}), 3
+ * enveloped ({@link Envelopes}), 4 tenant-keyed ({@link TenantKeys}), 5 SIV
+ * ({@link Siv}) and 6 compressed ({@link CompressedBlobs}), all of which
+ * carry the key version in the second byte. Blobs of legacy key versions
+ * start with the key version plus 128 instead, which is why legacy versions
+ * 128 to 134 cannot be registered.
  */
 public class CryptVault {
     /**
@@ -33,6 +56,38 @@ public class CryptVault {
      */
     public KeyVersions keyVersions;
 
+    /**
+     * Batches smaller than this are processed on the calling thread.
+     */
+    private static final int BATCH_ITEMS_PER_TASK = 64;
+
+    private CipherPool cipherPool = CipherPool.THREAD_LOCAL;
+    private ForkJoinPool forkJoinPool = ForkJoinPool.commonPool();
+    @Nullable
+    private CryptMetrics metrics;
+    private boolean compactBlobs = false;
+    @Nullable
+    private IvGenerator ivGenerator;
+    @Nullable
+    private Envelopes envelopes;
+    private TenantKeys tenantKeys = new TenantKeys(TenantKeys.DEFAULT_CACHE_SIZE);
+    @Nullable
+    private CryptExecutor asyncExecutor;
+    @Nullable
+    private DecryptionCache decryptionCache;
+    /**
+     * Indexed by key version.
+     */
+    private Compression[] compression = new Compression[256];
+    /**
+     * Indexed by codec id.
+     */
+    private CompressionCodec[] compressionCodecs = new CompressionCodec[256];
+
+    {
+        compressionCodecs[DeflateCodec.ID] = CompressionCodec.deflate();
+    }
+
     private CryptVault() {
     }
 
@@ -48,6 +103,168 @@ public class CryptVault {
         return cryptVault;
     }
 
+    /**
+     * Whether {@code Cipher} instances are reused between calls. Enabled by
+     * default: every thread then keeps one instance per transformation, which
+     * saves a provider lookup and cipher construction on each operation.
+     *
+     * @param enabled {@code false} to create a fresh {@code Cipher} for every call.
+     */
+    public void setCipherPooling(boolean enabled) {
+        this.cipherPool = enabled ? CipherPool.THREAD_LOCAL : CipherPool.NONE;
+    }
+
+    /**
+     * The pool that segmented blobs are encrypted and decrypted on. Defaults
+     * to the common pool.
+     *
+     * @param forkJoinPool The pool; its parallelism determines how many cores a single blob can use.
+     */
+    public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+        this.forkJoinPool = forkJoinPool;
+    }
+
+    /**
+     * Receives the duration, cleartext size and key version of every
+     * encryption and decryption, and every {@code CryptOperationException}
+     * thrown by them; batches are recorded per item. Streams are not
+     * recorded. Disabled by default, in which case no time is taken at all.
+     *
+     * @param metrics The recipient, or null to disable metrics.
+     */
+    public void setMetrics(@Nullable CryptMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Caches the cleartext of blobs decrypted by {@link #decrypt(byte[])}, so
+     * that decrypting a blob again is a lookup; for read-heavy workloads
+     * that decrypt the same blobs over and over. Keeps cleartext in memory
+     * for as long as the cache is configured to. Disabled by default.
+     *
+     * @param decryptionCache The cache, or null to disable caching.
+     */
+    public void setDecryptionCache(@Nullable DecryptionCache decryptionCache) {
+        this.decryptionCache = decryptionCache;
+    }
+
+    /**
+     * Whether {@code encrypt} writes compact blobs (proto version 2), which
+     * store the raw IV instead of encoded algorithm parameters. They are
+     * smaller and cheaper to decrypt, but cannot be read by versions of this
+     * library that predate them; only enable this once every reader has been
+     * upgraded. Key versions whose transformation takes other parameters than
+     * an IV keep writing proto version 0. Both are always decrypted.
+     *
+     * @param enabled {@code true} to write compact blobs.
+     */
+    public void setCompactBlobs(boolean enabled) {
+        this.compactBlobs = enabled;
+    }
+
+    /**
+     * Generates the IVs of {@code encrypt} when no algorithm parameters are
+     * passed. By default, the JCA {@code Cipher} draws them from its shared
+     * {@code SecureRandom}, which can become a point of contention under
+     * heavy concurrent encryption. Transformations that take other
+     * parameters than an IV always use the JCA default.
+     *
+     * @param ivGenerator The generator, e.g. {@link IvGenerator#threadLocalDrbg()}, or null for the JCA default.
+     */
+    public void setIvGenerator(@Nullable IvGenerator ivGenerator) {
+        this.ivGenerator = ivGenerator;
+    }
+
+    /**
+     * Enables envelope encryption, see
+     * {@link #setEnvelopeEncryption(KeyEncryptionService, DataKeyCache, long)};
+     * a data key is shared by at most 65536 blobs.
+     */
+    public void setEnvelopeEncryption(KeyEncryptionService keyEncryptionService, DataKeyCache dataKeyCache) {
+        setEnvelopeEncryption(keyEncryptionService, dataKeyCache, Envelopes.DEFAULT_BLOBS_PER_DATA_KEY);
+    }
+
+    /**
+     * Enables envelope encryption: {@link #encryptEnveloped(KeyVersion, byte[])}
+     * encrypts with data keys that are wrapped by the given service under the
+     * key version, and stored in the blob (proto version 3). Unwrapped data
+     * keys are cached, so that {@link #decrypt(byte[])} only calls the service
+     * for data keys it has not seen recently.
+     *
+     * @param keyEncryptionService Wraps and unwraps the data keys, e.g. {@link KeyEncryptionService#local()} or a KMS.
+     * @param dataKeyCache         Caches unwrapped data keys.
+     * @param blobsPerDataKey      Amount of blobs encrypted with one data key before a new one is generated and wrapped; 1 for a data key per blob.
+     */
+    public void setEnvelopeEncryption(KeyEncryptionService keyEncryptionService, DataKeyCache dataKeyCache, long blobsPerDataKey) {
+        this.envelopes = new Envelopes(keyEncryptionService, dataKeyCache, blobsPerDataKey);
+    }
+
+    /**
+     * Amount of derived tenant keys kept, see
+     * {@link #encrypt(String, KeyVersion, byte[])}. Defaults to 10000;
+     * derivation costs a few HMAC computations, so the cache should hold
+     * the tenants that are active at any one time.
+     *
+     * @param cacheSize Amount of tenant keys kept at most, over all key versions.
+     */
+    public void setTenantKeyCacheSize(int cacheSize) {
+        this.tenantKeys = new TenantKeys(cacheSize);
+    }
+
+    /**
+     * Where {@link #encryptAsync(KeyVersion, byte[])} and
+     * {@link #decryptAsync(byte[])} run. Defaults to an executor shared by
+     * all instances, with a thread per core, 64 MiB of payloads in flight
+     * and 10000 operations queued.
+     *
+     * @param asyncExecutor The executor, e.g. {@link CryptExecutor#virtualThreads(long, int)}.
+     */
+    public void setAsyncExecutor(CryptExecutor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    /**
+     * Compresses the cleartext of {@link #encrypt(KeyVersion, byte[])} under
+     * the given key version before encrypting it, when it is at least
+     * {@code threshold} bytes long. The result is a compressed blob (proto
+     * version 6) that {@link #decrypt(byte[])} decompresses again; payloads
+     * that do not shrink are stored uncompressed. Encryption with explicit
+     * parameters, into a {@code ByteBuffer} or in any of the other formats is
+     * never compressed.
+     * <p>
+     * Compression makes the size of a blob depend on the contents of the
+     * cleartext. Do not compress values that combine secrets with data an
+     * attacker controls, if the attacker can observe blob sizes.
+     *
+     * @param keyVersion The number of the key version.
+     * @param codec      The codec, e.g. {@link CompressionCodec#deflate()}, or null to not compress.
+     * @param threshold  Cleartexts shorter than this are not compressed.
+     */
+    public void setCompression(int keyVersion, @Nullable CompressionCodec codec, int threshold) {
+        if (keyVersion < 1 || keyVersion > 255) throw new IllegalArgumentException("versions must be in range [1, 255]");
+        if (threshold < 0) throw new IllegalArgumentException("compression threshold should not be negative, was " + threshold);
+        if (codec != null) addCompressionCodec(codec);
+        Compression[] compression = this.compression.clone();
+        compression[keyVersion] = codec == null ? null : new Compression(codec, threshold);
+        this.compression = compression;
+    }
+
+    /**
+     * Makes a codec available to decryption, without compressing with it;
+     * codecs passed to {@link #setCompression(int, CompressionCodec, int)}
+     * and Deflate are available already.
+     */
+    public void addCompressionCodec(CompressionCodec codec) {
+        int id = codec.id();
+        if (id < 1 || id > 255) throw new IllegalArgumentException("compression codec id should be in [1, 255], was " + id);
+        CompressionCodec[] codecs = compressionCodecs.clone();
+        codecs[id] = codec;
+        this.compressionCodecs = codecs;
+    }
+
+    private record Compression(CompressionCodec codec, int threshold) {
+    }
+
     /**
      * Encrypts the given binary blob under the transformation given by the
      * default key version. Default encryption parameters are used.
@@ -91,106 +308,1234 @@ public class CryptVault {
      * @throws CryptOperationException
      */
     public byte[] encrypt(KeyVersion keyVersion, byte[] cleartext, @Nullable AlgorithmParameterSpec algoParamSpec) throws CryptOperationException {
+        return encrypt(keyVersions.planFor(keyVersion), cleartext, algoParamSpec);
+    }
+
+    private byte[] encrypt(CipherPlan plan, byte[] cleartext, @Nullable AlgorithmParameterSpec algoParamSpec) {
+        CryptMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        try {
+            byte[] blob = encryptBlob(plan, cleartext, algoParamSpec);
+            if (metrics != null) metrics.recordSuccess(ENCRYPT, plan.keyVersion, cleartext.length, System.nanoTime() - start);
+            return blob;
+        } catch (CryptOperationException e) {
+            if (metrics != null) metrics.recordFailure(ENCRYPT, plan.keyVersion, e);
+            throw e;
+        }
+    }
+
+    private byte[] encryptBlob(CipherPlan plan, byte[] cleartext, @Nullable AlgorithmParameterSpec algoParamSpec) {
+        KeyVersion keyVersion = plan.keyVersion;
+        if (plan.siv != null) {
+            if (algoParamSpec != null) throw new CryptOperationException("key version " + keyVersion.version + " is deterministic and takes no parameters");
+            return plan.siv.encrypt(cipherPool, cleartext);
+        }
+        Compression compression = this.compression[keyVersion.version];
+        if (compression != null && algoParamSpec == null && cleartext.length >= compression.threshold) {
+            byte[] blob = encryptCompressed(plan, compression.codec, cleartext);
+            if (blob != null) return blob;
+        }
+        Cipher cipher = initEncryption(plan, algoParamSpec);
+        try {
+            byte[] header = header(plan, cipher);
+            int headerLength = header.length;
+
+            // the ciphertext goes straight behind the header; getOutputSize is exact for encryption with the
+            // JDK providers, but only promises an upper bound
+            byte[] blob = new byte[headerLength + cipher.getOutputSize(cleartext.length)];
+            System.arraycopy(header, 0, blob, 0, headerLength);
+
+            int ciphertextLength = cipher.doFinal(cleartext, 0, cleartext.length, blob, headerLength);
+            return headerLength + ciphertextLength == blob.length ? blob : Arrays.copyOf(blob, headerLength + ciphertextLength);
+        } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException | IOException e) {
+            // wrap checked exception for easy use
+            throw new CryptOperationException("JCA exception caught while encrypting with key version " + keyVersion.version, e);
+        }
+    }
+
+    @Nullable
+    private byte[] encryptCompressed(CipherPlan plan, CompressionCodec codec, byte[] cleartext) {
+        Cipher cipher = initEncryption(plan, null);
+        try {
+            return CompressedBlobs.encrypt(plan, cipher, header(plan, cipher), codec, cleartext);
+        } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException | IOException e) {
+            throw new CryptOperationException("exception caught while compressing and encrypting with key version " + plan.keyVersion.version, e);
+        }
+    }
+
+    /**
+     * Encrypts the remaining bytes of {@code cleartext} under the default key
+     * version, writing the blob into {@code blob}. See
+     * {@link #encrypt(KeyVersion, ByteBuffer, ByteBuffer)}.
+     */
+    public int encrypt(ByteBuffer cleartext, ByteBuffer blob) throws CryptOperationException {
+        return encrypt(keyVersions.getDefault(), cleartext, blob);
+    }
+
+    /**
+     * Encrypts the remaining bytes of {@code cleartext} under the given key
+     * version, writing header and ciphertext straight into {@code blob}
+     * without any intermediate copies. Works with both heap and direct
+     * buffers.
+     * <p>
+     * On success, {@code cleartext} is fully consumed and the position of
+     * {@code blob} is advanced past the written blob. If {@code blob} has less
+     * than {@link #encryptedSize(KeyVersion, int)} bytes remaining, nothing is
+     * consumed or written and an exception is thrown.
+     *
+     * @param keyVersion The key version to encrypt the blob under.
+     * @param cleartext  Bytes to be encrypted.
+     * @param blob       Receives the self-contained, encrypted binary blob.
+     * @return The number of bytes written to {@code blob}.
+     * @throws CryptOperationException
+     */
+    public int encrypt(KeyVersion keyVersion, ByteBuffer cleartext, ByteBuffer blob) throws CryptOperationException {
+        CryptMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        int cleartextLength = cleartext.remaining();
+        try {
+            int blobLength = encryptBlob(keyVersion, cleartext, blob);
+            if (metrics != null) metrics.recordSuccess(ENCRYPT, keyVersion, cleartextLength, System.nanoTime() - start);
+            return blobLength;
+        } catch (CryptOperationException e) {
+            if (metrics != null) metrics.recordFailure(ENCRYPT, keyVersion, e);
+            throw e;
+        }
+    }
+
+    private int encryptBlob(KeyVersion keyVersion, ByteBuffer cleartext, ByteBuffer blob) {
+        CipherPlan plan = keyVersions.planFor(keyVersion);
+        if (plan.siv != null) return plan.siv.encrypt(cipherPool, cleartext, blob);
+        Cipher cipher = initEncryption(plan, null);
+        try {
+            byte[] header = header(plan, cipher);
+            int needed = header.length + cipher.getOutputSize(cleartext.remaining());
+            if (blob.remaining() < needed) {
+                throw new CryptOperationException(String.format("buffer too small to hold encrypted blob: %d bytes needed, %d remaining", needed, blob.remaining()));
+            }
+
+            int start = blob.position();
+            blob.put(header);
+            cipher.doFinal(cleartext, blob);
+            return blob.position() - start;
+        } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException | IOException e) {
+            throw new CryptOperationException("JCA exception caught while encrypting with key version " + keyVersion.version, e);
+        }
+    }
+
+    /**
+     * Encrypts {@code length} bytes of {@code cleartext} starting at
+     * {@code offset} under the given key version, writing the blob into
+     * {@code blob} starting at {@code blobOffset}. See
+     * {@link #encrypt(KeyVersion, ByteBuffer, ByteBuffer)}.
+     *
+     * @return The number of bytes written to {@code blob}.
+     */
+    public int encrypt(KeyVersion keyVersion, byte[] cleartext, int offset, int length, byte[] blob, int blobOffset) throws CryptOperationException {
+        return encrypt(keyVersion, ByteBuffer.wrap(cleartext, offset, length), ByteBuffer.wrap(blob, blobOffset, blob.length - blobOffset));
+    }
+
+    /**
+     * The size of the blob that encrypting {@code cleartextLength} bytes
+     * under the given key version with default parameters produces. Useful
+     * for sizing (pooled) buffers up front.
+     * <p>
+     * The size is exact for the {@code ByteBuffer} and offset-based
+     * {@code encrypt} overloads, and for key versions without compression.
+     * Blobs of key versions with compression (see
+     * {@link #setCompression(int, CompressionCodec, int)}) are at most this
+     * size.
+     *
+     * @param keyVersion      The key version the blob will be encrypted under.
+     * @param cleartextLength Amount of bytes to be encrypted.
+     * @return The size of the encrypted blob in bytes.
+     * @throws CryptOperationException
+     */
+    public int encryptedSize(KeyVersion keyVersion, int cleartextLength) throws CryptOperationException {
+        try {
+            CipherPlan plan = keyVersions.planFor(keyVersion);
+            if (plan.siv != null) return Siv.encryptedSize(cleartextLength);
+            return writesCompactBlobs(plan)
+                    ? plan.compactEncryptedSize(cipherPool, cleartextLength)
+                    : plan.encryptedSize(cipherPool, cleartextLength);
+        } catch (GeneralSecurityException | IOException e) {
+            throw new CryptOperationException("JCA exception caught while sizing blob for key version " + keyVersion.version, e);
+        }
+    }
+
+    private Cipher initEncryption(CipherPlan plan, @Nullable AlgorithmParameterSpec algoParamSpec) {
+        KeyVersion keyVersion = plan.keyVersion;
         if (keyVersion.legacy)
             throw new CryptOperationException("cannot encrypt with legacy key version; hint: create new key version");
 
         try {
-            Cipher cipher = Cipher.getInstance(keyVersion.transformation);
+            IvGenerator ivGenerator = this.ivGenerator;
+            if (algoParamSpec == null && ivGenerator != null && plan.ivParameters != null) {
+                int ivLength = plan.ivLength();
+                if (ivLength > 0) algoParamSpec = plan.params(ivGenerator.nextIv(keyVersion, ivLength, plan.ivParameters.isNonce()));
+            }
+            return cipherPool.init(keyVersion.transformation, plan.provider, Cipher.ENCRYPT_MODE, plan.keySpec, algoParamSpec);
+        } catch (NoSuchPaddingException | NoSuchAlgorithmException | InvalidKeyException | InvalidAlgorithmParameterException e) {
+            throw new CryptOperationException("JCA exception caught while encrypting with key version " + keyVersion.version, e);
+        }
+    }
 
-            String algorithm = keyVersion.transformation.split("/", 2)[0];
-            SecretKeySpec aesKeySpec = new SecretKeySpec(keyVersion.key, algorithm);
+    private boolean writesCompactBlobs(CipherPlan plan) {
+        return compactBlobs && plan.ivParameters != null;
+    }
 
-            cipher.init(Cipher.ENCRYPT_MODE, aesKeySpec, algoParamSpec);
+    /**
+     * The header of a compact blob, or of a proto version 0 blob: proto
+     * version, key version (which also defines the transformation), the
+     * length of the encoded parameters, and the parameters themselves.
+     */
+    private byte[] header(CipherPlan plan, Cipher cipher) throws IOException {
+        if (writesCompactBlobs(plan)) return CompactBlobs.header(plan, cipher);
 
-            byte[] ciphertext = cipher.doFinal(cleartext);
+        AlgorithmParameters params = cipher.getParameters();
+        byte[] encodedParams = params == null ? new byte[0] : params.getEncoded();
+        byte[] header = new byte[1 + 1 + 1 + encodedParams.length];
+        header[0] = (byte) 0x0;
+        header[1] = (byte) plan.keyVersion.version;
+        header[2] = (byte) encodedParams.length;
+        System.arraycopy(encodedParams, 0, header, 3, encodedParams.length);
+        return header;
+    }
 
-            byte[] encodedParams = (cipher.getParameters() == null) ? new byte[0] : cipher.getParameters().getEncoded();
+    /**
+     * Encrypts the given binary blob under the default key version, off the
+     * calling thread. See {@link #encryptAsync(KeyVersion, byte[])}.
+     */
+    public CompletableFuture<byte[]> encryptAsync(byte[] cleartext) {
+        return encryptAsync(keyVersions.getDefault(), cleartext);
+    }
 
-            byte[] blob = new byte[1 + 1 + 1 + encodedParams.length + ciphertext.length];
-            blob[0] = (byte) 0x0; // proto version
-            blob[1] = (byte) keyVersion.version; // key version (also defines transformation)
-            blob[2] = (byte) encodedParams.length; // paramLen
-            System.arraycopy(encodedParams, 0, blob, 3, encodedParams.length);
-            System.arraycopy(ciphertext, 0, blob, 3 + encodedParams.length, ciphertext.length);
+    /**
+     * Encrypts the given binary blob as {@link #encrypt(KeyVersion, byte[])}
+     * does, on the configured {@link CryptExecutor} instead of the calling
+     * thread. The cleartext must not be modified until the returned future
+     * completes.
+     *
+     * @param keyVersion The key version to encrypt the blob under.
+     * @param cleartext  Bytes to be encrypted.
+     * @return The self-contained, encrypted binary blob, or a {@code CryptOperationException}, or a
+     * {@code RejectedExecutionException} when too many operations are queued.
+     */
+    public CompletableFuture<byte[]> encryptAsync(KeyVersion keyVersion, byte[] cleartext) {
+        return asyncExecutor().submit(cleartext.length, () -> encrypt(keyVersion, cleartext));
+    }
 
+    /**
+     * Decrypts the given blob as {@link #decrypt(byte[])} does, on the
+     * configured {@link CryptExecutor} instead of the calling thread.
+     *
+     * @param blob The previously-encrypted binary blob.
+     * @return The recovered cleartext, or a {@code CryptOperationException}, or a
+     * {@code RejectedExecutionException} when too many operations are queued.
+     */
+    public CompletableFuture<byte[]> decryptAsync(byte[] blob) {
+        return asyncExecutor().submit(blob.length, () -> decrypt(blob));
+    }
+
+    CipherPool cipherPool() {
+        return cipherPool;
+    }
+
+    private CryptExecutor asyncExecutor() {
+        CryptExecutor asyncExecutor = this.asyncExecutor;
+        return asyncExecutor != null ? asyncExecutor : DefaultAsyncExecutor.INSTANCE;
+    }
+
+    /**
+     * Holds the default executor, so that its threads are only started once
+     * it is used.
+     */
+    private static final class DefaultAsyncExecutor {
+        static final CryptExecutor INSTANCE = CryptExecutor.bounded(Runtime.getRuntime().availableProcessors(),
+                CryptExecutor.DEFAULT_MAX_BYTES_IN_FLIGHT, CryptExecutor.DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * Encrypts the given binary blob for a tenant under the default key
+     * version. See {@link #encrypt(String, KeyVersion, byte[])}.
+     */
+    public byte[] encrypt(String tenantId, byte[] cleartext) throws CryptOperationException {
+        return encrypt(tenantId, keyVersions.getDefault(), cleartext);
+    }
+
+    /**
+     * Encrypts the given binary blob under a key derived from the given key
+     * version's key for the given tenant (HKDF-SHA256), so that tenants are
+     * isolated from each other without configuring a key version per tenant.
+     * The blob (proto version 4) records the key version, so rotation works
+     * as usual; the tenant has to be named again to decrypt it, with
+     * {@link #decrypt(String, byte[])}.
+     * <p>
+     * Only key versions whose transformation takes just an IV can derive
+     * tenant keys; see {@link #setCompactBlobs(boolean)}.
+     *
+     * @param tenantId   The tenant to encrypt for.
+     * @param keyVersion The key version to derive the tenant key from.
+     * @param cleartext  Bytes to be encrypted.
+     * @return A self-contained, encrypted binary blob.
+     * @throws CryptOperationException
+     */
+    public byte[] encrypt(String tenantId, KeyVersion keyVersion, byte[] cleartext) throws CryptOperationException {
+        CryptMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        try {
+            byte[] blob = tenantKeys.encrypt(keyVersions.planFor(keyVersion), tenantId, cleartext, cipherPool, ivGenerator);
+            if (metrics != null) metrics.recordSuccess(ENCRYPT, keyVersion, cleartext.length, System.nanoTime() - start);
             return blob;
-        } catch (NoSuchPaddingException | NoSuchAlgorithmException | InvalidKeyException | IllegalBlockSizeException |
-                 BadPaddingException | IOException | InvalidAlgorithmParameterException e) {
-            // wrap checked exception for easy use
-            throw new CryptOperationException("JCA exception caught while encrypting with key version " + keyVersion.version, e);
+        } catch (CryptOperationException e) {
+            if (metrics != null) metrics.recordFailure(ENCRYPT, keyVersion, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Decrypts a blob encrypted for the given tenant by
+     * {@link #encrypt(String, KeyVersion, byte[])}. Blobs that were not
+     * encrypted for a tenant are refused.
+     *
+     * @param tenantId The tenant the blob was encrypted for.
+     * @param blob     The previously-encrypted binary blob.
+     * @return The recovered cleartext.
+     * @throws CryptOperationException also when the blob was encrypted for another tenant, if the transformation authenticates
+     */
+    public byte[] decrypt(String tenantId, byte[] blob) throws CryptOperationException {
+        CryptMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        CipherPlan plan = null;
+        try {
+            if (blob.length < 2 || blob[0] != TenantKeys.PROTO_VERSION)
+                throw new CryptOperationException("blob was not encrypted for a tenant; hint: use decrypt(blob)");
+            plan = planOf(blob[1]);
+            byte[] cleartext = tenantKeys.decrypt(plan, tenantId, blob, cipherPool);
+            if (metrics != null) metrics.recordSuccess(DECRYPT, plan.keyVersion, cleartext.length, System.nanoTime() - start);
+            return cleartext;
+        } catch (CryptOperationException e) {
+            if (metrics != null) metrics.recordFailure(DECRYPT, plan == null ? null : plan.keyVersion, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Envelope-encrypts the given binary blob under the default key version.
+     * See {@link #encryptEnveloped(KeyVersion, byte[])}.
+     */
+    public byte[] encryptEnveloped(byte[] cleartext) throws CryptOperationException {
+        return encryptEnveloped(keyVersions.getDefault(), cleartext);
+    }
+
+    /**
+     * Encrypts the given binary blob with AES/GCM under a data key, which is
+     * stored in the blob wrapped under the given key version (proto version
+     * 3). Requires {@link #setEnvelopeEncryption(KeyEncryptionService, DataKeyCache)}.
+     * {@link #decrypt(byte[])} decrypts the result like any other blob.
+     *
+     * @param keyVersion The key version to wrap the data key under.
+     * @param cleartext  Bytes to be encrypted.
+     * @return A self-contained, encrypted binary blob.
+     * @throws CryptOperationException
+     */
+    public byte[] encryptEnveloped(KeyVersion keyVersion, byte[] cleartext) throws CryptOperationException {
+        CryptMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        try {
+            byte[] blob = envelopes().encrypt(keyVersions.planFor(keyVersion), cleartext, cipherPool, ivGenerator);
+            if (metrics != null) metrics.recordSuccess(ENCRYPT, keyVersion, cleartext.length, System.nanoTime() - start);
+            return blob;
+        } catch (CryptOperationException e) {
+            if (metrics != null) metrics.recordFailure(ENCRYPT, keyVersion, e);
+            throw e;
+        }
+    }
+
+    private Envelopes envelopes() {
+        Envelopes envelopes = this.envelopes;
+        if (envelopes == null) throw new CryptOperationException("envelope encryption is not enabled; hint: set a KeyEncryptionService");
+        return envelopes;
+    }
+
+    /**
+     * Encrypts the given binary blob under the default key version into a
+     * segmented blob. See {@link #encryptSegmented(KeyVersion, byte[], int)}.
+     */
+    public byte[] encryptSegmented(byte[] cleartext) throws CryptOperationException {
+        return encryptSegmented(keyVersions.getDefault(), cleartext);
+    }
+
+    /**
+     * Encrypts the given binary blob under the given key version into a
+     * segmented blob, in segments of 64 KiB. See
+     * {@link #encryptSegmented(KeyVersion, byte[], int)}.
+     */
+    public byte[] encryptSegmented(KeyVersion keyVersion, byte[] cleartext) throws CryptOperationException {
+        return encryptSegmented(keyVersion, cleartext, Segments.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Encrypts the given binary blob under the given key version into a
+     * segmented blob (proto version 1), the same format that
+     * {@link #encryptingStream(KeyVersion, OutputStream, int)} writes.
+     * Segments are encrypted independently and in parallel on the configured
+     * {@code ForkJoinPool}, so large payloads are not limited to a single
+     * core. {@link #decrypt(byte[])} decrypts the result in parallel, too.
+     *
+     * @param keyVersion  The key version to encrypt under.
+     * @param cleartext   Bytes to be encrypted.
+     * @param segmentSize Amount of cleartext per segment, in (0, 16 MiB].
+     * @return A self-contained, encrypted binary blob.
+     * @throws CryptOperationException
+     */
+    public byte[] encryptSegmented(KeyVersion keyVersion, byte[] cleartext, int segmentSize) throws CryptOperationException {
+        CryptMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        try {
+            Segments segments = Segments.forEncryption(keyVersions.planFor(keyVersion), segmentSize);
+            byte[] blob = ParallelSegments.encrypt(segments, cleartext, cipherPool, forkJoinPool);
+            if (metrics != null) metrics.recordSuccess(ENCRYPT, keyVersion, cleartext.length, System.nanoTime() - start);
+            return blob;
+        } catch (CryptOperationException e) {
+            if (metrics != null) metrics.recordFailure(ENCRYPT, keyVersion, e);
+            throw e;
         }
     }
 
     /**
      * Decrypts a previously-encrypted, self-contained binary blob. To achieve
      * compatibility with previous versions of this library, if the first byte
-     * is not a recognized protocol version (currently 00), a "legacy
+     * is not a recognized protocol version (currently 00 to 06), a "legacy
      * decryption" is attempted: the blob will be decrypted according to the
      * legacy decryption process.
+     * <p>
+     * Segmented blobs (proto version 01) are decrypted in parallel on the
+     * configured {@code ForkJoinPool}.
      *
      * @param blob The previously-encrypted binary blob.
      * @return The recovered cleartext.
      * @throws CryptOperationException
      */
     public byte[] decrypt(byte[] blob) throws CryptOperationException {
+        CryptMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        DecryptionCache cache = this.decryptionCache;
+        CipherPlan cachePlan = cache == null ? null : cachePlan(cache, blob);
+        if (cachePlan != null) {
+            byte[] cached = cache.get(blob, cachePlan);
+            if (metrics != null) metrics.recordDecryptionCacheLookup(cachePlan.keyVersion, cached != null);
+            if (cached != null) {
+                if (metrics != null) metrics.recordSuccess(DECRYPT, cachePlan.keyVersion, cached.length, System.nanoTime() - start);
+                return cached;
+            }
+        }
+        try {
+            byte[] cleartext = decryptAny(blob);
+            if (cachePlan != null) cache.put(blob, cachePlan, cleartext);
+            if (metrics != null) metrics.recordSuccess(DECRYPT, blobKeyVersion(ByteBuffer.wrap(blob)), cleartext.length, System.nanoTime() - start);
+            return cleartext;
+        } catch (CryptOperationException e) {
+            if (metrics != null) metrics.recordFailure(DECRYPT, blobKeyVersion(ByteBuffer.wrap(blob)), e);
+            throw e;
+        }
+    }
+
+    /**
+     * The plan a cached cleartext of {@code blob} must have been decrypted
+     * under, or null if the blob is not to be cached.
+     */
+    @Nullable
+    private CipherPlan cachePlan(DecryptionCache cache, byte[] blob) {
+        if (blob.length < 2) return null;
+        int protoVersion = blob[0] & 0xFF;
+        // no format's cleartext is longer than its blob, except that of compressed blobs
+        long cleartextBound = protoVersion == CompressedBlobs.PROTO_VERSION && blob.length >= CompressedBlobs.HEADER_LENGTH
+                ? ByteBuffer.wrap(blob).getInt(3) & 0xFFFFFFFFL
+                : blob.length;
+        if (cleartextBound > cache.maximumCleartextSize()) return null;
+        if (isProtoVersion(protoVersion)) return protoVersion == TenantKeys.PROTO_VERSION ? null : keyVersions.plan(blob[1] & 0xFF);
+        if (cache.bypassLegacy() || !keyVersions.isLegacyVersion(blob[0])) return null;
+        return keyVersions.plan(KeyVersions.legacyVersion(blob[0]));
+    }
+
+    private byte[] decryptAny(byte[] blob) {
         int protoVersion = blob[0] & 0xFF;
-        if (protoVersion != 0) {
+        if (protoVersion == Segments.PROTO_VERSION) {
+            if (blob.length < Segments.HEADER_LENGTH) throw new CryptOperationException("segmented blob is truncated");
+            return ParallelSegments.decrypt(Segments.forDecryption(keyVersions, blob), blob, cipherPool, forkJoinPool);
+        }
+        if (protoVersion == Envelopes.PROTO_VERSION) {
+            return envelopes().decrypt(keyVersions, blob, cipherPool, metrics);
+        }
+        if (protoVersion == TenantKeys.PROTO_VERSION) {
+            throw new CryptOperationException("blob was encrypted for a tenant; hint: use decrypt(tenantId, blob)");
+        }
+        if (protoVersion == Siv.PROTO_VERSION) {
+            return sivOf(blob[1]).decrypt(cipherPool, blob);
+        }
+        if (protoVersion == CompressedBlobs.PROTO_VERSION) {
+            return decryptCompressed(blob);
+        }
+        if (protoVersion != 0 && protoVersion != CompactBlobs.PROTO_VERSION) {
             if (keyVersions.isLegacyVersion(blob[0])) {
                 return attemptLegacyDecrypt(blob);
             }
             throw new CryptOperationException("cryptvault protocol version in encrypted blob is unknown: " + protoVersion);
         }
 
-        int blobKeyVersion = blob[1] & 0xFF;
-        KeyVersion keyVersion = keyVersions.get(blobKeyVersion).orElseThrow(
-                () -> new CryptOperationException("key version in encrypted blob is unknown: " + blobKeyVersion));
-
-        int paramLen = blob[2] & 0xFF;
-        byte[] paramsAsBytes = new byte[paramLen];
-        System.arraycopy(blob, 3, paramsAsBytes, 0, paramLen);
+        return decryptBlob(planOf(blob[1]), blob);
+    }
 
+    private byte[] decryptCompressed(byte[] blob) {
+        int length = CompressedBlobs.cleartextLength(ByteBuffer.wrap(blob));
+        CompressionCodec codec = compressionCodecs[blob[2] & 0xFF];
+        if (codec == null) throw new CryptOperationException("compression codec " + (blob[2] & 0xFF) + " of blob is unknown; hint: add it with addCompressionCodec");
+        byte[] compressed = decryptBlob(planOf(blob[1]), blob, CompressedBlobs.HEADER_LENGTH);
         try {
-            Cipher decryptionCipher = Cipher.getInstance(keyVersion.transformation);
+            return CompressedBlobs.decompress(codec, compressed, length);
+        } finally {
+            Arrays.fill(compressed, (byte) 0);
+        }
+    }
 
-            AlgorithmParameters algoParams = decryptionCipher.getParameters();
-            AlgorithmParameters storedParams = null;
-            if (algoParams != null) {
-                storedParams = AlgorithmParameters.getInstance(algoParams.getAlgorithm());
-                storedParams.init(paramsAsBytes);
-            }
+    /**
+     * Decrypts a proto version 0 or compact blob under the key version it
+     * refers to.
+     */
+    private byte[] decrypt(CipherPlan plan, byte[] blob) {
+        CryptMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        try {
+            byte[] cleartext = decryptBlob(plan, blob);
+            if (metrics != null) metrics.recordSuccess(DECRYPT, plan.keyVersion, cleartext.length, System.nanoTime() - start);
+            return cleartext;
+        } catch (CryptOperationException e) {
+            if (metrics != null) metrics.recordFailure(DECRYPT, plan.keyVersion, e);
+            throw e;
+        }
+    }
 
-            String algorithm = keyVersion.transformation.split("/", 2)[0];
-            SecretKeySpec keySpec = new SecretKeySpec(keyVersion.key, algorithm);
+    private byte[] decryptBlob(CipherPlan plan, byte[] blob) {
+        return decryptBlob(plan, blob, 0);
+    }
 
-            decryptionCipher.init(Cipher.DECRYPT_MODE, keySpec, storedParams);
+    /**
+     * Decrypts the proto version 0 or compact blob that starts at
+     * {@code offset}, e.g. inside a compressed blob. Under an AEAD
+     * transformation, the bytes before it are authenticated as additional
+     * data.
+     */
+    private byte[] decryptBlob(CipherPlan plan, byte[] blob, int offset) {
+        if (offset > 0 && (blob.length < offset + 3 || blob[offset + 1] != (byte) plan.keyVersion.version
+                || blob[offset] != 0 && blob[offset] != CompactBlobs.PROTO_VERSION)) {
+            throw new CryptOperationException("inner blob is malformed");
+        }
+        try {
+            Cipher decryptionCipher;
+            int headerLength;
+            if (blob[offset] == CompactBlobs.PROTO_VERSION) {
+                headerLength = CompactBlobs.headerLength(plan, blob.length - offset, blob[offset + 2] & 0xFF);
+                AlgorithmParameterSpec params = CompactBlobs.params(plan, blob, offset);
+                decryptionCipher = cipherPool.init(plan.keyVersion.transformation, plan.provider, Cipher.DECRYPT_MODE, plan.keySpec, params);
+            } else {
+                int paramLen = blob[offset + 2] & 0xFF;
+                headerLength = 3 + paramLen;
+                AlgorithmParameters storedParams = storedParams(plan, blob, offset + 3, paramLen);
+                decryptionCipher = cipherPool.init(plan.keyVersion.transformation, plan.provider, Cipher.DECRYPT_MODE, plan.keySpec, storedParams);
+            }
 
+            if (offset > 0 && plan.isAead()) decryptionCipher.updateAAD(blob, 0, offset);
             return decryptionCipher.doFinal(
-                    blob, 3 + paramLen, blob.length - 3 - paramLen);
+                    blob, offset + headerLength, blob.length - offset - headerLength);
         } catch (InvalidAlgorithmParameterException | NoSuchPaddingException | IllegalBlockSizeException |
                  NoSuchAlgorithmException | IOException | BadPaddingException | InvalidKeyException e) {
-            throw new CryptOperationException("JCA exception caught while decrypting with key version " + keyVersion.version, e);
+            throw new CryptOperationException("JCA exception caught while decrypting with key version " + plan.keyVersion.version, e);
+        }
+    }
+
+    /**
+     * Encrypts the UTF-8 encoding of {@code cleartext} under the default key
+     * version, and returns the blob in standard Base64, e.g. for a JSON field
+     * or a {@code VARCHAR} column. Equivalent to
+     * {@code Base64.getEncoder().encodeToString(encrypt(cleartext.toString().getBytes(UTF_8)))},
+     * except that encoding and encryption share per-thread scratch buffers,
+     * which are zeroed afterwards; only the resulting {@code String} is
+     * allocated. Blobs are written as by {@link #encrypt(ByteBuffer, ByteBuffer)},
+     * so they are never compressed.
+     *
+     * @param cleartext Text to be encrypted, e.g. a {@code String} or {@code CharBuffer}.
+     * @return The blob in Base64.
+     * @throws CryptOperationException
+     */
+    public String encryptToString(CharSequence cleartext) throws CryptOperationException {
+        return TextBlobs.encrypt(this, keyVersions.getDefault(), cleartext, false);
+    }
+
+    /**
+     * Like {@link #encryptToString(CharSequence)}, for cleartext held in a
+     * {@code char[]}, so that it is never copied into a {@code String}.
+     */
+    public String encryptToString(char[] cleartext) throws CryptOperationException {
+        return encryptToString(CharBuffer.wrap(cleartext));
+    }
+
+    /**
+     * Like {@link #encryptToString(CharSequence)}, but in the URL-safe Base64
+     * alphabet, without padding, e.g. for URLs and file names.
+     */
+    public String encryptToUrlSafeString(CharSequence cleartext) throws CryptOperationException {
+        return TextBlobs.encrypt(this, keyVersions.getDefault(), cleartext, true);
+    }
+
+    /**
+     * Decrypts a Base64 encoded blob of UTF-8 text, e.g. from
+     * {@link #encryptToString(CharSequence)}. Accepts both the standard and
+     * the URL-safe alphabet, padded or not; decoding and decryption share
+     * per-thread scratch buffers, which are zeroed afterwards.
+     *
+     * @param blob The previously-encrypted blob in Base64.
+     * @return The recovered text.
+     * @throws CryptOperationException also when {@code blob} is not valid Base64
+     */
+    public String decryptToString(String blob) throws CryptOperationException {
+        return TextBlobs.decryptToString(this, blob);
+    }
+
+    /**
+     * Like {@link #decryptToString(String)}, but returns the text in a
+     * {@code char[]} that the caller can zero once done with it. No other
+     * copy of the cleartext remains.
+     */
+    public char[] decryptToChars(String blob) throws CryptOperationException {
+        return TextBlobs.decryptToChars(this, blob);
+    }
+
+    /**
+     * Tells the key version that {@code blob} is encrypted under, reading
+     * only its header: nothing is decrypted or allocated. Works for every
+     * blob format, including legacy blobs of registered legacy key versions.
+     * The key version need not be registered, except for legacy blobs.
+     *
+     * @param blob The previously-encrypted binary blob.
+     * @return The number of the key version.
+     * @throws CryptOperationException when the header is not recognized.
+     */
+    public int keyVersionOf(byte[] blob) throws CryptOperationException {
+        if (blob.length < 2) throw new CryptOperationException("blob is too short to hold a header: " + blob.length + " bytes");
+        int protoVersion = blob[0] & 0xFF;
+        if (isProtoVersion(protoVersion)) return blob[1] & 0xFF;
+        if (keyVersions.isLegacyVersion(blob[0])) return KeyVersions.legacyVersion(blob[0]);
+        throw new CryptOperationException("cryptvault protocol version in encrypted blob is unknown: " + protoVersion);
+    }
+
+    /**
+     * Whether {@code blob} should be re-encrypted to end up under the default
+     * key version: it is encrypted under another key version, or is a legacy
+     * blob. Reads only the header; see {@link #keyVersionOf(byte[])}.
+     *
+     * @throws CryptOperationException when the header is not recognized.
+     */
+    public boolean needsRotation(byte[] blob) throws CryptOperationException {
+        int version = keyVersionOf(blob);
+        return !isProtoVersion(blob[0] & 0xFF) || version != keyVersions.getDefault().version;
+    }
+
+    /**
+     * Re-encrypts {@code blob} under the default key version, keeping its
+     * format: segmented blobs stay segmented, with the same segment size, and
+     * enveloped blobs stay enveloped. Proto version 0, compact and legacy
+     * blobs are encrypted like {@link #encrypt(byte[])} does. Deterministic
+     * blobs are only rotated to a deterministic default key version. The blob is
+     * re-encrypted even if it already is under the default key version; see
+     * {@link #needsRotation(byte[])}. Tenant blobs cannot be rotated without
+     * their tenant.
+     *
+     * @param blob The previously-encrypted binary blob.
+     * @return A new blob with the same cleartext.
+     * @throws CryptOperationException
+     * @see KeyRotator
+     */
+    public byte[] rotate(byte[] blob) throws CryptOperationException {
+        KeyVersion target = keyVersions.getDefault();
+        if (blob.length > 0 && blob[0] == Siv.PROTO_VERSION && keyVersions.planFor(target).siv == null) {
+            throw new CryptOperationException("cannot rotate deterministic blob to key version " + target.version + ", which is not deterministic");
+        }
+        byte[] cleartext = decrypt(blob);
+        try {
+            int protoVersion = blob[0] & 0xFF;
+            if (protoVersion == Segments.PROTO_VERSION) return encryptSegmented(target, cleartext, ByteBuffer.wrap(blob).getInt(2));
+            if (protoVersion == Envelopes.PROTO_VERSION) return encryptEnveloped(target, cleartext);
+            return encrypt(target, cleartext);
+        } finally {
+            Arrays.fill(cleartext, (byte) 0);
         }
     }
 
+    /**
+     * Encrypts {@code cleartext} under every registered deterministic key
+     * version ({@code AES/SIV/NoPadding}), newest first. While a column of
+     * deterministic blobs is being rotated, it holds blobs of several key
+     * versions; looking a value up by all of these blobs, e.g. with
+     * {@code WHERE email IN (...)}, finds it under any of them.
+     *
+     * @param cleartext The value to look up.
+     * @return A blob per deterministic key version; empty if there are none.
+     * @throws CryptOperationException
+     */
+    public List<byte[]> encryptForLookup(byte[] cleartext) throws CryptOperationException {
+        List<byte[]> blobs = new ArrayList<>(1);
+        for (int version = 255; version > 0; version--) {
+            CipherPlan plan = keyVersions.plan(version);
+            if (plan != null && plan.siv != null) blobs.add(encrypt(plan, cleartext, null));
+        }
+        return blobs;
+    }
+
+    static boolean isProtoVersion(int protoVersion) {
+        return protoVersion == 0 || protoVersion == Segments.PROTO_VERSION || protoVersion == CompactBlobs.PROTO_VERSION
+                || protoVersion == Envelopes.PROTO_VERSION || protoVersion == TenantKeys.PROTO_VERSION
+                || protoVersion == Siv.PROTO_VERSION || protoVersion == CompressedBlobs.PROTO_VERSION;
+    }
+
+    /**
+     * Encrypts every value in {@code cleartexts} under the default key
+     * version. See {@link #encryptAll(KeyVersion, List)}.
+     */
+    public BatchResult encryptAll(List<byte[]> cleartexts) {
+        return encryptAll(keyVersions.getDefault(), cleartexts);
+    }
+
+    /**
+     * Encrypts every value in {@code cleartexts} under the given key version,
+     * as {@link #encrypt(KeyVersion, byte[])} would. The key version is
+     * resolved once for the whole batch, and large batches are spread over
+     * the configured {@code ForkJoinPool}.
+     * <p>
+     * A value that fails to encrypt does not fail the batch; its failure is
+     * reported in the result instead.
+     *
+     * @param keyVersion The key version to encrypt under.
+     * @param cleartexts The values to encrypt.
+     * @return The encrypted blobs and failures, in the order of {@code cleartexts}.
+     */
+    public BatchResult encryptAll(KeyVersion keyVersion, List<byte[]> cleartexts) {
+        CipherPlan plan = keyVersions.planFor(keyVersion);
+        byte[][] items = cleartexts.toArray(new byte[0][]);
+        byte[][] values = new byte[items.length][];
+        CryptOperationException[] failures = new CryptOperationException[items.length];
+
+        Parallel.forEachRange(forkJoinPool, items.length, BATCH_ITEMS_PER_TASK, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                try {
+                    values[i] = encrypt(plan, items[i], null);
+                } catch (RuntimeException e) {
+                    failures[i] = batchFailure(i, e);
+                }
+            }
+        });
+        return new BatchResult(values, failures);
+    }
+
+    /**
+     * Decrypts every blob in {@code blobs}, as {@link #decrypt(byte[])}
+     * would. Blobs are grouped by the key version in their header, so each
+     * key version is resolved once per group, and large batches are spread
+     * over the configured {@code ForkJoinPool}.
+     * <p>
+     * A blob that fails to decrypt does not fail the batch; its failure is
+     * reported in the result instead.
+     *
+     * @param blobs The previously-encrypted binary blobs.
+     * @return The recovered cleartexts and failures, in the order of {@code blobs}.
+     */
+    public BatchResult decryptAll(List<byte[]> blobs) {
+        byte[][] items = blobs.toArray(new byte[0][]);
+        byte[][] values = new byte[items.length][];
+        CryptOperationException[] failures = new CryptOperationException[items.length];
+        int[] order = groupByKeyVersion(items);
+
+        Parallel.forEachRange(forkJoinPool, items.length, BATCH_ITEMS_PER_TASK, (from, to) -> {
+            CipherPlan plan = null;
+            for (int k = from; k < to; k++) {
+                int i = order[k];
+                byte[] blob = items[i];
+                try {
+                    if (isSimpleBlob(blob)) {
+                        if (plan == null || plan.keyVersion.version != (blob[1] & 0xFF)) plan = planOf(blob[1]);
+                        values[i] = decrypt(plan, blob);
+                    } else {
+                        values[i] = decrypt(blob);
+                    }
+                } catch (RuntimeException e) {
+                    failures[i] = batchFailure(i, e);
+                }
+            }
+        });
+        return new BatchResult(values, failures);
+    }
+
+    private static boolean isSimpleBlob(byte[] blob) {
+        return blob != null && (blob.length >= 3 && blob[0] == 0 || blob.length >= CompactBlobs.MIN_HEADER_LENGTH && blob[0] == CompactBlobs.PROTO_VERSION);
+    }
+
+    /**
+     * Orders the indices of the given blobs so that proto version 0 and
+     * compact blobs of the same key version are adjacent, followed by all
+     * other blobs.
+     */
+    private static int[] groupByKeyVersion(byte[][] blobs) {
+        int[] bucketStart = new int[256 + 2];
+        for (byte[] blob : blobs) {
+            bucketStart[(isSimpleBlob(blob) ? blob[1] & 0xFF : 256) + 1]++;
+        }
+        for (int b = 1; b < bucketStart.length; b++) {
+            bucketStart[b] += bucketStart[b - 1];
+        }
+
+        int[] order = new int[blobs.length];
+        for (int i = 0; i < blobs.length; i++) {
+            order[bucketStart[isSimpleBlob(blobs[i]) ? blobs[i][1] & 0xFF : 256]++] = i;
+        }
+        return order;
+    }
+
+    private static CryptOperationException batchFailure(int index, RuntimeException e) {
+        if (e instanceof CryptOperationException) return (CryptOperationException) e;
+        return new CryptOperationException("item " + index + " of batch is malformed", e);
+    }
+
+    /**
+     * Decrypts the blob held by the remaining bytes of {@code blob}, writing
+     * the cleartext straight into {@code cleartext}. Works with both heap and
+     * direct buffers; legacy blobs are supported as in {@link #decrypt(byte[])}.
+     * <p>
+     * On success, {@code blob} is fully consumed and the position of
+     * {@code cleartext} is advanced past the recovered cleartext. If
+     * {@code cleartext} has less than {@link #maxDecryptedSize(ByteBuffer)}
+     * bytes remaining, the decryption may fail.
+     *
+     * @param blob      The previously-encrypted binary blob.
+     * @param cleartext Receives the recovered cleartext.
+     * @return The number of bytes written to {@code cleartext}.
+     * @throws CryptOperationException
+     */
+    public int decrypt(ByteBuffer blob, ByteBuffer cleartext) throws CryptOperationException {
+        CryptMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        ByteBuffer header = metrics == null ? null : blob.duplicate();
+        try {
+            int cleartextLength = decryptAny(blob, cleartext);
+            if (metrics != null) metrics.recordSuccess(DECRYPT, blobKeyVersion(header), cleartextLength, System.nanoTime() - start);
+            return cleartextLength;
+        } catch (CryptOperationException e) {
+            if (metrics != null) metrics.recordFailure(DECRYPT, blobKeyVersion(header), e);
+            throw e;
+        }
+    }
+
+    private int decryptAny(ByteBuffer blob, ByteBuffer cleartext) {
+        int start = blob.position();
+        int protoVersion = blob.get(start) & 0xFF;
+        if (protoVersion == Segments.PROTO_VERSION) {
+            Segments segments = Segments.forDecryption(keyVersions, segmentedHeader(blob));
+            blob.position(start + Segments.HEADER_LENGTH);
+            try {
+                return segments.decryptAll(cipherPool, blob, cleartext);
+            } catch (CryptOperationException e) {
+                blob.position(start);
+                throw e;
+            }
+        }
+        if (protoVersion == TenantKeys.PROTO_VERSION) {
+            throw new CryptOperationException("blob was encrypted for a tenant; hint: use decrypt(tenantId, blob)");
+        }
+        if (protoVersion == Siv.PROTO_VERSION) {
+            if (blob.remaining() < 2) throw new CryptOperationException("deterministic blob is truncated");
+            return sivOf(blob.get(start + 1)).decrypt(cipherPool, blob, cleartext);
+        }
+        if (protoVersion == Envelopes.PROTO_VERSION || protoVersion == CompressedBlobs.PROTO_VERSION) {
+            // the data key or the codec is only known once the header is parsed, so this takes a copy
+            byte[] copy = new byte[blob.remaining()];
+            blob.get(start, copy);
+            byte[] recovered = protoVersion == Envelopes.PROTO_VERSION
+                    ? envelopes().decrypt(keyVersions, copy, cipherPool, metrics)
+                    : decryptCompressed(copy);
+            if (cleartext.remaining() < recovered.length) {
+                throw new CryptOperationException(String.format("buffer too small to hold cleartext: %d bytes needed, %d remaining", recovered.length, cleartext.remaining()));
+            }
+            cleartext.put(recovered);
+            blob.position(blob.limit());
+            return recovered.length;
+        }
+        if (protoVersion != 0 && protoVersion != CompactBlobs.PROTO_VERSION) {
+            if (keyVersions.isLegacyVersion(blob.get(start))) {
+                return attemptLegacyDecrypt(blob, cleartext);
+            }
+            throw new CryptOperationException("cryptvault protocol version in encrypted blob is unknown: " + protoVersion);
+        }
+
+        CipherPlan plan = planOf(blob.get(start + 1));
+        try {
+            Cipher decryptionCipher;
+            int headerLength;
+            if (protoVersion == CompactBlobs.PROTO_VERSION) {
+                headerLength = CompactBlobs.headerLength(plan, blob.remaining(), blob.get(start + 2) & 0xFF);
+                byte[] header = new byte[headerLength];
+                blob.get(start, header);
+                AlgorithmParameterSpec params = CompactBlobs.params(plan, header, 0);
+                decryptionCipher = cipherPool.init(plan.keyVersion.transformation, plan.provider, Cipher.DECRYPT_MODE, plan.keySpec, params);
+            } else {
+                int paramLen = blob.get(start + 2) & 0xFF;
+                headerLength = 3 + paramLen;
+                byte[] paramsAsBytes = new byte[paramLen];
+                blob.get(start + 3, paramsAsBytes);
+                AlgorithmParameters storedParams = storedParams(plan, paramsAsBytes, 0, paramLen);
+                decryptionCipher = cipherPool.init(plan.keyVersion.transformation, plan.provider, Cipher.DECRYPT_MODE, plan.keySpec, storedParams);
+            }
+
+            blob.position(start + headerLength);
+            return decryptionCipher.doFinal(blob, cleartext);
+        } catch (InvalidAlgorithmParameterException | NoSuchPaddingException | IllegalBlockSizeException |
+                 NoSuchAlgorithmException | IOException | BadPaddingException | InvalidKeyException |
+                 ShortBufferException e) {
+            blob.position(start);
+            throw new CryptOperationException("JCA exception caught while decrypting with key version " + plan.keyVersion.version, e);
+        }
+    }
+
+    /**
+     * Decrypts {@code length} bytes of {@code blob} starting at
+     * {@code offset}, writing the cleartext into {@code cleartext} starting at
+     * {@code cleartextOffset}. See {@link #decrypt(ByteBuffer, ByteBuffer)}.
+     *
+     * @return The number of bytes written to {@code cleartext}.
+     */
+    public int decrypt(byte[] blob, int offset, int length, byte[] cleartext, int cleartextOffset) throws CryptOperationException {
+        return decrypt(ByteBuffer.wrap(blob, offset, length), ByteBuffer.wrap(cleartext, cleartextOffset, cleartext.length - cleartextOffset));
+    }
+
+    /**
+     * An upper bound on the size of the cleartext in the given blob, read
+     * from its header. A buffer of this size is always large enough for
+     * {@link #decrypt(ByteBuffer, ByteBuffer)}.
+     *
+     * @param blob The previously-encrypted binary blob.
+     * @return The maximum size of the cleartext in bytes.
+     * @throws CryptOperationException when the blob's protocol version is unknown
+     */
+    public int maxDecryptedSize(byte[] blob) throws CryptOperationException {
+        return maxDecryptedSize(ByteBuffer.wrap(blob));
+    }
+
+    /**
+     * An upper bound on the size of the cleartext held by the remaining bytes
+     * of {@code blob}. See {@link #maxDecryptedSize(byte[])}.
+     */
+    public int maxDecryptedSize(ByteBuffer blob) throws CryptOperationException {
+        int start = blob.position();
+        int protoVersion = blob.get(start) & 0xFF;
+        // no JCA transformation decrypts to more bytes than it is given
+        if (protoVersion == 0) {
+            return blob.remaining() - 3 - (blob.get(start + 2) & 0xFF);
+        }
+        if (protoVersion == CompactBlobs.PROTO_VERSION || protoVersion == TenantKeys.PROTO_VERSION) {
+            return blob.remaining() - CompactBlobs.MIN_HEADER_LENGTH - (blob.get(start + 2) & 0xFF);
+        }
+        if (protoVersion == Envelopes.PROTO_VERSION) {
+            byte[] header = new byte[Math.min(blob.remaining(), Envelopes.MIN_HEADER_LENGTH)];
+            blob.get(start, header);
+            if (header.length < Envelopes.MIN_HEADER_LENGTH) throw new CryptOperationException("envelope blob is truncated");
+            return blob.remaining() - Envelopes.headerLength(header, blob.remaining()) - Envelopes.NONCE_LENGTH;
+        }
+        if (protoVersion == Siv.PROTO_VERSION) {
+            return blob.remaining() - Siv.HEADER_LENGTH - Siv.IV_LENGTH;
+        }
+        if (protoVersion == CompressedBlobs.PROTO_VERSION) {
+            return CompressedBlobs.cleartextLength(blob);
+        }
+        if (protoVersion == Segments.PROTO_VERSION) {
+            return (int) Segments.forDecryption(keyVersions, segmentedHeader(blob)).cleartextSize(blob.remaining());
+        }
+        if (keyVersions.isLegacyVersion(blob.get(start))) {
+            return blob.remaining() - 1 - 16;
+        }
+        throw new CryptOperationException("cryptvault protocol version in encrypted blob is unknown: " + protoVersion);
+    }
+
+    /**
+     * Wraps {@code out} in a stream that encrypts everything written to it
+     * under the default key version. See
+     * {@link #encryptingStream(KeyVersion, OutputStream, int)}.
+     */
+    public OutputStream encryptingStream(OutputStream out) throws CryptOperationException {
+        return encryptingStream(keyVersions.getDefault(), out);
+    }
+
+    /**
+     * Wraps {@code out} in a stream that encrypts everything written to it
+     * under the given key version, in segments of 64 KiB. See
+     * {@link #encryptingStream(KeyVersion, OutputStream, int)}.
+     */
+    public OutputStream encryptingStream(KeyVersion keyVersion, OutputStream out) throws CryptOperationException {
+        return encryptingStream(keyVersion, out, Segments.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Wraps {@code out} in a stream that encrypts everything written to it
+     * under the given key version. Memory use is bounded by the segment size,
+     * regardless of the amount of data written.
+     * <p>
+     * The resulting blob uses the segmented format (proto version 1): the
+     * cleartext is split into segments that are encrypted and authenticated
+     * individually, with AES/GCM for AES keys and ChaCha20-Poly1305 for
+     * ChaCha20 keys. The blob is only complete once the returned stream is
+     * closed, which also closes {@code out}.
+     *
+     * @param keyVersion  The key version to encrypt under.
+     * @param out         Receives the encrypted blob.
+     * @param segmentSize Amount of cleartext per segment, in (0, 16 MiB].
+     * @return A stream accepting the cleartext.
+     * @throws CryptOperationException when the key version cannot be used for segmented encryption
+     */
+    public OutputStream encryptingStream(KeyVersion keyVersion, OutputStream out, int segmentSize) throws CryptOperationException {
+        Segments segments = Segments.forEncryption(keyVersions.planFor(keyVersion), segmentSize);
+        return new SegmentedEncryptingOutputStream(out, segments, cipherPool);
+    }
+
+    /**
+     * Wraps {@code in}, which holds a blob written by
+     * {@link #encryptingStream(KeyVersion, OutputStream, int)}, in a stream
+     * that reads the recovered cleartext. The key version is taken from the
+     * blob. Memory use is bounded by the segment size.
+     * <p>
+     * Only authenticated cleartext is returned. Tampering, and a blob that
+     * ends prematurely, fail the read with a {@code CryptOperationException}.
+     *
+     * @param in The encrypted blob.
+     * @return A stream reading the cleartext; closing it closes {@code in}.
+     */
+    public InputStream decryptingStream(InputStream in) {
+        return new SegmentedDecryptingInputStream(in, keyVersions, cipherPool);
+    }
+
+    /**
+     * Encrypts the file {@code in} into the file {@code out} under the
+     * default key version. See
+     * {@link #encryptFile(KeyVersion, Path, Path, int, boolean)}.
+     */
+    public long encryptFile(Path in, Path out) throws IOException, CryptOperationException {
+        return encryptFile(keyVersions.getDefault(), in, out, Segments.DEFAULT_SEGMENT_SIZE, true);
+    }
+
+    /**
+     * Encrypts the file {@code in} into the file {@code out} under the given
+     * key version, in segments of 64 KiB, in parallel. See
+     * {@link #encryptFile(KeyVersion, Path, Path, int, boolean)}.
+     */
+    public long encryptFile(KeyVersion keyVersion, Path in, Path out) throws IOException, CryptOperationException {
+        return encryptFile(keyVersion, in, out, Segments.DEFAULT_SEGMENT_SIZE, true);
+    }
+
+    /**
+     * Encrypts the file {@code in} into the file {@code out}, which is
+     * created or replaced, under the given key version. Both files are
+     * memory-mapped a window at a time, so neither is read onto the heap,
+     * and files may exceed 2 GB.
+     * <p>
+     * The encrypted file is a segmented blob (proto version 1), as written by
+     * {@link #encryptingStream(KeyVersion, OutputStream, int)}: every segment
+     * is authenticated on its own, so {@link #decryptRange(Path, long, int)}
+     * can decrypt part of it. It can also be read with
+     * {@link #decryptingStream(InputStream)}. When encryption fails,
+     * {@code out} is deleted.
+     *
+     * @param keyVersion  The key version to encrypt under.
+     * @param in          The file to encrypt.
+     * @param out         The file to write the encrypted blob to; not {@code in}.
+     * @param segmentSize Amount of cleartext per segment, in (0, 16 MiB].
+     * @param parallel    Whether to encrypt segments in parallel on the configured {@code ForkJoinPool}.
+     * @return The size of the encrypted file.
+     * @throws IOException             when a file cannot be read or written
+     * @throws CryptOperationException when the key version cannot be used for segmented encryption
+     */
+    public long encryptFile(KeyVersion keyVersion, Path in, Path out, int segmentSize, boolean parallel) throws IOException, CryptOperationException {
+        CryptMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        try {
+            Segments segments = Segments.forEncryption(keyVersions.planFor(keyVersion), segmentSize);
+            long size = SegmentedFiles.encrypt(segments, in, out, cipherPool, parallel ? forkJoinPool : null);
+            if (metrics != null) metrics.recordSuccess(ENCRYPT, keyVersion, (int) Math.min(Integer.MAX_VALUE, Files.size(in)), System.nanoTime() - start);
+            return size;
+        } catch (CryptOperationException e) {
+            if (metrics != null) metrics.recordFailure(ENCRYPT, keyVersion, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Decrypts the file {@code in} into the file {@code out}, in parallel.
+     * See {@link #decryptFile(Path, Path, boolean)}.
+     */
+    public long decryptFile(Path in, Path out) throws IOException, CryptOperationException {
+        return decryptFile(in, out, true);
+    }
+
+    /**
+     * Decrypts the file {@code in}, written by
+     * {@link #encryptFile(KeyVersion, Path, Path, int, boolean)} or
+     * {@link #encryptingStream(KeyVersion, OutputStream, int)}, into the file
+     * {@code out}, which is created or replaced. Both files are
+     * memory-mapped a window at a time. The key version is taken from the
+     * file.
+     * <p>
+     * When any segment fails authentication, {@code out} is deleted, so no
+     * unauthenticated cleartext is left behind.
+     *
+     * @param in       The encrypted file.
+     * @param out      The file to write the cleartext to; not {@code in}.
+     * @param parallel Whether to decrypt segments in parallel on the configured {@code ForkJoinPool}.
+     * @return The size of the decrypted file.
+     * @throws IOException             when a file cannot be read or written
+     * @throws CryptOperationException when the file is not a segmented blob, or is truncated, reordered or corrupt
+     */
+    public long decryptFile(Path in, Path out, boolean parallel) throws IOException, CryptOperationException {
+        CryptMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        try {
+            long size = SegmentedFiles.decrypt(keyVersions, in, out, cipherPool, parallel ? forkJoinPool : null);
+            if (metrics != null) metrics.recordSuccess(DECRYPT, fileKeyVersion(in), (int) Math.min(Integer.MAX_VALUE, size), System.nanoTime() - start);
+            return size;
+        } catch (CryptOperationException e) {
+            if (metrics != null) metrics.recordFailure(DECRYPT, fileKeyVersion(in), e);
+            throw e;
+        }
+    }
+
+    /**
+     * Decrypts {@code length} bytes of the cleartext of the file {@code in},
+     * starting at {@code offset}, as written by
+     * {@link #encryptFile(KeyVersion, Path, Path, int, boolean)}. Only the
+     * segments holding the range are mapped and decrypted, and all of them
+     * are authenticated.
+     *
+     * @param in     The encrypted file.
+     * @param offset Offset of the range in the cleartext.
+     * @param length Length of the range.
+     * @return The cleartext in the range.
+     * @throws IOException              when the file cannot be read
+     * @throws IllegalArgumentException when the range exceeds the cleartext, or its segments exceed 2 GB
+     * @throws CryptOperationException  when the file is not a segmented blob, or a segment in the range fails authentication
+     */
+    public byte[] decryptRange(Path in, long offset, int length) throws IOException, CryptOperationException {
+        CryptMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        try {
+            byte[] range = SegmentedFiles.decryptRange(keyVersions, in, offset, length, cipherPool);
+            if (metrics != null) metrics.recordSuccess(DECRYPT, fileKeyVersion(in), length, System.nanoTime() - start);
+            return range;
+        } catch (CryptOperationException e) {
+            if (metrics != null) metrics.recordFailure(DECRYPT, fileKeyVersion(in), e);
+            throw e;
+        }
+    }
+
+    /**
+     * The key version of an encrypted file, for metrics; null if it cannot
+     * be told.
+     */
+    @Nullable
+    private KeyVersion fileKeyVersion(Path file) {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] header = in.readNBytes(2);
+            return header.length < 2 ? null : blobKeyVersion(ByteBuffer.wrap(header));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] segmentedHeader(ByteBuffer blob) {
+        if (blob.remaining() < Segments.HEADER_LENGTH) throw new CryptOperationException("segmented blob is truncated");
+        byte[] header = new byte[Segments.HEADER_LENGTH];
+        blob.get(blob.position(), header);
+        return header;
+    }
+
+    /**
+     * The key version that the remaining bytes of {@code blob} are encrypted
+     * under, or null if that cannot be told.
+     */
+    @Nullable
+    private KeyVersion blobKeyVersion(ByteBuffer blob) {
+        int start = blob.position();
+        if (blob.remaining() < 2) return null;
+        int protoVersion = blob.get(start) & 0xFF;
+        CipherPlan plan;
+        if (isProtoVersion(protoVersion)) {
+            plan = keyVersions.plan(blob.get(start + 1) & 0xFF);
+        } else if (keyVersions.isLegacyVersion(blob.get(start))) {
+            plan = keyVersions.plan(KeyVersions.legacyVersion(blob.get(start)));
+        } else {
+            plan = null;
+        }
+        return plan == null ? null : plan.keyVersion;
+    }
+
+    private Siv sivOf(byte blobKeyVersion) {
+        CipherPlan plan = planOf(blobKeyVersion);
+        if (plan.siv == null) throw new CryptOperationException("key version " + plan.keyVersion.version + " of deterministic blob is not deterministic");
+        return plan.siv;
+    }
+
+    private CipherPlan planOf(byte blobKeyVersion) {
+        CipherPlan plan = keyVersions.plan(blobKeyVersion & 0xFF);
+        if (plan == null) throw new CryptOperationException("key version in encrypted blob is unknown: " + (blobKeyVersion & 0xFF));
+        return plan;
+    }
+
+    private static AlgorithmParameters storedParams(CipherPlan plan, byte[] blob, int offset, int length) throws NoSuchAlgorithmException, IOException {
+        if (plan.paramsAlgorithm == null) return null;
+        AlgorithmParameters storedParams = AlgorithmParameters.getInstance(plan.paramsAlgorithm);
+        storedParams.init(offset == 0 && length == blob.length ? blob : Arrays.copyOfRange(blob, offset, offset + length));
+        return storedParams;
+    }
+
     byte[] attemptLegacyDecrypt(byte[] blob) throws RuntimeException {
-        int version = (int) blob[0] - Byte.MIN_VALUE;
-        var legacyKeyVersion = keyVersions.get(version).orElseThrow(
-                () -> new CryptOperationException(String.format("legacy version %d not registered", version))
-        );
-
-        int keyVersionLength = 1;
-        int ivLength = 16;
-        byte[] ivBytes = new byte[ivLength];
-        System.arraycopy(blob, keyVersionLength, ivBytes, 0, ivLength);
-        try {
-            var ivParamSpec = new IvParameterSpec(ivBytes);
-
-            var cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            var key = new SecretKeySpec(legacyKeyVersion.key, "AES");
-            cipher.init(Cipher.DECRYPT_MODE, key, ivParamSpec);
-            return cipher.doFinal(blob, keyVersionLength + ivLength, blob.length - keyVersionLength - ivLength);
-        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException |
-                 BadPaddingException | NoSuchPaddingException | NoSuchAlgorithmException e) {
+        int version = KeyVersions.legacyVersion(blob[0]);
+        try {
+            var cipher = initLegacyDecryption(version, new IvParameterSpec(blob, 1, 16));
+            return cipher.doFinal(blob, 1 + 16, blob.length - 1 - 16);
+        } catch (IllegalBlockSizeException | BadPaddingException e) {
+            throw new CryptOperationException("JCA exception caught while attempting legacy decryption with key version " + version, e);
+        }
+    }
+
+    int attemptLegacyDecrypt(ByteBuffer blob, ByteBuffer cleartext) throws RuntimeException {
+        int start = blob.position();
+        int version = KeyVersions.legacyVersion(blob.get(start));
+        byte[] ivBytes = new byte[16];
+        blob.get(start + 1, ivBytes);
+        try {
+            var cipher = initLegacyDecryption(version, new IvParameterSpec(ivBytes));
+            blob.position(start + 1 + 16);
+            return cipher.doFinal(blob, cleartext);
+        } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+            blob.position(start);
+            throw new CryptOperationException("JCA exception caught while attempting legacy decryption with key version " + version, e);
+        }
+    }
+
+    /**
+     * Legacy blobs consist of the key version (offset by 128), a 16-byte IV
+     * and AES/CBC/PKCS5Padding ciphertext.
+     */
+    private Cipher initLegacyDecryption(int version, IvParameterSpec ivParamSpec) {
+        CipherPlan legacyPlan = keyVersions.plan(version);
+        if (legacyPlan == null) throw new CryptOperationException(String.format("legacy version %d not registered", version));
+
+        try {
+            return cipherPool.init("AES/CBC/PKCS5Padding", Cipher.DECRYPT_MODE, legacyPlan.legacyKeySpec, ivParamSpec);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | NoSuchPaddingException | NoSuchAlgorithmException e) {
             throw new CryptOperationException("JCA exception caught while attempting legacy decryption with key version " + version, e);
         }
     }
@@ -0,0 +1,309 @@
+package com.bol.crypt;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.ObjectCodec;
+import com.fasterxml.jackson.core.Version;
+import com.fasterxml.jackson.databind.BeanProperty;
+import com.fasterxml.jackson.databind.DatabindContext;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.ContextualDeserializer;
+import com.fasterxml.jackson.databind.introspect.Annotated;
+import com.fasterxml.jackson.databind.introspect.NopAnnotationIntrospector;
+import com.fasterxml.jackson.databind.module.SimpleDeserializers;
+import com.fasterxml.jackson.databind.module.SimpleSerializers;
+import com.fasterxml.jackson.databind.ser.ContextualSerializer;
+import org.springframework.lang.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encrypts {@link Encrypted} properties, and all {@link LazyDecrypted} ones,
+ * while Jackson serializes, and decrypts them while it deserializes. Blobs
+ * are written to the generator as binary, i.e. as Base64 in JSON, straight
+ * from the blob; no intermediate {@code String} is made.
+ * <p>
+ * All properties of one document (one {@code writeValue} or
+ * {@code readValue} call) are encrypted under the same key version, picked
+ * when the first one is encrypted, and share scratch buffers for cleartext
+ * and blobs; cleartext scratch is zeroed after every property. Ciphers are
+ * reused per thread as configured by {@link CryptVault#setCipherPooling(boolean)}.
+ * <p>
+ * Registered as a bean by the autoconfiguration when Jackson is on the
+ * classpath, which Spring Boot adds to its {@code ObjectMapper}. Otherwise,
+ * use {@code objectMapper.registerModule(new CryptVaultJacksonModule(cryptVault))}.
+ */
+public class CryptVaultJacksonModule extends Module {
+    private final CryptVault cryptVault;
+
+    public CryptVaultJacksonModule(CryptVault cryptVault) {
+        this.cryptVault = cryptVault;
+    }
+
+    @Override
+    public String getModuleName() {
+        return "cryptvault";
+    }
+
+    @Override
+    public Version version() {
+        return Version.unknownVersion();
+    }
+
+    @Override
+    public void setupModule(SetupContext context) {
+        EncryptingSerializer serializer = new EncryptingSerializer(cryptVault, null);
+        DecryptingDeserializer deserializer = new DecryptingDeserializer(cryptVault, null);
+        context.insertAnnotationIntrospector(new NopAnnotationIntrospector() {
+            @Override
+            public Object findSerializer(Annotated am) {
+                return am.hasAnnotation(Encrypted.class) ? serializer : null;
+            }
+
+            @Override
+            public Object findDeserializer(Annotated am) {
+                return am.hasAnnotation(Encrypted.class) ? deserializer : null;
+            }
+        });
+
+        SimpleSerializers serializers = new SimpleSerializers();
+        serializers.addSerializer(LazyDecrypted.class, serializer);
+        context.addSerializers(serializers);
+        SimpleDeserializers deserializers = new SimpleDeserializers();
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        JsonDeserializer<LazyDecrypted> lazyDeserializer = (JsonDeserializer) deserializer;
+        deserializers.addDeserializer(LazyDecrypted.class, lazyDeserializer);
+        context.addDeserializers(deserializers);
+    }
+
+    /**
+     * How values of a type turn into cleartext.
+     */
+    enum Encoding {
+        TEXT, CHARS, BYTES, JSON;
+
+        static Encoding of(@Nullable JavaType type) {
+            if (type == null) return JSON;
+            Class<?> raw = type.getRawClass();
+            if (raw == String.class || raw == CharSequence.class) return TEXT;
+            if (raw == char[].class) return CHARS;
+            if (raw == byte[].class) return BYTES;
+            return JSON;
+        }
+    }
+
+    /**
+     * Per-document state, kept as an attribute of the serialization or
+     * deserialization call.
+     */
+    private static final class Document {
+        @Nullable
+        KeyVersion keyVersion;
+        final Scratch cleartext = new Scratch(256);
+        final Scratch blob = new Scratch(512);
+
+        static Document of(DatabindContext context, CryptVault cryptVault) {
+            Document document = (Document) context.getAttribute(cryptVault);
+            if (document == null) context.setAttribute(cryptVault, document = new Document());
+            return document;
+        }
+    }
+
+    /**
+     * A growable array, written to as a stream.
+     */
+    private static final class Scratch extends OutputStream {
+        byte[] buf;
+        int count;
+
+        Scratch(int capacity) {
+            this.buf = new byte[capacity];
+        }
+
+        byte[] array(int size) {
+            if (buf.length < size) buf = new byte[Math.max(size, buf.length * 2)];
+            return buf;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (count + len > buf.length) buf = Arrays.copyOf(buf, Math.max(count + len, buf.length * 2));
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+    }
+
+    private static final class EncryptingSerializer extends JsonSerializer<Object> implements ContextualSerializer {
+        private final CryptVault cryptVault;
+        /**
+         * Declared type of the value, or null to go by its runtime class.
+         */
+        @Nullable
+        private final JavaType type;
+
+        EncryptingSerializer(CryptVault cryptVault, @Nullable JavaType type) {
+            this.cryptVault = cryptVault;
+            this.type = type;
+        }
+
+        @Override
+        public JsonSerializer<?> createContextual(SerializerProvider provider, @Nullable BeanProperty property) {
+            if (property == null) return this;
+            JavaType type = property.getType();
+            if (type.hasRawClass(LazyDecrypted.class)) type = type.containedTypeOrUnknown(0);
+            return new EncryptingSerializer(cryptVault, type);
+        }
+
+        @Override
+        public void serialize(Object value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            if (value instanceof LazyDecrypted<?> lazy) {
+                byte[] blob = lazy.blob();
+                // the value never changes, so the blob it was read from still holds it
+                if (blob != null) {
+                    gen.writeBinary(provider.getConfig().getBase64Variant(), blob, 0, blob.length);
+                    return;
+                }
+                value = lazy.get();
+                if (value == null) {
+                    gen.writeNull();
+                    return;
+                }
+            }
+            Encoding encoding = Encoding.of(type == null ? provider.constructType(value.getClass()) : type);
+            Document document = Document.of(provider, cryptVault);
+            if (document.keyVersion == null) document.keyVersion = cryptVault.keyVersions.getDefault();
+
+            switch (encoding) {
+                case BYTES -> {
+                    byte[] bytes = (byte[]) value;
+                    encrypt(document, bytes, bytes.length, gen, provider);
+                }
+                case TEXT, CHARS -> {
+                    CharSequence text = encoding == Encoding.TEXT ? (CharSequence) value : CharBuffer.wrap((char[]) value);
+                    byte[] bytes = document.cleartext.array(3 * text.length());
+                    int length = 0;
+                    try {
+                        length = TextBlobs.encodeUtf8(text, bytes);
+                        encrypt(document, bytes, length, gen, provider);
+                    } finally {
+                        Arrays.fill(bytes, 0, length, (byte) 0);
+                    }
+                }
+                case JSON -> {
+                    // a buffer of its own: encrypted properties nested in the value take the document's scratch
+                    Scratch json = new Scratch(256);
+                    try {
+                        try (JsonGenerator nested = gen.getCodec().getFactory().createGenerator(json)) {
+                            provider.defaultSerializeValue(value, nested);
+                        }
+                        encrypt(document, json.buf, json.count, gen, provider);
+                    } finally {
+                        Arrays.fill(json.buf, (byte) 0);
+                    }
+                }
+            }
+        }
+
+        private void encrypt(Document document, byte[] cleartext, int length, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            KeyVersion keyVersion = document.keyVersion;
+            byte[] blob = document.blob.array(cryptVault.encryptedSize(keyVersion, length));
+            int blobLength = cryptVault.encrypt(keyVersion, ByteBuffer.wrap(cleartext, 0, length), ByteBuffer.wrap(blob));
+            gen.writeBinary(provider.getConfig().getBase64Variant(), blob, 0, blobLength);
+        }
+    }
+
+    private static final class DecryptingDeserializer extends JsonDeserializer<Object> implements ContextualDeserializer {
+        private final CryptVault cryptVault;
+        /**
+         * Declared type of the property.
+         */
+        @Nullable
+        private final JavaType type;
+
+        DecryptingDeserializer(CryptVault cryptVault, @Nullable JavaType type) {
+            this.cryptVault = cryptVault;
+            this.type = type;
+        }
+
+        @Override
+        public JsonDeserializer<?> createContextual(DeserializationContext ctxt, @Nullable BeanProperty property) {
+            JavaType type = property == null ? ctxt.getContextualType() : property.getType();
+            return new DecryptingDeserializer(cryptVault, type);
+        }
+
+        @Override
+        public Object deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            JsonToken token = p.currentToken();
+            if (token != JsonToken.VALUE_STRING && token != JsonToken.VALUE_EMBEDDED_OBJECT) {
+                return ctxt.handleUnexpectedToken(type, p);
+            }
+            Document document = Document.of(ctxt, cryptVault);
+            Scratch blob = document.blob;
+            blob.count = 0;
+            p.readBinaryValue(ctxt.getBase64Variant(), blob);
+
+            if (type != null && type.hasRawClass(LazyDecrypted.class)) {
+                JavaType valueType = type.containedTypeOrUnknown(0);
+                ObjectCodec codec = p.getCodec();
+                return LazyDecrypted.ofBlob(Arrays.copyOf(blob.buf, blob.count), b -> {
+                    byte[] cleartext = cryptVault.decrypt(b);
+                    try {
+                        return decode(cleartext, cleartext.length, valueType, codec);
+                    } catch (IOException e) {
+                        throw new CryptOperationException("cannot read decrypted " + valueType, e);
+                    } finally {
+                        Arrays.fill(cleartext, (byte) 0);
+                    }
+                });
+            }
+
+            ByteBuffer blobBuffer = ByteBuffer.wrap(blob.buf, 0, blob.count);
+            byte[] cleartext = document.cleartext.array(TextBlobs.maxDecryptedSize(cryptVault, blob.buf, blob.count));
+            int length = cleartext.length;
+            try {
+                length = cryptVault.decrypt(blobBuffer, ByteBuffer.wrap(cleartext));
+                if (Encoding.of(type) != Encoding.JSON) return decode(cleartext, length, type, p.getCodec());
+                // a copy: encrypted properties nested in the value take the document's scratch
+                byte[] json = Arrays.copyOf(cleartext, length);
+                Arrays.fill(cleartext, 0, length, (byte) 0);
+                try (JsonParser nested = p.getCodec().getFactory().createParser(json)) {
+                    nested.nextToken();
+                    return ctxt.readValue(nested, type);
+                } finally {
+                    Arrays.fill(json, (byte) 0);
+                }
+            } finally {
+                Arrays.fill(cleartext, 0, length, (byte) 0);
+            }
+        }
+
+        private static Object decode(byte[] cleartext, int length, @Nullable JavaType type, ObjectCodec codec) throws IOException {
+            return switch (Encoding.of(type)) {
+                case TEXT -> new String(cleartext, 0, length, StandardCharsets.UTF_8);
+                case CHARS -> TextBlobs.decodeUtf8(cleartext, length);
+                case BYTES -> Arrays.copyOf(cleartext, length);
+                case JSON -> {
+                    try (JsonParser parser = codec.getFactory().createParser(cleartext, 0, length)) {
+                        yield codec.readValue(parser, type);
+                    }
+                }
+            };
+        }
+    }
+}
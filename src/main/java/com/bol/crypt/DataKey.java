@@ -0,0 +1,72 @@
+package com.bol.crypt;
+
+import javax.crypto.SecretKey;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An unwrapped data key of an envelope-encrypted blob, shared between the
+ * {@link DataKeyCache}, the encrypting side and in-flight operations.
+ * Every holder keeps a reference; the key material is zeroed as soon as the
+ * last one is released, and never before, so a key cannot be zeroed while a
+ * cipher is being initialized with it.
+ * <p>
+ * Only this copy of the key is zeroed. A cipher that was initialized with it
+ * keeps its own, expanded copy until it is initialized again; with cipher
+ * pooling, that is the next operation of its thread with the same
+ * transformation.
+ */
+final class DataKey implements SecretKey {
+    private static final long serialVersionUID = 1L;
+
+    private final transient byte[] key;
+    private final transient AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * @param key The raw key, owned from now on. The caller holds the first reference.
+     */
+    DataKey(byte[] key) {
+        this.key = key;
+    }
+
+    /**
+     * Takes another reference.
+     *
+     * @return false if the key has already been zeroed, in which case no reference was taken.
+     */
+    boolean retain() {
+        for (; ; ) {
+            int count = references.get();
+            if (count == 0) return false;
+            if (references.compareAndSet(count, count + 1)) return true;
+        }
+    }
+
+    /**
+     * Drops a reference, zeroing the key when it was the last one.
+     */
+    void release() {
+        if (references.decrementAndGet() == 0) Arrays.fill(key, (byte) 0);
+    }
+
+    @Override
+    public boolean isDestroyed() {
+        return references.get() == 0;
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return "AES";
+    }
+
+    @Override
+    public String getFormat() {
+        return "RAW";
+    }
+
+    @Override
+    public byte[] getEncoded() {
+        if (isDestroyed()) throw new IllegalStateException("data key has been zeroed");
+        return key.clone();
+    }
+}
@@ -0,0 +1,174 @@
+package com.bol.crypt;
+
+import org.springframework.lang.Nullable;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps unwrapped data keys of envelope-encrypted blobs, so that decrypting
+ * does not take a round trip to the {@link KeyEncryptionService} for every
+ * blob. Bounded in size and time: keys are evicted once they have been
+ * cached for the time to live, or, when the cache is full, oldest first.
+ * Evicted keys are zeroed as soon as no operation is using them anymore,
+ * apart from the copies that ciphers keep (see {@link DataKey}).
+ * <p>
+ * Thread-safe. The lock is only held to look up or insert an entry; data
+ * keys are unwrapped outside of it.
+ */
+public final class DataKeyCache {
+    public static final int DEFAULT_MAXIMUM_SIZE = 1000;
+    public static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofMinutes(5);
+
+    private final int maximumSize;
+    private final long timeToLiveNanos;
+    /**
+     * In insertion order, which is also the order of expiry.
+     */
+    private final LinkedHashMap<WrappedKey, Entry> entries = new LinkedHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public DataKeyCache() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_TIME_TO_LIVE);
+    }
+
+    /**
+     * @param maximumSize Amount of data keys kept at most; at least 1.
+     * @param timeToLive  How long a data key is kept after it was unwrapped or generated. Also bounds how long the encrypting side uses a data key.
+     */
+    public DataKeyCache(int maximumSize, Duration timeToLive) {
+        if (maximumSize < 1) throw new IllegalArgumentException("maximum size should be at least 1, was " + maximumSize);
+        if (timeToLive.isNegative() || timeToLive.isZero()) throw new IllegalArgumentException("time to live should be positive, was " + timeToLive);
+        this.maximumSize = maximumSize;
+        this.timeToLiveNanos = timeToLive.toNanos();
+    }
+
+    /**
+     * Looks up a data key, taking a reference that the caller must release.
+     *
+     * @return The data key, or null on a miss.
+     */
+    @Nullable
+    DataKey get(int keyVersion, byte[] wrappedKey) {
+        WrappedKey lookup = new WrappedKey(keyVersion, wrappedKey);
+        synchronized (entries) {
+            expire(System.nanoTime());
+            Entry entry = entries.get(lookup);
+            if (entry != null && entry.dataKey.retain()) {
+                hits.increment();
+                return entry.dataKey;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Caches a data key under its own reference, unless one is cached for the
+     * same wrapped key already.
+     */
+    void put(int keyVersion, byte[] wrappedKey, DataKey dataKey) {
+        WrappedKey key = new WrappedKey(keyVersion, wrappedKey);
+        synchronized (entries) {
+            long now = System.nanoTime();
+            expire(now);
+            if (entries.containsKey(key) || !dataKey.retain()) return;
+            entries.put(key, new Entry(dataKey, now + timeToLiveNanos));
+
+            Iterator<Entry> oldest = entries.values().iterator();
+            while (entries.size() > maximumSize) {
+                evict(oldest);
+            }
+        }
+    }
+
+    long timeToLiveNanos() {
+        return timeToLiveNanos;
+    }
+
+    /**
+     * Evicts all data keys.
+     */
+    public void clear() {
+        synchronized (entries) {
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) evict(it);
+        }
+    }
+
+    /**
+     * @return Amount of lookups that found their data key.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Amount of lookups that had to unwrap their data key.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Amount of data keys evicted because they expired, the cache was full or it was cleared.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private void expire(long now) {
+        Iterator<Entry> oldest = entries.values().iterator();
+        while (oldest.hasNext()) {
+            Entry entry = oldest.next();
+            if (entry.expiresAt - now > 0) return;
+            oldest.remove();
+            entry.dataKey.release();
+            evictions.increment();
+        }
+    }
+
+    private void evict(Iterator<Entry> it) {
+        Entry entry = it.next();
+        it.remove();
+        entry.dataKey.release();
+        evictions.increment();
+    }
+
+    private record Entry(DataKey dataKey, long expiresAt) {
+    }
+
+    private static final class WrappedKey {
+        private final int keyVersion;
+        private final byte[] wrappedKey;
+        private final int hash;
+
+        WrappedKey(int keyVersion, byte[] wrappedKey) {
+            this.keyVersion = keyVersion;
+            this.wrappedKey = wrappedKey;
+            this.hash = 31 * keyVersion + Arrays.hashCode(wrappedKey);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof WrappedKey other && keyVersion == other.keyVersion && Arrays.equals(wrappedKey, other.wrappedKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
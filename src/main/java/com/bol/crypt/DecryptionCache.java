@@ -0,0 +1,307 @@
+package com.bol.crypt;
+
+import org.springframework.lang.Nullable;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the cleartext of recently decrypted blobs, so that decrypting the
+ * same blob again is a lookup. See
+ * {@link CryptVault#setDecryptionCache(DecryptionCache)}. Bounded in size and
+ * time: cleartexts are evicted once they have been cached for the time to
+ * live, or, when the cache is full, least recently used first. Evicted
+ * cleartexts are zeroed; callers get copies. Only cleartexts of up to
+ * {@link #setMaximumCleartextSize(int) a maximum size} are cached, so that
+ * the memory taken is bounded too.
+ * <p>
+ * Blobs are looked up by a 64-bit hash of their bytes and compared in full,
+ * so a collision costs a miss and never returns a wrong cleartext. The cache
+ * is split into segments by hash, each with a lock of its own, so that
+ * concurrent lookups rarely contend. A cleartext is only returned while the
+ * key version that decrypted it is still registered as it was.
+ */
+public final class DecryptionCache {
+    public static final int DEFAULT_MAXIMUM_SIZE = 10_000;
+    public static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofMinutes(1);
+    public static final int DEFAULT_MAXIMUM_CLEARTEXT_SIZE = 16 * 1024;
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final Segment[] segments;
+    private final int segmentMask;
+    private final long timeToLiveNanos;
+    private boolean bypassLegacy;
+    private int maximumCleartextSize = DEFAULT_MAXIMUM_CLEARTEXT_SIZE;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public DecryptionCache() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_TIME_TO_LIVE);
+    }
+
+    /**
+     * @param maximumSize Amount of cleartexts kept at most; at least 1.
+     * @param timeToLive  How long a cleartext is kept after it was decrypted.
+     */
+    public DecryptionCache(int maximumSize, Duration timeToLive) {
+        if (maximumSize < 1) throw new IllegalArgumentException("maximum size should be at least 1, was " + maximumSize);
+        if (timeToLive.isNegative() || timeToLive.isZero()) throw new IllegalArgumentException("time to live should be positive, was " + timeToLive);
+        this.timeToLiveNanos = timeToLive.toNanos();
+
+        // a power of two of about four segments per processor, but not so many that segments hold a few entries only
+        int count = Integer.highestOneBit(Math.max(1, Math.min(4 * Runtime.getRuntime().availableProcessors(), maximumSize / 16)) * 2 - 1);
+        this.segments = new Segment[count];
+        this.segmentMask = count - 1;
+        int perSegment = (maximumSize + count - 1) / count;
+        for (int i = 0; i < count; i++) segments[i] = new Segment(perSegment);
+    }
+
+    /**
+     * Whether blobs of legacy key versions are decrypted every time instead
+     * of cached, e.g. to keep them visible in the decryption metrics while
+     * they are being migrated. Defaults to false.
+     */
+    public void setBypassLegacy(boolean bypassLegacy) {
+        this.bypassLegacy = bypassLegacy;
+    }
+
+    boolean bypassLegacy() {
+        return bypassLegacy;
+    }
+
+    /**
+     * Size in bytes of the largest cleartext that is cached. Blobs whose
+     * cleartext may be larger, judging by the length of the blob or, for
+     * compressed blobs, the cleartext length they record, are decrypted
+     * every time without being hashed or copied. Defaults to
+     * {@link #DEFAULT_MAXIMUM_CLEARTEXT_SIZE}.
+     */
+    public void setMaximumCleartextSize(int maximumCleartextSize) {
+        if (maximumCleartextSize < 0) throw new IllegalArgumentException("maximum cleartext size should not be negative, was " + maximumCleartextSize);
+        this.maximumCleartextSize = maximumCleartextSize;
+    }
+
+    int maximumCleartextSize() {
+        return maximumCleartextSize;
+    }
+
+    /**
+     * Looks up the cleartext of {@code blob}, which was decrypted under
+     * {@code plan}.
+     *
+     * @return A copy of the cleartext, or null on a miss.
+     */
+    @Nullable
+    byte[] get(byte[] blob, CipherPlan plan) {
+        long hash = hash(blob);
+        Segment segment = segment(hash);
+        BlobKey lookup = new BlobKey(blob, hash);
+        synchronized (segment) {
+            Entry entry = segment.get(lookup);
+            if (entry != null) {
+                if (entry.plan == plan && entry.expiresAt - System.nanoTime() > 0) {
+                    hits.increment();
+                    return entry.cleartext.clone();
+                }
+                segment.remove(lookup);
+                evict(entry);
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Caches a copy of the cleartext of {@code blob}, evicting the least
+     * recently used cleartext of its segment if that is full.
+     */
+    void put(byte[] blob, CipherPlan plan, byte[] cleartext) {
+        long hash = hash(blob);
+        Segment segment = segment(hash);
+        BlobKey key = new BlobKey(blob.clone(), hash);
+        byte[] copy = cleartext.clone();
+        synchronized (segment) {
+            long now = System.nanoTime();
+            Entry previous = segment.put(key, new Entry(plan, copy, now + timeToLiveNanos));
+            if (previous != null) evict(previous);
+            segment.expire(now);
+        }
+    }
+
+    /**
+     * Evicts all expired cleartexts now. Expired cleartexts are otherwise
+     * evicted by lookups and insertions, within about half the time to live
+     * after they expire, or when they are next looked up.
+     */
+    public void cleanUp() {
+        long now = System.nanoTime();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.sweep(now);
+            }
+        }
+    }
+
+    /**
+     * Evicts all cleartexts.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                Iterator<Entry> it = segment.values().iterator();
+                while (it.hasNext()) {
+                    Entry entry = it.next();
+                    it.remove();
+                    evict(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Amount of lookups that found their cleartext.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Amount of lookups that had to decrypt.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Hits divided by lookups, or 0 before the first lookup.
+     */
+    public double getHitRatio() {
+        long hits = this.hits.sum();
+        long lookups = hits + misses.sum();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * @return Amount of cleartexts evicted because they expired, were pushed out, their key version changed or the cache was cleared.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private Segment segment(long hash) {
+        return segments[(int) (hash >>> 40) & segmentMask];
+    }
+
+    private void evict(Entry entry) {
+        Arrays.fill(entry.cleartext, (byte) 0);
+        evictions.increment();
+    }
+
+    /**
+     * A 64-bit hash of the whole blob, a word at a time, after MurmurHash3's
+     * finalizer. Not collision resistant; lookups compare blobs in full.
+     */
+    static long hash(byte[] blob) {
+        long h = 0x9E3779B97F4A7C15L ^ blob.length;
+        int i = 0;
+        for (; i + 8 <= blob.length; i += 8) {
+            h = Long.rotateLeft(h ^ mix((long) LONGS.get(blob, i)), 27) * 0x9E3779B97F4A7C15L;
+        }
+        long tail = 0;
+        for (int shift = 0; i < blob.length; i++, shift += 8) tail |= (blob[i] & 0xFFL) << shift;
+        return mix(h ^ mix(tail));
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private record Entry(CipherPlan plan, byte[] cleartext, long expiresAt) {
+    }
+
+    /**
+     * In access order, so that the eldest entry is the least recently used.
+     * Guarded by its own monitor.
+     */
+    private final class Segment extends LinkedHashMap<BlobKey, Entry> {
+        private final int maximumSize;
+        private long nextSweep;
+
+        Segment(int maximumSize) {
+            super(16, 0.75f, true);
+            this.maximumSize = maximumSize;
+            this.nextSweep = System.nanoTime() + timeToLiveNanos / 2;
+        }
+
+        /**
+         * Evicts the least recently used entries beyond the maximum size and
+         * expired ones from that end. Entries that expire while they are
+         * used are left for the periodic sweep.
+         */
+        void expire(long now) {
+            if (now - nextSweep > 0) sweep(now);
+            Iterator<Entry> eldest = values().iterator();
+            while (eldest.hasNext()) {
+                Entry entry = eldest.next();
+                if (size() <= maximumSize && entry.expiresAt - now > 0) return;
+                eldest.remove();
+                evict(entry);
+            }
+        }
+
+        void sweep(long now) {
+            nextSweep = now + timeToLiveNanos / 2;
+            Iterator<Entry> it = values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.expiresAt - now <= 0) {
+                    it.remove();
+                    evict(entry);
+                }
+            }
+        }
+    }
+
+    private static final class BlobKey {
+        private final byte[] blob;
+        private final long hash;
+
+        BlobKey(byte[] blob, long hash) {
+            this.blob = blob;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BlobKey other && hash == other.hash && Arrays.equals(blob, other.blob);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) hash;
+        }
+    }
+}
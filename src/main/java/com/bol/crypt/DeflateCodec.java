@@ -0,0 +1,61 @@
+package com.bol.crypt;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Raw Deflate, without zlib header and checksum: blobs are authenticated or
+ * length-checked by {@link CompressedBlobs} already. Creating a
+ * {@code Deflater} allocates native memory, so every thread keeps one per
+ * codec, reset between uses.
+ */
+final class DeflateCodec implements CompressionCodec {
+    static final int ID = 1;
+    static final DeflateCodec DEFAULT = new DeflateCodec(Deflater.DEFAULT_COMPRESSION);
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final int level;
+    private final ThreadLocal<Deflater> deflaters;
+
+    DeflateCodec(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < 0 || level > 9)) throw new IllegalArgumentException("deflate level should be in [0, 9], was " + level);
+        this.level = level;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "deflate";
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        // a Deflater passed in is not ended on close, so it can be reused
+        return new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        return new InflaterInputStream(in, inflater, BUFFER_SIZE);
+    }
+
+    @Override
+    public String toString() {
+        return "deflate(" + level + ")";
+    }
+}
@@ -0,0 +1,20 @@
+package com.bol.crypt;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a property that {@link CryptVaultJacksonModule} encrypts when it
+ * serializes the object holding it, and decrypts when it deserializes it.
+ * The property is written as the Base64 encoded blob (or as binary, in
+ * binary formats). {@code String}, {@code char[]} and {@code CharSequence}
+ * values are encrypted as UTF-8, {@code byte[]} values as they are, and all
+ * other values as their JSON; a {@link LazyDecrypted} property is only
+ * decrypted once it is read. Null values are written as null.
+ */
+@Target({ElementType.FIELD, ElementType.METHOD, ElementType.PARAMETER})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Encrypted {
+}
@@ -0,0 +1,198 @@
+package com.bol.crypt;
+
+import org.springframework.lang.Nullable;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The envelope blob format (proto version 3), which encrypts the cleartext
+ * with a data key that is stored in the blob, wrapped by a
+ * {@link KeyEncryptionService} under the key version:
+ * <pre>
+ * 0         8         16                  32
+ * +---------+---------+-------------------+--------------------+--------------+--------------------+
+ * |proto    |key      |wrapped key length |wrapped data key    |nonce         |ciphertext and tag  |
+ * |version  |version  |(big endian)       |         ...        |              |            ...     |
+ * |8        |8        |16                 |[0,65535]           |96            |[128,inf)           |
+ * +---------+---------+-------------------+--------------------+--------------+--------------------+
+ * </pre>
+ * Data keys are AES-256 keys used with AES/GCM/NoPadding, whatever the key
+ * version's own transformation; the header up to the nonce is authenticated
+ * as additional data.
+ * <p>
+ * A data key is shared by a group of consecutive blobs, so that wrapping
+ * does not cost a round trip for every encryption. It is replaced after a
+ * given amount of blobs, or once it expires from the {@link DataKeyCache}.
+ */
+final class Envelopes {
+    static final byte PROTO_VERSION = 3;
+    static final int MIN_HEADER_LENGTH = 1 + 1 + 2;
+    static final int DATA_KEY_LENGTH = 32;
+    static final int NONCE_LENGTH = 12;
+    static final int TAG_LENGTH = 16;
+    static final long DEFAULT_BLOBS_PER_DATA_KEY = 1 << 16;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final SecureRandom random = new SecureRandom();
+
+    private final KeyEncryptionService keyEncryptionService;
+    private final DataKeyCache cache;
+    private final long blobsPerDataKey;
+    /**
+     * The data key that new blobs are encrypted with, per key version.
+     */
+    private final AtomicReferenceArray<CurrentDataKey> current = new AtomicReferenceArray<>(256);
+
+    Envelopes(KeyEncryptionService keyEncryptionService, DataKeyCache cache, long blobsPerDataKey) {
+        if (blobsPerDataKey < 1) throw new IllegalArgumentException("blobs per data key should be at least 1, was " + blobsPerDataKey);
+        this.keyEncryptionService = keyEncryptionService;
+        this.cache = cache;
+        this.blobsPerDataKey = blobsPerDataKey;
+    }
+
+    byte[] encrypt(CipherPlan plan, byte[] cleartext, CipherPool cipherPool, @Nullable IvGenerator ivGenerator) {
+        KeyVersion keyVersion = plan.keyVersion;
+        if (plan.legacy)
+            throw new CryptOperationException("cannot encrypt with legacy key version; hint: create new key version");
+
+        CurrentDataKey dataKey = acquire(keyVersion);
+        try {
+            GCMParameterSpec nonce = ivGenerator == null ? null : new GCMParameterSpec(TAG_LENGTH * 8, ivGenerator.nextIv(keyVersion, NONCE_LENGTH, true));
+            Cipher cipher = cipherPool.init(TRANSFORMATION, Cipher.ENCRYPT_MODE, dataKey.key, nonce);
+
+            byte[] wrappedKey = dataKey.wrappedKey;
+            int headerLength = MIN_HEADER_LENGTH + wrappedKey.length;
+            int ciphertextOffset = headerLength + NONCE_LENGTH;
+            byte[] blob = new byte[ciphertextOffset + cipher.getOutputSize(cleartext.length)];
+            blob[0] = PROTO_VERSION;
+            blob[1] = (byte) keyVersion.version;
+            blob[2] = (byte) (wrappedKey.length >>> 8);
+            blob[3] = (byte) wrappedKey.length;
+            System.arraycopy(wrappedKey, 0, blob, MIN_HEADER_LENGTH, wrappedKey.length);
+            System.arraycopy(cipher.getIV(), 0, blob, headerLength, NONCE_LENGTH);
+
+            cipher.updateAAD(blob, 0, headerLength);
+            int ciphertextLength = cipher.doFinal(cleartext, 0, cleartext.length, blob, ciphertextOffset);
+            return ciphertextOffset + ciphertextLength == blob.length ? blob : Arrays.copyOf(blob, ciphertextOffset + ciphertextLength);
+        } catch (GeneralSecurityException e) {
+            throw new CryptOperationException("JCA exception caught while encrypting with data key of key version " + keyVersion.version, e);
+        } finally {
+            dataKey.key.release();
+        }
+    }
+
+    /**
+     * @param metrics Receives whether the data key was cached; may be null.
+     */
+    byte[] decrypt(KeyVersions keyVersions, byte[] blob, CipherPool cipherPool, @Nullable CryptMetrics metrics) {
+        if (blob.length < MIN_HEADER_LENGTH) throw new CryptOperationException("envelope blob is truncated");
+        int version = blob[1] & 0xFF;
+        CipherPlan plan = keyVersions.plan(version);
+        if (plan == null) throw new CryptOperationException("key version in encrypted blob is unknown: " + version);
+
+        int headerLength = headerLength(blob, blob.length);
+        if (blob.length < headerLength + NONCE_LENGTH + TAG_LENGTH) throw new CryptOperationException("envelope blob is truncated");
+        byte[] wrappedKey = Arrays.copyOfRange(blob, MIN_HEADER_LENGTH, headerLength);
+
+        DataKey dataKey = cache.get(version, wrappedKey);
+        if (metrics != null) metrics.recordDataKeyLookup(plan.keyVersion, dataKey != null);
+        if (dataKey == null) {
+            dataKey = unwrap(plan.keyVersion, wrappedKey);
+            cache.put(version, wrappedKey, dataKey);
+        }
+
+        try {
+            Cipher cipher = cipherPool.init(TRANSFORMATION, Cipher.DECRYPT_MODE, dataKey, new GCMParameterSpec(TAG_LENGTH * 8, blob, headerLength, NONCE_LENGTH));
+            cipher.updateAAD(blob, 0, headerLength);
+            int ciphertextOffset = headerLength + NONCE_LENGTH;
+            return cipher.doFinal(blob, ciphertextOffset, blob.length - ciphertextOffset);
+        } catch (AEADBadTagException e) {
+            throw new CryptOperationException("envelope blob failed authentication; blob is corrupt", e);
+        } catch (GeneralSecurityException e) {
+            throw new CryptOperationException("JCA exception caught while decrypting with data key of key version " + version, e);
+        } finally {
+            dataKey.release();
+        }
+    }
+
+    /**
+     * Length of the header of an envelope blob of the given length, up to
+     * the nonce.
+     */
+    static int headerLength(byte[] blob, int blobLength) {
+        int headerLength = MIN_HEADER_LENGTH + ((blob[2] & 0xFF) << 8 | blob[3] & 0xFF);
+        if (blobLength < headerLength) throw new CryptOperationException("envelope blob is truncated");
+        return headerLength;
+    }
+
+    private DataKey unwrap(KeyVersion keyVersion, byte[] wrappedKey) {
+        byte[] key = keyEncryptionService.unwrap(keyVersion, wrappedKey);
+        if (key == null || key.length != DATA_KEY_LENGTH) {
+            if (key != null) Arrays.fill(key, (byte) 0);
+            throw new CryptOperationException("unwrapped data key of key version " + keyVersion.version + " is not " + DATA_KEY_LENGTH + " bytes");
+        }
+        return new DataKey(key);
+    }
+
+    /**
+     * The current data key of the key version, with a reference taken that
+     * the caller must release. Replaces it when it is used up or expired.
+     */
+    private CurrentDataKey acquire(KeyVersion keyVersion) {
+        int index = keyVersion.version & 0xFF;
+        for (; ; ) {
+            CurrentDataKey dataKey = current.get(index);
+            if (dataKey != null && dataKey.keyVersion == keyVersion && System.nanoTime() - dataKey.expiresAt < 0 && dataKey.key.retain()) {
+                if (dataKey.remaining.decrementAndGet() >= 0) return dataKey;
+                dataKey.key.release();
+            }
+            replace(index, keyVersion, dataKey);
+        }
+    }
+
+    /**
+     * Generates and wraps a new data key, unless another thread replaced
+     * {@code stale} already. Serialized, so that racing threads do not all
+     * call out to the {@link KeyEncryptionService}.
+     */
+    private synchronized void replace(int index, KeyVersion keyVersion, @Nullable CurrentDataKey stale) {
+        if (current.get(index) != stale) return;
+
+        byte[] key = new byte[DATA_KEY_LENGTH];
+        random.nextBytes(key);
+        byte[] wrappedKey = keyEncryptionService.wrap(keyVersion, key);
+        if (wrappedKey.length > 0xFFFF) {
+            Arrays.fill(key, (byte) 0);
+            throw new CryptOperationException("wrapped data key of key version " + keyVersion.version + " is longer than 65535 bytes");
+        }
+
+        // blobs encrypted with this key are decrypted without a round trip while it is cached
+        DataKey dataKey = new DataKey(key);
+        cache.put(keyVersion.version & 0xFF, wrappedKey, dataKey);
+        current.set(index, new CurrentDataKey(keyVersion, dataKey, wrappedKey, blobsPerDataKey, System.nanoTime() + cache.timeToLiveNanos()));
+        if (stale != null) stale.key.release();
+    }
+
+    private static final class CurrentDataKey {
+        final KeyVersion keyVersion;
+        final DataKey key;
+        final byte[] wrappedKey;
+        final AtomicLong remaining;
+        final long expiresAt;
+
+        CurrentDataKey(KeyVersion keyVersion, DataKey key, byte[] wrappedKey, long blobs, long expiresAt) {
+            this.keyVersion = keyVersion;
+            this.key = key;
+            this.wrappedKey = wrappedKey;
+            this.remaining = new AtomicLong(blobs);
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.bol.crypt;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * HMAC-based key derivation (RFC 5869) with SHA-256.
+ */
+final class Hkdf {
+    private static final String HMAC = "HmacSHA256";
+    private static final int HASH_LENGTH = 32;
+
+    private Hkdf() {
+    }
+
+    /**
+     * Derives {@code length} bytes of key material.
+     *
+     * @param ikm    Input key material, e.g. a configured key.
+     * @param salt   Optional salt; an empty salt is replaced by zeroes, as the RFC prescribes.
+     * @param info   Context the derived key is bound to.
+     * @param length Amount of bytes to derive, at most 255 * 32.
+     */
+    static byte[] derive(byte[] ikm, byte[] salt, byte[] info, int length) throws GeneralSecurityException {
+        if (length < 1 || length > 255 * HASH_LENGTH) throw new IllegalArgumentException("cannot derive " + length + " bytes");
+
+        Mac mac = Mac.getInstance(HMAC);
+
+        // extract
+        mac.init(new SecretKeySpec(salt.length == 0 ? new byte[HASH_LENGTH] : salt, HMAC));
+        byte[] prk = mac.doFinal(ikm);
+
+        // expand
+        mac.init(new SecretKeySpec(prk, HMAC));
+        byte[] okm = new byte[length];
+        byte[] t = new byte[0];
+        for (int i = 1, written = 0; written < length; i++) {
+            mac.update(t);
+            mac.update(info);
+            mac.update((byte) i);
+            t = mac.doFinal();
+            int n = Math.min(t.length, length - written);
+            System.arraycopy(t, 0, okm, written, n);
+            written += n;
+        }
+        return okm;
+    }
+}
@@ -0,0 +1,57 @@
+package com.bol.crypt;
+
+/**
+ * Generates the IVs and nonces that {@link CryptVault} encrypts under. See
+ * {@link CryptVault#setIvGenerator(IvGenerator)}; by default, the JCA
+ * {@code Cipher} draws its own IV from a shared {@code SecureRandom}.
+ * <p>
+ * Implementations are called concurrently and must be thread-safe.
+ */
+public interface IvGenerator {
+    /**
+     * Generates a fresh IV.
+     *
+     * @param keyVersion The key version that the IV will be used with.
+     * @param length     The length of the IV in bytes.
+     * @param nonce      Whether the IV is an AEAD nonce (GCM, ChaCha20-Poly1305), which only needs to be unique under
+     *                   the key. Otherwise it must be unpredictable (CBC) or random (CTR), and counters are unsafe.
+     * @return The IV, of exactly {@code length} bytes.
+     */
+    byte[] nextIv(KeyVersion keyVersion, int length, boolean nonce);
+
+    /**
+     * Draws IVs from a {@code DRBG} {@code SecureRandom} per thread, so that
+     * threads never contend on a shared source.
+     */
+    static IvGenerator threadLocalDrbg() {
+        return new ThreadLocalDrbgIvGenerator();
+    }
+
+    /**
+     * Hands out IVs from random bytes that are generated ahead of time by a
+     * background thread, so that encryption itself spends next to no time on
+     * randomness.
+     *
+     * @param chunks Amount of 4 KiB chunks of random bytes to keep ready.
+     */
+    static IvGenerator pooled(int chunks) {
+        return new PooledIvGenerator(chunks, new ThreadLocalDrbgIvGenerator());
+    }
+
+    /**
+     * Generates AEAD nonces as in NIST SP 800-38D's deterministic
+     * construction: a fixed field that identifies this instance, followed by
+     * a 64-bit counter per key version. The counter starts at a random offset,
+     * so that a restarted instance does not repeat the nonces of its previous
+     * run. Nonces never repeat within an instance, regardless of the amount of
+     * encryptions, whereas random 96-bit nonces should be limited to 2^32
+     * encryptions per key. IVs that are not nonces, and nonces shorter than
+     * 12 bytes, come from {@link #threadLocalDrbg()}.
+     *
+     * @param instanceId The fixed field. Must be unique among all instances
+     *                   that encrypt under the same keys, or nonces may repeat.
+     */
+    static IvGenerator counter(int instanceId) {
+        return new CounterNonceGenerator(instanceId, new ThreadLocalDrbgIvGenerator());
+    }
+}
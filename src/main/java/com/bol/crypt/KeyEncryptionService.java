@@ -0,0 +1,45 @@
+package com.bol.crypt;
+
+/**
+ * Wraps and unwraps the data keys of envelope-encrypted blobs under a
+ * key-encryption key, e.g. one held by a remote KMS. See
+ * {@link CryptVault#setEnvelopeEncryption(KeyEncryptionService, DataKeyCache)}.
+ * <p>
+ * The key-encryption key is identified by a {@link KeyVersion}: its version
+ * is recorded in every blob. Implementations backed by a KMS would map the
+ * version to a key id of their own and ignore {@link KeyVersion#key}.
+ * <p>
+ * Implementations must be thread-safe. Data keys are only unwrapped on a
+ * miss of the {@link DataKeyCache}, so implementations need not cache
+ * themselves.
+ */
+public interface KeyEncryptionService {
+    /**
+     * Wraps a freshly generated data key.
+     *
+     * @param keyVersion The key-encryption key to wrap under.
+     * @param dataKey    The raw data key; must not be retained.
+     * @return The wrapped data key, at most 65535 bytes.
+     * @throws CryptOperationException
+     */
+    byte[] wrap(KeyVersion keyVersion, byte[] dataKey) throws CryptOperationException;
+
+    /**
+     * Unwraps a data key previously wrapped by {@link #wrap(KeyVersion, byte[])}.
+     *
+     * @param keyVersion The key-encryption key it was wrapped under.
+     * @param wrappedKey The wrapped data key, as read from the blob.
+     * @return The raw data key; ownership passes to the caller, which zeroes it once evicted.
+     * @throws CryptOperationException
+     */
+    byte[] unwrap(KeyVersion keyVersion, byte[] wrappedKey) throws CryptOperationException;
+
+    /**
+     * A service that wraps data keys locally with AES key wrap (RFC 3394)
+     * under the key of the key version, which must be an AES key. A stand-in
+     * for a keystore or KMS, e.g. for tests and local development.
+     */
+    static KeyEncryptionService local() {
+        return new LocalKeyEncryptionService();
+    }
+}
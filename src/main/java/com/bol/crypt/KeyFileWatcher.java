@@ -0,0 +1,448 @@
+package com.bol.crypt;
+
+import org.springframework.lang.Nullable;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Adds key versions to a {@link KeyVersions} from a keys file, or from all
+ * {@code *.properties} files in a directory, without restarting, and
+ * promotes the default key version at a set time:
+ * <pre>
+ * version.7.key=ge2L+MA9jLA8UiUJ4z5fUoK+Lgj2yddlL6EzYIBqb1Q=
+ * version.7.transformation=AES/GCM/NoPadding
+ * default-key=7
+ * default-key-from=2024-11-01T00:00:00Z
+ * </pre>
+ * Per version, {@code transformation} defaults to
+ * {@code AES/CBC/PKCS5Padding}; {@code legacy} and {@code provider} can be
+ * set as well. Without {@code default-key}, new versions are only used to
+ * decrypt; without {@code default-key-from}, the default is promoted right
+ * away. Shipping a version ahead of its promotion lets every instance
+ * decrypt it before any of them encrypts with it.
+ * <p>
+ * Every new version is round-tripped before it is added, and the whole file
+ * is rejected when any version is invalid, or differs from the registered
+ * version with the same number. Versions are never removed, as blobs may
+ * still refer to them. Accepted changes are published as one new snapshot,
+ * so operations in flight are not blocked, and plans of the versions already
+ * registered are kept.
+ * <p>
+ * {@link #start()} watches the location on a daemon thread, which reloads it
+ * once changes have settled (see {@link #setSettleTime(Duration)}), and
+ * promotes the default when it is due. Listeners are told about every
+ * change, promotion and failure.
+ */
+public class KeyFileWatcher implements Closeable {
+    public static final Duration DEFAULT_SETTLE_TIME = Duration.ofMillis(200);
+
+    private static final byte[] PROBE = "cryptvault key file probe".getBytes(StandardCharsets.US_ASCII);
+
+    private final Path location;
+    private final KeyVersions keyVersions;
+    private final List<Consumer<Event>> listeners = new CopyOnWriteArrayList<>();
+    private Duration settleTime = DEFAULT_SETTLE_TIME;
+
+    /**
+     * The default to promote at {@link #pendingFrom}, or null.
+     */
+    @Nullable
+    private KeyVersion pendingDefault;
+    @Nullable
+    private Instant pendingFrom;
+    @Nullable
+    private volatile WatchService watchService;
+
+    public KeyFileWatcher(Path location, KeyVersions keyVersions) {
+        this.location = location;
+        this.keyVersions = keyVersions;
+    }
+
+    /**
+     * How long to wait for more changes after one was seen, so that a file
+     * is not read while it is being written. Defaults to 200 milliseconds.
+     */
+    public void setSettleTime(Duration settleTime) {
+        this.settleTime = settleTime;
+    }
+
+    /**
+     * Receives every change, promotion and failure; called on the thread that
+     * reloads.
+     */
+    public void addListener(Consumer<Event> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Reads the location and applies it, and promotes the default if due.
+     *
+     * @throws IllegalStateException when the location cannot be read or holds invalid key versions; nothing is changed then.
+     */
+    public synchronized void reload() {
+        Map<Integer, KeyVersion> read;
+        Integer defaultKey;
+        Instant defaultFrom;
+        try {
+            Properties properties = read(location);
+            read = keyVersions(properties);
+            defaultKey = integer(properties, "default-key");
+            defaultFrom = instant(properties, "default-key-from");
+        } catch (IllegalStateException e) {
+            publish(new Event(Event.Type.FAILED, List.of(), null, null, null, e));
+            throw e;
+        }
+
+        List<KeyVersion> added = new ArrayList<>();
+        try {
+            for (KeyVersion keyVersion : read.values()) {
+                KeyVersion registered = keyVersions.get(keyVersion.version).orElse(null);
+                if (registered == null) {
+                    probe(keyVersion);
+                    added.add(keyVersion);
+                } else if (!same(registered, keyVersion)) {
+                    throw new IllegalStateException(String.format("key version %d is registered with another key, transformation or provider", keyVersion.version));
+                }
+            }
+
+            KeyVersion newDefault = null;
+            if (defaultKey != null) {
+                if (defaultKey < 1 || defaultKey > 255) throw new IllegalStateException(String.format("default key version should be in [1, 255], was %d", defaultKey));
+                // the registered instance, if any, as plans are looked up by identity
+                newDefault = keyVersions.get(defaultKey).orElse(read.get(defaultKey));
+                if (newDefault == null) throw new IllegalStateException(String.format("no version %d registered; cannot make default", defaultKey));
+                if (newDefault.legacy) throw new IllegalStateException(String.format("legacy key version %d cannot be made default", defaultKey));
+            }
+
+            KeyVersion pending = null;
+            Instant pendingAt = null;
+            if (newDefault != null && defaultFrom != null && Instant.now().isBefore(defaultFrom)) {
+                pending = newDefault;
+                pendingAt = defaultFrom;
+                newDefault = null;
+            } else if (newDefault != null && keyVersions.size() > 0 && newDefault == keyVersions.getDefault()) {
+                newDefault = null;
+            }
+
+            boolean pendingChanged = pending != pendingDefault || !Objects.equals(pendingAt, pendingFrom);
+            if (added.isEmpty() && newDefault == null && !pendingChanged) return;
+            keyVersions.update(added, newDefault);
+            // a new version to promote later is registered by now
+            pendingDefault = pending == null ? null : keyVersions.get(pending.version).orElseThrow();
+            pendingFrom = pendingAt;
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            IllegalStateException failure = e instanceof IllegalStateException ise ? ise : new IllegalStateException(e.getMessage(), e);
+            publish(new Event(Event.Type.FAILED, List.of(), null, null, null, failure));
+            throw failure;
+        }
+        publish(new Event(Event.Type.RELOADED, added.stream().map(v -> v.version).toList(), keyVersions.getDefault().version, pendingDefault == null ? null : pendingDefault.version, pendingFrom, null));
+    }
+
+    /**
+     * Promotes the pending default if it is due.
+     */
+    synchronized void promoteIfDue() {
+        if (pendingDefault == null || Instant.now().isBefore(pendingFrom)) return;
+        keyVersions.setDefault(pendingDefault);
+        pendingDefault = null;
+        pendingFrom = null;
+        publish(new Event(Event.Type.PROMOTED, List.of(), keyVersions.getDefault().version, null, null, null));
+    }
+
+    /**
+     * Watches the location for changes on a daemon thread, until
+     * {@link #close()}. Does not read the location; call {@link #reload()}
+     * first.
+     *
+     * @throws IllegalStateException when the location cannot be watched.
+     */
+    public synchronized void start() {
+        if (watchService != null) throw new IllegalStateException("already started");
+        Path directory = Files.isDirectory(location) ? location : location.toAbsolutePath().getParent();
+        try {
+            WatchService watchService = directory.getFileSystem().newWatchService();
+            // the whole directory, as files are often swapped in through renames or symlinks
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            this.watchService = watchService;
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot watch " + directory, e);
+        }
+
+        Thread thread = new Thread(this::watch, "cryptvault-key-file");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching.
+     */
+    @Override
+    public void close() throws IOException {
+        WatchService watchService = this.watchService;
+        if (watchService != null) watchService.close();
+    }
+
+    private void watch() {
+        WatchService watchService = this.watchService;
+        try {
+            while (true) {
+                WatchKey key = watchService.poll(untilPromotion(), TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    // wait until no more changes come in
+                    do {
+                        key.pollEvents();
+                        key.reset();
+                    } while ((key = watchService.poll(settleTime.toMillis(), TimeUnit.MILLISECONDS)) != null);
+                    try {
+                        reload();
+                    } catch (IllegalStateException e) {
+                        // published to the listeners; the current key versions stay in use
+                    }
+                }
+                promoteIfDue();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // closed
+        }
+    }
+
+    private synchronized long untilPromotion() {
+        if (pendingFrom == null) return Long.MAX_VALUE;
+        return Math.max(0, Duration.between(Instant.now(), pendingFrom).toMillis());
+    }
+
+    private void publish(Event event) {
+        for (Consumer<Event> listener : listeners) listener.accept(event);
+    }
+
+    private static Properties read(Path location) {
+        Properties properties = new Properties();
+        try {
+            if (!Files.isDirectory(location)) return load(location, properties);
+
+            List<Path> files;
+            try (Stream<Path> list = Files.list(location)) {
+                files = list.filter(p -> p.getFileName().toString().endsWith(".properties") && Files.isRegularFile(p)).sorted().toList();
+            }
+            for (Path file : files) {
+                Properties fileProperties = load(file, new Properties());
+                for (String name : fileProperties.stringPropertyNames()) {
+                    Object previous = properties.put(name, fileProperties.getProperty(name));
+                    if (previous != null) throw new IllegalStateException(String.format("%s is set in more than one file in %s", name, location));
+                }
+            }
+            return properties;
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot read key versions from " + location, e);
+        }
+    }
+
+    private static Properties load(Path file, Properties properties) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        return properties;
+    }
+
+    private static Map<Integer, KeyVersion> keyVersions(Properties properties) {
+        Map<Integer, KeyVersion> versions = new TreeMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            if (!name.startsWith("version.")) {
+                if (!name.equals("default-key") && !name.equals("default-key-from")) throw new IllegalStateException("unknown property " + name);
+                continue;
+            }
+            String[] parts = name.split("\\.");
+            if (parts.length != 3) throw new IllegalStateException("unknown property " + name);
+            int version = parse(name, parts[1]);
+            if (version < 1 || version > 255) throw new IllegalStateException(String.format("version should be [1, 255], got %d", version));
+            if (versions.containsKey(version)) continue;
+
+            String prefix = "version." + version + ".";
+            String key = properties.getProperty(prefix + "key");
+            if (key == null) throw new IllegalStateException(String.format("key version %d has a null key", version));
+            byte[] keyBytes;
+            try {
+                keyBytes = Base64.getDecoder().decode(key.trim());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException(String.format("key of key version %d is not Base64", version), e);
+            }
+            versions.put(version, new KeyVersion(version,
+                    properties.getProperty(prefix + "transformation", "AES/CBC/PKCS5Padding").trim(),
+                    keyBytes,
+                    Boolean.parseBoolean(properties.getProperty(prefix + "legacy", "false").trim()),
+                    properties.getProperty(prefix + "provider") == null ? null : properties.getProperty(prefix + "provider").trim()));
+        }
+        for (String name : properties.stringPropertyNames()) {
+            if (!name.startsWith("version.")) continue;
+            String attribute = name.substring(name.lastIndexOf('.') + 1);
+            if (!List.of("key", "transformation", "legacy", "provider").contains(attribute)) throw new IllegalStateException("unknown property " + name);
+        }
+        return versions;
+    }
+
+    @Nullable
+    private static Integer integer(Properties properties, String name) {
+        String value = properties.getProperty(name);
+        return value == null ? null : parse(name, value.trim());
+    }
+
+    @Nullable
+    private static Instant instant(Properties properties, String name) {
+        String value = properties.getProperty(name);
+        if (value == null) return null;
+        try {
+            return Instant.parse(value.trim());
+        } catch (DateTimeParseException e) {
+            throw new IllegalStateException(String.format("%s should be an instant like 2024-11-01T00:00:00Z, was %s", name, value), e);
+        }
+    }
+
+    private static int parse(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException(String.format("%s should be a version number, was %s", name, value), e);
+        }
+    }
+
+    private static boolean same(KeyVersion a, KeyVersion b) {
+        return a.transformation.equalsIgnoreCase(b.transformation) && Arrays.equals(a.key, b.key) && a.legacy == b.legacy && Objects.equals(a.provider, b.provider);
+    }
+
+    /**
+     * Checks that a key version can be used, before it is added.
+     */
+    private static void probe(KeyVersion keyVersion) {
+        try {
+            if (keyVersion.legacy) {
+                // legacy versions only decrypt, with AES/CBC
+                Cipher.getInstance("AES/CBC/PKCS5Padding").init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyVersion.key, "AES"));
+                return;
+            }
+            CryptVault probe = CryptVault.of(KeyVersions.of(keyVersion));
+            if (!Arrays.equals(probe.decrypt(probe.encrypt(PROBE)), PROBE)) throw new IllegalStateException("round trip changed the cleartext");
+        } catch (GeneralSecurityException | RuntimeException e) {
+            throw new IllegalStateException(String.format("key version %d with %s cannot be used: %s", keyVersion.version, keyVersion.transformation, e.getMessage()), e);
+        }
+    }
+
+    /**
+     * A change to the key versions, or a failure to change them.
+     */
+    public static final class Event {
+        public enum Type {
+            /**
+             * Key versions were added, or the default was changed or scheduled.
+             */
+            RELOADED,
+            /**
+             * A scheduled default was promoted.
+             */
+            PROMOTED,
+            /**
+             * The location could not be read, or held invalid key versions;
+             * nothing was changed.
+             */
+            FAILED
+        }
+
+        private final Type type;
+        private final List<Integer> addedVersions;
+        @Nullable
+        private final Integer defaultVersion;
+        @Nullable
+        private final Integer pendingDefaultVersion;
+        @Nullable
+        private final Instant pendingDefaultFrom;
+        @Nullable
+        private final IllegalStateException failure;
+
+        Event(Type type, List<Integer> addedVersions, @Nullable Integer defaultVersion, @Nullable Integer pendingDefaultVersion, @Nullable Instant pendingDefaultFrom, @Nullable IllegalStateException failure) {
+            this.type = type;
+            this.addedVersions = addedVersions;
+            this.defaultVersion = defaultVersion;
+            this.pendingDefaultVersion = pendingDefaultVersion;
+            this.pendingDefaultFrom = pendingDefaultFrom;
+            this.failure = failure;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * The versions added by a reload.
+         */
+        public List<Integer> getAddedVersions() {
+            return addedVersions;
+        }
+
+        /**
+         * The default key version afterwards; null on failure.
+         */
+        @Nullable
+        public Integer getDefaultVersion() {
+            return defaultVersion;
+        }
+
+        /**
+         * The default set by the location, if it is still to be promoted.
+         */
+        @Nullable
+        public Integer getPendingDefaultVersion() {
+            return pendingDefaultVersion;
+        }
+
+        /**
+         * When {@link #getPendingDefaultVersion()} will be promoted.
+         */
+        @Nullable
+        public Instant getPendingDefaultFrom() {
+            return pendingDefaultFrom;
+        }
+
+        @Nullable
+        public IllegalStateException getFailure() {
+            return failure;
+        }
+
+        @Override
+        public String toString() {
+            return "Event{" +
+                    "type=" + type +
+                    ", addedVersions=" + addedVersions +
+                    ", defaultVersion=" + defaultVersion +
+                    ", pendingDefaultVersion=" + pendingDefaultVersion +
+                    ", pendingDefaultFrom=" + pendingDefaultFrom +
+                    ", failure=" + failure +
+                    '}';
+        }
+    }
+}
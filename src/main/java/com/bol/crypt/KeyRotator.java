@@ -0,0 +1,450 @@
+package com.bol.crypt;
+
+import org.springframework.lang.Nullable;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Re-encrypts stored blobs under the default key version, e.g. after a new
+ * key version was added, so that old key versions can be removed.
+ * <p>
+ * Blobs are pulled in batches from a {@link Source}, in a stable order.
+ * Blobs that are already under the default key version are skipped after
+ * inspecting their header only (see {@link CryptVault#needsRotation(byte[])});
+ * the rest is re-encrypted by a number of worker threads (see
+ * {@link CryptVault#rotate(byte[])}) and written in batches to a
+ * {@link Sink}. All queues in between are bounded, so a fast source cannot
+ * run ahead of a slow sink. Once every blob up to some point in the source
+ * order has been written, skipped or has failed, the sink is told so through
+ * {@link Sink#checkpoint(Object)}; a job that is restarted can resume from
+ * there. Blobs that fail to decrypt or re-encrypt do not stop the job; they
+ * are reported to {@link Sink#failed(Object, CryptOperationException)}.
+ * <pre>
+ * var rotator = new KeyRotator&lt;&gt;(cryptVault, source, sink);
+ * rotator.setRateLimit(500);
+ * rotator.setProgressListener(progress -&gt; log.info("{}", progress), Duration.ofSeconds(10));
+ * KeyRotator.Progress result = rotator.run();
+ * </pre>
+ *
+ * @param <K> Identifies a blob, e.g. the primary key of its row.
+ */
+public class KeyRotator<K> {
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final CryptVault cryptVault;
+    private final Source<K> source;
+    private final Sink<K> sink;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private double rateLimit = 0;
+    @Nullable
+    private Consumer<Progress> progressListener;
+    private Duration progressInterval = Duration.ofSeconds(10);
+
+    public KeyRotator(CryptVault cryptVault, Source<K> source, Sink<K> sink) {
+        this.cryptVault = cryptVault;
+        this.source = source;
+        this.sink = sink;
+    }
+
+    /**
+     * Amount of threads that re-encrypt. Defaults to the amount of cores.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism should be at least 1, was " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Amount of blobs asked from the source and written to the sink at once;
+     * also bounds the queues in between. Defaults to 100.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) throw new IllegalArgumentException("batch size should be at least 1, was " + batchSize);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Amount of blobs re-encrypted per second, at most, to spare the database
+     * the job runs against. Skipped blobs do not count. Unlimited by default.
+     *
+     * @param blobsPerSecond The limit, or 0 for none.
+     */
+    public void setRateLimit(double blobsPerSecond) {
+        if (blobsPerSecond < 0) throw new IllegalArgumentException("rate limit should not be negative, was " + blobsPerSecond);
+        this.rateLimit = blobsPerSecond;
+    }
+
+    /**
+     * Receives the progress of the job every {@code interval}, and once more
+     * when it is done. Called on the thread that runs the job.
+     */
+    public void setProgressListener(@Nullable Consumer<Progress> progressListener, Duration interval) {
+        this.progressListener = progressListener;
+        this.progressInterval = interval;
+    }
+
+    /**
+     * Runs the job on the calling thread and worker threads of its own,
+     * until the source is exhausted.
+     *
+     * @return The final progress.
+     * @throws IllegalStateException when the source or sink throws; the job is then aborted, and the last checkpoint holds.
+     * @throws InterruptedException  when the calling thread is interrupted; the job is then aborted too.
+     */
+    public Progress run() throws InterruptedException {
+        return new Job().run();
+    }
+
+    /**
+     * Supplies the blobs to re-encrypt.
+     */
+    public interface Source<K> {
+        /**
+         * The next blobs, in a stable order.
+         *
+         * @param max Amount of blobs to return at most.
+         * @return The blobs; empty once the source is exhausted.
+         */
+        List<Item<K>> next(int max) throws Exception;
+    }
+
+    /**
+     * Stores re-encrypted blobs.
+     */
+    public interface Sink<K> {
+        /**
+         * Stores the re-encrypted blobs, replacing their originals.
+         */
+        void write(List<Item<K>> items) throws Exception;
+
+        /**
+         * Called for a blob that could not be re-encrypted; it is left as is.
+         */
+        default void failed(K id, CryptOperationException e) throws Exception {
+        }
+
+        /**
+         * Called once every blob up to and including {@code id}, in source
+         * order, has been written, skipped or has failed.
+         */
+        default void checkpoint(K id) throws Exception {
+        }
+    }
+
+    /**
+     * A blob and what identifies it.
+     */
+    public static final class Item<K> {
+        private final K id;
+        private final byte[] blob;
+
+        public Item(K id, byte[] blob) {
+            this.id = id;
+            this.blob = blob;
+        }
+
+        public K getId() {
+            return id;
+        }
+
+        public byte[] getBlob() {
+            return blob;
+        }
+    }
+
+    /**
+     * Counts of blobs processed so far.
+     */
+    public static final class Progress {
+        private final long read;
+        private final long rotated;
+        private final long skipped;
+        private final long failed;
+        private final Duration elapsed;
+        private final boolean done;
+
+        Progress(long read, long rotated, long skipped, long failed, Duration elapsed, boolean done) {
+            this.read = read;
+            this.rotated = rotated;
+            this.skipped = skipped;
+            this.failed = failed;
+            this.elapsed = elapsed;
+            this.done = done;
+        }
+
+        /**
+         * Amount of blobs taken from the source.
+         */
+        public long getRead() {
+            return read;
+        }
+
+        /**
+         * Amount of blobs re-encrypted and written to the sink.
+         */
+        public long getRotated() {
+            return rotated;
+        }
+
+        /**
+         * Amount of blobs that were already under the default key version.
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Amount of blobs that could not be re-encrypted.
+         */
+        public long getFailed() {
+            return failed;
+        }
+
+        public Duration getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * Whether the source is exhausted and everything taken from it was processed.
+         */
+        public boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Blobs processed (rotated, skipped or failed) per second, on average.
+         */
+        public double getThroughput() {
+            long nanos = elapsed.toNanos();
+            return nanos == 0 ? 0 : (rotated + skipped + failed) * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("read %d, rotated %d, skipped %d, failed %d in %d ms (%.1f/s)%s",
+                    read, rotated, skipped, failed, elapsed.toMillis(), getThroughput(), done ? ", done" : "");
+        }
+    }
+
+    private enum Kind {ROTATED, SKIPPED, FAILED, WORKER_DONE}
+
+    private static final class Outcome<K> {
+        final long sequence;
+        final Kind kind;
+        @Nullable
+        final Item<K> item;
+        @Nullable
+        final CryptOperationException failure;
+
+        Outcome(long sequence, Kind kind, @Nullable Item<K> item, @Nullable CryptOperationException failure) {
+            this.sequence = sequence;
+            this.kind = kind;
+            this.item = item;
+            this.failure = failure;
+        }
+    }
+
+    private static final class Sequenced<K> {
+        final long sequence;
+        @Nullable
+        final Item<K> item;
+
+        Sequenced(long sequence, @Nullable Item<K> item) {
+            this.sequence = sequence;
+            this.item = item;
+        }
+    }
+
+    /**
+     * The state of a single run. The calling thread writes to the sink;
+     * a reader thread fills {@code input} and worker threads turn it into
+     * {@code output}.
+     */
+    private final class Job {
+        private final Sequenced<K> end = new Sequenced<>(-1, null);
+        private final BlockingQueue<Sequenced<K>> input = new ArrayBlockingQueue<>(batchSize * 2);
+        private final BlockingQueue<Outcome<K>> output = new ArrayBlockingQueue<>(batchSize * 2);
+        private final List<Thread> threads = new ArrayList<>();
+        private final AtomicLong read = new AtomicLong();
+        private volatile Exception sourceFailure;
+        private final long start = System.nanoTime();
+        private long nextPermit = start;
+
+        private long rotated, skipped, failed;
+        // completed blobs past the checkpoint, by sequence
+        private final Map<Long, K> completed = new HashMap<>();
+        private long checkpoint = 0;
+
+        Progress run() throws InterruptedException {
+            threads.add(new Thread(this::read, "cryptvault-rotator-reader"));
+            for (int i = 1; i <= parallelism; i++) {
+                threads.add(new Thread(this::work, "cryptvault-rotator-" + i));
+            }
+            threads.forEach(thread -> {
+                thread.setDaemon(true);
+                thread.start();
+            });
+
+            try {
+                write();
+            } catch (InterruptedException | RuntimeException e) {
+                threads.forEach(Thread::interrupt);
+                throw e;
+            }
+            Progress progress = progress(true);
+            if (progressListener != null) progressListener.accept(progress);
+            return progress;
+        }
+
+        private void read() {
+            try {
+                long sequence = 0;
+                List<Item<K>> items;
+                while (!(items = source.next(batchSize)).isEmpty()) {
+                    for (Item<K> item : items) {
+                        input.put(new Sequenced<>(sequence++, item));
+                        read.incrementAndGet();
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                sourceFailure = e;
+            }
+            try {
+                input.put(end);
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        private void work() {
+            try {
+                while (true) {
+                    Sequenced<K> next = input.take();
+                    if (next == end) {
+                        // leave it for the other workers
+                        input.put(end);
+                        output.put(new Outcome<>(-1, Kind.WORKER_DONE, null, null));
+                        return;
+                    }
+                    output.put(rotate(next.sequence, next.item));
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        private Outcome<K> rotate(long sequence, Item<K> item) throws InterruptedException {
+            try {
+                if (!cryptVault.needsRotation(item.getBlob())) return new Outcome<>(sequence, Kind.SKIPPED, item, null);
+                acquirePermit();
+                return new Outcome<>(sequence, Kind.ROTATED, new Item<>(item.getId(), cryptVault.rotate(item.getBlob())), null);
+            } catch (CryptOperationException e) {
+                return new Outcome<>(sequence, Kind.FAILED, item, e);
+            } catch (RuntimeException e) {
+                // e.g. a truncated blob
+                return new Outcome<>(sequence, Kind.FAILED, item, new CryptOperationException("cannot rotate blob", e));
+            }
+        }
+
+        /**
+         * Spaces re-encryptions evenly, without allowing bursts.
+         */
+        private void acquirePermit() throws InterruptedException {
+            if (rateLimit == 0) return;
+            long interval = (long) (1e9 / rateLimit);
+            long permit;
+            synchronized (this) {
+                permit = Math.max(nextPermit, System.nanoTime());
+                nextPermit = permit + interval;
+            }
+            long wait;
+            while ((wait = permit - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
+        }
+
+        private void write() throws InterruptedException {
+            List<Outcome<K>> batch = new ArrayList<>(batchSize);
+            long progressNanos = progressInterval.toNanos();
+            long nextProgress = System.nanoTime() + progressNanos;
+            int workers = parallelism;
+
+            while (workers > 0) {
+                long now = System.nanoTime();
+                Outcome<K> outcome = output.poll(Math.max(0, Math.min(nextProgress - now, TimeUnit.MILLISECONDS.toNanos(100))), TimeUnit.NANOSECONDS);
+                if (outcome == null) {
+                    // idle; do not hold on to a partial batch
+                    flush(batch);
+                } else if (outcome.kind == Kind.WORKER_DONE) {
+                    workers--;
+                } else if (outcome.kind == Kind.ROTATED) {
+                    batch.add(outcome);
+                    if (batch.size() >= batchSize) flush(batch);
+                } else {
+                    if (outcome.kind == Kind.SKIPPED) {
+                        skipped++;
+                    } else {
+                        failed++;
+                        call(() -> sink.failed(outcome.item.getId(), outcome.failure));
+                    }
+                    completed.put(outcome.sequence, outcome.item.getId());
+                }
+
+                if (progressListener != null && System.nanoTime() >= nextProgress) {
+                    progressListener.accept(progress(false));
+                    nextProgress = System.nanoTime() + progressNanos;
+                }
+            }
+            flush(batch);
+            if (sourceFailure != null) throw new IllegalStateException("key rotation aborted: source failed", sourceFailure);
+        }
+
+        private void flush(List<Outcome<K>> batch) {
+            if (!batch.isEmpty()) {
+                List<Item<K>> items = new ArrayList<>(batch.size());
+                for (Outcome<K> outcome : batch) items.add(outcome.item);
+                call(() -> sink.write(items));
+                rotated += batch.size();
+                for (Outcome<K> outcome : batch) completed.put(outcome.sequence, outcome.item.getId());
+                batch.clear();
+            }
+
+            K last = null;
+            while (completed.containsKey(checkpoint)) {
+                last = completed.remove(checkpoint++);
+            }
+            if (last != null) {
+                K id = last;
+                call(() -> sink.checkpoint(id));
+            }
+        }
+
+        private void call(SinkCall call) {
+            try {
+                call.run();
+            } catch (Exception e) {
+                throw new IllegalStateException("key rotation aborted: sink failed", e);
+            }
+        }
+
+        private Progress progress(boolean done) {
+            return new Progress(read.get(), rotated, skipped, failed, Duration.ofNanos(System.nanoTime() - start), done);
+        }
+    }
+
+    private interface SinkCall {
+        void run() throws Exception;
+    }
+}
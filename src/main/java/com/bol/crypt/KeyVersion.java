@@ -1,5 +1,7 @@
 package com.bol.crypt;
 
+import org.springframework.lang.Nullable;
+
 import java.util.Arrays;
 import java.util.Base64;
 
@@ -28,12 +30,24 @@ public class KeyVersion {
      * be done with a new key.
      */
     public final boolean legacy;
+    /**
+     * The name of the JCA provider to take ciphers from, e.g.
+     * {@code "SunJCE"}. When null, the highest-priority provider that
+     * supports the transformation is used.
+     */
+    @Nullable
+    public final String provider;
 
-    public KeyVersion(int version, String transformation, byte[] key, boolean legacy) {
+    public KeyVersion(int version, String transformation, byte[] key, boolean legacy, @Nullable String provider) {
         this.version = version;
         this.transformation = transformation;
         this.key = key;
         this.legacy = legacy;
+        this.provider = provider;
+    }
+
+    public KeyVersion(int version, String transformation, byte[] key, boolean legacy) {
+        this(version, transformation, key, legacy, null);
     }
 
     public KeyVersion(int version, String transformation, byte[] key) {
@@ -55,6 +69,7 @@ public class KeyVersion {
                 ", transformation='" + transformation + '\'' +
                 ", key=" + Arrays.toString(key) +
                 ", legacy=" + legacy +
+                ", provider='" + provider + '\'' +
                 '}';
     }
 }
\ No newline at end of file
@@ -1,16 +1,20 @@
 package com.bol.crypt;
 
-import java.util.ArrayList;
+import org.springframework.lang.Nullable;
+
 import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
 /**
  * Stores different versioned configurations containing transformations and keys.
+ * <p>
+ * The registry is an immutable snapshot indexed by version number, replaced
+ * as a whole on every change. Lookups are a single array load, and readers
+ * never see a half-updated registry.
  */
 public class KeyVersions {
-    private final List<KeyVersion> keyVersions = new ArrayList<>();
-    private KeyVersion defaultVersion = null;
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
 
     /**
      * Creates a new instance of this class initialized with the provided key
@@ -29,7 +33,7 @@ public class KeyVersions {
      * Amount of keys defined.
      */
     public int size() {
-        return keyVersions.size();
+        return snapshot.size;
     }
 
     /**
@@ -41,7 +45,26 @@ public class KeyVersions {
      */
     public Optional<KeyVersion> get(int version) {
         if (version < 1 || version > 255) throw new IllegalArgumentException("versions must be in range [1, 255]");
-        return keyVersions.stream().filter((v) -> v.version == version).findFirst();
+        CipherPlan plan = snapshot.plans[version];
+        return plan == null ? Optional.empty() : Optional.of(plan.keyVersion);
+    }
+
+    /**
+     * Gets the plan of a registered version without allocating.
+     *
+     * @return The plan, or null if {@code version} is out of range or not registered.
+     */
+    CipherPlan plan(int version) {
+        CipherPlan[] plans = snapshot.plans;
+        return version < 0 || version >= plans.length ? null : plans[version];
+    }
+
+    /**
+     * Gets the plan for the given key version, which need not be registered.
+     */
+    CipherPlan planFor(KeyVersion keyVersion) {
+        CipherPlan plan = plan(keyVersion.version);
+        return plan != null && plan.keyVersion == keyVersion ? plan : CipherPlan.forEncryption(keyVersion);
     }
 
     /**
@@ -50,6 +73,7 @@ public class KeyVersions {
      * @throws IllegalStateException when no default key version was previously set.
      */
     public KeyVersion getDefault() {
+        KeyVersion defaultVersion = snapshot.defaultVersion;
         if (defaultVersion == null) throw new IllegalStateException("no default version set");
         return defaultVersion;
     }
@@ -63,19 +87,22 @@ public class KeyVersions {
      *
      * @param keyVersion The version to add.
      */
-    public void addVersion(KeyVersion keyVersion) {
-        if (keyVersion.version < 0 || keyVersion.version > 255) {
-            throw new IllegalArgumentException("version must fit in a byte");
-        }
-        if (get(keyVersion.version).isPresent()) {
+    public synchronized void addVersion(KeyVersion keyVersion) {
+        checkVersion(keyVersion);
+        Snapshot current = snapshot;
+        if (current.plans[keyVersion.version] != null) {
             throw new IllegalArgumentException("version " + keyVersion.version + " is already registered");
         }
 
-        keyVersions.add(keyVersion);
+        CipherPlan[] plans = current.plans.clone();
+        plans[keyVersion.version] = CipherPlan.of(keyVersion);
 
+        KeyVersion defaultVersion = current.defaultVersion;
         if (defaultVersion == null || keyVersion.version > defaultVersion.version) {
             defaultVersion = keyVersion;
         }
+
+        snapshot = new Snapshot(plans, current.size + 1, defaultVersion);
     }
 
     /**
@@ -87,14 +114,56 @@ public class KeyVersions {
         versions.forEach(this::addVersion);
     }
 
+    /**
+     * Adds versions and sets the default in a single change, so that readers
+     * see either none or all of it. Plans of versions already registered are
+     * kept as they are.
+     *
+     * @param added          The versions to add; none may be registered already.
+     * @param defaultVersion The new default, or null to keep the current one
+     *                       (or, if there is none, to take the highest added
+     *                       version, as {@link #addVersion(KeyVersion)} does).
+     */
+    synchronized void update(Collection<KeyVersion> added, @Nullable KeyVersion defaultVersion) {
+        Snapshot current = snapshot;
+        CipherPlan[] plans = current.plans.clone();
+        KeyVersion highest = null;
+        for (KeyVersion keyVersion : added) {
+            checkVersion(keyVersion);
+            if (plans[keyVersion.version] != null) {
+                throw new IllegalArgumentException("version " + keyVersion.version + " is already registered");
+            }
+            plans[keyVersion.version] = CipherPlan.of(keyVersion);
+            if (highest == null || keyVersion.version > highest.version) highest = keyVersion;
+        }
+
+        if (defaultVersion == null) defaultVersion = current.defaultVersion == null ? highest : current.defaultVersion;
+        snapshot = new Snapshot(plans, current.size + added.size(), defaultVersion);
+    }
+
+    /**
+     * Legacy blobs start with the key version plus 128, so legacy versions
+     * 128 and up would be read as a blob of the proto version they wrap
+     * around to. Those that collide with a proto version are rejected.
+     */
+    private static void checkVersion(KeyVersion keyVersion) {
+        if (keyVersion.version < 0 || keyVersion.version > 255) {
+            throw new IllegalArgumentException("version must fit in a byte");
+        }
+        if (keyVersion.legacy && CryptVault.isProtoVersion((keyVersion.version + Byte.MIN_VALUE) & 0xFF)) {
+            throw new IllegalArgumentException("legacy version " + keyVersion.version + " cannot be told apart from blobs of proto version " + (keyVersion.version + Byte.MIN_VALUE));
+        }
+    }
+
     /**
      * Set the default version. This is the version that is used in unqualified
      * calls to {@code CryptVault#encrypt}.
      *
      * @param defaultVersion The new default.
      */
-    public void setDefault(KeyVersion defaultVersion) {
-        this.defaultVersion = defaultVersion;
+    public synchronized void setDefault(KeyVersion defaultVersion) {
+        Snapshot current = snapshot;
+        snapshot = new Snapshot(current.plans, current.size, defaultVersion);
     }
 
     /**
@@ -107,8 +176,33 @@ public class KeyVersions {
      * key version.
      */
     public boolean isLegacyVersion(byte version) {
-        // in legacy version, 0x80 (-128) was version 0, 0x81 (-127) was version 1, etc.
-        var legacyVersion = (int) version - Byte.MIN_VALUE;
-        return get(legacyVersion).map((kv) -> kv.legacy).orElse(false);
+        CipherPlan plan = plan(legacyVersion(version));
+        return plan != null && plan.legacy;
+    }
+
+    /**
+     * The key version that a legacy blob starting with {@code firstByte} is
+     * encrypted under.
+     */
+    static int legacyVersion(byte firstByte) {
+        // in legacy version, 0x80 (-128) was version 0, 0x81 (-127) was version 1, etc., wrapping around at 0xFF
+        return firstByte - Byte.MIN_VALUE;
+    }
+
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(new CipherPlan[256], 0, null);
+
+        /**
+         * Indexed by version number. Never modified once published.
+         */
+        final CipherPlan[] plans;
+        final int size;
+        final KeyVersion defaultVersion;
+
+        Snapshot(CipherPlan[] plans, int size, KeyVersion defaultVersion) {
+            this.plans = plans;
+            this.size = size;
+            this.defaultVersion = defaultVersion;
+        }
     }
 }
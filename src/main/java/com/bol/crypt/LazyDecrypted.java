@@ -0,0 +1,86 @@
+package com.bol.crypt;
+
+import org.springframework.lang.Nullable;
+
+import java.util.function.Function;
+
+/**
+ * An encrypted property value that is decrypted on first use, see
+ * {@link CryptVaultJacksonModule}. Values are immutable, so a document
+ * that is read and written again keeps the original blob, and is not
+ * decrypted or encrypted again.
+ * <p>
+ * Thread-safe. Once decrypted, the value is kept.
+ */
+public final class LazyDecrypted<T> {
+    @Nullable
+    private final byte[] blob;
+    /**
+     * Cleared once the value is decrypted; written after {@link #value}, so
+     * that seeing it cleared means seeing the value.
+     */
+    @Nullable
+    private volatile Function<byte[], T> decryptor;
+    @Nullable
+    private T value;
+
+    private LazyDecrypted(@Nullable byte[] blob, @Nullable Function<byte[], T> decryptor, @Nullable T value) {
+        this.blob = blob;
+        this.value = value;
+        this.decryptor = decryptor;
+    }
+
+    /**
+     * A value to be encrypted when it is serialized.
+     */
+    public static <T> LazyDecrypted<T> of(@Nullable T value) {
+        return new LazyDecrypted<>(null, null, value);
+    }
+
+    /**
+     * A value to be decrypted from {@code blob} by {@code decryptor} on first
+     * use.
+     */
+    static <T> LazyDecrypted<T> ofBlob(byte[] blob, Function<byte[], T> decryptor) {
+        return new LazyDecrypted<>(blob, decryptor, null);
+    }
+
+    /**
+     * The value, decrypting it if that has not happened yet.
+     *
+     * @throws CryptOperationException when the blob cannot be decrypted
+     */
+    @Nullable
+    public T get() throws CryptOperationException {
+        if (decryptor == null) return value;
+        synchronized (this) {
+            Function<byte[], T> decryptor = this.decryptor;
+            if (decryptor != null) {
+                value = decryptor.apply(blob);
+                this.decryptor = null;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Whether the value is available without decrypting it.
+     */
+    public boolean isDecrypted() {
+        return decryptor == null;
+    }
+
+    /**
+     * The blob the value was read from, or null for values created by
+     * {@link #of(Object)}.
+     */
+    @Nullable
+    byte[] blob() {
+        return blob;
+    }
+
+    @Override
+    public String toString() {
+        return "LazyDecrypted{" + (blob == null ? "new" : blob.length + " bytes encrypted") + '}';
+    }
+}
@@ -0,0 +1,40 @@
+package com.bol.crypt;
+
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Wraps data keys with AES key wrap (RFC 3394) under the key version's own
+ * key. See {@link KeyEncryptionService#local()}.
+ */
+final class LocalKeyEncryptionService implements KeyEncryptionService {
+    private static final String TRANSFORMATION = "AESWrap";
+
+    @Override
+    public byte[] wrap(KeyVersion keyVersion, byte[] dataKey) {
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.WRAP_MODE, new SecretKeySpec(keyVersion.key, "AES"));
+            return cipher.wrap(new SecretKeySpec(dataKey, "AES"));
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException e) {
+            throw new CryptOperationException("JCA exception caught while wrapping data key with key version " + keyVersion.version, e);
+        }
+    }
+
+    @Override
+    public byte[] unwrap(KeyVersion keyVersion, byte[] wrappedKey) {
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.UNWRAP_MODE, new SecretKeySpec(keyVersion.key, "AES"));
+            Key dataKey = cipher.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY);
+            return dataKey.getEncoded();
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+            throw new CryptOperationException("JCA exception caught while unwrapping data key with key version " + keyVersion.version, e);
+        }
+    }
+}
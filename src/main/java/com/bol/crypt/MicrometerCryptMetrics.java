@@ -0,0 +1,141 @@
+package com.bol.crypt;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.lang.Nullable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes {@link CryptMetrics} to Micrometer:
+ * <ul>
+ * <li>{@code cryptvault.encrypt} and {@code cryptvault.decrypt}: timers,</li>
+ * <li>{@code cryptvault.encrypt.size} and {@code cryptvault.decrypt.size}:
+ * distribution summaries of the cleartext size in bytes,</li>
+ * </ul>
+ * all tagged by {@code key.version}, {@code transformation} and
+ * {@code legacy}, and {@code cryptvault.failures}: a counter tagged by
+ * {@code operation}, {@code key.version} and {@code cause}, the simple class
+ * name of the JCA exception behind the failure. A key version whose decrypt
+ * timer stops counting no longer has any blobs in use.
+ * <p>
+ * Lookups of data keys of envelope-encrypted blobs are counted by
+ * {@code cryptvault.datakeys}, tagged by {@code key.version} and
+ * {@code result}: {@code hit} or {@code miss}, and lookups of the
+ * {@link DecryptionCache} likewise by {@code cryptvault.decrypt.cache}.
+ * Changes made by a {@link KeyFileWatcher} are counted by
+ * {@code cryptvault.keys.reloads}, tagged by {@code result}:
+ * {@code reloaded}, {@code promoted} or {@code failed}.
+ */
+public class MicrometerCryptMetrics implements CryptMetrics {
+    private final MeterRegistry registry;
+    /**
+     * Meters per operation, indexed by key version, so that recording does
+     * not need to look up meters in the registry.
+     */
+    private final Meters[][] meters = new Meters[Operation.values().length][256];
+    /**
+     * Data key lookup counters, indexed by miss (0) or hit (1) and key version.
+     */
+    private final Counter[][] dataKeyLookups = new Counter[2][256];
+    /**
+     * Decryption cache lookup counters, indexed like {@link #dataKeyLookups}.
+     */
+    private final Counter[][] cacheLookups = new Counter[2][256];
+
+    public MicrometerCryptMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public void recordSuccess(Operation operation, KeyVersion keyVersion, int cleartextLength, long nanos) {
+        Meters m = meters(operation, keyVersion);
+        m.timer.record(nanos, TimeUnit.NANOSECONDS);
+        m.size.record(cleartextLength);
+    }
+
+    @Override
+    public void recordFailure(Operation operation, @Nullable KeyVersion keyVersion, CryptOperationException e) {
+        Counter.builder("cryptvault.failures")
+                .description("Failed encryptions and decryptions")
+                .tag("operation", name(operation))
+                .tag("key.version", keyVersion == null ? "unknown" : Integer.toString(keyVersion.version))
+                .tag("cause", e.getCause() == null ? "none" : e.getCause().getClass().getSimpleName())
+                .register(registry)
+                .increment();
+    }
+
+    @Override
+    public void recordDataKeyLookup(KeyVersion keyVersion, boolean hit) {
+        lookups(dataKeyLookups, "cryptvault.datakeys", "Lookups of data keys of envelope-encrypted values", keyVersion, hit).increment();
+    }
+
+    @Override
+    public void recordDecryptionCacheLookup(KeyVersion keyVersion, boolean hit) {
+        lookups(cacheLookups, "cryptvault.decrypt.cache", "Lookups of the cleartext of values in the decryption cache", keyVersion, hit).increment();
+    }
+
+    @Override
+    public void recordKeyFileEvent(KeyFileWatcher.Event.Type type) {
+        Counter.builder("cryptvault.keys.reloads")
+                .description("Changes to the key versions made from the key file, and failures to make them")
+                .tag("result", type.name().toLowerCase())
+                .register(registry)
+                .increment();
+    }
+
+    private Counter lookups(Counter[][] counters, String name, String description, KeyVersion keyVersion, boolean hit) {
+        Counter[] perVersion = counters[hit ? 1 : 0];
+        int index = keyVersion.version & 0xFF;
+        Counter counter = perVersion[index];
+        if (counter == null) {
+            perVersion[index] = counter = Counter.builder(name)
+                    .description(description)
+                    .tag("key.version", Integer.toString(keyVersion.version))
+                    .tag("result", hit ? "hit" : "miss")
+                    .register(registry);
+        }
+        return counter;
+    }
+
+    private Meters meters(Operation operation, KeyVersion keyVersion) {
+        Meters[] perVersion = meters[operation.ordinal()];
+        int index = keyVersion.version & 0xFF;
+        Meters m = perVersion[index];
+        if (m == null || m.keyVersion != keyVersion) {
+            // racing threads register the same meters, which the registry deduplicates
+            perVersion[index] = m = new Meters(registry, operation, keyVersion);
+        }
+        return m;
+    }
+
+    private static String name(Operation operation) {
+        return operation.name().toLowerCase();
+    }
+
+    private static final class Meters {
+        final KeyVersion keyVersion;
+        final Timer timer;
+        final DistributionSummary size;
+
+        Meters(MeterRegistry registry, Operation operation, KeyVersion keyVersion) {
+            Tags tags = Tags.of(
+                    "key.version", Integer.toString(keyVersion.version),
+                    "transformation", String.valueOf(keyVersion.transformation),
+                    "legacy", Boolean.toString(keyVersion.legacy));
+            this.keyVersion = keyVersion;
+            this.timer = Timer.builder("cryptvault." + name(operation))
+                    .description("Time taken to " + name(operation) + " a value")
+                    .tags(tags)
+                    .register(registry);
+            this.size = DistributionSummary.builder("cryptvault." + name(operation) + ".size")
+                    .description("Size of the cleartext of " + name(operation) + "ed values")
+                    .baseUnit("bytes")
+                    .tags(tags)
+                    .register(registry);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.bol.crypt;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits a range of work items over a {@link ForkJoinPool}.
+ */
+final class Parallel {
+    private Parallel() {
+    }
+
+    /**
+     * Runs {@code action} over consecutive sub-ranges of {@code [0, count)}
+     * that hold at most {@code perTask} items each, in parallel on
+     * {@code pool} when there is more than one such range and the pool has
+     * more than one thread. An exception thrown for any range is rethrown.
+     */
+    static void forEachRange(ForkJoinPool pool, int count, int perTask, RangeAction action) {
+        if (count <= perTask || pool.getParallelism() == 1) {
+            action.run(0, count);
+        } else {
+            pool.invoke(new Range(0, count, perTask, action));
+        }
+    }
+
+    interface RangeAction {
+        void run(int from, int to);
+    }
+
+    private static final class Range extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final int perTask;
+        private final RangeAction action;
+
+        Range(int from, int to, int perTask, RangeAction action) {
+            this.from = from;
+            this.to = to;
+            this.perTask = perTask;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= perTask) {
+                action.run(from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Range(from, middle, perTask, action), new Range(middle, to, perTask, action));
+            }
+        }
+    }
+}
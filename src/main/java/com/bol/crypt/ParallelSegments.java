@@ -0,0 +1,68 @@
+package com.bol.crypt;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
+/**
+ * Encrypts and decrypts whole segmented blobs (see {@link Segments}) held in
+ * memory, spreading the segments over a {@link ForkJoinPool}. Segments are
+ * independent of each other, so throughput scales with the amount of cores,
+ * whereas e.g. AES/CBC over the whole payload is inherently sequential.
+ */
+final class ParallelSegments {
+    /**
+     * Amount of segments a single task handles before it is worth forking.
+     */
+    private static final int SEGMENTS_PER_TASK = 4;
+
+    private ParallelSegments() {
+    }
+
+    static byte[] encrypt(Segments segments, byte[] cleartext, CipherPool cipherPool, ForkJoinPool pool) {
+        long blobSize = segments.blobSize(cleartext.length);
+        if (blobSize > Integer.MAX_VALUE - 8) throw new CryptOperationException("cleartext too large for a single blob; use encryptingStream instead");
+
+        int segmentSize = segments.segmentSize;
+        int segmentCount = (int) segments.segmentCount(cleartext.length);
+        byte[] blob = new byte[(int) blobSize];
+        System.arraycopy(segments.header, 0, blob, 0, Segments.HEADER_LENGTH);
+
+        forEachSegment(pool, segmentCount, i -> {
+            int from = i * segmentSize;
+            int to = (int) Math.min((long) from + segmentSize, cleartext.length);
+            int offset = Segments.HEADER_LENGTH + i * (segmentSize + Segments.TAG_LENGTH);
+            segments.encrypt(cipherPool, i, i == segmentCount - 1,
+                    ByteBuffer.wrap(cleartext, from, to - from),
+                    ByteBuffer.wrap(blob, offset, blob.length - offset));
+        });
+        return blob;
+    }
+
+    static byte[] decrypt(Segments segments, byte[] blob, CipherPool cipherPool, ForkJoinPool pool) {
+        int segmentSize = segments.segmentSize;
+        int segmentLength = segmentSize + Segments.TAG_LENGTH;
+        byte[] cleartext = new byte[(int) segments.cleartextSize(blob.length)];
+        int segmentCount = (int) segments.segmentCountOfBlob(blob.length);
+        forEachSegment(pool, segmentCount, i -> {
+            int offset = Segments.HEADER_LENGTH + i * segmentLength;
+            int length = Math.min(segmentLength, blob.length - offset);
+            int cleartextOffset = i * segmentSize;
+            segments.decrypt(cipherPool, i, i == segmentCount - 1,
+                    ByteBuffer.wrap(blob, offset, length),
+                    ByteBuffer.wrap(cleartext, cleartextOffset, cleartext.length - cleartextOffset));
+        });
+        return cleartext;
+    }
+
+    /**
+     * Runs {@code action} for every segment index, in parallel on
+     * {@code pool} when there are enough segments to make that worthwhile.
+     * An exception thrown for any segment is rethrown.
+     */
+    static void forEachSegment(ForkJoinPool pool, int segmentCount, IntConsumer action) {
+        Parallel.forEachRange(pool, segmentCount, SEGMENTS_PER_TASK, (from, to) -> {
+            for (int i = from; i < to; i++) action.accept(i);
+        });
+    }
+}
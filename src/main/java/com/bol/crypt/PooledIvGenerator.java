@@ -0,0 +1,102 @@
+package com.bol.crypt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * See {@link IvGenerator#pooled(int)}. Every thread slices IVs off a chunk of
+ * random bytes of its own, and only touches the shared queue of chunks once
+ * per chunk. When the queue runs dry, a chunk is generated on the calling
+ * thread rather than waiting for the background thread.
+ * <p>
+ * The background thread belongs to this generator, and is only ended after
+ * it has been idle for a while.
+ */
+class PooledIvGenerator implements IvGenerator {
+    static final int CHUNK_SIZE = 4096;
+
+    private final BlockingQueue<byte[]> chunks;
+    private final ThreadLocalDrbgIvGenerator source;
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final ThreadPoolExecutor refiller = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "cryptvault-iv-pool");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ThreadLocal<Chunk> current = new ThreadLocal<>();
+
+    PooledIvGenerator(int chunks, ThreadLocalDrbgIvGenerator source) {
+        if (chunks < 1) throw new IllegalArgumentException("pool needs at least 1 chunk, got " + chunks);
+        this.chunks = new ArrayBlockingQueue<>(chunks);
+        this.source = source;
+        refiller.allowCoreThreadTimeOut(true);
+        refill();
+    }
+
+    @Override
+    public byte[] nextIv(KeyVersion keyVersion, int length, boolean nonce) {
+        byte[] iv = new byte[length];
+        int written = 0;
+        while (written < length) {
+            Chunk chunk = current.get();
+            if (chunk == null || chunk.remaining() == 0) {
+                current.set(chunk = new Chunk(takeChunk()));
+            }
+            written += chunk.take(iv, written, length - written);
+        }
+        return iv;
+    }
+
+    private byte[] takeChunk() {
+        byte[] chunk = chunks.poll();
+        if (chunks.remainingCapacity() > chunks.size()) refillInBackground();
+        if (chunk != null) return chunk;
+
+        chunk = new byte[CHUNK_SIZE];
+        source.nextBytes(chunk);
+        return chunk;
+    }
+
+    private void refillInBackground() {
+        if (!refilling.compareAndSet(false, true)) return;
+        refiller.execute(() -> {
+            try {
+                refill();
+            } finally {
+                refilling.set(false);
+            }
+        });
+    }
+
+    private void refill() {
+        while (chunks.remainingCapacity() > 0) {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            source.nextBytes(chunk);
+            if (!chunks.offer(chunk)) return;
+        }
+    }
+
+    private static final class Chunk {
+        private final byte[] bytes;
+        private int position = 0;
+
+        Chunk(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int remaining() {
+            return bytes.length - position;
+        }
+
+        int take(byte[] iv, int offset, int length) {
+            int n = Math.min(length, remaining());
+            System.arraycopy(bytes, position, iv, offset, n);
+            position += n;
+            return n;
+        }
+    }
+}
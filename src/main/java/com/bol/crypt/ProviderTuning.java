@@ -0,0 +1,177 @@
+package com.bol.crypt;
+
+import org.springframework.lang.Nullable;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Picks the fastest installed JCA provider for a transformation, by briefly
+ * benchmarking every provider that supports it. Only providers whose output
+ * the default provider decrypts, and vice versa, are considered, so the
+ * choice never affects which blobs can be read.
+ */
+public final class ProviderTuning {
+    private static final int PAYLOAD_SIZE = 4096;
+    private static final long WARMUP_NANOS = 20_000_000;
+    private static final long MEASURE_NANOS = 50_000_000;
+
+    private ProviderTuning() {
+    }
+
+    /**
+     * Benchmarks all installed providers for the given transformation.
+     *
+     * @param transformation The transformation, e.g. {@code "AES/GCM/NoPadding"}.
+     * @param key            A key for the transformation, e.g. the key version's own key.
+     * @return The measurements and the fastest provider.
+     */
+    public static Result tune(String transformation, byte[] key) {
+        SecretKeySpec keySpec = new SecretKeySpec(key, transformation.split("/", 2)[0]);
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        new SecureRandom().nextBytes(payload);
+
+        Map<String, Double> opsPerSecond = new LinkedHashMap<>();
+        Map<String, String> rejected = new LinkedHashMap<>();
+        for (Provider provider : Security.getProviders()) {
+            Cipher encryptor;
+            Cipher decryptor;
+            try {
+                encryptor = Cipher.getInstance(transformation, provider);
+                decryptor = Cipher.getInstance(transformation, provider);
+            } catch (GeneralSecurityException e) {
+                continue; // does not support the transformation at all
+            }
+
+            try {
+                verifyInterop(transformation, keySpec, encryptor, decryptor, payload);
+                roundTrips(encryptor, decryptor, keySpec, payload, WARMUP_NANOS);
+                long count = roundTrips(encryptor, decryptor, keySpec, payload, MEASURE_NANOS);
+                opsPerSecond.put(provider.getName(), count * 1e9 / MEASURE_NANOS);
+            } catch (GeneralSecurityException | RuntimeException e) {
+                rejected.put(provider.getName(), e.toString());
+            }
+        }
+
+        String fastest = opsPerSecond.entrySet().stream()
+                .max(Map.Entry.comparingByValue())
+                .map(Map.Entry::getKey)
+                .orElse(null);
+        return new Result(transformation, fastest, opsPerSecond, rejected);
+    }
+
+    /**
+     * Checks that what {@code provider} encrypts, the default provider
+     * decrypts, and vice versa.
+     */
+    private static void verifyInterop(String transformation, SecretKeySpec keySpec, Cipher encryptor, Cipher decryptor, byte[] payload) throws GeneralSecurityException {
+        Cipher byDefault = Cipher.getInstance(transformation);
+
+        encryptor.init(Cipher.ENCRYPT_MODE, keySpec);
+        byte[] ciphertext = encryptor.doFinal(payload);
+        byDefault.init(Cipher.DECRYPT_MODE, keySpec, transfer(encryptor.getParameters()));
+        if (!Arrays.equals(byDefault.doFinal(ciphertext), payload)) throw new GeneralSecurityException("default provider decrypts to something else");
+
+        byDefault.init(Cipher.ENCRYPT_MODE, keySpec);
+        ciphertext = byDefault.doFinal(payload);
+        decryptor.init(Cipher.DECRYPT_MODE, keySpec, transfer(byDefault.getParameters()));
+        if (!Arrays.equals(decryptor.doFinal(ciphertext), payload)) throw new GeneralSecurityException("decrypts output of default provider to something else");
+    }
+
+    /**
+     * Round-trips {@code payload} for the given amount of time.
+     *
+     * @return The amount of round trips.
+     */
+    private static long roundTrips(Cipher encryptor, Cipher decryptor, SecretKeySpec keySpec, byte[] payload, long nanos) throws GeneralSecurityException {
+        long count = 0;
+        long end = System.nanoTime() + nanos;
+        do {
+            encryptor.init(Cipher.ENCRYPT_MODE, keySpec);
+            byte[] ciphertext = encryptor.doFinal(payload);
+            decryptor.init(Cipher.DECRYPT_MODE, keySpec, encryptor.getParameters());
+            decryptor.doFinal(ciphertext);
+            count++;
+        } while (System.nanoTime() < end);
+        return count;
+    }
+
+    /**
+     * Re-reads encoded parameters the way {@link CryptVault} does.
+     */
+    private static AlgorithmParameters transfer(AlgorithmParameters params) throws GeneralSecurityException {
+        if (params == null) return null;
+        try {
+            AlgorithmParameters copy = AlgorithmParameters.getInstance(params.getAlgorithm());
+            copy.init(params.getEncoded());
+            return copy;
+        } catch (IOException e) {
+            throw new GeneralSecurityException("cannot transfer parameters", e);
+        }
+    }
+
+    /**
+     * The outcome of {@link #tune(String, byte[])}.
+     */
+    public static final class Result {
+        private final String transformation;
+        @Nullable
+        private final String provider;
+        private final Map<String, Double> opsPerSecond;
+        private final Map<String, String> rejected;
+
+        Result(String transformation, @Nullable String provider, Map<String, Double> opsPerSecond, Map<String, String> rejected) {
+            this.transformation = transformation;
+            this.provider = provider;
+            this.opsPerSecond = Collections.unmodifiableMap(opsPerSecond);
+            this.rejected = Collections.unmodifiableMap(rejected);
+        }
+
+        public String getTransformation() {
+            return transformation;
+        }
+
+        /**
+         * The fastest provider, or null if no provider round-trips correctly.
+         */
+        @Nullable
+        public String getProvider() {
+            return provider;
+        }
+
+        /**
+         * Round trips of 4 KiB per second, per provider name.
+         */
+        public Map<String, Double> getOpsPerSecond() {
+            return opsPerSecond;
+        }
+
+        /**
+         * Why providers that support the transformation were not considered,
+         * per provider name.
+         */
+        public Map<String, String> getRejected() {
+            return rejected;
+        }
+
+        @Override
+        public String toString() {
+            return "ProviderTuning.Result{" +
+                    "transformation='" + transformation + '\'' +
+                    ", provider='" + provider + '\'' +
+                    ", opsPerSecond=" + opsPerSecond +
+                    ", rejected=" + rejected +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.bol.crypt;
+
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encrypts and decrypts streams of {@code DataBuffer}s, e.g. WebFlux request
+ * and response bodies, without aggregating them. The blobs use the segmented
+ * format (see {@link CryptVault#encryptingStream(KeyVersion, java.io.OutputStream, int)}),
+ * so they are interchangeable with the other segmented APIs of
+ * {@link CryptVault}.
+ * <p>
+ * Memory per stream is bounded by the segment size: cleartext is buffered
+ * until a segment is full, and every segment is emitted as a buffer of its
+ * own, allocated from the configured {@code DataBufferFactory}. Incoming
+ * buffers are released once consumed. Demand is passed on upstream, so a
+ * slow subscriber slows down the source. Decryption only emits cleartext of
+ * authenticated segments, and fails on a blob that ends prematurely.
+ */
+public class ReactiveCryptVault {
+    private final CryptVault cryptVault;
+    private DataBufferFactory bufferFactory = DefaultDataBufferFactory.sharedInstance;
+
+    public ReactiveCryptVault(CryptVault cryptVault) {
+        this.cryptVault = cryptVault;
+    }
+
+    /**
+     * Where emitted buffers are allocated; defaults to heap buffers. Pass a
+     * pooled factory, e.g. that of the response, to reuse buffers.
+     */
+    public void setBufferFactory(DataBufferFactory bufferFactory) {
+        this.bufferFactory = bufferFactory;
+    }
+
+    /**
+     * Encrypts under the default key version, in segments of 64 KiB. See
+     * {@link #encrypt(KeyVersion, Publisher, int)}.
+     */
+    public Flux<DataBuffer> encrypt(Publisher<? extends DataBuffer> cleartext) {
+        return encrypt(cryptVault.keyVersions.getDefault(), cleartext, Segments.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Encrypts the cleartext into a segmented blob, emitting the header and
+     * then one buffer per segment. Nothing happens until subscription; every
+     * subscription starts a new blob.
+     *
+     * @param keyVersion  The key version to encrypt under.
+     * @param cleartext   The cleartext; its buffers are released.
+     * @param segmentSize Amount of cleartext per segment, in (0, 16 MiB].
+     * @return The encrypted blob.
+     */
+    public Flux<DataBuffer> encrypt(KeyVersion keyVersion, Publisher<? extends DataBuffer> cleartext, int segmentSize) {
+        DataBufferFactory bufferFactory = this.bufferFactory;
+        return Flux.defer(() -> {
+            Segments segments = Segments.forEncryption(cryptVault.keyVersions.planFor(keyVersion), segmentSize);
+            Encryptor encryptor = new Encryptor(segments, cryptVault.cipherPool(), bufferFactory);
+            return Flux.<DataBuffer>just(bufferFactory.wrap(segments.header.clone()))
+                    .concatWith(Flux.from(cleartext).concatMapIterable(encryptor::accept))
+                    .concatWith(Mono.fromSupplier(encryptor::finish))
+                    .doFinally(signal -> encryptor.clear());
+        }).doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+    }
+
+    /**
+     * Decrypts a segmented blob, emitting one buffer of cleartext per
+     * segment. The key version is taken from the blob.
+     *
+     * @param blob The encrypted blob; its buffers are released.
+     * @return The cleartext.
+     */
+    public Flux<DataBuffer> decrypt(Publisher<? extends DataBuffer> blob) {
+        DataBufferFactory bufferFactory = this.bufferFactory;
+        return Flux.defer(() -> {
+            Decryptor decryptor = new Decryptor(cryptVault.keyVersions, cryptVault.cipherPool(), bufferFactory);
+            return Flux.from(blob).concatMapIterable(decryptor::accept)
+                    .concatWith(Mono.fromSupplier(decryptor::finish))
+                    .doFinally(signal -> decryptor.clear());
+        }).doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+    }
+
+    /**
+     * Copies the readable bytes of {@code source} into {@code target}, calling
+     * {@code whenFull} before every byte that does not fit anymore, and
+     * releases {@code source}. On failure, also releases {@code produced}.
+     */
+    private static void drain(DataBuffer source, ByteBuffer target, Runnable whenFull, List<DataBuffer> produced) {
+        try (DataBuffer.ByteBufferIterator it = source.readableByteBuffers()) {
+            while (it.hasNext()) {
+                ByteBuffer bytes = it.next();
+                while (bytes.hasRemaining()) {
+                    if (!target.hasRemaining()) whenFull.run();
+                    int n = Math.min(bytes.remaining(), target.remaining());
+                    target.put(target.position(), bytes, bytes.position(), n);
+                    target.position(target.position() + n);
+                    bytes.position(bytes.position() + n);
+                }
+            }
+        } catch (RuntimeException e) {
+            produced.forEach(DataBufferUtils::release);
+            throw e;
+        } finally {
+            DataBufferUtils.release(source);
+        }
+    }
+
+    /**
+     * Allocates a buffer of {@code capacity} bytes and fills it through
+     * {@code writer}, which returns the amount of bytes written.
+     */
+    private static DataBuffer write(DataBufferFactory bufferFactory, int capacity, ByteBufferWriter writer) {
+        DataBuffer buffer = bufferFactory.allocateBuffer(capacity);
+        try {
+            buffer.ensureWritable(capacity);
+            int written = -1;
+            try (DataBuffer.ByteBufferIterator it = buffer.writableByteBuffers()) {
+                ByteBuffer target = it.next();
+                if (target.remaining() >= capacity) written = writer.write(target);
+            }
+            if (written >= 0) {
+                buffer.writePosition(buffer.writePosition() + written);
+            } else {
+                // not contiguous, e.g. a composite buffer
+                ByteBuffer heap = ByteBuffer.allocate(capacity);
+                writer.write(heap);
+                buffer.write(heap.flip());
+            }
+            return buffer;
+        } catch (RuntimeException e) {
+            DataBufferUtils.release(buffer);
+            throw e;
+        }
+    }
+
+    private interface ByteBufferWriter {
+        int write(ByteBuffer target);
+    }
+
+    private static final class Encryptor {
+        private final Segments segments;
+        private final CipherPool cipherPool;
+        private final DataBufferFactory bufferFactory;
+        private final ByteBuffer cleartext;
+        private long index = 0;
+
+        Encryptor(Segments segments, CipherPool cipherPool, DataBufferFactory bufferFactory) {
+            this.segments = segments;
+            this.cipherPool = cipherPool;
+            this.bufferFactory = bufferFactory;
+            this.cleartext = ByteBuffer.allocate(segments.segmentSize);
+        }
+
+        List<DataBuffer> accept(DataBuffer buffer) {
+            List<DataBuffer> encrypted = new ArrayList<>(1);
+            // a full segment is only encrypted once more data arrives; until then it might be the final one
+            drain(buffer, cleartext, () -> encrypted.add(segment(false)), encrypted);
+            return encrypted;
+        }
+
+        DataBuffer finish() {
+            return segment(true);
+        }
+
+        private DataBuffer segment(boolean last) {
+            cleartext.flip();
+            long segmentIndex = index++;
+            DataBuffer segment = write(bufferFactory, cleartext.remaining() + Segments.TAG_LENGTH,
+                    target -> segments.encrypt(cipherPool, segmentIndex, last, cleartext, target));
+            cleartext.clear();
+            return segment;
+        }
+
+        void clear() {
+            Arrays.fill(cleartext.array(), (byte) 0);
+        }
+    }
+
+    private static final class Decryptor {
+        private final KeyVersions keyVersions;
+        private final CipherPool cipherPool;
+        private final DataBufferFactory bufferFactory;
+        private final ByteBuffer header = ByteBuffer.allocate(Segments.HEADER_LENGTH);
+        private Segments segments;
+        private ByteBuffer ciphertext;
+        private long index = 0;
+
+        Decryptor(KeyVersions keyVersions, CipherPool cipherPool, DataBufferFactory bufferFactory) {
+            this.keyVersions = keyVersions;
+            this.cipherPool = cipherPool;
+            this.bufferFactory = bufferFactory;
+        }
+
+        List<DataBuffer> accept(DataBuffer buffer) {
+            List<DataBuffer> decrypted = new ArrayList<>(1);
+            if (segments == null && !drainHeader(buffer)) return decrypted;
+            // a full segment is only decrypted once more data arrives; until then it might be the final one
+            drain(buffer, ciphertext, () -> decrypted.add(segment(false)), decrypted);
+            return decrypted;
+        }
+
+        /**
+         * @return Whether the header is complete; if not, {@code buffer} is released.
+         */
+        private boolean drainHeader(DataBuffer buffer) {
+            try {
+                int n = Math.min(buffer.readableByteCount(), header.remaining());
+                buffer.read(header.array(), header.position(), n);
+                header.position(header.position() + n);
+                if (!header.hasRemaining()) {
+                    segments = Segments.forDecryption(keyVersions, header.array());
+                    ciphertext = ByteBuffer.allocate(segments.segmentSize + Segments.TAG_LENGTH);
+                    return true;
+                }
+            } catch (RuntimeException e) {
+                DataBufferUtils.release(buffer);
+                throw e;
+            }
+            DataBufferUtils.release(buffer);
+            return false;
+        }
+
+        DataBuffer finish() {
+            if (segments == null) throw new CryptOperationException("encrypted stream ends within its header");
+            return segment(true);
+        }
+
+        private DataBuffer segment(boolean last) {
+            ciphertext.flip();
+            long segmentIndex = index++;
+            DataBuffer segment = write(bufferFactory, segments.segmentSize,
+                    target -> segments.decrypt(cipherPool, segmentIndex, last, ciphertext, target));
+            ciphertext.clear();
+            return segment;
+        }
+
+        void clear() {
+            if (ciphertext != null) Arrays.fill(ciphertext.array(), (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.bol.crypt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Decrypts a segmented blob (see {@link Segments}) read from the underlying
+ * stream. Memory use is bounded by the segment size, regardless of the size
+ * of the blob.
+ * <p>
+ * Cleartext is only handed out once its segment has been authenticated. A
+ * blob that ends before its final segment fails with a
+ * {@link CryptOperationException}, so truncation cannot go unnoticed.
+ */
+class SegmentedDecryptingInputStream extends InputStream {
+    private final InputStream in;
+    private final KeyVersions keyVersions;
+    private final CipherPool cipherPool;
+    private Segments segments;
+    private ByteBuffer ciphertext;
+    private ByteBuffer cleartext;
+    private long index = 0;
+    private boolean lastSegmentRead = false;
+    /**
+     * The byte read after the current segment, to find out whether that
+     * segment was the final one; -1 when there is none.
+     */
+    private int lookahead = -1;
+
+    SegmentedDecryptingInputStream(InputStream in, KeyVersions keyVersions, CipherPool cipherPool) {
+        this.in = in;
+        this.keyVersions = keyVersions;
+        this.cipherPool = cipherPool;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (segments == null) readHeader();
+
+        while (!cleartext.hasRemaining()) {
+            if (lastSegmentRead) return -1;
+            readSegment();
+        }
+
+        int n = Math.min(len, cleartext.remaining());
+        cleartext.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return cleartext == null ? 0 : cleartext.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void readHeader() throws IOException {
+        byte[] header = new byte[Segments.HEADER_LENGTH];
+        if (readFully(header, 0, header.length) < header.length) {
+            throw new CryptOperationException("encrypted stream ends within its header");
+        }
+        segments = Segments.forDecryption(keyVersions, header);
+        ciphertext = ByteBuffer.allocate(segments.segmentSize + Segments.TAG_LENGTH);
+        cleartext = ByteBuffer.allocate(segments.segmentSize);
+        cleartext.flip();
+    }
+
+    private void readSegment() throws IOException {
+        byte[] buffer = ciphertext.array();
+        int length = 0;
+        if (lookahead >= 0) {
+            buffer[length++] = (byte) lookahead;
+        }
+        length += readFully(buffer, length, buffer.length - length);
+
+        lookahead = length == buffer.length ? in.read() : -1;
+        lastSegmentRead = lookahead < 0;
+
+        ciphertext.clear().limit(length);
+        cleartext.clear();
+        segments.decrypt(cipherPool, index++, lastSegmentRead, ciphertext, cleartext);
+        cleartext.flip();
+    }
+
+    private int readFully(byte[] b, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = in.read(b, off + total, len - total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,85 @@
+package com.bol.crypt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encrypts everything written to it into a segmented blob (see
+ * {@link Segments}) on the underlying stream. Memory use is bounded by the
+ * segment size, regardless of how much is written.
+ * <p>
+ * The blob is only complete once this stream is closed; closing also closes
+ * the underlying stream.
+ */
+class SegmentedEncryptingOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final Segments segments;
+    private final CipherPool cipherPool;
+    private final ByteBuffer cleartext;
+    private final ByteBuffer ciphertext;
+    private long index = 0;
+    private boolean headerWritten = false;
+    private boolean closed = false;
+
+    SegmentedEncryptingOutputStream(OutputStream out, Segments segments, CipherPool cipherPool) {
+        this.out = out;
+        this.segments = segments;
+        this.cipherPool = cipherPool;
+        this.cleartext = ByteBuffer.allocate(segments.segmentSize);
+        this.ciphertext = ByteBuffer.allocate(segments.segmentSize + Segments.TAG_LENGTH);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("stream is closed");
+        while (len > 0) {
+            // a full segment is only written once more data arrives; until then it might be the final one
+            if (!cleartext.hasRemaining()) writeSegment(false);
+
+            int n = Math.min(len, cleartext.remaining());
+            cleartext.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Flushes the underlying stream. Cleartext of a segment that is not yet
+     * full stays buffered until it is, or until this stream is closed.
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            writeSegment(true);
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeSegment(boolean last) throws IOException {
+        if (!headerWritten) {
+            out.write(segments.header);
+            headerWritten = true;
+        }
+
+        cleartext.flip();
+        ciphertext.clear();
+        segments.encrypt(cipherPool, index++, last, cleartext, ciphertext);
+        out.write(ciphertext.array(), 0, ciphertext.position());
+        cleartext.clear();
+    }
+}
@@ -0,0 +1,198 @@
+package com.bol.crypt;
+
+import org.springframework.lang.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
+/**
+ * Encrypts and decrypts files into and from segmented blobs (see
+ * {@link Segments}) through memory-mapped windows of both files, so that
+ * neither file is ever held on the heap, and files are not limited to 2 GB.
+ * Segments are independent, so those in a window can be processed in
+ * parallel, and a range of cleartext can be decrypted from just the segments
+ * that hold it.
+ */
+final class SegmentedFiles {
+    /**
+     * Amount of each file mapped at a time, rounded down to whole segments.
+     */
+    private static final long WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private SegmentedFiles() {
+    }
+
+    /**
+     * @param pool The pool to process segments on, or null to process them on the calling thread.
+     * @return The size of the encrypted file.
+     */
+    static long encrypt(Segments segments, Path in, Path out, CipherPool cipherPool, @Nullable ForkJoinPool pool) throws IOException {
+        checkDistinct(in, out);
+        try (FileChannel source = FileChannel.open(in, StandardOpenOption.READ)) {
+            try (FileChannel target = create(out)) {
+                return encrypt(segments, source, target, cipherPool, pool);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(out);
+                throw e;
+            }
+        }
+    }
+
+    private static long encrypt(Segments segments, FileChannel source, FileChannel target, CipherPool cipherPool, @Nullable ForkJoinPool pool) throws IOException {
+        long cleartextSize = source.size();
+        long blobSize = segments.blobSize(cleartextSize);
+        long segmentCount = segments.segmentCount(cleartextSize);
+        target.write(ByteBuffer.wrap(segments.header), 0);
+
+        int segmentSize = segments.segmentSize;
+        int segmentLength = segmentSize + Segments.TAG_LENGTH;
+        long perWindow = segmentsPerWindow(segmentLength);
+        for (long first = 0; first < segmentCount; first += perWindow) {
+            long firstSegment = first;
+            int count = (int) Math.min(perWindow, segmentCount - first);
+            long cleartextOffset = first * segmentSize;
+            long blobOffset = Segments.HEADER_LENGTH + first * segmentLength;
+            MappedByteBuffer cleartext = source.map(FileChannel.MapMode.READ_ONLY, cleartextOffset, Math.min((long) count * segmentSize, cleartextSize - cleartextOffset));
+            MappedByteBuffer blob = target.map(FileChannel.MapMode.READ_WRITE, blobOffset, Math.min((long) count * segmentLength, blobSize - blobOffset));
+            forEachSegment(pool, count, i -> {
+                long index = firstSegment + i;
+                int from = i * segmentSize;
+                int length = Math.min(segmentSize, cleartext.capacity() - from);
+                segments.encrypt(cipherPool, index, index == segmentCount - 1,
+                        cleartext.slice(from, length),
+                        blob.slice(i * segmentLength, length + Segments.TAG_LENGTH));
+            });
+        }
+        return blobSize;
+    }
+
+    /**
+     * Decrypts a whole file. The output is deleted when any segment fails
+     * authentication, so no unauthenticated cleartext is left behind.
+     *
+     * @param pool The pool to process segments on, or null to process them on the calling thread.
+     * @return The size of the decrypted file.
+     */
+    static long decrypt(KeyVersions keyVersions, Path in, Path out, CipherPool cipherPool, @Nullable ForkJoinPool pool) throws IOException {
+        checkDistinct(in, out);
+        try (FileChannel source = FileChannel.open(in, StandardOpenOption.READ)) {
+            Segments segments = readHeader(keyVersions, source);
+            try (FileChannel target = create(out)) {
+                return decrypt(segments, source, target, cipherPool, pool);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(out);
+                throw e;
+            }
+        }
+    }
+
+    private static long decrypt(Segments segments, FileChannel source, FileChannel target, CipherPool cipherPool, @Nullable ForkJoinPool pool) throws IOException {
+        long blobSize = source.size();
+        long segmentCount = segments.segmentCountOfBlob(blobSize);
+        long cleartextSize = segments.cleartextSize(blobSize);
+
+        int segmentSize = segments.segmentSize;
+        int segmentLength = segmentSize + Segments.TAG_LENGTH;
+        long perWindow = segmentsPerWindow(segmentLength);
+        for (long first = 0; first < segmentCount; first += perWindow) {
+            long firstSegment = first;
+            int count = (int) Math.min(perWindow, segmentCount - first);
+            long blobOffset = Segments.HEADER_LENGTH + first * segmentLength;
+            long cleartextOffset = first * segmentSize;
+            MappedByteBuffer blob = source.map(FileChannel.MapMode.READ_ONLY, blobOffset, Math.min((long) count * segmentLength, blobSize - blobOffset));
+            MappedByteBuffer cleartext = target.map(FileChannel.MapMode.READ_WRITE, cleartextOffset, Math.min((long) count * segmentSize, cleartextSize - cleartextOffset));
+            forEachSegment(pool, count, i -> {
+                long index = firstSegment + i;
+                int from = i * segmentLength;
+                int length = Math.min(segmentLength, blob.capacity() - from);
+                segments.decrypt(cipherPool, index, index == segmentCount - 1,
+                        blob.slice(from, length),
+                        cleartext.slice(i * segmentSize, length - Segments.TAG_LENGTH));
+            });
+        }
+        return cleartextSize;
+    }
+
+    /**
+     * Decrypts {@code length} bytes of cleartext starting at {@code offset},
+     * mapping and decrypting only the segments that hold them.
+     */
+    static byte[] decryptRange(KeyVersions keyVersions, Path in, long offset, int length, CipherPool cipherPool) throws IOException {
+        if (offset < 0 || length < 0) throw new IllegalArgumentException("offset and length must not be negative");
+        try (FileChannel source = FileChannel.open(in, StandardOpenOption.READ)) {
+            Segments segments = readHeader(keyVersions, source);
+            long blobSize = source.size();
+            long segmentCount = segments.segmentCountOfBlob(blobSize);
+            long cleartextSize = segments.cleartextSize(blobSize);
+            if (offset > cleartextSize - length) {
+                throw new IllegalArgumentException(String.format("range of %d bytes at %d exceeds the %d bytes of cleartext", length, offset, cleartextSize));
+            }
+
+            if (length == 0) return new byte[0];
+            int segmentSize = segments.segmentSize;
+            int segmentLength = segmentSize + Segments.TAG_LENGTH;
+            long firstSegment = offset / segmentSize;
+            long lastSegment = (offset + length - 1) / segmentSize;
+            long blobOffset = Segments.HEADER_LENGTH + firstSegment * segmentLength;
+            long span = Math.min((lastSegment - firstSegment + 1) * segmentLength, blobSize - blobOffset);
+            if (span > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(String.format("range of %d bytes at %d spans %d bytes of segments, more than can be mapped at once; decrypt it in parts", length, offset, span));
+            }
+            MappedByteBuffer blob = source.map(FileChannel.MapMode.READ_ONLY, blobOffset, span);
+
+            byte[] range = new byte[length];
+            byte[] segment = new byte[segmentSize];
+            try {
+                int copied = 0;
+                for (long index = firstSegment; index <= lastSegment; index++) {
+                    int from = (int) ((index - firstSegment) * segmentLength);
+                    int decrypted = segments.decrypt(cipherPool, index, index == segmentCount - 1,
+                            blob.slice(from, Math.min(segmentLength, blob.capacity() - from)), ByteBuffer.wrap(segment));
+                    int start = index == firstSegment ? (int) (offset - firstSegment * segmentSize) : 0;
+                    int n = Math.min(decrypted - start, length - copied);
+                    System.arraycopy(segment, start, range, copied, n);
+                    copied += n;
+                }
+            } finally {
+                Arrays.fill(segment, (byte) 0);
+            }
+            return range;
+        }
+    }
+
+    private static Segments readHeader(KeyVersions keyVersions, FileChannel source) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Segments.HEADER_LENGTH);
+        while (header.hasRemaining()) {
+            if (source.read(header, header.position()) < 0) throw new CryptOperationException("encrypted file is truncated or not a segmented blob");
+        }
+        return Segments.forDecryption(keyVersions, header.array());
+    }
+
+    private static FileChannel create(Path out) throws IOException {
+        return FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static long segmentsPerWindow(int segmentLength) {
+        return Math.max(1, WINDOW_SIZE / segmentLength);
+    }
+
+    private static void checkDistinct(Path in, Path out) throws IOException {
+        if (Files.exists(out) && Files.isSameFile(in, out)) throw new IllegalArgumentException("cannot encrypt or decrypt a file in place: " + in);
+    }
+
+    private static void forEachSegment(@Nullable ForkJoinPool pool, int count, IntConsumer action) {
+        if (pool == null) {
+            for (int i = 0; i < count; i++) action.accept(i);
+        } else {
+            ParallelSegments.forEachSegment(pool, count, action);
+        }
+    }
+}
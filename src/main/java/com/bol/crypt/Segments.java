@@ -0,0 +1,246 @@
+package com.bol.crypt;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+
+/**
+ * The segmented blob format (proto version 1), used to encrypt payloads in
+ * fixed-size pieces so they can be streamed and processed in parallel.
+ * <pre>
+ * 0         8         16                  48                 176          232
+ * +---------+---------+-------------------+------------------+------------+----------+-----+----------+
+ * |proto    |key      |segment size       |salt              |nonce prefix|segment 0 | ... |segment n |
+ * |version  |version  |(big endian)       |                  |            |          |     |          |
+ * |8        |8        |32                 |128               |56          |          |     |          |
+ * +---------+---------+-------------------+------------------+------------+----------+-----+----------+
+ * </pre>
+ * Every segment is the AEAD encryption of exactly {@code segment size}
+ * cleartext bytes followed by a 16-byte tag, except for the final segment,
+ * which holds whatever is left (possibly nothing). The segments are
+ * encrypted with a key derived (HKDF-SHA256) from the key version's key, the
+ * salt and the first three header fields, under the nonce
+ * {@code nonce prefix || segment index (32, big endian) || final flag (8)}.
+ * Reordering, dropping, duplicating or truncating segments therefore all
+ * fail authentication.
+ * <p>
+ * The AEAD follows from the key version's algorithm: AES/GCM/NoPadding for
+ * AES keys (whatever mode the key version itself specifies), and
+ * ChaCha20-Poly1305 for ChaCha20 keys.
+ */
+final class Segments {
+    static final byte PROTO_VERSION = 1;
+    static final int SALT_LENGTH = 16;
+    static final int NONCE_PREFIX_LENGTH = 7;
+    static final int NONCE_LENGTH = NONCE_PREFIX_LENGTH + 4 + 1;
+    static final int TAG_LENGTH = 16;
+    static final int HEADER_LENGTH = 1 + 1 + 4 + SALT_LENGTH + NONCE_PREFIX_LENGTH;
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    /**
+     * Caps the buffers a decryptor allocates based on an untrusted header.
+     */
+    static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final byte[] INFO = "cryptvault segmented".getBytes(StandardCharsets.US_ASCII);
+    private static final SecureRandom random = new SecureRandom();
+
+    final KeyVersion keyVersion;
+    final int segmentSize;
+    final byte[] header;
+    private final String transformation;
+    /**
+     * The provider pinned by the key version, or null for the default.
+     */
+    private final Provider provider;
+    private final SecretKeySpec segmentKey;
+
+    private Segments(CipherPlan plan, int segmentSize, byte[] header) {
+        KeyVersion keyVersion = plan.keyVersion;
+        String algorithm = plan.algorithm;
+        this.keyVersion = keyVersion;
+        this.provider = plan.provider;
+        this.segmentSize = segmentSize;
+        this.header = header;
+
+        byte[] info = new byte[INFO.length + 1 + 1 + 4];
+        System.arraycopy(INFO, 0, info, 0, INFO.length);
+        System.arraycopy(header, 0, info, INFO.length, 1 + 1 + 4);
+        byte[] salt = new byte[SALT_LENGTH];
+        System.arraycopy(header, 1 + 1 + 4, salt, 0, SALT_LENGTH);
+
+        if ("AES".equalsIgnoreCase(algorithm)) {
+            this.transformation = "AES/GCM/NoPadding";
+            this.segmentKey = new SecretKeySpec(derive(keyVersion.key, salt, info, keyVersion.key.length), "AES");
+        } else if (algorithm != null && algorithm.toUpperCase().startsWith("CHACHA20")) {
+            this.transformation = "ChaCha20-Poly1305";
+            this.segmentKey = new SecretKeySpec(derive(keyVersion.key, salt, info, 32), "ChaCha20");
+        } else {
+            throw new CryptOperationException("segmented encryption needs an AES or ChaCha20 key; key version " + keyVersion.version + " uses " + algorithm);
+        }
+    }
+
+    /**
+     * Starts a new segmented blob with a fresh salt and nonce prefix.
+     */
+    static Segments forEncryption(CipherPlan plan, int segmentSize) {
+        if (plan.legacy)
+            throw new CryptOperationException("cannot encrypt with legacy key version; hint: create new key version");
+        if (segmentSize < 1 || segmentSize > MAX_SEGMENT_SIZE)
+            throw new IllegalArgumentException("segment size must be in [1, " + MAX_SEGMENT_SIZE + "], got " + segmentSize);
+
+        byte[] header = new byte[HEADER_LENGTH];
+        ByteBuffer.wrap(header)
+                .put(PROTO_VERSION)
+                .put((byte) plan.keyVersion.version)
+                .putInt(segmentSize);
+        byte[] saltAndNoncePrefix = new byte[SALT_LENGTH + NONCE_PREFIX_LENGTH];
+        random.nextBytes(saltAndNoncePrefix);
+        System.arraycopy(saltAndNoncePrefix, 0, header, 1 + 1 + 4, saltAndNoncePrefix.length);
+
+        return new Segments(plan, segmentSize, header);
+    }
+
+    /**
+     * Resumes a segmented blob from its header.
+     *
+     * @param header At least {@link #HEADER_LENGTH} bytes; only those are used.
+     */
+    static Segments forDecryption(KeyVersions keyVersions, byte[] header) {
+        if ((header[0] & 0xFF) != PROTO_VERSION)
+            throw new CryptOperationException("not a segmented blob; proto version is " + (header[0] & 0xFF));
+
+        int blobKeyVersion = header[1] & 0xFF;
+        CipherPlan plan = keyVersions.plan(blobKeyVersion);
+        if (plan == null) throw new CryptOperationException("key version in encrypted blob is unknown: " + blobKeyVersion);
+
+        int segmentSize = ByteBuffer.wrap(header, 2, 4).getInt();
+        if (segmentSize < 1 || segmentSize > MAX_SEGMENT_SIZE)
+            throw new CryptOperationException("segment size in encrypted blob is out of range: " + segmentSize);
+
+        byte[] ownHeader = new byte[HEADER_LENGTH];
+        System.arraycopy(header, 0, ownHeader, 0, HEADER_LENGTH);
+        return new Segments(plan, segmentSize, ownHeader);
+    }
+
+    /**
+     * Amount of segments needed for the given amount of cleartext. There is
+     * always at least one (final) segment.
+     */
+    long segmentCount(long cleartextLength) {
+        return cleartextLength == 0 ? 1 : (cleartextLength + segmentSize - 1) / segmentSize;
+    }
+
+    /**
+     * Size of the complete blob, header included, for the given amount of
+     * cleartext.
+     */
+    long blobSize(long cleartextLength) {
+        return HEADER_LENGTH + cleartextLength + segmentCount(cleartextLength) * TAG_LENGTH;
+    }
+
+    /**
+     * Encrypts the remaining bytes of {@code cleartext} as segment
+     * {@code index}. Non-final segments must hold exactly
+     * {@code segmentSize} bytes.
+     *
+     * @return The number of bytes written to {@code ciphertext}.
+     */
+    int encrypt(CipherPool cipherPool, long index, boolean last, ByteBuffer cleartext, ByteBuffer ciphertext) {
+        if (!last && cleartext.remaining() != segmentSize)
+            throw new IllegalArgumentException("non-final segment must hold exactly " + segmentSize + " bytes");
+        try {
+            Cipher cipher = cipherPool.init(transformation, provider, Cipher.ENCRYPT_MODE, segmentKey, nonce(index, last));
+            return cipher.doFinal(cleartext, ciphertext);
+        } catch (GeneralSecurityException e) {
+            throw new CryptOperationException("JCA exception caught while encrypting segment " + index + " with key version " + keyVersion.version, e);
+        }
+    }
+
+    /**
+     * Decrypts the remaining bytes of {@code ciphertext} as segment
+     * {@code index}.
+     *
+     * @return The number of bytes written to {@code cleartext}.
+     */
+    int decrypt(CipherPool cipherPool, long index, boolean last, ByteBuffer ciphertext, ByteBuffer cleartext) {
+        if (ciphertext.remaining() < TAG_LENGTH || ciphertext.remaining() > segmentSize + TAG_LENGTH || (!last && ciphertext.remaining() != segmentSize + TAG_LENGTH))
+            throw new CryptOperationException("segment " + index + " has an invalid length of " + ciphertext.remaining() + " bytes; blob is truncated or corrupt");
+        try {
+            Cipher cipher = cipherPool.init(transformation, provider, Cipher.DECRYPT_MODE, segmentKey, nonce(index, last));
+            return cipher.doFinal(ciphertext, cleartext);
+        } catch (AEADBadTagException e) {
+            throw new CryptOperationException("segment " + index + " failed authentication; blob is truncated, reordered or corrupt", e);
+        } catch (GeneralSecurityException e) {
+            throw new CryptOperationException("JCA exception caught while decrypting segment " + index + " with key version " + keyVersion.version, e);
+        }
+    }
+
+    /**
+     * Amount of cleartext in a complete blob of the given size, header
+     * included.
+     */
+    long cleartextSize(long blobSize) {
+        return blobSize - HEADER_LENGTH - segmentCountOfBlob(blobSize) * TAG_LENGTH;
+    }
+
+    /**
+     * Amount of segments in a complete blob of the given size, header
+     * included.
+     */
+    long segmentCountOfBlob(long blobSize) {
+        long body = blobSize - HEADER_LENGTH;
+        long segmentLength = segmentSize + TAG_LENGTH;
+        long segmentCount = Math.max(1, (body + segmentLength - 1) / segmentLength);
+        if (body - (segmentCount - 1) * segmentLength < TAG_LENGTH)
+            throw new CryptOperationException("segmented blob is truncated or corrupt");
+        return segmentCount;
+    }
+
+    /**
+     * Decrypts all segments held by the remaining bytes of {@code blob}, the
+     * header already consumed, one after the other.
+     *
+     * @return The number of bytes written to {@code cleartext}.
+     */
+    int decryptAll(CipherPool cipherPool, ByteBuffer blob, ByteBuffer cleartext) {
+        int start = cleartext.position();
+        int end = blob.limit();
+        for (long index = 0; ; index++) {
+            boolean last = end - blob.position() <= segmentSize + TAG_LENGTH;
+            blob.limit(last ? end : blob.position() + segmentSize + TAG_LENGTH);
+            decrypt(cipherPool, index, last, blob, cleartext);
+            blob.limit(end);
+            if (last) return cleartext.position() - start;
+        }
+    }
+
+    private AlgorithmParameterSpec nonce(long index, boolean last) {
+        if (index < 0 || index > 0xFFFFFFFFL) throw new CryptOperationException("too many segments: " + index);
+
+        byte[] nonce = new byte[NONCE_LENGTH];
+        System.arraycopy(header, HEADER_LENGTH - NONCE_PREFIX_LENGTH, nonce, 0, NONCE_PREFIX_LENGTH);
+        nonce[NONCE_PREFIX_LENGTH] = (byte) (index >>> 24);
+        nonce[NONCE_PREFIX_LENGTH + 1] = (byte) (index >>> 16);
+        nonce[NONCE_PREFIX_LENGTH + 2] = (byte) (index >>> 8);
+        nonce[NONCE_PREFIX_LENGTH + 3] = (byte) index;
+        nonce[NONCE_LENGTH - 1] = (byte) (last ? 1 : 0);
+
+        return transformation.startsWith("AES") ? new GCMParameterSpec(TAG_LENGTH * 8, nonce) : new IvParameterSpec(nonce);
+    }
+
+    private static byte[] derive(byte[] key, byte[] salt, byte[] info, int length) {
+        try {
+            return Hkdf.derive(key, salt, info, length);
+        } catch (GeneralSecurityException e) {
+            throw new CryptOperationException("JCA exception caught while deriving segment key", e);
+        }
+    }
+}
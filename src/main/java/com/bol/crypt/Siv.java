@@ -0,0 +1,253 @@
+package com.bol.crypt;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+
+/**
+ * The deterministic blob format (proto version 5), for key versions with
+ * transformation {@code AES/SIV/NoPadding}:
+ * <pre>
+ * 0         8         16                  144
+ * +---------+---------+-------------------+--------------------+
+ * |proto    |key      |synthetic IV       |ciphertext          |
+ * |version  |version  |                   |            ...     |
+ * |8        |8        |128                |[0,inf)             |
+ * +---------+---------+-------------------+--------------------+
+ * </pre>
+ * The body is AES-SIV (RFC 5297) of the cleartext, with the first two header
+ * bytes as associated data. Equal cleartexts under the same key version
+ * therefore encrypt to equal blobs, which makes encrypted values usable as
+ * lookup keys. That also reveals which values are equal; nothing else leaks,
+ * and the synthetic IV authenticates both header and cleartext.
+ * <p>
+ * The JDK has no AES-SIV, so it is built from AES/ECB (for CMAC) and
+ * AES/CTR. The key is twice the AES key size: the first half keys the CMAC,
+ * the second half the CTR encryption.
+ */
+final class Siv {
+    static final byte PROTO_VERSION = 5;
+    static final int HEADER_LENGTH = 2;
+    static final int IV_LENGTH = 16;
+
+    private static final int BLOCK = 16;
+    private static final String ECB = "AES/ECB/NoPadding";
+    private static final String CTR = "AES/CTR/NoPadding";
+
+    private final int version;
+    private final Provider provider;
+    private final SecretKeySpec macKey;
+    private final SecretKeySpec ctrKey;
+    /**
+     * The CMAC subkeys.
+     */
+    private final byte[] k1, k2;
+    /**
+     * S2V state after the zero block and the associated data, which are the
+     * same for every blob of this key version.
+     */
+    private final byte[] headerState;
+
+    /**
+     * @param provider The provider of the AES ciphers, or null for the default.
+     * @throws IllegalArgumentException when the key is not 32, 48 or 64 bytes long
+     */
+    Siv(int version, byte[] key, Provider provider) {
+        this(version, key, provider, new byte[]{PROTO_VERSION, (byte) version});
+    }
+
+    /**
+     * @param associatedData Authenticated along with every cleartext; the header, except in tests.
+     */
+    Siv(int version, byte[] key, Provider provider, byte[] associatedData) {
+        if (key.length != 32 && key.length != 48 && key.length != 64)
+            throw new IllegalArgumentException(String.format("AES-SIV key of key version %d should be 32, 48 or 64 bytes long, was %d", version, key.length));
+        this.version = version;
+        this.provider = provider;
+        this.macKey = new SecretKeySpec(key, 0, key.length / 2, "AES");
+        this.ctrKey = new SecretKeySpec(key, key.length / 2, key.length / 2, "AES");
+
+        try {
+            Cipher ecb = provider == null ? Cipher.getInstance(ECB) : Cipher.getInstance(ECB, provider);
+            ecb.init(Cipher.ENCRYPT_MODE, macKey);
+            this.k1 = dbl(ecb.doFinal(new byte[BLOCK]));
+            this.k2 = dbl(k1);
+
+            byte[] d = cmac(ecb, ByteBuffer.wrap(new byte[BLOCK]), null);
+            byte[] header = cmac(ecb, ByteBuffer.wrap(associatedData), null);
+            this.headerState = xor(dbl(d), header);
+        } catch (GeneralSecurityException e) {
+            throw new CryptOperationException("JCA exception caught while preparing AES-SIV for key version " + version, e);
+        }
+    }
+
+    static boolean isSiv(String transformation) {
+        return transformation != null && transformation.equalsIgnoreCase("AES/SIV/NoPadding");
+    }
+
+    static int encryptedSize(int cleartextLength) {
+        return HEADER_LENGTH + IV_LENGTH + cleartextLength;
+    }
+
+    byte[] encrypt(CipherPool cipherPool, byte[] cleartext) {
+        byte[] blob = new byte[encryptedSize(cleartext.length)];
+        encrypt(cipherPool, ByteBuffer.wrap(cleartext), ByteBuffer.wrap(blob));
+        return blob;
+    }
+
+    /**
+     * Encrypts the remaining bytes of {@code cleartext} into {@code blob}.
+     *
+     * @return The number of bytes written to {@code blob}.
+     */
+    int encrypt(CipherPool cipherPool, ByteBuffer cleartext, ByteBuffer blob) {
+        int needed = encryptedSize(cleartext.remaining());
+        if (blob.remaining() < needed) {
+            throw new CryptOperationException(String.format("buffer too small to hold encrypted blob: %d bytes needed, %d remaining", needed, blob.remaining()));
+        }
+        try {
+            byte[] iv = s2v(cipherPool, cleartext.duplicate());
+            blob.put(PROTO_VERSION).put((byte) version).put(iv);
+            cipherPool.init(CTR, provider, Cipher.ENCRYPT_MODE, ctrKey, counter(iv)).doFinal(cleartext, blob);
+            return needed;
+        } catch (NoSuchPaddingException | NoSuchAlgorithmException | InvalidKeyException | InvalidAlgorithmParameterException |
+                 IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+            throw new CryptOperationException("JCA exception caught while encrypting with key version " + version, e);
+        }
+    }
+
+    byte[] decrypt(CipherPool cipherPool, byte[] blob) {
+        if (blob.length < HEADER_LENGTH + IV_LENGTH) throw new CryptOperationException("deterministic blob is truncated");
+        byte[] cleartext = new byte[blob.length - HEADER_LENGTH - IV_LENGTH];
+        decrypt(cipherPool, ByteBuffer.wrap(blob), ByteBuffer.wrap(cleartext));
+        return cleartext;
+    }
+
+    /**
+     * Decrypts the blob held by the remaining bytes of {@code blob} into
+     * {@code cleartext}. On failure, nothing is consumed, and no cleartext is
+     * left behind in {@code cleartext}.
+     *
+     * @return The number of bytes written to {@code cleartext}.
+     */
+    int decrypt(CipherPool cipherPool, ByteBuffer blob, ByteBuffer cleartext) {
+        int start = blob.position();
+        int length = blob.remaining() - HEADER_LENGTH - IV_LENGTH;
+        if (length < 0) throw new CryptOperationException("deterministic blob is truncated");
+        if (cleartext.remaining() < length) {
+            throw new CryptOperationException(String.format("buffer too small to hold cleartext: %d bytes needed, %d remaining", length, cleartext.remaining()));
+        }
+
+        byte[] iv = new byte[IV_LENGTH];
+        blob.get(start + HEADER_LENGTH, iv);
+        int cleartextStart = cleartext.position();
+        try {
+            blob.position(start + HEADER_LENGTH + IV_LENGTH);
+            cipherPool.init(CTR, provider, Cipher.DECRYPT_MODE, ctrKey, counter(iv)).doFinal(blob, cleartext);
+
+            ByteBuffer recovered = cleartext.duplicate().limit(cleartextStart + length).position(cleartextStart);
+            if (!MessageDigest.isEqual(iv, s2v(cipherPool, recovered))) {
+                throw new CryptOperationException("deterministic blob failed authentication under key version " + version);
+            }
+            return length;
+        } catch (NoSuchPaddingException | NoSuchAlgorithmException | InvalidKeyException | InvalidAlgorithmParameterException |
+                 IllegalBlockSizeException | BadPaddingException | ShortBufferException | RuntimeException e) {
+            for (int i = cleartextStart; i < cleartext.position(); i++) cleartext.put(i, (byte) 0);
+            cleartext.position(cleartextStart);
+            blob.position(start);
+            if (e instanceof CryptOperationException) throw (CryptOperationException) e;
+            throw new CryptOperationException("JCA exception caught while decrypting with key version " + version, e);
+        }
+    }
+
+    /**
+     * S2V of the header and the remaining bytes of {@code cleartext}, which
+     * are not consumed.
+     */
+    private byte[] s2v(CipherPool cipherPool, ByteBuffer cleartext) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException,
+            InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException, ShortBufferException {
+        Cipher ecb = cipherPool.init(ECB, provider, Cipher.ENCRYPT_MODE, macKey, (AlgorithmParameterSpec) null);
+        if (cleartext.remaining() >= BLOCK) return cmac(ecb, cleartext, headerState);
+
+        byte[] t = dbl(headerState);
+        int n = cleartext.remaining();
+        for (int i = 0; i < n; i++) t[i] ^= cleartext.get(cleartext.position() + i);
+        t[n] ^= (byte) 0x80;
+        return cmac(ecb, ByteBuffer.wrap(t), null);
+    }
+
+    /**
+     * CMAC (RFC 4493) of the remaining bytes of {@code message}, which are not
+     * consumed, with {@code xorEnd} xor'ed onto its last 16 bytes if given.
+     */
+    private byte[] cmac(Cipher ecb, ByteBuffer message, byte[] xorEnd) throws IllegalBlockSizeException, BadPaddingException, ShortBufferException {
+        int start = message.position();
+        int length = message.remaining();
+        int blocks = Math.max(1, (length + BLOCK - 1) / BLOCK);
+        byte[] state = new byte[BLOCK];
+        byte[] block = new byte[BLOCK];
+
+        for (int b = 0; b < blocks; b++) {
+            int offset = b * BLOCK;
+            int n = Math.min(BLOCK, length - offset);
+            message.get(start + offset, block, 0, n);
+            if (n < BLOCK) {
+                block[n] = (byte) 0x80;
+                Arrays.fill(block, n + 1, BLOCK, (byte) 0);
+            }
+            if (xorEnd != null) {
+                // only reached with at least a full block, so the last 16 bytes span at most two blocks
+                for (int i = Math.max(0, length - BLOCK - offset); i < n; i++) block[i] ^= xorEnd[offset + i - (length - BLOCK)];
+            }
+            if (b == blocks - 1) {
+                byte[] subkey = n == BLOCK ? k1 : k2;
+                for (int i = 0; i < BLOCK; i++) block[i] ^= subkey[i];
+            }
+            for (int i = 0; i < BLOCK; i++) state[i] ^= block[i];
+            ecb.doFinal(state, 0, BLOCK, state, 0);
+        }
+        Arrays.fill(block, (byte) 0);
+        return state;
+    }
+
+    /**
+     * The initial counter block: the synthetic IV with two bits cleared, so
+     * that implementations with 64- and 32-bit counters interoperate.
+     */
+    private static IvParameterSpec counter(byte[] iv) {
+        byte[] q = iv.clone();
+        q[8] &= 0x7F;
+        q[12] &= 0x7F;
+        return new IvParameterSpec(q);
+    }
+
+    /**
+     * Doubling in GF(2^128), as defined by RFC 5297.
+     */
+    private static byte[] dbl(byte[] s) {
+        byte[] result = new byte[BLOCK];
+        for (int i = 0; i < BLOCK - 1; i++) result[i] = (byte) ((s[i] << 1) | ((s[i + 1] & 0xFF) >>> 7));
+        result[BLOCK - 1] = (byte) (s[BLOCK - 1] << 1);
+        if ((s[0] & 0x80) != 0) result[BLOCK - 1] ^= (byte) 0x87;
+        return result;
+    }
+
+    private static byte[] xor(byte[] a, byte[] b) {
+        byte[] result = new byte[BLOCK];
+        for (int i = 0; i < BLOCK; i++) result[i] = (byte) (a[i] ^ b[i]);
+        return result;
+    }
+}
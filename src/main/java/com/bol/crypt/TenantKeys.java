@@ -0,0 +1,149 @@
+package com.bol.crypt;
+
+import org.springframework.lang.Nullable;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The tenant blob format (proto version 4): a compact blob (see
+ * {@link CompactBlobs}) whose first byte is 4, encrypted under a key derived
+ * from the key version's key for a single tenant:
+ * <pre>
+ * tenant key = HKDF-SHA256(key, no salt, "cryptvault tenant" || key version (8) || UTF-8 tenant id)
+ * </pre>
+ * The header records the key version, not the tenant, so a blob can only be
+ * decrypted by naming the tenant it was encrypted for. Under an AEAD
+ * transformation, naming any other tenant fails authentication.
+ * <p>
+ * Derived plans are kept in a bounded LRU cache, split into stripes that are
+ * locked independently, so that concurrent callers rarely contend.
+ */
+final class TenantKeys {
+    static final byte PROTO_VERSION = 4;
+    static final int DEFAULT_CACHE_SIZE = 10_000;
+
+    private static final byte[] INFO = "cryptvault tenant".getBytes(StandardCharsets.US_ASCII);
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * @param cacheSize Amount of derived plans kept at most, over all key versions and tenants.
+     */
+    TenantKeys(int cacheSize) {
+        if (cacheSize < 1) throw new IllegalArgumentException("tenant key cache size should be at least 1, was " + cacheSize);
+        for (int i = 0; i < STRIPES; i++) {
+            // spread the remainder; every stripe holds at least one plan
+            stripes[i] = new Stripe(Math.max(1, cacheSize / STRIPES + (i < cacheSize % STRIPES ? 1 : 0)));
+        }
+    }
+
+    byte[] encrypt(CipherPlan master, String tenantId, byte[] cleartext, CipherPool cipherPool, @Nullable IvGenerator ivGenerator) {
+        KeyVersion keyVersion = master.keyVersion;
+        if (master.legacy)
+            throw new CryptOperationException("cannot encrypt with legacy key version; hint: create new key version");
+        CipherPlan plan = plan(master, tenantId);
+
+        try {
+            AlgorithmParameterSpec params = null;
+            // the master key version, so that nonces are unique over all of its tenants
+            if (ivGenerator != null && plan.ivLength() > 0) params = plan.params(ivGenerator.nextIv(keyVersion, plan.ivLength(), plan.ivParameters.isNonce()));
+            Cipher cipher = cipherPool.init(keyVersion.transformation, plan.provider, Cipher.ENCRYPT_MODE, plan.keySpec, params);
+
+            byte[] header = CompactBlobs.header(plan, cipher);
+            header[0] = PROTO_VERSION;
+            byte[] blob = new byte[header.length + cipher.getOutputSize(cleartext.length)];
+            System.arraycopy(header, 0, blob, 0, header.length);
+            int ciphertextLength = cipher.doFinal(cleartext, 0, cleartext.length, blob, header.length);
+            return header.length + ciphertextLength == blob.length ? blob : Arrays.copyOf(blob, header.length + ciphertextLength);
+        } catch (NoSuchPaddingException | NoSuchAlgorithmException | InvalidKeyException | InvalidAlgorithmParameterException |
+                 IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+            throw new CryptOperationException("JCA exception caught while encrypting with tenant key of key version " + keyVersion.version, e);
+        }
+    }
+
+    byte[] decrypt(CipherPlan master, String tenantId, byte[] blob, CipherPool cipherPool) {
+        if (blob.length < CompactBlobs.MIN_HEADER_LENGTH) throw new CryptOperationException("tenant blob is truncated");
+        CipherPlan plan = plan(master, tenantId);
+        try {
+            int headerLength = CompactBlobs.headerLength(plan, blob.length, blob[2] & 0xFF);
+            AlgorithmParameterSpec params = CompactBlobs.params(plan, blob, 0);
+            Cipher cipher = cipherPool.init(plan.keyVersion.transformation, plan.provider, Cipher.DECRYPT_MODE, plan.keySpec, params);
+            return cipher.doFinal(blob, headerLength, blob.length - headerLength);
+        } catch (NoSuchPaddingException | NoSuchAlgorithmException | InvalidKeyException | InvalidAlgorithmParameterException |
+                 IllegalBlockSizeException | BadPaddingException e) {
+            throw new CryptOperationException("JCA exception caught while decrypting with tenant key of key version " + plan.keyVersion.version, e);
+        }
+    }
+
+    /**
+     * The plan for the tenant's key derived from {@code master}, from the
+     * cache when possible.
+     */
+    CipherPlan plan(CipherPlan master, String tenantId) {
+        if (master.ivParameters == null)
+            throw new CryptOperationException("key version " + master.keyVersion.version + " cannot be used with tenant keys; its transformation takes other parameters than an IV");
+
+        TenantKey key = new TenantKey(master, tenantId);
+        Stripe stripe = stripes[(key.hashCode() & 0x7FFFFFFF) % STRIPES];
+        CipherPlan plan;
+        synchronized (stripe) {
+            plan = stripe.get(key);
+        }
+        if (plan != null) return plan;
+
+        // racing threads derive the same key; the last one is kept
+        plan = master.derive(derive(master.keyVersion, tenantId));
+        synchronized (stripe) {
+            stripe.put(key, plan);
+        }
+        return plan;
+    }
+
+    private static byte[] derive(KeyVersion keyVersion, String tenantId) {
+        byte[] tenant = tenantId.getBytes(StandardCharsets.UTF_8);
+        byte[] info = new byte[INFO.length + 1 + tenant.length];
+        System.arraycopy(INFO, 0, info, 0, INFO.length);
+        info[INFO.length] = (byte) keyVersion.version;
+        System.arraycopy(tenant, 0, info, INFO.length + 1, tenant.length);
+        try {
+            return Hkdf.derive(keyVersion.key, new byte[0], info, keyVersion.key.length);
+        } catch (GeneralSecurityException e) {
+            throw new CryptOperationException("JCA exception caught while deriving tenant key of key version " + keyVersion.version, e);
+        }
+    }
+
+    /**
+     * Identifies the master by plan, so that a key version that is replaced
+     * does not hit keys derived from its predecessor.
+     */
+    private record TenantKey(CipherPlan master, String tenantId) {
+    }
+
+    private static final class Stripe extends LinkedHashMap<TenantKey, CipherPlan> {
+        private final int capacity;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TenantKey, CipherPlan> eldest) {
+            return size() > capacity;
+        }
+    }
+}
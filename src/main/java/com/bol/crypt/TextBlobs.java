@@ -0,0 +1,271 @@
+package com.bol.crypt;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encrypts text straight to Base64 and back, for
+ * {@link CryptVault#encryptToString(CharSequence)} and friends. UTF-8
+ * encoding, encryption and Base64 encoding all work in per-thread scratch
+ * arrays, so that the only array allocated per call is the one behind the
+ * resulting {@code String}. Scratch arrays that held cleartext are zeroed
+ * after every call; arrays beyond {@link #MAX_RETAINED} bytes are not kept.
+ * <p>
+ * Decoding accepts both the standard and the URL-safe alphabet, with or
+ * without padding.
+ */
+final class TextBlobs {
+    /**
+     * Largest scratch array kept per thread.
+     */
+    static final int MAX_RETAINED = 64 * 1024;
+
+    private static final byte[] STANDARD = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] URL_SAFE = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DECODE = new byte[128];
+
+    static {
+        Arrays.fill(DECODE, (byte) -1);
+        for (int i = 0; i < 64; i++) {
+            DECODE[STANDARD[i]] = (byte) i;
+            DECODE[URL_SAFE[i]] = (byte) i;
+        }
+    }
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private TextBlobs() {
+    }
+
+    static String encrypt(CryptVault cryptVault, KeyVersion keyVersion, CharSequence cleartext, boolean urlSafe) {
+        Scratch scratch = TextBlobs.scratch.get();
+        long maxLength = 3L * cleartext.length();
+        if (maxLength > Integer.MAX_VALUE - 64) throw new CryptOperationException("cleartext of " + cleartext.length() + " chars is too long to encrypt to a string");
+        byte[] bytes = scratch.cleartext((int) maxLength);
+        int length = (int) maxLength;
+        try {
+            length = encodeUtf8(cleartext, bytes);
+            byte[] blob = scratch.blob(cryptVault.encryptedSize(keyVersion, length));
+            int blobLength = cryptVault.encrypt(keyVersion, ByteBuffer.wrap(bytes, 0, length), ByteBuffer.wrap(blob));
+
+            byte[] text = scratch.text(base64Length(blobLength, urlSafe));
+            int textLength = encodeBase64(blob, blobLength, text, urlSafe);
+            return new String(text, 0, textLength, StandardCharsets.ISO_8859_1);
+        } finally {
+            Arrays.fill(bytes, 0, length, (byte) 0);
+        }
+    }
+
+    static String decryptToString(CryptVault cryptVault, String text) {
+        Scratch scratch = TextBlobs.scratch.get();
+        byte[] blob = scratch.blob(text.length() / 4 * 3 + 3);
+        int blobLength = decodeBase64(text, blob);
+        byte[] bytes = scratch.cleartext(maxDecryptedSize(cryptVault, blob, blobLength));
+        int length = bytes.length;
+        try {
+            length = cryptVault.decrypt(ByteBuffer.wrap(blob, 0, blobLength), ByteBuffer.wrap(bytes));
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        } finally {
+            Arrays.fill(bytes, 0, length, (byte) 0);
+        }
+    }
+
+    static char[] decryptToChars(CryptVault cryptVault, String text) {
+        Scratch scratch = TextBlobs.scratch.get();
+        byte[] blob = scratch.blob(text.length() / 4 * 3 + 3);
+        int blobLength = decodeBase64(text, blob);
+        byte[] bytes = scratch.cleartext(maxDecryptedSize(cryptVault, blob, blobLength));
+        int length = bytes.length;
+        try {
+            length = cryptVault.decrypt(ByteBuffer.wrap(blob, 0, blobLength), ByteBuffer.wrap(bytes));
+            return decodeUtf8(bytes, length);
+        } finally {
+            Arrays.fill(bytes, 0, length, (byte) 0);
+        }
+    }
+
+    static int maxDecryptedSize(CryptVault cryptVault, byte[] blob, int blobLength) {
+        if (blobLength < 2) throw new CryptOperationException("blob is too short to hold a header: " + blobLength + " bytes");
+        try {
+            return cryptVault.maxDecryptedSize(ByteBuffer.wrap(blob, 0, blobLength));
+        } catch (IndexOutOfBoundsException e) {
+            throw new CryptOperationException("blob is truncated", e);
+        }
+    }
+
+    /**
+     * Encodes like {@code String.getBytes(UTF_8)} does, replacing unpaired
+     * surrogates by {@code '?'}.
+     *
+     * @return The number of bytes written; {@code out} holds at least three per char.
+     */
+    static int encodeUtf8(CharSequence s, byte[] out) {
+        int n = 0;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out[n++] = (byte) c;
+            } else if (c < 0x800) {
+                out[n++] = (byte) (0xC0 | c >> 6);
+                out[n++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    out[n++] = (byte) (0xF0 | cp >> 18);
+                    out[n++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                    out[n++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                    out[n++] = (byte) (0x80 | cp & 0x3F);
+                } else {
+                    out[n++] = '?';
+                }
+            } else {
+                out[n++] = (byte) (0xE0 | c >> 12);
+                out[n++] = (byte) (0x80 | c >> 6 & 0x3F);
+                out[n++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Decodes UTF-8 straight into an array of the exact size, replacing every
+     * byte of malformed input by U+FFFD.
+     */
+    static char[] decodeUtf8(byte[] bytes, int length) {
+        int chars = 0;
+        for (int i = 0; i < length; ) {
+            int decoded = decodeCodePoint(bytes, i, length);
+            i += decoded >>> 24;
+            chars += Character.charCount(decoded & 0x1FFFFF);
+        }
+        char[] out = new char[chars];
+        int n = 0;
+        for (int i = 0; i < length; ) {
+            int decoded = decodeCodePoint(bytes, i, length);
+            i += decoded >>> 24;
+            n += Character.toChars(decoded & 0x1FFFFF, out, n);
+        }
+        return out;
+    }
+
+    /**
+     * The code point starting at {@code i} in the low 21 bits, and the amount
+     * of bytes it takes in the high 8 bits.
+     */
+    private static int decodeCodePoint(byte[] b, int i, int length) {
+        final int malformed = 1 << 24 | 0xFFFD;
+        int b0 = b[i] & 0xFF;
+        if (b0 < 0x80) return 1 << 24 | b0;
+        int needed = b0 < 0xC2 ? -1 : b0 < 0xE0 ? 1 : b0 < 0xF0 ? 2 : b0 < 0xF5 ? 3 : -1;
+        if (needed < 0 || i + needed >= length) return malformed;
+        int cp = b0 & (0x3F >> needed);
+        for (int k = 1; k <= needed; k++) {
+            int bk = b[i + k] & 0xFF;
+            if ((bk & 0xC0) != 0x80) return malformed;
+            cp = cp << 6 | bk & 0x3F;
+        }
+        // overlong encodings, surrogates and code points beyond U+10FFFF
+        if (needed == 2 && (cp < 0x800 || Character.isSurrogate((char) cp))) return malformed;
+        if (needed == 3 && (cp < 0x10000 || cp > Character.MAX_CODE_POINT)) return malformed;
+        return (needed + 1) << 24 | cp;
+    }
+
+    static int base64Length(int length, boolean urlSafe) {
+        return urlSafe ? (length * 4 + 2) / 3 : (length + 2) / 3 * 4;
+    }
+
+    /**
+     * Base64-encodes the first {@code length} bytes of {@code src}; URL-safe
+     * output is unpadded.
+     */
+    static int encodeBase64(byte[] src, int length, byte[] dst, boolean urlSafe) {
+        byte[] alphabet = urlSafe ? URL_SAFE : STANDARD;
+        int n = 0;
+        int i = 0;
+        for (; i + 3 <= length; i += 3) {
+            int bits = (src[i] & 0xFF) << 16 | (src[i + 1] & 0xFF) << 8 | src[i + 2] & 0xFF;
+            dst[n++] = alphabet[bits >>> 18];
+            dst[n++] = alphabet[bits >>> 12 & 0x3F];
+            dst[n++] = alphabet[bits >>> 6 & 0x3F];
+            dst[n++] = alphabet[bits & 0x3F];
+        }
+        int remaining = length - i;
+        if (remaining > 0) {
+            int bits = (src[i] & 0xFF) << 16 | (remaining == 2 ? (src[i + 1] & 0xFF) << 8 : 0);
+            dst[n++] = alphabet[bits >>> 18];
+            dst[n++] = alphabet[bits >>> 12 & 0x3F];
+            if (remaining == 2) dst[n++] = alphabet[bits >>> 6 & 0x3F];
+            if (!urlSafe) {
+                if (remaining == 1) dst[n++] = '=';
+                dst[n++] = '=';
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Decodes Base64 in either alphabet, padded or not.
+     *
+     * @return The number of bytes written.
+     */
+    static int decodeBase64(String text, byte[] dst) {
+        int end = text.length();
+        if (end > 0 && text.charAt(end - 1) == '=') end--;
+        if (end > 0 && text.charAt(end - 1) == '=') end--;
+        if (end % 4 == 1 || end < text.length() && text.length() % 4 != 0) {
+            throw new CryptOperationException("blob is not valid Base64: unexpected length " + text.length());
+        }
+        int n = 0;
+        int bits = 0;
+        int count = 0;
+        for (int i = 0; i < end; i++) {
+            char c = text.charAt(i);
+            int value = c < 128 ? DECODE[c] : -1;
+            if (value < 0) throw new CryptOperationException("blob is not valid Base64: illegal character at index " + i);
+            bits = bits << 6 | value;
+            if (++count == 4) {
+                dst[n++] = (byte) (bits >> 16);
+                dst[n++] = (byte) (bits >> 8);
+                dst[n++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (count == 2) {
+            dst[n++] = (byte) (bits >> 4);
+        } else if (count == 3) {
+            dst[n++] = (byte) (bits >> 10);
+            dst[n++] = (byte) (bits >> 2);
+        }
+        return n;
+    }
+
+    private static final class Scratch {
+        private byte[] cleartext = new byte[256];
+        private byte[] blob = new byte[512];
+        private byte[] text = new byte[512];
+
+        byte[] cleartext(int size) {
+            if (size <= cleartext.length) return cleartext;
+            byte[] array = new byte[size];
+            if (size <= MAX_RETAINED) cleartext = array;
+            return array;
+        }
+
+        byte[] blob(int size) {
+            if (size <= blob.length) return blob;
+            byte[] array = new byte[size];
+            if (size <= MAX_RETAINED) blob = array;
+            return array;
+        }
+
+        byte[] text(int size) {
+            if (size <= text.length) return text;
+            byte[] array = new byte[size];
+            if (size <= MAX_RETAINED) text = array;
+            return array;
+        }
+    }
+}
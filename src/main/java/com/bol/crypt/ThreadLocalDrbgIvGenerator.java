@@ -0,0 +1,31 @@
+package com.bol.crypt;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * See {@link IvGenerator#threadLocalDrbg()}.
+ */
+class ThreadLocalDrbgIvGenerator implements IvGenerator {
+    private final ThreadLocal<SecureRandom> random = ThreadLocal.withInitial(ThreadLocalDrbgIvGenerator::drbg);
+
+    @Override
+    public byte[] nextIv(KeyVersion keyVersion, int length, boolean nonce) {
+        byte[] iv = new byte[length];
+        random.get().nextBytes(iv);
+        return iv;
+    }
+
+    void nextBytes(byte[] bytes) {
+        random.get().nextBytes(bytes);
+    }
+
+    private static SecureRandom drbg() {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            // DRBG is available from Java 9 on; fall back to the platform default
+            return new SecureRandom();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.bol.crypt;
+
+import javax.crypto.Cipher;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Round-trips every registered key version of a {@link CryptVault} a number
+ * of times, so that providers, ciphers, parameters and the random source are
+ * loaded, and the JIT has compiled the hot paths, before real traffic comes
+ * in. Doubles as a self-test: a key version that does not round-trip fails
+ * the warm-up.
+ * <p>
+ * Legacy key versions only decrypt, so blobs in the legacy format are made
+ * for them here. Run it before metrics or a decryption cache are set on the
+ * vault, so that they do not see the warm-up.
+ */
+public final class WarmUp {
+    private WarmUp() {
+    }
+
+    /**
+     * Round-trips payloads of every size, {@code iterations} times each,
+     * under every registered key version.
+     *
+     * @param cryptVault   The vault to warm up.
+     * @param iterations   Round trips per key version and payload size.
+     * @param payloadSizes Sizes of the payloads, in bytes.
+     * @return What was done, and how long it took.
+     * @throws IllegalStateException when a key version does not round-trip.
+     */
+    public static Result run(CryptVault cryptVault, int iterations, int... payloadSizes) {
+        if (iterations < 1) throw new IllegalArgumentException("iterations should be at least 1, was " + iterations);
+        long start = System.nanoTime();
+        SecureRandom random = new SecureRandom();
+        byte[][] payloads = new byte[payloadSizes.length][];
+        for (int i = 0; i < payloadSizes.length; i++) {
+            payloads[i] = new byte[payloadSizes[i]];
+            random.nextBytes(payloads[i]);
+        }
+
+        List<Integer> versions = new ArrayList<>();
+        long roundTrips = 0;
+        for (int version = 0; version < 256; version++) {
+            CipherPlan plan = cryptVault.keyVersions.plan(version);
+            if (plan == null) continue;
+            versions.add(version);
+            for (byte[] payload : payloads) {
+                for (int i = 0; i < iterations; i++) {
+                    roundTrip(cryptVault, plan, payload, random);
+                }
+                roundTrips += iterations;
+            }
+        }
+        return new Result(versions, roundTrips, Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    private static void roundTrip(CryptVault cryptVault, CipherPlan plan, byte[] payload, SecureRandom random) {
+        KeyVersion keyVersion = plan.keyVersion;
+        byte[] decrypted;
+        try {
+            decrypted = keyVersion.legacy
+                    ? cryptVault.attemptLegacyDecrypt(legacyBlob(plan, payload, random))
+                    : cryptVault.decrypt(cryptVault.encrypt(keyVersion, payload));
+        } catch (CryptOperationException e) {
+            Throwable cause = e.getCause() == null ? e : e.getCause();
+            throw new IllegalStateException(String.format("key version %d (%s) does not round-trip: %s", keyVersion.version, keyVersion.transformation, cause), e);
+        }
+        if (!Arrays.equals(decrypted, payload)) {
+            throw new IllegalStateException(String.format("key version %d (%s) does not round-trip: decrypted %d bytes differ from the %d bytes encrypted", keyVersion.version, keyVersion.transformation, decrypted.length, payload.length));
+        }
+    }
+
+    /**
+     * A blob as version 1 of this library wrote it: the key version (offset
+     * by 128), a 16-byte IV and AES/CBC/PKCS5Padding ciphertext.
+     */
+    private static byte[] legacyBlob(CipherPlan plan, byte[] payload, SecureRandom random) {
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.ENCRYPT_MODE, plan.legacyKeySpec, random);
+            byte[] iv = cipher.getIV();
+            byte[] blob = new byte[1 + iv.length + cipher.getOutputSize(payload.length)];
+            blob[0] = (byte) (plan.keyVersion.version + Byte.MIN_VALUE);
+            System.arraycopy(iv, 0, blob, 1, iv.length);
+            cipher.doFinal(payload, 0, payload.length, blob, 1 + iv.length);
+            return blob;
+        } catch (GeneralSecurityException e) {
+            throw new CryptOperationException("JCA exception caught while encrypting a legacy blob with key version " + plan.keyVersion.version, e);
+        }
+    }
+
+    /**
+     * The outcome of a warm-up.
+     */
+    public static final class Result {
+        private final List<Integer> keyVersions;
+        private final long roundTrips;
+        private final Duration duration;
+
+        Result(List<Integer> keyVersions, long roundTrips, Duration duration) {
+            this.keyVersions = Collections.unmodifiableList(keyVersions);
+            this.roundTrips = roundTrips;
+            this.duration = duration;
+        }
+
+        /**
+         * The key versions warmed up.
+         */
+        public List<Integer> getKeyVersions() {
+            return keyVersions;
+        }
+
+        /**
+         * Amount of round trips, over all key versions.
+         */
+        public long getRoundTrips() {
+            return roundTrips;
+        }
+
+        public Duration getDuration() {
+            return duration;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "keyVersions=" + keyVersions +
+                    ", roundTrips=" + roundTrips +
+                    ", duration=" + duration +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.bol.crypt;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class BlindIndexerTest {
+    private static final String oldKey = "VGltVGhlSW5jcmVkaWJsZURldmVsb3BlclNlY3JldCE=";
+    private static final String newKey = "ge2L+MA9jLA8UiUJ4z5fUoK+Lgj2yddlL6EzYIBqb1Q=";
+
+    private final KeyVersions keyVersions = KeyVersions.of(new KeyVersion(1, "AES/GCM/NoPadding", oldKey));
+
+    @Test
+    public void tokenIsTruncatedHmacUnderDerivedKey() throws Exception {
+        var indexer = new BlindIndexer(keyVersions, "email");
+        byte[] value = "someone@example.com".getBytes(StandardCharsets.UTF_8);
+
+        byte[] token = indexer.token(value);
+
+        var keyVersion = keyVersions.getDefault();
+        byte[] info = "cryptvault blind index\0\1email".getBytes(StandardCharsets.UTF_8);
+        var mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(Hkdf.derive(keyVersion.key, new byte[0], info, 32), "HmacSHA256"));
+        assertThat(token).hasSize(1 + BlindIndexer.DEFAULT_TOKEN_LENGTH);
+        assertThat(token[0]).isEqualTo((byte) 1);
+        assertThat(Arrays.copyOfRange(token, 1, token.length)).isEqualTo(Arrays.copyOf(mac.doFinal(value), 16));
+
+        assertThat(indexer.token(value)).isEqualTo(token);
+        assertThat(new BlindIndexer(keyVersions, "phone").token(value)).isNotEqualTo(token);
+        assertThat(indexer.tokens(List.of(value, new byte[0]))).containsExactly(token, indexer.token(new byte[0]));
+
+        indexer.setTokenLength(8);
+        assertThat(indexer.token(value)).isEqualTo(Arrays.copyOf(token, 9));
+        assertThrows(IllegalArgumentException.class, () -> indexer.setTokenLength(7));
+    }
+
+    @Test
+    public void normalizedAndPrefixTokens() {
+        var indexer = new BlindIndexer(keyVersions, "name");
+        indexer.setNormalizer(BlindIndexer.TRIM_LOWER_CASE);
+
+        assertThat(indexer.token(" Zoë ")).isEqualTo(indexer.token("zoë")).isEqualTo(indexer.token("zoë".getBytes(StandardCharsets.UTF_8)));
+
+        List<byte[]> prefixes = indexer.prefixTokens("Zoë Smith", 2, 3);
+        assertThat(prefixes).hasSize(2);
+        assertThat(indexer.prefixTokensForLookup("ZO")).containsExactly(prefixes.get(0));
+        assertThat(indexer.prefixTokensForLookup("zoë")).containsExactly(prefixes.get(1));
+        // prefix tokens never match value tokens
+        assertThat(prefixes.get(1)).isNotEqualTo(indexer.token("zoë"));
+        assertThat(indexer.prefixTokens("z", 2, 3)).isEmpty();
+    }
+
+    @Test
+    public void lookupCoversRotation() {
+        var indexer = new BlindIndexer(keyVersions, "email");
+        byte[] stored = indexer.token("someone@example.com");
+
+        keyVersions.addVersion(new KeyVersion(2, "AES/GCM/NoPadding", newKey));
+        byte[] rotated = indexer.token("someone@example.com");
+
+        assertThat(rotated[0]).isEqualTo((byte) 2);
+        assertThat(indexer.tokensForLookup("someone@example.com")).containsExactly(rotated, stored);
+        assertThat(indexer.token(keyVersions.get(1).orElseThrow(), "someone@example.com".getBytes(StandardCharsets.UTF_8))).isEqualTo(stored);
+
+        // tokens of unregistered key versions would never be looked up
+        var unregistered = new KeyVersion(3, "AES/GCM/NoPadding", newKey);
+        assertThrows(CryptOperationException.class, () -> indexer.token(unregistered, new byte[0]));
+        var replaced = new KeyVersion(2, "AES/GCM/NoPadding", oldKey);
+        assertThrows(CryptOperationException.class, () -> indexer.token(replaced, new byte[0]));
+    }
+
+    @Test
+    public void concurrentTokensAgree() throws Exception {
+        var indexer = new BlindIndexer(keyVersions, "email");
+        byte[] expected = indexer.token("someone@example.com");
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = executor.invokeAll(Collections.nCopies(16, () -> {
+                for (int i = 0; i < 1000; i++) {
+                    if (!Arrays.equals(expected, indexer.token("someone@example.com"))) return false;
+                }
+                return true;
+            }));
+            for (Future<Boolean> result : results) assertThat(result.get()).isTrue();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
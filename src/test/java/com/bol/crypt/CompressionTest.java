@@ -0,0 +1,182 @@
+package com.bol.crypt;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CompressionTest {
+    private static final String oldKey = "VGltVGhlSW5jcmVkaWJsZURldmVsb3BlclNlY3JldCE=";
+    private static final String newKey = "ge2L+MA9jLA8UiUJ4z5fUoK+Lgj2yddlL6EzYIBqb1Q=";
+    private static final byte[] json = "{\"name\":\"someone\",\"email\":\"someone@example.com\",\"tags\":[\"a\",\"b\",\"c\"]},".repeat(100).getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void compressedBlobsRoundTrip() {
+        var cryptVault = CryptVault.of(KeyVersions.of(new KeyVersion(1, "AES/GCM/NoPadding", oldKey)));
+        cryptVault.setCompression(1, CompressionCodec.deflate(), 1024);
+
+        byte[] blob = cryptVault.encrypt(json);
+
+        assertThat(blob[0]).isEqualTo(CompressedBlobs.PROTO_VERSION);
+        assertThat(blob.length).isLessThan(json.length / 4);
+        assertThat(cryptVault.decrypt(blob)).isEqualTo(json);
+        ByteBuffer cleartext = ByteBuffer.allocate(json.length);
+        assertThat(cryptVault.decrypt(ByteBuffer.wrap(blob), cleartext)).isEqualTo(json.length);
+        assertThat(cleartext.array()).isEqualTo(json);
+        assertThat(cryptVault.keyVersionOf(blob)).isEqualTo(1);
+
+        // compact inner blobs and other levels decrypt alike
+        cryptVault.setCompactBlobs(true);
+        cryptVault.setCompression(1, CompressionCodec.deflate(9), 1024);
+        assertThat(cryptVault.decrypt(cryptVault.encrypt(json))).isEqualTo(json);
+    }
+
+    @Test
+    public void smallAndIncompressibleCleartextsAreNotCompressed() {
+        var cryptVault = CryptVault.of(KeyVersions.of(new KeyVersion(1, "AES/GCM/NoPadding", oldKey)));
+        cryptVault.setCompression(1, CompressionCodec.deflate(), 1024);
+
+        byte[] small = new byte[1023];
+        assertThat(cryptVault.encrypt(small)[0]).isEqualTo((byte) 0);
+
+        byte[] random = new byte[4096];
+        new SecureRandom().nextBytes(random);
+        byte[] blob = cryptVault.encrypt(random);
+        assertThat(blob[0]).isEqualTo((byte) 0);
+        assertThat(cryptVault.decrypt(blob)).isEqualTo(random);
+
+        // not compressed into buffers, so that encryptedSize holds
+        ByteBuffer buffer = ByteBuffer.allocate(cryptVault.encryptedSize(cryptVault.keyVersions.getDefault(), json.length));
+        cryptVault.encrypt(ByteBuffer.wrap(json), buffer);
+        assertThat(buffer.array()[0]).isEqualTo((byte) 0);
+    }
+
+    @Test
+    public void compressedBlobsAreAtMostEncryptedSize() {
+        var keyVersion = new KeyVersion(1, "AES/CBC/PKCS5Padding", oldKey);
+        var cryptVault = CryptVault.of(KeyVersions.of(keyVersion));
+        cryptVault.setCompression(1, CompressionCodec.deflate(), 0);
+
+        for (int length = 0; length < 200; length++) {
+            byte[] cleartext = new byte[length];
+            for (int i = 0; i < length; i++) cleartext[i] = (byte) (i % 7 == 0 ? i : 'a');
+            assertThat(cryptVault.encrypt(cleartext).length).isLessThanOrEqualTo(cryptVault.encryptedSize(keyVersion, length));
+        }
+    }
+
+    @Test
+    public void rotationFollowsTheDefault() {
+        var keyVersions = KeyVersions.of(new KeyVersion(1, "AES/GCM/NoPadding", oldKey));
+        var cryptVault = CryptVault.of(keyVersions);
+        cryptVault.setCompression(1, CompressionCodec.deflate(), 0);
+        byte[] blob = cryptVault.encrypt(json);
+
+        keyVersions.addVersion(new KeyVersion(2, "AES/GCM/NoPadding", newKey));
+        assertThat(cryptVault.needsRotation(blob)).isTrue();
+        byte[] rotated = cryptVault.rotate(blob);
+
+        assertThat(rotated[0]).isEqualTo((byte) 0);
+        assertThat(cryptVault.keyVersionOf(rotated)).isEqualTo(2);
+        assertThat(cryptVault.decrypt(rotated)).isEqualTo(json);
+    }
+
+    @Test
+    public void malformedBlobsAreRejected() {
+        var cryptVault = CryptVault.of(KeyVersions.of(new KeyVersion(1, "AES/GCM/NoPadding", oldKey)));
+        cryptVault.setCompression(1, CompressionCodec.deflate(), 0);
+        byte[] blob = cryptVault.encrypt(json);
+
+        byte[] tampered = blob.clone();
+        tampered[blob.length - 1] ^= 1;
+        assertThrows(CryptOperationException.class, () -> cryptVault.decrypt(tampered));
+
+        byte[] wrongLength = blob.clone();
+        wrongLength[6] ^= 1;
+        assertThrows(CryptOperationException.class, () -> cryptVault.decrypt(wrongLength));
+
+        // the header is authenticated, so it cannot be swapped for that of another codec or key version
+        var other = new KeyVersion(2, "AES/GCM/NoPadding", oldKey);
+        cryptVault.keyVersions.addVersion(other);
+        cryptVault.addCompressionCodec(new XorDeflate());
+        byte[] otherCodec = blob.clone();
+        otherCodec[2] = 42;
+        assertThrows(CryptOperationException.class, () -> cryptVault.decrypt(otherCodec));
+        byte[] otherKeyVersion = blob.clone();
+        otherKeyVersion[1] = 2;
+        assertThrows(CryptOperationException.class, () -> cryptVault.decrypt(otherKeyVersion));
+
+        byte[] unknownCodec = blob.clone();
+        unknownCodec[2] = 42;
+        assertThrows(CryptOperationException.class, () -> cryptVault.decrypt(unknownCodec));
+
+        byte[] truncated = new byte[CompressedBlobs.HEADER_LENGTH - 1];
+        System.arraycopy(blob, 0, truncated, 0, truncated.length);
+        assertThrows(CryptOperationException.class, () -> cryptVault.decrypt(truncated));
+    }
+
+    @Test
+    public void customCodecsAreRecorded() {
+        var keyVersions = KeyVersions.of(new KeyVersion(1, "AES/GCM/NoPadding", oldKey));
+        var cryptVault = CryptVault.of(keyVersions);
+        cryptVault.setCompression(1, new XorDeflate(), 0);
+        byte[] blob = cryptVault.encrypt(json);
+        assertThat(blob[2]).isEqualTo((byte) 42);
+
+        var other = CryptVault.of(keyVersions);
+        assertThrows(CryptOperationException.class, () -> other.decrypt(blob));
+        other.addCompressionCodec(new XorDeflate());
+        assertThat(other.decrypt(blob)).isEqualTo(json);
+    }
+
+    /**
+     * Deflate under another id, flipping bits so that it is incompatible.
+     */
+    private static class XorDeflate implements CompressionCodec {
+        @Override
+        public int id() {
+            return 42;
+        }
+
+        @Override
+        public String name() {
+            return "xor-deflate";
+        }
+
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return CompressionCodec.deflate().compress(new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b ^ 0x5A);
+                }
+            });
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return CompressionCodec.deflate().decompress(new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = in.read();
+                    return b < 0 ? b : (b ^ 0x5A);
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = in.read(b, off, len);
+                    for (int i = 0; i < n; i++) b[off + i] ^= 0x5A;
+                    return n;
+                }
+            });
+        }
+    }
+}
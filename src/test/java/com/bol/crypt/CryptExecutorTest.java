@@ -0,0 +1,103 @@
+package com.bol.crypt;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CryptExecutorTest {
+    private static final String keyBase64 = "VGltVGhlSW5jcmVkaWJsZURldmVsb3BlclNlY3JldCE=";
+    private static final byte[] plainBytes = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void asyncRoundTripOffTheCallingThread() throws Exception {
+        var cryptVault = CryptVault.of(KeyVersions.of(new KeyVersion(1, "AES/GCM/NoPadding", keyBase64)));
+        try (var executor = CryptExecutor.bounded(2, 1024, 10)) {
+            cryptVault.setAsyncExecutor(executor);
+
+            // recorded by the operation itself; a callback may run on the calling thread
+            var threadName = new CompletableFuture<String>();
+            cryptVault.setMetrics(new CryptMetrics() {
+                @Override
+                public void recordSuccess(Operation operation, KeyVersion keyVersion, int cleartextLength, long nanos) {
+                    threadName.complete(Thread.currentThread().getName());
+                }
+
+                @Override
+                public void recordFailure(Operation operation, KeyVersion keyVersion, CryptOperationException e) {
+                }
+            });
+            byte[] blob = cryptVault.encryptAsync(plainBytes).get();
+            assertThat(cryptVault.decryptAsync(blob).get()).isEqualTo(plainBytes);
+            assertThat(threadName.get()).startsWith("cryptvault-async-");
+
+            var t = assertThrows(ExecutionException.class, () -> cryptVault.decryptAsync(new byte[]{0, 9, 0, 0}).get());
+            assertThat(t.getCause()).isInstanceOf(CryptOperationException.class);
+        }
+    }
+
+    @Test
+    public void permitsQueueAndRejectOperations() {
+        Queue<Runnable> scheduled = new ArrayDeque<>();
+        var executor = CryptExecutor.of(scheduled::add, 10, 1);
+
+        var first = executor.submit(8, () -> "first");
+        var second = executor.submit(8, () -> "second");
+        var third = executor.submit(1, () -> "third");
+
+        assertThat(executor.getBytesInFlight()).isEqualTo(8);
+        assertThat(executor.getQueued()).isEqualTo(1);
+        assertThat(scheduled).hasSize(1);
+        assertThat(third).isCompletedExceptionally();
+        assertThrows(ExecutionException.class, third::get);
+
+        scheduled.poll().run();
+        assertThat(first).isCompletedWithValue("first");
+        assertThat(executor.getQueued()).isZero();
+        scheduled.poll().run();
+        assertThat(second).isCompletedWithValue("second");
+        assertThat(executor.getBytesInFlight()).isZero();
+    }
+
+    @Test
+    public void payloadLargerThanLimitRunsAlone() {
+        Queue<Runnable> scheduled = new ArrayDeque<>();
+        var executor = CryptExecutor.of(scheduled::add, 10, 10);
+
+        executor.submit(1000, () -> "large");
+        executor.submit(1, () -> "small");
+
+        assertThat(executor.getBytesInFlight()).isEqualTo(10);
+        assertThat(scheduled).hasSize(1);
+        scheduled.poll().run();
+        assertThat(scheduled).hasSize(1);
+    }
+
+    @Test
+    public void virtualThreadsNeedJava21() {
+        if (Runtime.version().feature() < 21) {
+            assertThrows(UnsupportedOperationException.class, () -> CryptExecutor.virtualThreads(1024, 10));
+        } else {
+            try (var executor = CryptExecutor.virtualThreads(1024, 10)) {
+                assertThat(executor.submit(1, () -> Thread.currentThread().toString()).join()).contains("Virtual");
+            }
+        }
+    }
+
+    @Test
+    public void rejectedByExecutor() {
+        var executor = CryptExecutor.of(r -> {
+            throw new RejectedExecutionException("shut down");
+        }, 10, 10);
+
+        assertThat(executor.submit(1, () -> "value")).isCompletedExceptionally();
+        assertThat(executor.getBytesInFlight()).isZero();
+    }
+}
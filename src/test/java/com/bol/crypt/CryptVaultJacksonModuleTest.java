@@ -0,0 +1,108 @@
+package com.bol.crypt;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CryptVaultJacksonModuleTest {
+    private static final String oldKey = "VGltVGhlSW5jcmVkaWJsZURldmVsb3BlclNlY3JldCE=";
+    private static final String newKey = "ge2L+MA9jLA8UiUJ4z5fUoK+Lgj2yddlL6EzYIBqb1Q=";
+
+    private final KeyVersions keyVersions = KeyVersions.of(new KeyVersion(1, "AES/GCM/NoPadding", oldKey));
+    private final CryptVault cryptVault = CryptVault.of(keyVersions);
+    private final ObjectMapper mapper = new ObjectMapper().registerModule(new CryptVaultJacksonModule(cryptVault));
+
+    public record Address(String street, String city) {
+    }
+
+    public record Customer(String name, @Encrypted String email, @Encrypted char[] pin, @Encrypted byte[] photo,
+                           @Encrypted Address address, @Encrypted List<String> tags, @Encrypted String missing) {
+    }
+
+    public static class Account {
+        public String id;
+        @Encrypted
+        public String iban;
+        public LazyDecrypted<Address> billing;
+    }
+
+    @Test
+    public void encryptedPropertiesRoundTrip() throws Exception {
+        var customer = new Customer("Someone", "someone@example.com", "1234".toCharArray(), new byte[]{1, 2, 3},
+                new Address("Papendorpseweg 100", "Utrecht"), List.of("a", "b"), null);
+
+        String json = mapper.writeValueAsString(customer);
+
+        JsonNode tree = new ObjectMapper().readTree(json);
+        assertThat(tree.get("name").asText()).isEqualTo("Someone");
+        assertThat(tree.get("missing").isNull()).isTrue();
+        assertThat(json).doesNotContain("someone@example.com", "Utrecht");
+        assertThat(cryptVault.decrypt(Base64.getDecoder().decode(tree.get("email").asText()))).isEqualTo("someone@example.com".getBytes(StandardCharsets.UTF_8));
+        assertThat(cryptVault.decrypt(Base64.getDecoder().decode(tree.get("address").asText()))).isEqualTo(new ObjectMapper().writeValueAsBytes(customer.address()));
+
+        Customer read = mapper.readValue(json, Customer.class);
+        assertThat(read.email()).isEqualTo("someone@example.com");
+        assertThat(read.pin()).isEqualTo("1234".toCharArray());
+        assertThat(read.photo()).containsExactly(1, 2, 3);
+        assertThat(read.address()).isEqualTo(customer.address());
+        assertThat(read.tags()).containsExactly("a", "b");
+        assertThat(read.missing()).isNull();
+    }
+
+    @Test
+    public void documentsStayUnderOneKeyVersion() throws Exception {
+        var account = new Account();
+        account.id = "1";
+        account.iban = "NL91ABNA0417164300";
+        account.billing = LazyDecrypted.of(new Address("Papendorpseweg 100", "Utrecht"));
+
+        JsonNode tree = mapper.readTree(mapper.writeValueAsString(account));
+        assertThat(cryptVault.keyVersionOf(Base64.getDecoder().decode(tree.get("iban").asText()))).isEqualTo(1);
+        assertThat(cryptVault.keyVersionOf(Base64.getDecoder().decode(tree.get("billing").asText()))).isEqualTo(1);
+
+        keyVersions.addVersion(new KeyVersion(2, "AES/GCM/NoPadding", newKey));
+        tree = mapper.readTree(mapper.writeValueAsString(account));
+        assertThat(cryptVault.keyVersionOf(Base64.getDecoder().decode(tree.get("iban").asText()))).isEqualTo(2);
+    }
+
+    @Test
+    public void lazyPropertiesDecryptOnFirstUse() throws Exception {
+        var account = new Account();
+        account.billing = LazyDecrypted.of(new Address("Papendorpseweg 100", "Utrecht"));
+        String json = mapper.writeValueAsString(account);
+
+        Account read = mapper.readValue(json, Account.class);
+        assertThat(read.billing.isDecrypted()).isFalse();
+        // written again as it was read, without decrypting
+        assertThat(mapper.writeValueAsString(read)).isEqualTo(json);
+        assertThat(read.billing.isDecrypted()).isFalse();
+
+        assertThat(read.billing.get()).isEqualTo(account.billing.get());
+        assertThat(read.billing.isDecrypted()).isTrue();
+        assertThat(mapper.writeValueAsString(read)).isEqualTo(json);
+    }
+
+    @Test
+    public void tamperedPropertiesFail() throws Exception {
+        var account = new Account();
+        account.iban = "NL91ABNA0417164300";
+        account.billing = LazyDecrypted.of(new Address("Papendorpseweg 100", "Utrecht"));
+        JsonNode tree = mapper.readTree(mapper.writeValueAsString(account));
+
+        String iban = tree.get("iban").asText();
+        String tampered = mapper.writeValueAsString(tree).replace(iban, iban.substring(0, 20) + (iban.charAt(20) == 'A' ? 'B' : 'A') + iban.substring(21));
+        assertThrows(Exception.class, () -> mapper.readValue(tampered, Account.class));
+
+        String billing = tree.get("billing").asText();
+        String lazyTampered = mapper.writeValueAsString(tree).replace(billing, billing.substring(0, 20) + (billing.charAt(20) == 'A' ? 'B' : 'A') + billing.substring(21));
+        Account read = mapper.readValue(lazyTampered, Account.class);
+        assertThrows(CryptOperationException.class, () -> read.billing.get());
+    }
+}
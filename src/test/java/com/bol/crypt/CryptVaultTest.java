@@ -1,13 +1,25 @@
 package com.bol.crypt;
 
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import javax.crypto.Cipher;
 import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -171,4 +183,377 @@ public class CryptVaultTest {
         assertThat(new String(cryptVault.decrypt(firstEncryptedBlob))).isEqualTo(plaintext);
         assertThat(new String(cryptVault.decrypt(secondEncryptedBlob))).isEqualTo(plaintext);
     }
+
+    @Test
+    public void pooledCiphersAreReusedPerThread() throws Exception {
+        var first = CipherPool.THREAD_LOCAL.get("AES/CBC/PKCS5Padding", null);
+        var second = CipherPool.THREAD_LOCAL.get("AES/CBC/PKCS5Padding", null);
+        assertThat(second).isSameAs(first);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            var fromOtherThread = executor.submit(() -> CipherPool.THREAD_LOCAL.get("AES/CBC/PKCS5Padding", null)).get();
+            assertThat(fromOtherThread).isNotSameAs(first);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void failedDecryptionDoesNotLeakIntoNextCall() {
+        byte[] key = "2~_J2#Kb=_xV3!wMmX3}LAny0fie7:hT".getBytes(StandardCharsets.UTF_8);
+        var vault = CryptVault.of(KeyVersions.of(new KeyVersion(1, "AES/GCM/NoPadding", key)));
+
+        byte[] blob = vault.encrypt(plainBytes);
+        byte[] tampered = blob.clone();
+        tampered[tampered.length - 1] ^= 1;
+
+        assertThrows(CryptOperationException.class, () -> vault.decrypt(tampered));
+        assertThat(vault.decrypt(blob)).isEqualTo(plainBytes);
+        assertThat(vault.decrypt(vault.encrypt(plainBytes))).isEqualTo(plainBytes);
+    }
+
+    @Test
+    public void keyVersionsSharingTransformationDoNotShareKeys() {
+        // AEAD, so that decrypting under the wrong key is certain to fail instead of passing the padding check by chance
+        var firstKey = new KeyVersion(1, "AES/GCM/NoPadding", keyBase64);
+        var otherKey = new KeyVersion(2, "AES/GCM/NoPadding", "IqWTpi549pJDZ1kuc9HppcMxtPfu2SP6Idlh+tz4LL4=");
+        var cryptVault = CryptVault.of(KeyVersions.of(firstKey, otherKey));
+
+        byte[] underFirst = cryptVault.encrypt(firstKey, plainBytes);
+        byte[] underSecond = cryptVault.encrypt(otherKey, plainBytes);
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(cryptVault.decrypt(underFirst)).isEqualTo(plainBytes);
+            assertThat(cryptVault.decrypt(underSecond)).isEqualTo(plainBytes);
+        }
+
+        // decrypting with the other key must not silently succeed just because the cipher was reused
+        underSecond[1] = (byte) 1;
+        byte[] mixedUp = underSecond;
+        assertThrows(CryptOperationException.class, () -> cryptVault.decrypt(mixedUp));
+    }
+
+    @Test
+    public void concurrentRoundTripsWithPooledCiphers() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < 500; i++) {
+                        byte[] cleartext = (plaintext + i).getBytes(StandardCharsets.UTF_8);
+                        if (!Arrays.equals(cryptVault.decrypt(cryptVault.encrypt(cleartext)), cleartext)) return false;
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertThat(result.get()).isTrue();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void disabledCipherPoolingStillRoundTrips() {
+        cryptVault.setCipherPooling(false);
+        byte[] blob = cryptVault.encrypt(plainBytes);
+        assertThat(cryptVault.decrypt(blob)).isEqualTo(plainBytes);
+    }
+
+    @Test
+    public void encryptedSizeIsExact() {
+        byte[] key = "2~_J2#Kb=_xV3!wMmX3}LAny0fie7:hT".getBytes(StandardCharsets.UTF_8);
+        var vault = CryptVault.of(KeyVersions.of(
+                new KeyVersion(1, "AES/CBC/PKCS5Padding", key),
+                new KeyVersion(2, "AES/GCM/NoPadding", key),
+                new KeyVersion(3, "AES/CTR/NoPadding", key),
+                new KeyVersion(4, "AES/ECB/PKCS5Padding", key),
+                new KeyVersion(5, "ChaCha20-Poly1305", key)));
+
+        for (int version = 1; version <= 5; version++) {
+            var keyVersion = vault.keyVersions.get(version).orElseThrow();
+            for (int length = 0; length <= 40; length++) {
+                assertThat(vault.encryptedSize(keyVersion, length))
+                        .as("%s with %d bytes", keyVersion.transformation, length)
+                        .isEqualTo(vault.encrypt(keyVersion, new byte[length]).length);
+            }
+        }
+    }
+
+    @Test
+    public void byteBufferRoundTrip() {
+        var keyVersion = cryptVault.keyVersions.getDefault();
+        for (boolean direct : new boolean[]{false, true}) {
+            int size = cryptVault.encryptedSize(keyVersion, plainBytes.length);
+            ByteBuffer cleartext = direct ? ByteBuffer.allocateDirect(plainBytes.length) : ByteBuffer.allocate(plainBytes.length);
+            cleartext.put(plainBytes).flip();
+            ByteBuffer blob = direct ? ByteBuffer.allocateDirect(size + 7) : ByteBuffer.allocate(size + 7);
+            blob.position(7);
+
+            assertThat(cryptVault.encrypt(keyVersion, cleartext, blob)).isEqualTo(size);
+            assertThat(cleartext.hasRemaining()).isFalse();
+            assertThat(blob.position()).isEqualTo(7 + size);
+
+            blob.flip().position(7);
+            assertThat(cryptVault.maxDecryptedSize(blob)).isGreaterThanOrEqualTo(plainBytes.length);
+            ByteBuffer recovered = direct ? ByteBuffer.allocateDirect(cryptVault.maxDecryptedSize(blob)) : ByteBuffer.allocate(cryptVault.maxDecryptedSize(blob));
+            assertThat(cryptVault.decrypt(blob, recovered)).isEqualTo(plainBytes.length);
+            assertThat(blob.hasRemaining()).isFalse();
+
+            byte[] recoveredBytes = new byte[recovered.flip().remaining()];
+            recovered.get(recoveredBytes);
+            assertThat(recoveredBytes).isEqualTo(plainBytes);
+        }
+    }
+
+    @Test
+    public void byteBufferBlobsAreInterchangeableWithByteArrayBlobs() {
+        byte[] blob = cryptVault.encrypt(plainBytes);
+        ByteBuffer recovered = ByteBuffer.allocate(cryptVault.maxDecryptedSize(blob));
+        cryptVault.decrypt(ByteBuffer.wrap(blob), recovered);
+        assertThat(Arrays.copyOf(recovered.array(), recovered.position())).isEqualTo(plainBytes);
+
+        ByteBuffer encrypted = ByteBuffer.allocate(cryptVault.encryptedSize(cryptVault.keyVersions.getDefault(), plainBytes.length));
+        cryptVault.encrypt(ByteBuffer.wrap(plainBytes), encrypted);
+        assertThat(cryptVault.decrypt(encrypted.array())).isEqualTo(plainBytes);
+    }
+
+    @Test
+    public void offsetRoundTrip() {
+        var keyVersion = cryptVault.keyVersions.getDefault();
+        byte[] cleartext = new byte[5 + plainBytes.length + 5];
+        System.arraycopy(plainBytes, 0, cleartext, 5, plainBytes.length);
+        byte[] blob = new byte[3 + cryptVault.encryptedSize(keyVersion, plainBytes.length)];
+
+        int blobLength = cryptVault.encrypt(keyVersion, cleartext, 5, plainBytes.length, blob, 3);
+        assertThat(blobLength).isEqualTo(blob.length - 3);
+
+        byte[] recovered = new byte[2 + cryptVault.maxDecryptedSize(Arrays.copyOfRange(blob, 3, blob.length))];
+        int recoveredLength = cryptVault.decrypt(blob, 3, blobLength, recovered, 2);
+        assertThat(Arrays.copyOfRange(recovered, 2, 2 + recoveredLength)).isEqualTo(plainBytes);
+    }
+
+    @Test
+    public void tooSmallBufferLeavesBuffersUntouched() {
+        var keyVersion = cryptVault.keyVersions.getDefault();
+        ByteBuffer cleartext = ByteBuffer.wrap(plainBytes);
+        ByteBuffer blob = ByteBuffer.allocate(cryptVault.encryptedSize(keyVersion, plainBytes.length) - 1);
+
+        assertThrows(CryptOperationException.class, () -> cryptVault.encrypt(keyVersion, cleartext, blob));
+        assertThat(cleartext.position()).isZero();
+        assertThat(blob.position()).isZero();
+
+        ByteBuffer encrypted = ByteBuffer.wrap(cryptVault.encrypt(plainBytes));
+        assertThrows(CryptOperationException.class, () -> cryptVault.decrypt(encrypted, ByteBuffer.allocate(4)));
+        assertThat(encrypted.position()).isZero();
+    }
+
+    @Test
+    public void batchRoundTripAcrossKeyVersions() {
+        var secondKeyVersion = new KeyVersion(2, "AES/GCM/NoPadding", "IqWTpi549pJDZ1kuc9HppcMxtPfu2SP6Idlh+tz4LL4=");
+        cryptVault.keyVersions.addVersion(secondKeyVersion);
+        var firstKeyVersion = cryptVault.keyVersions.get(1).orElseThrow();
+
+        List<byte[]> cleartexts = new ArrayList<>();
+        for (int i = 0; i < 10; i++) cleartexts.add((plaintext + i).getBytes(StandardCharsets.UTF_8));
+
+        BatchResult underFirst = cryptVault.encryptAll(firstKeyVersion, cleartexts);
+        BatchResult underSecond = cryptVault.encryptAll(cleartexts);
+        assertThat(underFirst.hasFailures()).isFalse();
+        assertThat(underSecond.get(0)[1]).isEqualTo((byte) 2);
+
+        // interleave key versions, so grouping has to restore the original order
+        List<byte[]> blobs = new ArrayList<>();
+        for (int i = 0; i < 10; i++) blobs.add(i % 2 == 0 ? underFirst.get(i) : underSecond.get(i));
+        blobs.add(cryptVault.encryptSegmented(plainBytes));
+
+        BatchResult decrypted = cryptVault.decryptAll(blobs);
+        assertThat(decrypted.size()).isEqualTo(11);
+        assertThat(decrypted.hasFailures()).isFalse();
+        for (int i = 0; i < 10; i++) assertThat(decrypted.get(i)).isEqualTo(cleartexts.get(i));
+        assertThat(decrypted.get(10)).isEqualTo(plainBytes);
+    }
+
+    @Test
+    public void batchReportsFailuresPerItem() {
+        byte[] good = cryptVault.encrypt(plainBytes);
+        byte[] unknownKeyVersion = good.clone();
+        unknownKeyVersion[1] = 9;
+        // tampered under an AEAD key version, so that it fails authentication every time
+        var aead = new KeyVersion(2, "AES/GCM/NoPadding", keyBase64);
+        cryptVault.keyVersions.addVersion(aead);
+        byte[] corrupt = cryptVault.encrypt(aead, plainBytes);
+        corrupt[corrupt.length - 1] ^= 1;
+
+        BatchResult result = cryptVault.decryptAll(Arrays.asList(good, unknownKeyVersion, new byte[]{0}, null, corrupt, good));
+
+        assertThat(result.hasFailures()).isTrue();
+        assertThat(result.getFailures()).containsOnlyKeys(1, 2, 3, 4);
+        assertThat(result.isSuccess(0)).isTrue();
+        assertThat(result.get(5)).isEqualTo(plainBytes);
+        assertThat(result.getValues().get(1)).isNull();
+        assertThat(result.getFailure(1).getMessage()).startsWith("key version in encrypted blob is unknown");
+        assertThrows(CryptOperationException.class, () -> result.get(4));
+
+        var legacy = new KeyVersion(3, "AES/CBC/PKCS5Padding", keyBase64, true);
+        BatchResult encrypted = cryptVault.encryptAll(legacy, List.of(plainBytes));
+        assertThat(encrypted.getFailure(0).getMessage()).startsWith("cannot encrypt with legacy key version");
+    }
+
+    @Test
+    public void largeBatchFansOut() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            cryptVault.setForkJoinPool(pool);
+            List<byte[]> cleartexts = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) cleartexts.add((plaintext + i).getBytes(StandardCharsets.UTF_8));
+
+            BatchResult decrypted = cryptVault.decryptAll(cryptVault.encryptAll(cleartexts).getValues());
+            assertThat(decrypted.hasFailures()).isFalse();
+            assertThat(decrypted.getValues()).containsExactlyElementsOf(cleartexts);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void metricsRecordOperationsPerKeyVersion() {
+        var registry = new SimpleMeterRegistry();
+        cryptVault.setMetrics(new MicrometerCryptMetrics(registry));
+
+        byte[] blob = cryptVault.encrypt(plainBytes);
+        cryptVault.decrypt(blob);
+        cryptVault.decrypt(ByteBuffer.wrap(blob), ByteBuffer.allocate(blob.length));
+
+        Timer encrypt = registry.get("cryptvault.encrypt").tag("key.version", "1").tag("transformation", "AES/CBC/PKCS5Padding").tag("legacy", "false").timer();
+        assertThat(encrypt.count()).isEqualTo(1);
+        assertThat(registry.get("cryptvault.decrypt").tag("key.version", "1").timer().count()).isEqualTo(2);
+        assertThat(registry.get("cryptvault.decrypt.size").summary().totalAmount()).isEqualTo(2 * plainBytes.length);
+    }
+
+    @Test
+    public void metricsRecordLegacyKeyVersionsWrappingAround() throws Exception {
+        var registry = new SimpleMeterRegistry();
+        cryptVault.setMetrics(new MicrometerCryptMetrics(registry));
+        cryptVault.keyVersions.addVersion(new KeyVersion(200, "AES/CBC/PKCS5Padding", keyBase64, true));
+
+        // version 200 is written as (byte) (200 + 128), i.e. 72
+        byte[] blob = legacyBlob(200, plainBytes);
+        assertThat(blob[0]).isEqualTo((byte) 72);
+        assertThat(cryptVault.decrypt(blob)).isEqualTo(plainBytes);
+        assertThat(cryptVault.decrypt(ByteBuffer.wrap(blob), ByteBuffer.allocate(blob.length))).isEqualTo(plainBytes.length);
+
+        assertThat(registry.get("cryptvault.decrypt").tag("key.version", "200").tag("legacy", "true").timer().count()).isEqualTo(2);
+    }
+
+    private static byte[] legacyBlob(int version, byte[] cleartext) throws Exception {
+        byte[] iv = new byte[16];
+        new SecureRandom().nextBytes(iv);
+        var cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(Base64.getDecoder().decode(keyBase64), "AES"), new IvParameterSpec(iv));
+        byte[] ciphertext = cipher.doFinal(cleartext);
+        byte[] blob = new byte[1 + iv.length + ciphertext.length];
+        blob[0] = (byte) (version + Byte.MIN_VALUE);
+        System.arraycopy(iv, 0, blob, 1, iv.length);
+        System.arraycopy(ciphertext, 0, blob, 1 + iv.length, ciphertext.length);
+        return blob;
+    }
+
+    @Test
+    public void metricsCountFailuresByCause() {
+        var registry = new SimpleMeterRegistry();
+        cryptVault.setMetrics(new MicrometerCryptMetrics(registry));
+
+        byte[] corrupt = cryptVault.encrypt(plainBytes);
+        corrupt[corrupt.length - 1] ^= 1;
+        byte[] unknownKeyVersion = corrupt.clone();
+        unknownKeyVersion[1] = 9;
+        assertThrows(CryptOperationException.class, () -> cryptVault.decrypt(corrupt));
+        assertThrows(CryptOperationException.class, () -> cryptVault.decrypt(unknownKeyVersion));
+
+        assertThat(registry.get("cryptvault.failures").tag("key.version", "1").tag("cause", "BadPaddingException").counter().count()).isEqualTo(1);
+        assertThat(registry.get("cryptvault.failures").tag("key.version", "unknown").tag("cause", "none").counter().count()).isEqualTo(1);
+        assertThat(registry.find("cryptvault.decrypt").timer()).isNull();
+    }
+
+    @Test
+    public void compactBlobsRoundTripForEveryIvTransformation() {
+        byte[] aesKey = Base64.getDecoder().decode(keyBase64);
+        var keyVersions = KeyVersions.of(
+                new KeyVersion(1, "AES/CBC/PKCS5Padding", aesKey),
+                new KeyVersion(2, "AES/GCM/NoPadding", aesKey),
+                new KeyVersion(3, "AES/CTR/NoPadding", aesKey),
+                new KeyVersion(4, "AES/ECB/PKCS5Padding", aesKey),
+                new KeyVersion(5, "ChaCha20-Poly1305", aesKey));
+        var vault = CryptVault.of(keyVersions);
+        var v0Vault = CryptVault.of(keyVersions);
+        vault.setCompactBlobs(true);
+
+        for (int version = 1; version <= 5; version++) {
+            var keyVersion = keyVersions.get(version).orElseThrow();
+            byte[] blob = vault.encrypt(keyVersion, plainBytes);
+            byte[] v0Blob = v0Vault.encrypt(keyVersion, plainBytes);
+
+            assertThat(blob[0]).isEqualTo(CompactBlobs.PROTO_VERSION);
+            assertThat(blob.length).isLessThanOrEqualTo(v0Blob.length);
+            assertThat(blob.length).isEqualTo(vault.encryptedSize(keyVersion, plainBytes.length));
+            assertThat(vault.decrypt(blob)).isEqualTo(plainBytes);
+            assertThat(vault.decrypt(v0Blob)).isEqualTo(plainBytes);
+            assertThat(v0Vault.decrypt(blob)).isEqualTo(plainBytes);
+
+            ByteBuffer cleartext = ByteBuffer.allocateDirect(vault.maxDecryptedSize(blob));
+            vault.decrypt(ByteBuffer.wrap(blob), cleartext);
+            assertThat(cleartext.flip()).isEqualTo(ByteBuffer.wrap(plainBytes));
+        }
+    }
+
+    @Test
+    public void compactBlobsKeepCustomGcmTagLength() {
+        var keyVersion = new KeyVersion(2, "AES/GCM/NoPadding", keyBase64);
+        var vault = CryptVault.of(KeyVersions.of(keyVersion));
+        vault.setCompactBlobs(true);
+
+        byte[] iv = new byte[12];
+        new SecureRandom().nextBytes(iv);
+        byte[] blob = vault.encrypt(keyVersion, plainBytes, new GCMParameterSpec(96, iv));
+
+        assertThat(blob[2]).isEqualTo((byte) 12);
+        assertThat(blob[3]).isEqualTo((byte) 12);
+        assertThat(blob.length).isEqualTo(4 + 12 + plainBytes.length + 12);
+        assertThat(vault.decrypt(blob)).isEqualTo(plainBytes);
+    }
+
+    @Test
+    public void compactBlobsFailCleanlyWhenTruncated() {
+        cryptVault.setCompactBlobs(true);
+        byte[] blob = cryptVault.encrypt(plainBytes);
+
+        var t = assertThrows(CryptOperationException.class, () -> cryptVault.decrypt(Arrays.copyOf(blob, 3 + 5)));
+        assertThat(t.getMessage()).isEqualTo("compact blob is truncated");
+    }
+
+    @Test
+    public void pinnedProviderIsUsed() {
+        byte[] key = Base64.getDecoder().decode(keyBase64);
+        var pinned = new KeyVersion(2, "AES/GCM/NoPadding", key, false, "SunJCE");
+        var vault = CryptVault.of(KeyVersions.of(pinned));
+
+        assertThat(vault.decrypt(vault.encrypt(plainBytes))).isEqualTo(plainBytes);
+        assertThat(vault.keyVersions.plan(2).provider.getName()).isEqualTo("SunJCE");
+
+        var t = assertThrows(IllegalArgumentException.class, () -> KeyVersions.of(new KeyVersion(3, "AES/GCM/NoPadding", key, false, "NoSuchProvider")));
+        assertThat(t.getMessage()).isEqualTo("provider NoSuchProvider of key version 3 is not installed");
+    }
+
+    @Test
+    public void tuningPicksAProviderThatRoundTrips() {
+        var result = ProviderTuning.tune("AES/CBC/PKCS5Padding", Base64.getDecoder().decode(keyBase64));
+
+        assertThat(result.getProvider()).isNotNull();
+        assertThat(result.getOpsPerSecond()).containsKey(result.getProvider());
+        assertThat(result.getOpsPerSecond().get(result.getProvider())).isPositive();
+    }
 }
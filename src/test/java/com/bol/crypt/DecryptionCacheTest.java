@@ -0,0 +1,160 @@
+package com.bol.crypt;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class DecryptionCacheTest {
+    private static final String oldKey = "VGltVGhlSW5jcmVkaWJsZURldmVsb3BlclNlY3JldCE=";
+    private static final String newKey = "ge2L+MA9jLA8UiUJ4z5fUoK+Lgj2yddlL6EzYIBqb1Q=";
+    private static final byte[] plainBytes = "Lorem ipsum dolor sit amet".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void repeatedDecryptionsHitTheCache() {
+        var cryptVault = CryptVault.of(KeyVersions.of(new KeyVersion(1, "AES/GCM/NoPadding", oldKey)));
+        var cache = new DecryptionCache();
+        cryptVault.setDecryptionCache(cache);
+        var registry = new SimpleMeterRegistry();
+        cryptVault.setMetrics(new MicrometerCryptMetrics(registry));
+        byte[] blob = cryptVault.encrypt(plainBytes);
+
+        byte[] first = cryptVault.decrypt(blob);
+        Arrays.fill(first, (byte) 0);
+        byte[] second = cryptVault.decrypt(blob.clone());
+
+        assertThat(second).isEqualTo(plainBytes);
+        assertThat(cache.getMisses()).isEqualTo(1);
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getHitRatio()).isEqualTo(0.5);
+        assertThat(registry.get("cryptvault.decrypt.cache").tag("result", "hit").counter().count()).isEqualTo(1);
+        assertThat(registry.get("cryptvault.decrypt").timer().count()).isEqualTo(2);
+
+        // another blob of the same cleartext is another entry
+        cryptVault.decrypt(cryptVault.encrypt(plainBytes));
+        assertThat(cache.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void cleartextsAreBoundToTheirKeyVersion() {
+        var cache = new DecryptionCache();
+        var cryptVault = CryptVault.of(KeyVersions.of(new KeyVersion(1, "AES/GCM/NoPadding", oldKey)));
+        cryptVault.setDecryptionCache(cache);
+        var other = CryptVault.of(KeyVersions.of(new KeyVersion(1, "AES/GCM/NoPadding", newKey)));
+        other.setDecryptionCache(cache);
+        byte[] blob = cryptVault.encrypt(plainBytes);
+        cryptVault.decrypt(blob);
+
+        // the same key version under another key does not see the cleartext
+        assertThrows(CryptOperationException.class, () -> other.decrypt(blob));
+        assertThat(cache.getEvictions()).isEqualTo(1);
+        assertThat(cache.getHits()).isZero();
+    }
+
+    @Test
+    public void boundedInSizeAndTime() throws Exception {
+        var cryptVault = CryptVault.of(KeyVersions.of(new KeyVersion(1, "AES/GCM/NoPadding", oldKey)));
+        var cache = new DecryptionCache(32, Duration.ofMillis(50));
+        cryptVault.setDecryptionCache(cache);
+
+        for (int i = 0; i < 1000; i++) cryptVault.decrypt(cryptVault.encrypt(plainBytes));
+        assertThat(cache.size()).isBetween(1, 32);
+
+        Thread.sleep(100);
+        cache.cleanUp();
+        assertThat(cache.size()).isZero();
+        assertThat(cache.getEvictions()).isEqualTo(1000);
+    }
+
+    @Test
+    public void largeCleartextsAreNotCached() {
+        var cryptVault = CryptVault.of(KeyVersions.of(new KeyVersion(1, "AES/GCM/NoPadding", oldKey)));
+        var cache = new DecryptionCache();
+        cache.setMaximumCleartextSize(1024);
+        cryptVault.setDecryptionCache(cache);
+
+        byte[] large = new byte[2048];
+        cryptVault.decrypt(cryptVault.encrypt(large));
+        cryptVault.decrypt(cryptVault.encrypt(plainBytes));
+        assertThat(cache.size()).isEqualTo(1);
+
+        // compressed blobs are judged by the cleartext length they record
+        cryptVault.setCompression(1, CompressionCodec.deflate(), 0);
+        byte[] compressed = cryptVault.encrypt(large);
+        assertThat(compressed.length).isLessThan(1024);
+        assertThat(cryptVault.decrypt(compressed)).isEqualTo(large);
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(1);
+    }
+
+    @Test
+    public void legacyBlobsCanBypassTheCache() throws Exception {
+        var keyVersions = KeyVersions.of(new KeyVersion(1, "AES/GCM/NoPadding", oldKey));
+        keyVersions.addVersion(new KeyVersion(2, "AES/CBC/PKCS5Padding", newKey, true));
+        var cryptVault = CryptVault.of(keyVersions);
+        var cache = new DecryptionCache();
+        cryptVault.setDecryptionCache(cache);
+
+        byte[] iv = new byte[16];
+        var cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(Base64.getDecoder().decode(newKey), "AES"), new IvParameterSpec(iv));
+        byte[] ciphertext = cipher.doFinal(plainBytes);
+        byte[] legacyBlob = new byte[1 + 16 + ciphertext.length];
+        legacyBlob[0] = (byte) (0x80 + 2);
+        System.arraycopy(ciphertext, 0, legacyBlob, 17, ciphertext.length);
+
+        assertThat(cryptVault.decrypt(legacyBlob)).isEqualTo(plainBytes);
+        assertThat(cache.size()).isEqualTo(1);
+
+        // legacy versions from 128 on wrap around: version 200 is written as 72
+        keyVersions.addVersion(new KeyVersion(200, "AES/CBC/PKCS5Padding", newKey, true));
+        byte[] wrappedAround = legacyBlob.clone();
+        wrappedAround[0] = 72;
+        assertThat(cryptVault.decrypt(wrappedAround)).isEqualTo(plainBytes);
+        assertThat(cryptVault.decrypt(wrappedAround)).isEqualTo(plainBytes);
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.getHits()).isEqualTo(1);
+
+        cache.clear();
+        cache.setBypassLegacy(true);
+        assertThat(cryptVault.decrypt(legacyBlob)).isEqualTo(plainBytes);
+        assertThat(cryptVault.decrypt(wrappedAround)).isEqualTo(plainBytes);
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    public void concurrentLookupsAgree() throws Exception {
+        var cryptVault = CryptVault.of(KeyVersions.of(new KeyVersion(1, "AES/GCM/NoPadding", oldKey)));
+        cryptVault.setDecryptionCache(new DecryptionCache(64, Duration.ofMinutes(1)));
+        byte[][] hot = new byte[100][];
+        for (int i = 0; i < hot.length; i++) hot[i] = cryptVault.encrypt(Arrays.copyOf(plainBytes, i));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = executor.invokeAll(Collections.nCopies(8, () -> {
+                for (int i = 0; i < 5000; i++) {
+                    int n = i % hot.length;
+                    if (!Arrays.equals(Arrays.copyOf(plainBytes, n), cryptVault.decrypt(hot[n]))) return false;
+                }
+                return true;
+            }));
+            for (Future<Boolean> result : results) assertThat(result.get()).isTrue();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.bol.crypt;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class DeterministicEncryptionTest {
+    private static final byte[] sivKey = HexFormat.of().parseHex("fffefdfcfbfaf9f8f7f6f5f4f3f2f1f0f0f1f2f3f4f5f6f7f8f9fafbfcfdfeff");
+    private static final String keyBase64 = "VGltVGhlSW5jcmVkaWJsZURldmVsb3BlclNlY3JldCE=";
+    private static final byte[] plainBytes = "someone@example.com".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void rfc5297TestVector() {
+        // RFC 5297, appendix A.1
+        var siv = new Siv(1, sivKey, null, HexFormat.of().parseHex("101112131415161718191a1b1c1d1e1f2021222324252627"));
+        byte[] blob = siv.encrypt(CipherPool.NONE, HexFormat.of().parseHex("112233445566778899aabbccddee"));
+
+        assertThat(HexFormat.of().formatHex(blob, Siv.HEADER_LENGTH, blob.length))
+                .isEqualTo("85632d07c6e8f37f950acd320a2ecc9340c02b9690c4dc04daef7f6afe5c");
+    }
+
+    @Test
+    public void equalCleartextsGiveEqualBlobs() {
+        var cryptVault = CryptVault.of(KeyVersions.of(new KeyVersion(7, "AES/SIV/NoPadding", sivKey)));
+        byte[] cleartext = new byte[40];
+        for (int i = 0; i < cleartext.length; i++) cleartext[i] = (byte) i;
+
+        byte[] blob = cryptVault.encrypt(cleartext);
+
+        // computed with another AES-SIV implementation, with the header as associated data
+        assertThat(HexFormat.of().formatHex(blob)).isEqualTo("0507"
+                + "8d7c3818771ff24c9bb1ad2ae60676edc57234f15311315bbee23be225f458ca8a53eff216e70655105d1604959231df3e6b44628f24fd71");
+        assertThat(cryptVault.encrypt(cleartext)).isEqualTo(blob);
+        assertThat(cryptVault.decrypt(blob)).isEqualTo(cleartext);
+        assertThat(cryptVault.keyVersionOf(blob)).isEqualTo(7);
+
+        for (int length : new int[]{0, 1, 15, 16, 17, 32, 1000}) {
+            byte[] value = Arrays.copyOf(plainBytes, length);
+            assertThat(cryptVault.decrypt(cryptVault.encrypt(value))).isEqualTo(value);
+            assertThat(cryptVault.encryptedSize(cryptVault.keyVersions.getDefault(), length)).isEqualTo(cryptVault.encrypt(value).length);
+        }
+    }
+
+    @Test
+    public void tamperedBlobsFailAuthentication() {
+        var cryptVault = CryptVault.of(KeyVersions.of(new KeyVersion(7, "AES/SIV/NoPadding", sivKey)));
+        byte[] blob = cryptVault.encrypt(plainBytes);
+
+        for (int i : new int[]{2, 17, 18, blob.length - 1}) {
+            byte[] tampered = blob.clone();
+            tampered[i] ^= 1;
+            assertThrows(CryptOperationException.class, () -> cryptVault.decrypt(tampered));
+        }
+
+        byte[] cleartext = new byte[cryptVault.maxDecryptedSize(blob)];
+        byte[] tampered = blob.clone();
+        tampered[blob.length - 1] ^= 1;
+        var buffer = ByteBuffer.wrap(cleartext);
+        assertThrows(CryptOperationException.class, () -> cryptVault.decrypt(ByteBuffer.wrap(tampered), buffer));
+        assertThat(buffer.position()).isZero();
+        assertThat(cleartext).containsOnly(0);
+
+        cryptVault.decrypt(ByteBuffer.wrap(blob), buffer);
+        assertThat(cleartext).isEqualTo(plainBytes);
+    }
+
+    @Test
+    public void lookupCoversRotation() {
+        var old = new KeyVersion(1, "AES/SIV/NoPadding", sivKey);
+        var random = new KeyVersion(2, "AES/GCM/NoPadding", keyBase64);
+        var keyVersions = KeyVersions.of(old, random);
+        var cryptVault = CryptVault.of(keyVersions);
+
+        byte[] stored = cryptVault.encrypt(old, plainBytes);
+        var t = assertThrows(CryptOperationException.class, () -> cryptVault.rotate(stored));
+        assertThat(t.getMessage()).isEqualTo("cannot rotate deterministic blob to key version 2, which is not deterministic");
+
+        byte[] newKey = sivKey.clone();
+        newKey[0] ^= 1;
+        keyVersions.addVersion(new KeyVersion(3, "AES/SIV/NoPadding", newKey));
+        assertThat(cryptVault.needsRotation(stored)).isTrue();
+        byte[] rotated = cryptVault.rotate(stored);
+
+        assertThat(rotated).isNotEqualTo(stored);
+        assertThat(cryptVault.encryptForLookup(plainBytes)).containsExactly(rotated, stored);
+        assertThat(cryptVault.decrypt(rotated)).isEqualTo(plainBytes);
+    }
+
+    @Test
+    public void keyMustHoldTwoAesKeys() {
+        var t = assertThrows(IllegalArgumentException.class, () -> KeyVersions.of(new KeyVersion(1, "AES/SIV/NoPadding", keyBase64.substring(0, 24))));
+        assertThat(t.getMessage()).isEqualTo("AES-SIV key of key version 1 should be 32, 48 or 64 bytes long, was 18");
+    }
+}
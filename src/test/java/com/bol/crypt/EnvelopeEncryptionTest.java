@@ -0,0 +1,144 @@
+package com.bol.crypt;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class EnvelopeEncryptionTest {
+    private static final String keyBase64 = "VGltVGhlSW5jcmVkaWJsZURldmVsb3BlclNlY3JldCE=";
+    private static final byte[] plainBytes = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+
+    private final KeyVersions keyVersions = KeyVersions.of(
+            new KeyVersion(1, "AES/CBC/PKCS5Padding", keyBase64),
+            new KeyVersion(2, "AES/GCM/NoPadding", keyBase64));
+    private final CountingKeyEncryptionService service = new CountingKeyEncryptionService();
+
+    @Test
+    public void dataKeyIsSharedAndCached() {
+        var cryptVault = CryptVault.of(keyVersions);
+        cryptVault.setEnvelopeEncryption(service, new DataKeyCache());
+
+        byte[] first = cryptVault.encryptEnveloped(plainBytes);
+        byte[] second = cryptVault.encryptEnveloped(plainBytes);
+
+        assertThat(first[0]).isEqualTo(Envelopes.PROTO_VERSION);
+        assertThat(first[1]).isEqualTo((byte) 2);
+        assertThat(first).isNotEqualTo(second);
+        assertThat(Arrays.copyOf(first, Envelopes.headerLength(first, first.length))).isEqualTo(Arrays.copyOf(second, Envelopes.headerLength(second, second.length)));
+        assertThat(cryptVault.decrypt(first)).isEqualTo(plainBytes);
+        assertThat(cryptVault.decrypt(second)).isEqualTo(plainBytes);
+        assertThat(service.wraps.get()).isEqualTo(1);
+        assertThat(service.unwraps.get()).isZero();
+
+        var cache = new DataKeyCache();
+        var reader = CryptVault.of(keyVersions);
+        reader.setEnvelopeEncryption(service, cache);
+        assertThat(reader.decrypt(first)).isEqualTo(plainBytes);
+        assertThat(reader.decrypt(second)).isEqualTo(plainBytes);
+        assertThat(service.unwraps.get()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(1);
+        assertThat(cache.getHits()).isEqualTo(1);
+    }
+
+    @Test
+    public void dataKeyPerBlob() {
+        var cryptVault = CryptVault.of(keyVersions);
+        cryptVault.setEnvelopeEncryption(service, new DataKeyCache(), 1);
+
+        byte[] first = cryptVault.encryptEnveloped(keyVersions.get(1).orElseThrow(), plainBytes);
+        byte[] second = cryptVault.encryptEnveloped(keyVersions.get(1).orElseThrow(), plainBytes);
+
+        assertThat(service.wraps.get()).isEqualTo(2);
+        assertThat(Arrays.copyOfRange(first, 4, 44)).isNotEqualTo(Arrays.copyOfRange(second, 4, 44));
+        assertThat(cryptVault.decrypt(first)).isEqualTo(plainBytes);
+        assertThat(cryptVault.decrypt(second)).isEqualTo(plainBytes);
+    }
+
+    @Test
+    public void byteBufferDecryption() {
+        var cryptVault = CryptVault.of(keyVersions);
+        cryptVault.setEnvelopeEncryption(service, new DataKeyCache());
+        byte[] blob = cryptVault.encryptEnveloped(plainBytes);
+
+        ByteBuffer cleartext = ByteBuffer.allocate(cryptVault.maxDecryptedSize(blob));
+        cryptVault.decrypt(ByteBuffer.wrap(blob), cleartext);
+
+        assertThat(Arrays.copyOf(cleartext.array(), cleartext.position())).isEqualTo(plainBytes);
+    }
+
+    @Test
+    public void tamperedHeaderFailsAuthentication() {
+        var cryptVault = CryptVault.of(keyVersions);
+        cryptVault.setEnvelopeEncryption(KeyEncryptionService.local(), new DataKeyCache());
+        byte[] blob = cryptVault.encryptEnveloped(plainBytes);
+
+        byte[] wrongWrappedKey = blob.clone();
+        wrongWrappedKey[10] ^= 1;
+        assertThrows(CryptOperationException.class, () -> cryptVault.decrypt(wrongWrappedKey));
+
+        byte[] wrongCiphertext = blob.clone();
+        wrongCiphertext[blob.length - 1] ^= 1;
+        assertThrows(CryptOperationException.class, () -> cryptVault.decrypt(wrongCiphertext));
+
+        var t = assertThrows(CryptOperationException.class, () -> CryptVault.of(keyVersions).decrypt(blob));
+        assertThat(t.getMessage()).isEqualTo("envelope encryption is not enabled; hint: set a KeyEncryptionService");
+    }
+
+    @Test
+    public void evictedDataKeysAreZeroed() {
+        var cache = new DataKeyCache(1, Duration.ofHours(1));
+        byte[] first = new byte[32];
+        Arrays.fill(first, (byte) 1);
+        var firstKey = new DataKey(first);
+        cache.put(1, new byte[]{1}, firstKey);
+        firstKey.release();
+
+        var inUse = cache.get(1, new byte[]{1});
+        assertThat(inUse).isSameAs(firstKey);
+        var secondKey = new DataKey(new byte[32]);
+        cache.put(1, new byte[]{2}, secondKey);
+        secondKey.release();
+
+        // evicted, but still in use
+        assertThat(cache.getEvictions()).isEqualTo(1);
+        assertThat(first).containsOnly(1);
+        inUse.release();
+        assertThat(first).containsOnly(0);
+        assertThat(firstKey.isDestroyed()).isTrue();
+        assertThat(cache.get(1, new byte[]{1})).isNull();
+
+        var expiring = new DataKeyCache(10, Duration.ofNanos(1));
+        byte[] third = new byte[32];
+        Arrays.fill(third, (byte) 3);
+        var thirdKey = new DataKey(third);
+        expiring.put(1, new byte[]{3}, thirdKey);
+        thirdKey.release();
+        assertThat(expiring.get(1, new byte[]{3})).isNull();
+        assertThat(third).containsOnly(0);
+    }
+
+    private static class CountingKeyEncryptionService implements KeyEncryptionService {
+        private final KeyEncryptionService delegate = KeyEncryptionService.local();
+        final AtomicInteger wraps = new AtomicInteger();
+        final AtomicInteger unwraps = new AtomicInteger();
+
+        @Override
+        public byte[] wrap(KeyVersion keyVersion, byte[] dataKey) {
+            wraps.incrementAndGet();
+            return delegate.wrap(keyVersion, dataKey);
+        }
+
+        @Override
+        public byte[] unwrap(KeyVersion keyVersion, byte[] wrappedKey) {
+            unwraps.incrementAndGet();
+            return delegate.unwrap(keyVersion, wrappedKey);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.bol.crypt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class FileEncryptionTest {
+    private static final String keyBase64 = "VGltVGhlSW5jcmVkaWJsZURldmVsb3BlclNlY3JldCE=";
+    private static final int segmentSize = 1000;
+
+    @TempDir
+    Path directory;
+
+    private final KeyVersion keyVersion = new KeyVersion(1, "AES/GCM/NoPadding", keyBase64);
+    private final CryptVault cryptVault = CryptVault.of(KeyVersions.of(keyVersion));
+
+    private Path file(String name, byte[] content) throws Exception {
+        return Files.write(directory.resolve(name), content);
+    }
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void filesRoundTrip() throws Exception {
+        for (int length : new int[]{0, 1, segmentSize - 1, segmentSize, 7 * segmentSize + 123}) {
+            for (boolean parallel : new boolean[]{false, true}) {
+                byte[] cleartext = random(length);
+                Path in = file("in", cleartext);
+                Path encrypted = directory.resolve("encrypted");
+                Path out = directory.resolve("out");
+
+                long size = cryptVault.encryptFile(keyVersion, in, encrypted, segmentSize, parallel);
+                assertThat(size).isEqualTo(Files.size(encrypted));
+                assertThat(cryptVault.decryptFile(encrypted, out, parallel)).isEqualTo(length);
+                assertThat(Files.readAllBytes(out)).isEqualTo(cleartext);
+
+                // the segmented blob format, readable as such
+                assertThat(cryptVault.decrypt(Files.readAllBytes(encrypted))).isEqualTo(cleartext);
+                try (InputStream stream = cryptVault.decryptingStream(Files.newInputStream(encrypted))) {
+                    assertThat(stream.readAllBytes()).isEqualTo(cleartext);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void filesSpanningSeveralWindowsRoundTrip() throws Exception {
+        byte[] cleartext = random(70 * 1024 * 1024 + 17);
+        Path in = file("in", cleartext);
+        Path encrypted = directory.resolve("encrypted");
+        Path out = directory.resolve("out");
+
+        cryptVault.encryptFile(in, encrypted);
+        cryptVault.decryptFile(encrypted, out);
+
+        assertThat(Arrays.equals(Files.readAllBytes(out), cleartext)).isTrue();
+        assertThat(cryptVault.decryptRange(encrypted, 64 * 1024 * 1024 - 10, 20)).isEqualTo(Arrays.copyOfRange(cleartext, 64 * 1024 * 1024 - 10, 64 * 1024 * 1024 + 10));
+    }
+
+    @Test
+    public void rangesDecryptOnlyTheirSegments() throws Exception {
+        byte[] cleartext = random(5 * segmentSize + 500);
+        Path encrypted = directory.resolve("encrypted");
+        cryptVault.encryptFile(keyVersion, file("in", cleartext), encrypted, segmentSize, false);
+
+        int[][] ranges = {{0, 0}, {0, 1}, {999, 2}, {1000, 1000}, {1500, 3000}, {0, cleartext.length}, {cleartext.length - 1, 1}, {cleartext.length, 0}};
+        for (int[] range : ranges) {
+            assertThat(cryptVault.decryptRange(encrypted, range[0], range[1])).isEqualTo(Arrays.copyOfRange(cleartext, range[0], range[0] + range[1]));
+        }
+        assertThrows(IllegalArgumentException.class, () -> cryptVault.decryptRange(encrypted, cleartext.length - 1, 2));
+        assertThrows(IllegalArgumentException.class, () -> cryptVault.decryptRange(encrypted, -1, 2));
+        assertThrows(IllegalArgumentException.class, () -> cryptVault.decryptRange(encrypted, Long.MAX_VALUE, 2));
+
+        // corrupt segment 3; ranges elsewhere still decrypt
+        try (FileChannel channel = FileChannel.open(encrypted, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), Segments.HEADER_LENGTH + 3L * (segmentSize + Segments.TAG_LENGTH) + 10);
+        }
+        assertThat(cryptVault.decryptRange(encrypted, 0, 3 * segmentSize)).isEqualTo(Arrays.copyOfRange(cleartext, 0, 3 * segmentSize));
+        assertThrows(CryptOperationException.class, () -> cryptVault.decryptRange(encrypted, 3 * segmentSize + 5, 1));
+    }
+
+    @Test
+    public void rangesTooLargeToMapAreRejected() throws Exception {
+        Path encrypted = directory.resolve("encrypted");
+        cryptVault.encryptFile(keyVersion, file("in", random(10)), encrypted, segmentSize, false);
+        // sparse, so that it takes no space; the range is rejected before anything is read
+        try (FileChannel channel = FileChannel.open(encrypted, StandardOpenOption.WRITE, StandardOpenOption.SPARSE)) {
+            channel.write(ByteBuffer.wrap(new byte[1]), 3L * 1024 * 1024 * 1024);
+        }
+
+        var e = assertThrows(IllegalArgumentException.class, () -> cryptVault.decryptRange(encrypted, 0, Integer.MAX_VALUE - 8));
+        assertThat(e).hasMessageContaining("decrypt it in parts");
+    }
+
+    @Test
+    public void tamperedFilesLeaveNoCleartextBehind() throws Exception {
+        byte[] cleartext = random(4 * segmentSize);
+        Path encrypted = directory.resolve("encrypted");
+        Path out = directory.resolve("out");
+        cryptVault.encryptFile(keyVersion, file("in", cleartext), encrypted, segmentSize, true);
+        byte[] blob = Files.readAllBytes(encrypted);
+
+        // truncated at a segment boundary: the new last segment is not marked final
+        Files.write(encrypted, Arrays.copyOf(blob, blob.length - segmentSize - Segments.TAG_LENGTH));
+        assertThrows(CryptOperationException.class, () -> cryptVault.decryptFile(encrypted, out));
+        assertThat(out).doesNotExist();
+
+        blob[blob.length - 1] ^= 1;
+        Files.write(encrypted, blob);
+        assertThrows(CryptOperationException.class, () -> cryptVault.decryptFile(encrypted, out, false));
+        assertThat(out).doesNotExist();
+
+        Path in = directory.resolve("in");
+        assertThrows(IllegalArgumentException.class, () -> cryptVault.encryptFile(in, in));
+        assertThat(Files.readAllBytes(in)).isEqualTo(cleartext);
+    }
+}
@@ -0,0 +1,141 @@
+package com.bol.crypt;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IvGeneratorTest {
+    private static final String keyBase64 = "VGltVGhlSW5jcmVkaWJsZURldmVsb3BlclNlY3JldCE=";
+    private static final byte[] plainBytes = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+
+    private final KeyVersions keyVersions = KeyVersions.of(
+            new KeyVersion(1, "AES/CBC/PKCS5Padding", keyBase64),
+            new KeyVersion(2, "AES/GCM/NoPadding", keyBase64),
+            new KeyVersion(3, "AES/CTR/NoPadding", keyBase64),
+            new KeyVersion(4, "AES/ECB/PKCS5Padding", keyBase64),
+            new KeyVersion(5, "ChaCha20-Poly1305", keyBase64));
+
+    @Test
+    public void everyGeneratorRoundTripsEveryTransformation() {
+        for (IvGenerator generator : List.of(IvGenerator.threadLocalDrbg(), IvGenerator.pooled(2), IvGenerator.counter(1))) {
+            var cryptVault = CryptVault.of(keyVersions);
+            cryptVault.setIvGenerator(generator);
+
+            for (int version = 1; version <= 5; version++) {
+                var keyVersion = keyVersions.get(version).orElseThrow();
+                byte[] first = cryptVault.encrypt(keyVersion, plainBytes);
+                byte[] second = cryptVault.encrypt(keyVersion, plainBytes);
+
+                assertThat(cryptVault.decrypt(first)).isEqualTo(plainBytes);
+                assertThat(CryptVault.of(keyVersions).decrypt(second)).isEqualTo(plainBytes);
+                if (version != 4) assertThat(first).isNotEqualTo(second);
+            }
+        }
+    }
+
+    @Test
+    public void generatedIvEndsUpInBlob() {
+        byte[] iv = new byte[12];
+        Arrays.fill(iv, (byte) 7);
+        var cryptVault = CryptVault.of(keyVersions);
+        cryptVault.setCompactBlobs(true);
+        cryptVault.setIvGenerator((keyVersion, length, nonce) -> {
+            assertThat(keyVersion.version).isEqualTo(2);
+            assertThat(length).isEqualTo(12);
+            assertThat(nonce).isTrue();
+            return iv.clone();
+        });
+
+        byte[] blob = cryptVault.encrypt(keyVersions.get(2).orElseThrow(), plainBytes);
+
+        assertThat(Arrays.copyOfRange(blob, 4, 4 + 12)).isEqualTo(iv);
+        assertThat(cryptVault.decrypt(blob)).isEqualTo(plainBytes);
+    }
+
+    @Test
+    public void counterNoncesAreUniqueAcrossThreads() throws Exception {
+        var generator = IvGenerator.counter(1);
+        var keyVersion = keyVersions.get(2).orElseThrow();
+        Set<ByteBuffer> nonces = ConcurrentHashMap.newKeySet();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < CounterNonceGenerator.RANGE + 100; i++) {
+                        nonces.add(ByteBuffer.wrap(generator.nextIv(keyVersion, 12, true)));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(nonces).hasSize(4 * (CounterNonceGenerator.RANGE + 100));
+        for (ByteBuffer nonce : nonces) assertThat(Arrays.copyOf(nonce.array(), 4)).containsExactly(0, 0, 0, 1);
+    }
+
+    @Test
+    public void counterStartsAtRandomOffset() {
+        var keyVersion = keyVersions.get(2).orElseThrow();
+        byte[] first = IvGenerator.counter(1).nextIv(keyVersion, 12, true);
+        byte[] restarted = IvGenerator.counter(1).nextIv(keyVersion, 12, true);
+
+        assertThat(Arrays.copyOf(restarted, 4)).isEqualTo(Arrays.copyOf(first, 4));
+        assertThat(restarted).isNotEqualTo(first);
+    }
+
+    @Test
+    public void counterIsNotUsedForIvsThatMustBeUnpredictable() {
+        var generator = IvGenerator.counter(1);
+        var keyVersion = keyVersions.get(1).orElseThrow();
+
+        byte[] first = generator.nextIv(keyVersion, 16, false);
+        byte[] second = generator.nextIv(keyVersion, 16, false);
+
+        assertThat(Arrays.copyOf(first, 8)).isNotEqualTo(Arrays.copyOf(second, 8));
+    }
+
+    @Test
+    public void pooledIvsOutlastThePool() {
+        var generator = IvGenerator.pooled(1);
+        var keyVersion = keyVersions.get(1).orElseThrow();
+        Set<ByteBuffer> ivs = new HashSet<>();
+        for (int i = 0; i < 3 * PooledIvGenerator.CHUNK_SIZE / 16; i++) {
+            ivs.add(ByteBuffer.wrap(generator.nextIv(keyVersion, 16, false)));
+        }
+        assertThat(ivs).hasSize(3 * PooledIvGenerator.CHUNK_SIZE / 16);
+    }
+
+    @Test
+    public void pooledRefillsOnOneBackgroundThread() {
+        Set<Thread> refillers = ConcurrentHashMap.newKeySet();
+        var generator = new PooledIvGenerator(2, new ThreadLocalDrbgIvGenerator() {
+            @Override
+            void nextBytes(byte[] bytes) {
+                if (Thread.currentThread().getName().equals("cryptvault-iv-pool")) refillers.add(Thread.currentThread());
+                super.nextBytes(bytes);
+            }
+        });
+        var keyVersion = keyVersions.get(1).orElseThrow();
+        for (int i = 0; i < 20 * PooledIvGenerator.CHUNK_SIZE / 16; i++) {
+            generator.nextIv(keyVersion, 16, false);
+        }
+
+        assertThat(refillers).hasSizeLessThanOrEqualTo(1);
+    }
+}
@@ -0,0 +1,119 @@
+package com.bol.crypt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class KeyFileWatcherTest {
+    private static final String oldKey = "VGltVGhlSW5jcmVkaWJsZURldmVsb3BlclNlY3JldCE=";
+    private static final String newKey = "ge2L+MA9jLA8UiUJ4z5fUoK+Lgj2yddlL6EzYIBqb1Q=";
+    private static final byte[] cleartext = "Lorem ipsum dolor sit amet".getBytes();
+
+    @TempDir
+    Path directory;
+
+    private final KeyVersions keyVersions = KeyVersions.of(new KeyVersion(1, "AES/GCM/NoPadding", oldKey));
+    private final CryptVault cryptVault = CryptVault.of(keyVersions);
+    private final BlockingQueue<KeyFileWatcher.Event> events = new LinkedBlockingQueue<>();
+
+    private KeyFileWatcher watcher(Path location) {
+        var watcher = new KeyFileWatcher(location, keyVersions);
+        watcher.addListener(events::add);
+        return watcher;
+    }
+
+    private static void write(Path file, String... lines) throws IOException {
+        // swapped in as a whole, as deployment tools do
+        Path tmp = Files.write(file.resolveSibling(file.getFileName() + ".tmp"), List.of(lines));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Test
+    public void addsVersionsAndPromotesTheDefault() throws Exception {
+        Path file = directory.resolve("keys.properties");
+        write(file, "version.2.key=" + newKey, "version.2.transformation=AES/GCM/NoPadding");
+        var watcher = watcher(file);
+
+        byte[] before = cryptVault.encrypt(cleartext);
+        watcher.reload();
+        assertThat(keyVersions.get(2)).isPresent();
+        assertThat(keyVersions.getDefault().version).isEqualTo(1);
+        assertThat(events.take().getAddedVersions()).containsExactly(2);
+
+        write(file, "version.2.key=" + newKey, "version.2.transformation=AES/GCM/NoPadding", "default-key=2");
+        watcher.reload();
+        assertThat(keyVersions.getDefault().version).isEqualTo(2);
+        assertThat(events.take().getDefaultVersion()).isEqualTo(2);
+        assertThat(cryptVault.keyVersionOf(cryptVault.encrypt(cleartext))).isEqualTo(2);
+        assertThat(cryptVault.decrypt(before)).isEqualTo(cleartext);
+
+        // nothing changed, nothing published
+        watcher.reload();
+        assertThat(events).isEmpty();
+    }
+
+    @Test
+    public void invalidFilesAreRejectedAsAWhole() throws Exception {
+        Path file = directory.resolve("keys.properties");
+        var watcher = watcher(file);
+
+        write(file, "version.2.key=" + newKey, "version.3.key=c2hvcnQ=", "version.3.transformation=AES/GCM/NoPadding");
+        assertThrows(IllegalStateException.class, watcher::reload);
+        assertThat(keyVersions.get(2)).isEmpty();
+        assertThat(events.take().getType()).isEqualTo(KeyFileWatcher.Event.Type.FAILED);
+
+        write(file, "version.1.key=" + newKey, "version.1.transformation=AES/GCM/NoPadding");
+        assertThat(assertThrows(IllegalStateException.class, watcher::reload)).hasMessageContaining("key version 1 is registered with another key");
+
+        write(file, "version.2.key=" + newKey, "default-key=4");
+        assertThrows(IllegalStateException.class, watcher::reload);
+        write(file, "version.2.key=" + newKey, "version.2.transform=AES/GCM/NoPadding");
+        assertThrows(IllegalStateException.class, watcher::reload);
+        write(file, "version.2.key=" + newKey, "default-key=2", "default-key-from=tomorrow");
+        assertThrows(IllegalStateException.class, watcher::reload);
+        assertThat(keyVersions.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void watchesADirectoryAndPromotesOnTime() throws Exception {
+        write(directory.resolve("1.properties"), "version.1.key=" + oldKey, "version.1.transformation=AES/GCM/NoPadding");
+        try (var watcher = watcher(directory)) {
+            watcher.setSettleTime(Duration.ofMillis(50));
+            watcher.reload();
+            assertThat(events).isEmpty();
+            watcher.start();
+
+            Instant promotion = Instant.now().plusMillis(1500);
+            write(directory.resolve("2.properties"), "version.2.key=" + newKey, "version.2.transformation=AES/GCM/NoPadding",
+                    "default-key=2", "default-key-from=" + promotion);
+
+            KeyFileWatcher.Event reloaded = events.poll(10, TimeUnit.SECONDS);
+            assertThat(reloaded.getType()).isEqualTo(KeyFileWatcher.Event.Type.RELOADED);
+            assertThat(reloaded.getAddedVersions()).containsExactly(2);
+            assertThat(reloaded.getPendingDefaultVersion()).isEqualTo(2);
+            assertThat(keyVersions.getDefault().version).isEqualTo(1);
+
+            KeyFileWatcher.Event promoted = events.poll(10, TimeUnit.SECONDS);
+            assertThat(promoted.getType()).isEqualTo(KeyFileWatcher.Event.Type.PROMOTED);
+            assertThat(Instant.now()).isAfterOrEqualTo(promotion);
+            assertThat(keyVersions.getDefault().version).isEqualTo(2);
+
+            write(directory.resolve("3.properties"), "version.3.key=not base64!");
+            assertThat(events.poll(10, TimeUnit.SECONDS).getType()).isEqualTo(KeyFileWatcher.Event.Type.FAILED);
+            assertThat(keyVersions.size()).isEqualTo(2);
+        }
+    }
+}
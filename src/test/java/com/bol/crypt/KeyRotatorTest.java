@@ -0,0 +1,164 @@
+package com.bol.crypt;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class KeyRotatorTest {
+    private static final String oldKey = "VGltVGhlSW5jcmVkaWJsZURldmVsb3BlclNlY3JldCE=";
+    private static final String newKey = "ge2L+MA9jLA8UiUJ4z5fUoK+Lgj2yddlL6EzYIBqb1Q=";
+    private static final byte[] plainBytes = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+
+    private final KeyVersions keyVersions = KeyVersions.of(
+            new KeyVersion(1, "AES/CBC/PKCS5Padding", oldKey),
+            new KeyVersion(2, "AES/GCM/NoPadding", newKey));
+    private final CryptVault cryptVault = CryptVault.of(keyVersions);
+
+    @Test
+    public void keyVersionIsReadFromHeader() {
+        var legacy = KeyVersions.of(new KeyVersion(3, "AES/CBC/PKCS5Padding", oldKey, true));
+        var first = keyVersions.get(1).orElseThrow();
+
+        assertThat(cryptVault.keyVersionOf(cryptVault.encrypt(first, plainBytes))).isEqualTo(1);
+        assertThat(cryptVault.keyVersionOf(cryptVault.encryptSegmented(plainBytes))).isEqualTo(2);
+        assertThat(CryptVault.of(legacy).keyVersionOf(new byte[]{(byte) 0x83, 0})).isEqualTo(3);
+        assertThat(CryptVault.of(legacy).needsRotation(new byte[]{(byte) 0x83, 0})).isTrue();
+        // legacy versions from 128 on wrap around: version 200 is written as 72
+        legacy.addVersion(new KeyVersion(200, "AES/CBC/PKCS5Padding", oldKey, true));
+        assertThat(legacy.getDefault().version).isEqualTo(200);
+        assertThat(CryptVault.of(legacy).keyVersionOf(new byte[]{72, 0})).isEqualTo(200);
+        assertThat(CryptVault.of(legacy).needsRotation(new byte[]{72, 0})).isTrue();
+
+        assertThat(cryptVault.needsRotation(cryptVault.encrypt(first, plainBytes))).isTrue();
+        assertThat(cryptVault.needsRotation(cryptVault.encrypt(plainBytes))).isFalse();
+        assertThrows(CryptOperationException.class, () -> cryptVault.keyVersionOf(new byte[]{0}));
+        assertThrows(CryptOperationException.class, () -> cryptVault.keyVersionOf(new byte[]{0x7F, 1}));
+        // not a registered legacy key version
+        assertThrows(CryptOperationException.class, () -> cryptVault.keyVersionOf(new byte[]{(byte) 0x83, 0}));
+    }
+
+    @Test
+    public void rotationKeepsFormat() {
+        var first = keyVersions.get(1).orElseThrow();
+        byte[] segmented = cryptVault.encryptSegmented(first, plainBytes, 16);
+
+        byte[] rotated = cryptVault.rotate(segmented);
+
+        assertThat(rotated[0]).isEqualTo(Segments.PROTO_VERSION);
+        assertThat(cryptVault.keyVersionOf(rotated)).isEqualTo(2);
+        assertThat(rotated.length).isEqualTo(segmented.length);
+        assertThat(cryptVault.decrypt(rotated)).isEqualTo(plainBytes);
+        assertThat(cryptVault.keyVersionOf(cryptVault.rotate(cryptVault.encrypt(first, plainBytes)))).isEqualTo(2);
+    }
+
+    @Test
+    public void blobsAreRotatedAndCheckpointed() throws InterruptedException {
+        var first = keyVersions.get(1).orElseThrow();
+        List<KeyRotator.Item<Integer>> items = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            byte[] blob;
+            if (i == 100) blob = new byte[]{0, 1, 0};
+            else if (i % 5 == 0) blob = cryptVault.encrypt(plainBytes);
+            else blob = cryptVault.encrypt(first, plainBytes);
+            items.add(new KeyRotator.Item<>(i, blob));
+        }
+        var sink = new RecordingSink();
+        List<KeyRotator.Progress> progress = Collections.synchronizedList(new ArrayList<>());
+
+        var rotator = new KeyRotator<>(cryptVault, new ListSource(items), sink);
+        rotator.setParallelism(3);
+        rotator.setBatchSize(16);
+        rotator.setProgressListener(progress::add, Duration.ofMillis(1));
+        var result = rotator.run();
+
+        assertThat(result.isDone()).isTrue();
+        assertThat(result.getRead()).isEqualTo(250);
+        assertThat(result.getSkipped()).isEqualTo(49);
+        assertThat(result.getFailed()).isEqualTo(1);
+        assertThat(result.getRotated()).isEqualTo(200);
+        assertThat(progress).last().isSameAs(result);
+
+        assertThat(sink.written).hasSize(200);
+        assertThat(sink.written.values()).allSatisfy(blob -> {
+            assertThat(cryptVault.needsRotation(blob)).isFalse();
+            assertThat(cryptVault.decrypt(blob)).isEqualTo(plainBytes);
+        });
+        assertThat(sink.failed).containsExactly(100);
+        assertThat(sink.checkpoints).isSorted().last().isEqualTo(249);
+    }
+
+    @Test
+    public void rateIsLimited() throws InterruptedException {
+        var first = keyVersions.get(1).orElseThrow();
+        List<KeyRotator.Item<Integer>> items = new ArrayList<>();
+        for (int i = 0; i < 10; i++) items.add(new KeyRotator.Item<>(i, cryptVault.encrypt(first, plainBytes)));
+
+        var rotator = new KeyRotator<>(cryptVault, new ListSource(items), new RecordingSink());
+        rotator.setParallelism(4);
+        rotator.setRateLimit(50);
+        var result = rotator.run();
+
+        assertThat(result.getRotated()).isEqualTo(10);
+        // the first one is free
+        assertThat(result.getElapsed()).isGreaterThanOrEqualTo(Duration.ofMillis(180));
+    }
+
+    @Test
+    public void failingSinkAbortsTheJob() {
+        var first = keyVersions.get(1).orElseThrow();
+        List<KeyRotator.Item<Integer>> items = new ArrayList<>();
+        for (int i = 0; i < 10; i++) items.add(new KeyRotator.Item<>(i, cryptVault.encrypt(first, plainBytes)));
+
+        var rotator = new KeyRotator<>(cryptVault, new ListSource(items), rotated -> {
+            throw new IllegalStateException("database is down");
+        });
+        var t = assertThrows(IllegalStateException.class, rotator::run);
+        assertThat(t.getCause()).hasMessage("database is down");
+    }
+
+    private static class ListSource implements KeyRotator.Source<Integer> {
+        private final List<KeyRotator.Item<Integer>> items;
+        private int position = 0;
+
+        ListSource(List<KeyRotator.Item<Integer>> items) {
+            this.items = items;
+        }
+
+        @Override
+        public List<KeyRotator.Item<Integer>> next(int max) {
+            var next = items.subList(position, Math.min(items.size(), position + max));
+            position += next.size();
+            return next;
+        }
+    }
+
+    private static class RecordingSink implements KeyRotator.Sink<Integer> {
+        final Map<Integer, byte[]> written = new ConcurrentHashMap<>();
+        final List<Integer> failed = new ArrayList<>();
+        final List<Integer> checkpoints = new ArrayList<>();
+
+        @Override
+        public void write(List<KeyRotator.Item<Integer>> items) {
+            items.forEach(item -> written.put(item.getId(), item.getBlob()));
+        }
+
+        @Override
+        public void failed(Integer id, CryptOperationException e) {
+            failed.add(id);
+        }
+
+        @Override
+        public void checkpoint(Integer id) {
+            checkpoints.add(id);
+        }
+    }
+}
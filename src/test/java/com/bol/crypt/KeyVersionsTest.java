@@ -0,0 +1,103 @@
+package com.bol.crypt;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class KeyVersionsTest {
+    private static final String keyBase64 = "VGltVGhlSW5jcmVkaWJsZURldmVsb3BlclNlY3JldCE=";
+
+    @Test
+    public void lookupByVersion() {
+        var first = new KeyVersion(1, "AES/CBC/PKCS5Padding", keyBase64);
+        var last = new KeyVersion(255, "AES/GCM/NoPadding", keyBase64);
+        var keyVersions = KeyVersions.of(first, last);
+
+        assertThat(keyVersions.size()).isEqualTo(2);
+        assertThat(keyVersions.get(1)).containsSame(first);
+        assertThat(keyVersions.get(255)).containsSame(last);
+        assertThat(keyVersions.get(2)).isEmpty();
+        assertThat(keyVersions.getDefault()).isSameAs(last);
+        assertThrows(IllegalArgumentException.class, () -> keyVersions.get(0));
+        assertThrows(IllegalArgumentException.class, () -> keyVersions.get(256));
+    }
+
+    @Test
+    public void planIsBuiltOnRegistration() {
+        var keyVersions = KeyVersions.of(
+                new KeyVersion(1, "AES/CBC/PKCS5Padding", keyBase64, true),
+                new KeyVersion(2, "AES/GCM/NoPadding", keyBase64),
+                new KeyVersion(3, "AES/ECB/PKCS5Padding", keyBase64));
+
+        CipherPlan cbc = keyVersions.plan(1);
+        assertThat(cbc.algorithm).isEqualTo("AES");
+        assertThat(cbc.paramsAlgorithm).isEqualTo("AES");
+        assertThat(cbc.legacy).isTrue();
+        assertThat(cbc.legacyKeySpec).isNotNull();
+
+        assertThat(keyVersions.plan(2).paramsAlgorithm).isEqualTo("GCM");
+        assertThat(keyVersions.plan(2).legacyKeySpec).isNull();
+        assertThat(keyVersions.plan(3).paramsAlgorithm).isNull();
+        assertThat(keyVersions.plan(4)).isNull();
+        assertThat(keyVersions.plan(-1)).isNull();
+    }
+
+    @Test
+    public void duplicateVersionIsRejected() {
+        var keyVersions = KeyVersions.of(new KeyVersion(1, "AES/CBC/PKCS5Padding", keyBase64));
+        assertThrows(IllegalArgumentException.class,
+                () -> keyVersions.addVersion(new KeyVersion(1, "AES/GCM/NoPadding", keyBase64)));
+        assertThat(keyVersions.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void legacyVersionsCollidingWithProtoVersionsAreRejected() {
+        var keyVersions = new KeyVersions();
+        assertThrows(IllegalArgumentException.class,
+                () -> keyVersions.addVersion(new KeyVersion(128, "AES/CBC/PKCS5Padding", keyBase64, true)));
+        assertThrows(IllegalArgumentException.class,
+                () -> keyVersions.update(List.of(new KeyVersion(134, "AES/CBC/PKCS5Padding", keyBase64, true)), null));
+        assertThat(keyVersions.size()).isZero();
+
+        keyVersions.addVersion(new KeyVersion(128, "AES/CBC/PKCS5Padding", keyBase64));
+        keyVersions.addVersion(new KeyVersion(135, "AES/CBC/PKCS5Padding", keyBase64, true));
+        assertThat(keyVersions.isLegacyVersion((byte) 0x07)).isTrue();
+    }
+
+    @Test
+    public void explicitDefaultSurvivesLowerVersions() {
+        var keyVersions = KeyVersions.of(new KeyVersion(5, "AES/CBC/PKCS5Padding", keyBase64));
+        var lower = new KeyVersion(2, "AES/CBC/PKCS5Padding", keyBase64);
+        keyVersions.addVersion(lower);
+        assertThat(keyVersions.getDefault().version).isEqualTo(5);
+
+        keyVersions.setDefault(lower);
+        assertThat(keyVersions.getDefault()).isSameAs(lower);
+    }
+
+    @Test
+    public void readersNeverSeeHalfUpdatedRegistry() throws Exception {
+        var keyVersions = new KeyVersions();
+        var failed = new AtomicBoolean();
+        var reader = new Thread(() -> {
+            while (keyVersions.size() < 255) {
+                int size = keyVersions.size();
+                // versions are added in order, so a reader seeing size n must also see versions 1..n
+                for (int v = 1; v <= size; v++) {
+                    if (keyVersions.get(v).isEmpty()) failed.set(true);
+                }
+            }
+        });
+        reader.start();
+        for (int v = 1; v <= 255; v++) {
+            keyVersions.addVersion(new KeyVersion(v, "AES/CBC/PKCS5Padding", keyBase64));
+        }
+        reader.join();
+
+        assertThat(failed).isFalse();
+    }
+}
@@ -0,0 +1,108 @@
+package com.bol.crypt;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ParallelSegmentsTest {
+    private static final byte[] aesKey = "2~_J2#Kb=_xV3!wMmX3}LAny0fie7:hT".getBytes(StandardCharsets.UTF_8);
+    private static final int segmentSize = 1000;
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+    private CryptVault cryptVault;
+    private KeyVersion keyVersion;
+
+    @BeforeEach
+    public void setup() {
+        keyVersion = new KeyVersion(1, "AES/CBC/PKCS5Padding", aesKey);
+        cryptVault = CryptVault.of(KeyVersions.of(keyVersion));
+        cryptVault.setForkJoinPool(pool);
+    }
+
+    @AfterEach
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void parallelRoundTrip() {
+        for (int length : new int[]{0, 1, segmentSize, segmentSize + 1, 50 * segmentSize, 50 * segmentSize + 17}) {
+            byte[] cleartext = randomBytes(length);
+            byte[] blob = cryptVault.encryptSegmented(keyVersion, cleartext, segmentSize);
+
+            assertThat(blob[0]).isEqualTo(Segments.PROTO_VERSION);
+            assertThat(cryptVault.decrypt(blob)).as("%d bytes", length).isEqualTo(cleartext);
+        }
+    }
+
+    @Test
+    public void interchangeableWithStreams() throws IOException {
+        byte[] cleartext = randomBytes(20 * segmentSize + 3);
+
+        var streamed = new ByteArrayOutputStream();
+        try (OutputStream out = cryptVault.encryptingStream(keyVersion, streamed, segmentSize)) {
+            out.write(cleartext);
+        }
+        assertThat(cryptVault.decrypt(streamed.toByteArray())).isEqualTo(cleartext);
+
+        byte[] blob = cryptVault.encryptSegmented(keyVersion, cleartext, segmentSize);
+        try (InputStream in = cryptVault.decryptingStream(new ByteArrayInputStream(blob))) {
+            assertThat(in.readAllBytes()).isEqualTo(cleartext);
+        }
+    }
+
+    @Test
+    public void byteBufferDecryption() {
+        byte[] cleartext = randomBytes(7 * segmentSize + 5);
+        ByteBuffer blob = ByteBuffer.wrap(cryptVault.encryptSegmented(keyVersion, cleartext, segmentSize));
+
+        assertThat(cryptVault.maxDecryptedSize(blob)).isEqualTo(cleartext.length);
+        ByteBuffer recovered = ByteBuffer.allocateDirect(cleartext.length);
+        assertThat(cryptVault.decrypt(blob, recovered)).isEqualTo(cleartext.length);
+
+        byte[] recoveredBytes = new byte[cleartext.length];
+        recovered.flip().get(recoveredBytes);
+        assertThat(recoveredBytes).isEqualTo(cleartext);
+    }
+
+    @Test
+    public void tamperingInAnySegmentIsDetected() {
+        byte[] blob = cryptVault.encryptSegmented(keyVersion, randomBytes(50 * segmentSize), segmentSize);
+
+        byte[] tampered = blob.clone();
+        tampered[Segments.HEADER_LENGTH + 37 * (segmentSize + Segments.TAG_LENGTH) + 5] ^= 1;
+        assertThrows(CryptOperationException.class, () -> cryptVault.decrypt(tampered));
+
+        byte[] truncated = Arrays.copyOf(blob, blob.length - segmentSize - Segments.TAG_LENGTH);
+        assertThrows(CryptOperationException.class, () -> cryptVault.decrypt(truncated));
+
+        byte[] cutShort = Arrays.copyOf(blob, blob.length - Segments.TAG_LENGTH - 1);
+        assertThrows(CryptOperationException.class, () -> cryptVault.decrypt(cutShort));
+    }
+
+    @Test
+    public void sequentialWithoutParallelism() {
+        cryptVault.setForkJoinPool(new ForkJoinPool(1));
+        byte[] cleartext = randomBytes(30 * segmentSize);
+        assertThat(cryptVault.decrypt(cryptVault.encryptSegmented(keyVersion, cleartext, segmentSize))).isEqualTo(cleartext);
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,88 @@
+package com.bol.crypt;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ReactiveCryptVaultTest {
+    private static final String keyBase64 = "VGltVGhlSW5jcmVkaWJsZURldmVsb3BlclNlY3JldCE=";
+
+    private final CryptVault cryptVault = CryptVault.of(KeyVersions.of(new KeyVersion(1, "AES/GCM/NoPadding", keyBase64)));
+    private final ReactiveCryptVault reactive = new ReactiveCryptVault(cryptVault);
+    private final KeyVersion keyVersion = cryptVault.keyVersions.getDefault();
+
+    @Test
+    public void roundTripsArbitraryChunks() {
+        for (int length : new int[]{0, 1, 99, 100, 101, 1000, 12345}) {
+            byte[] cleartext = random(length);
+
+            byte[] blob = join(reactive.encrypt(keyVersion, chunks(cleartext, 7), 100));
+            assertThat(cryptVault.decrypt(blob)).isEqualTo(cleartext);
+            assertThat(join(reactive.decrypt(chunks(blob, 13)))).isEqualTo(cleartext);
+            assertThat(join(reactive.decrypt(chunks(cryptVault.encryptSegmented(keyVersion, cleartext, 100), 1000)))).isEqualTo(cleartext);
+        }
+    }
+
+    @Test
+    public void emitsABufferPerSegment() {
+        List<DataBuffer> buffers = reactive.encrypt(keyVersion, chunks(random(250), 250), 100).collectList().block();
+
+        assertThat(buffers).extracting(DataBuffer::readableByteCount)
+                .containsExactly(Segments.HEADER_LENGTH, 100 + Segments.TAG_LENGTH, 100 + Segments.TAG_LENGTH, 50 + Segments.TAG_LENGTH);
+    }
+
+    @Test
+    public void truncatedAndTamperedBlobsFail() {
+        byte[] blob = cryptVault.encryptSegmented(keyVersion, random(1000), 100);
+
+        byte[] truncated = Arrays.copyOf(blob, blob.length - 116);
+        assertThrows(CryptOperationException.class, () -> join(reactive.decrypt(chunks(truncated, 64))));
+        assertThrows(CryptOperationException.class, () -> join(reactive.decrypt(chunks(Arrays.copyOf(blob, 10), 64))));
+
+        byte[] tampered = blob.clone();
+        tampered[500] ^= 1;
+        List<byte[]> received = new ArrayList<>();
+        var decrypting = reactive.decrypt(chunks(tampered, 64)).map(ReactiveCryptVaultTest::bytes).doOnNext(received::add);
+        assertThrows(CryptOperationException.class, decrypting::blockLast);
+        // only the segments before the tampered one were emitted
+        assertThat(received).hasSize(4);
+    }
+
+    private static Flux<DataBuffer> chunks(byte[] bytes, int chunkSize) {
+        List<DataBuffer> chunks = new ArrayList<>();
+        for (int i = 0; i < bytes.length; i += chunkSize) {
+            chunks.add(DefaultDataBufferFactory.sharedInstance.wrap(Arrays.copyOfRange(bytes, i, Math.min(bytes.length, i + chunkSize))));
+        }
+        return Flux.fromIterable(chunks);
+    }
+
+    private static byte[] join(Flux<DataBuffer> buffers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffers.map(ReactiveCryptVaultTest::bytes).toIterable(1).forEach(out::writeBytes);
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(DataBuffer buffer) {
+        byte[] bytes = new byte[buffer.readableByteCount()];
+        buffer.read(bytes);
+        DataBufferUtils.release(buffer);
+        return bytes;
+    }
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
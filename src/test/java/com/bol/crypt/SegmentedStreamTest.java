@@ -0,0 +1,163 @@
+package com.bol.crypt;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class SegmentedStreamTest {
+    private static final byte[] aesKey = "2~_J2#Kb=_xV3!wMmX3}LAny0fie7:hT".getBytes(StandardCharsets.UTF_8);
+    private static final int segmentSize = 16;
+    private CryptVault cryptVault;
+
+    @BeforeEach
+    public void setup() {
+        cryptVault = CryptVault.of(KeyVersions.of(
+                new KeyVersion(1, "AES/CBC/PKCS5Padding", aesKey),
+                new KeyVersion(2, "ChaCha20-Poly1305", aesKey)));
+    }
+
+    @Test
+    public void pinnedProviderIsUsed() {
+        var keyVersions = KeyVersions.of(
+                new KeyVersion(1, "AES/GCM/NoPadding", aesKey, false, "SunJCE"),
+                // holds no ciphers at all
+                new KeyVersion(2, "AES/GCM/NoPadding", aesKey, false, "SUN"));
+        var vault = CryptVault.of(keyVersions);
+        byte[] cleartext = randomBytes(3 * segmentSize);
+
+        byte[] blob = vault.encryptSegmented(keyVersions.get(1).orElseThrow(), cleartext);
+        assertThat(vault.decrypt(blob)).isEqualTo(cleartext);
+
+        var e = assertThrows(CryptOperationException.class, () -> vault.encryptSegmented(keyVersions.get(2).orElseThrow(), cleartext));
+        assertThat(e).hasRootCauseInstanceOf(NoSuchAlgorithmException.class);
+    }
+
+    @Test
+    public void roundTripAcrossSegmentBoundaries() throws IOException {
+        for (int version = 1; version <= 2; version++) {
+            var keyVersion = cryptVault.keyVersions.get(version).orElseThrow();
+            for (int length : new int[]{0, 1, segmentSize - 1, segmentSize, segmentSize + 1, 3 * segmentSize, 3 * segmentSize + 5}) {
+                byte[] cleartext = randomBytes(length);
+                byte[] blob = encrypt(keyVersion, cleartext, segmentSize);
+
+                assertThat(blob[0]).isEqualTo(Segments.PROTO_VERSION);
+                assertThat(blob[1]).isEqualTo((byte) version);
+                assertThat(blob.length).isEqualTo(Segments.HEADER_LENGTH + length + Math.max(1, (length + segmentSize - 1) / segmentSize) * Segments.TAG_LENGTH);
+                assertThat(decrypt(blob)).as("%s, %d bytes", keyVersion.transformation, length).isEqualTo(cleartext);
+            }
+        }
+    }
+
+    @Test
+    public void largePayloadWithDefaultSegmentSize() throws IOException {
+        byte[] cleartext = randomBytes(5 * 1024 * 1024 + 123);
+        var encrypted = new ByteArrayOutputStream();
+        try (OutputStream out = cryptVault.encryptingStream(encrypted)) {
+            // odd-sized writes, so they straddle segment boundaries
+            for (int off = 0; off < cleartext.length; off += 10007) {
+                out.write(cleartext, off, Math.min(10007, cleartext.length - off));
+            }
+        }
+
+        var recovered = new ByteArrayOutputStream();
+        try (InputStream in = cryptVault.decryptingStream(new ByteArrayInputStream(encrypted.toByteArray()))) {
+            byte[] buffer = new byte[777];
+            for (int n; (n = in.read(buffer)) >= 0; ) recovered.write(buffer, 0, n);
+        }
+        assertThat(recovered.toByteArray()).isEqualTo(cleartext);
+    }
+
+    @Test
+    public void truncationAtSegmentBoundaryIsDetected() throws IOException {
+        var keyVersion = cryptVault.keyVersions.getDefault();
+        byte[] blob = encrypt(keyVersion, randomBytes(3 * segmentSize + 5), segmentSize);
+
+        byte[] truncated = Arrays.copyOf(blob, Segments.HEADER_LENGTH + 2 * (segmentSize + Segments.TAG_LENGTH));
+        assertThrows(CryptOperationException.class, () -> decrypt(truncated));
+
+        byte[] headerOnly = Arrays.copyOf(blob, Segments.HEADER_LENGTH);
+        assertThrows(CryptOperationException.class, () -> decrypt(headerOnly));
+
+        byte[] partialHeader = Arrays.copyOf(blob, Segments.HEADER_LENGTH - 1);
+        assertThrows(CryptOperationException.class, () -> decrypt(partialHeader));
+    }
+
+    @Test
+    public void reorderedSegmentsAreDetected() throws IOException {
+        var keyVersion = cryptVault.keyVersions.getDefault();
+        byte[] blob = encrypt(keyVersion, randomBytes(3 * segmentSize + 5), segmentSize);
+
+        int segmentLength = segmentSize + Segments.TAG_LENGTH;
+        byte[] swapped = blob.clone();
+        System.arraycopy(blob, Segments.HEADER_LENGTH, swapped, Segments.HEADER_LENGTH + segmentLength, segmentLength);
+        System.arraycopy(blob, Segments.HEADER_LENGTH + segmentLength, swapped, Segments.HEADER_LENGTH, segmentLength);
+
+        assertThrows(CryptOperationException.class, () -> decrypt(swapped));
+    }
+
+    @Test
+    public void tamperedHeaderIsDetected() throws IOException {
+        var keyVersion = cryptVault.keyVersions.getDefault();
+        byte[] blob = encrypt(keyVersion, randomBytes(2 * segmentSize), segmentSize);
+
+        for (int i = 2; i < Segments.HEADER_LENGTH; i++) {
+            byte[] tampered = blob.clone();
+            tampered[i] ^= 1;
+            assertThrows(CryptOperationException.class, () -> decrypt(tampered), "header byte " + i);
+        }
+    }
+
+    @Test
+    public void keyVersionDrivesDecryptionAfterRotation() throws IOException {
+        byte[] cleartext = randomBytes(100);
+        byte[] underFirst = encrypt(cryptVault.keyVersions.get(1).orElseThrow(), cleartext, segmentSize);
+
+        cryptVault.keyVersions.addVersion(new KeyVersion(3, "AES/GCM/NoPadding", "IqWTpi549pJDZ1kuc9HppcMxtPfu2SP6Idlh+tz4LL4="));
+        byte[] underThird = encrypt(cryptVault.keyVersions.getDefault(), cleartext, segmentSize);
+
+        assertThat(underThird[1]).isEqualTo((byte) 3);
+        assertThat(decrypt(underFirst)).isEqualTo(cleartext);
+        assertThat(decrypt(underThird)).isEqualTo(cleartext);
+    }
+
+    @Test
+    public void unsupportedAlgorithmIsRejected() {
+        var des = new KeyVersion(4, "DES/CBC/PKCS5Padding", "jcs&@IwY".getBytes(StandardCharsets.UTF_8));
+        assertThrows(CryptOperationException.class, () -> cryptVault.encryptingStream(des, new ByteArrayOutputStream()));
+
+        var legacy = new KeyVersion(5, "AES/CBC/PKCS5Padding", aesKey, true);
+        assertThrows(CryptOperationException.class, () -> cryptVault.encryptingStream(legacy, new ByteArrayOutputStream()));
+    }
+
+    private byte[] encrypt(KeyVersion keyVersion, byte[] cleartext, int segmentSize) throws IOException {
+        var encrypted = new ByteArrayOutputStream();
+        try (OutputStream out = cryptVault.encryptingStream(keyVersion, encrypted, segmentSize)) {
+            out.write(cleartext);
+        }
+        return encrypted.toByteArray();
+    }
+
+    private byte[] decrypt(byte[] blob) throws IOException {
+        try (InputStream in = cryptVault.decryptingStream(new ByteArrayInputStream(blob))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
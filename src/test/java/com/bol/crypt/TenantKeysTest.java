@@ -0,0 +1,62 @@
+package com.bol.crypt;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TenantKeysTest {
+    private static final String keyBase64 = "VGltVGhlSW5jcmVkaWJsZURldmVsb3BlclNlY3JldCE=";
+    private static final byte[] plainBytes = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+
+    private final KeyVersions keyVersions = KeyVersions.of(
+            new KeyVersion(1, "AES/CBC/PKCS5Padding", keyBase64),
+            new KeyVersion(2, "AES/GCM/NoPadding", keyBase64),
+            new KeyVersion(3, "ChaCha20-Poly1305", keyBase64));
+
+    @Test
+    public void tenantsRoundTripEveryTransformation() {
+        var cryptVault = CryptVault.of(keyVersions);
+        cryptVault.setIvGenerator(IvGenerator.counter(1));
+
+        for (int version = 1; version <= 3; version++) {
+            var keyVersion = keyVersions.get(version).orElseThrow();
+            byte[] blob = cryptVault.encrypt("tenant-a", keyVersion, plainBytes);
+
+            assertThat(blob[0]).isEqualTo(TenantKeys.PROTO_VERSION);
+            assertThat(blob[1]).isEqualTo((byte) version);
+            assertThat(cryptVault.decrypt("tenant-a", blob)).isEqualTo(plainBytes);
+            assertThat(CryptVault.of(keyVersions).decrypt("tenant-a", blob)).isEqualTo(plainBytes);
+        }
+    }
+
+    @Test
+    public void tenantsAreIsolated() {
+        var cryptVault = CryptVault.of(keyVersions);
+        byte[] blob = cryptVault.encrypt("tenant-a", keyVersions.get(2).orElseThrow(), plainBytes);
+
+        assertThrows(CryptOperationException.class, () -> cryptVault.decrypt("tenant-b", blob));
+        var t = assertThrows(CryptOperationException.class, () -> cryptVault.decrypt(blob));
+        assertThat(t.getMessage()).isEqualTo("blob was encrypted for a tenant; hint: use decrypt(tenantId, blob)");
+        t = assertThrows(CryptOperationException.class, () -> cryptVault.decrypt("tenant-a", cryptVault.encrypt(plainBytes)));
+        assertThat(t.getMessage()).isEqualTo("blob was not encrypted for a tenant; hint: use decrypt(blob)");
+    }
+
+    @Test
+    public void derivedPlansAreCachedAndBounded() {
+        var tenantKeys = new TenantKeys(16);
+        var master = keyVersions.plan(2);
+
+        var plan = tenantKeys.plan(master, "tenant-a");
+        assertThat(tenantKeys.plan(master, "tenant-a")).isSameAs(plan);
+        assertThat(plan.keySpec.getEncoded()).isNotEqualTo(master.keySpec.getEncoded());
+        assertThat(tenantKeys.plan(master, "tenant-b").keySpec.getEncoded()).isNotEqualTo(plan.keySpec.getEncoded());
+
+        for (int i = 0; i < 1000; i++) tenantKeys.plan(master, "tenant-" + i);
+        var rederived = tenantKeys.plan(master, "tenant-a");
+        assertThat(rederived).isNotSameAs(plan);
+        assertThat(rederived.keySpec.getEncoded()).isEqualTo(plan.keySpec.getEncoded());
+    }
+}
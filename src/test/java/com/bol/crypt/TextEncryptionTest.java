@@ -0,0 +1,69 @@
+package com.bol.crypt;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TextEncryptionTest {
+    private static final String keyBase64 = "VGltVGhlSW5jcmVkaWJsZURldmVsb3BlclNlY3JldCE=";
+    private static final String[] texts = {"", "a", "ab", "abc", "Lorem ipsum dolor sit amet", "Zoë € 日本語 😀", "x".repeat(TextBlobs.MAX_RETAINED + 1)};
+
+    private final CryptVault cryptVault = CryptVault.of(KeyVersions.of(new KeyVersion(1, "AES/GCM/NoPadding", keyBase64)));
+
+    @Test
+    public void textRoundTrips() {
+        for (String text : texts) {
+            String blob = cryptVault.encryptToString(text);
+
+            assertThat(cryptVault.decrypt(Base64.getDecoder().decode(blob))).isEqualTo(text.getBytes(StandardCharsets.UTF_8));
+            assertThat(cryptVault.decryptToString(blob)).isEqualTo(text);
+            assertThat(cryptVault.decryptToChars(blob)).isEqualTo(text.toCharArray());
+            assertThat(cryptVault.decryptToString(Base64.getEncoder().encodeToString(cryptVault.encrypt(text.getBytes(StandardCharsets.UTF_8))))).isEqualTo(text);
+        }
+    }
+
+    @Test
+    public void urlSafeAndCharArrayVariants() {
+        for (String text : texts) {
+            String blob = cryptVault.encryptToUrlSafeString(text);
+
+            assertThat(blob).doesNotContain("+", "/", "=");
+            assertThat(cryptVault.decrypt(Base64.getUrlDecoder().decode(blob))).isEqualTo(text.getBytes(StandardCharsets.UTF_8));
+            assertThat(cryptVault.decryptToString(blob)).isEqualTo(text);
+            assertThat(cryptVault.decryptToString(cryptVault.encryptToString(text.toCharArray()))).isEqualTo(text);
+        }
+    }
+
+    @Test
+    public void encodesLikeTheJdk() {
+        String unpaired = "a\uD83Db\uDE00";
+        assertThat(cryptVault.decrypt(Base64.getDecoder().decode(cryptVault.encryptToString(unpaired))))
+                .isEqualTo(unpaired.getBytes(StandardCharsets.UTF_8));
+
+        for (int length = 0; length < 8; length++) {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) bytes[i] = (byte) (i * 97);
+            byte[] text = new byte[TextBlobs.base64Length(length, false)];
+            assertThat(new String(text, 0, TextBlobs.encodeBase64(bytes, length, text, false), StandardCharsets.ISO_8859_1))
+                    .isEqualTo(Base64.getEncoder().encodeToString(bytes));
+        }
+
+        byte[] malformed = {'a', (byte) 0xC3, 'b', (byte) 0xE2, (byte) 0x82};
+        assertThat(TextBlobs.decodeUtf8(malformed, malformed.length)).isEqualTo("a�b��".toCharArray());
+    }
+
+    @Test
+    public void invalidBlobsAreRejected() {
+        assertThrows(CryptOperationException.class, () -> cryptVault.decryptToString("not base64!"));
+        assertThrows(CryptOperationException.class, () -> cryptVault.decryptToString("AAAAA"));
+        assertThrows(CryptOperationException.class, () -> cryptVault.decryptToString("AA"));
+
+        String blob = cryptVault.encryptToString("Lorem ipsum dolor sit amet");
+        String tampered = blob.substring(0, 20) + (blob.charAt(20) == 'A' ? 'B' : 'A') + blob.substring(21);
+        assertThrows(CryptOperationException.class, () -> cryptVault.decryptToChars(tampered));
+    }
+}
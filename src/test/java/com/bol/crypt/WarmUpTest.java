@@ -0,0 +1,41 @@
+package com.bol.crypt;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class WarmUpTest {
+    private static final String keyBase64 = "VGltVGhlSW5jcmVkaWJsZURldmVsb3BlclNlY3JldCE=";
+    private static final byte[] shortKey = Base64.getDecoder().decode("c2hvcnQ=");
+
+    @Test
+    public void roundTripsEveryKeyVersion() {
+        var cryptVault = CryptVault.of(KeyVersions.of(
+                new KeyVersion(1, "AES/CBC/PKCS5Padding", keyBase64, true),
+                new KeyVersion(2, "AES/CBC/PKCS5Padding", keyBase64),
+                new KeyVersion(3, "AES/GCM/NoPadding", keyBase64),
+                new KeyVersion(4, "AES/SIV/NoPadding", keyBase64)));
+        cryptVault.setCompression(3, CompressionCodec.deflate(), 0);
+
+        WarmUp.Result result = WarmUp.run(cryptVault, 5, 0, 16, 4096);
+
+        assertThat(result.getKeyVersions()).containsExactly(1, 2, 3, 4);
+        assertThat(result.getRoundTrips()).isEqualTo(4 * 3 * 5);
+        assertThat(result.getDuration()).isPositive();
+    }
+
+    @Test
+    public void misconfiguredKeyVersionsFail() {
+        var cryptVault = CryptVault.of(KeyVersions.of(
+                new KeyVersion(1, "AES/GCM/NoPadding", keyBase64),
+                new KeyVersion(2, "AES/GCM/NoPadding", shortKey)));
+        var e = assertThrows(IllegalStateException.class, () -> WarmUp.run(cryptVault, 1, 16));
+        assertThat(e).hasMessageStartingWith("key version 2 (AES/GCM/NoPadding) does not round-trip");
+
+        var legacy = CryptVault.of(KeyVersions.of(new KeyVersion(1, "AES/CBC/PKCS5Padding", shortKey, true)));
+        assertThrows(IllegalStateException.class, () -> WarmUp.run(legacy, 1, 16));
+    }
+}
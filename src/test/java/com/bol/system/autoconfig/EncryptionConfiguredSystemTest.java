@@ -1,14 +1,23 @@
 package com.bol.system.autoconfig;
 
 import com.bol.config.CryptVaultAutoConfiguration;
+import com.bol.config.ProviderTuningReport;
 import com.bol.crypt.CryptOperationException;
 import com.bol.crypt.CryptVault;
+import com.bol.crypt.CryptVaultJacksonModule;
+import com.bol.crypt.Encrypted;
+import com.bol.crypt.ReactiveCryptVault;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.test.context.ActiveProfiles;
+import reactor.core.publisher.Flux;
 
+import java.nio.ByteBuffer;
 import java.util.Base64;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -25,6 +34,18 @@ public class EncryptionConfiguredSystemTest {
     @Autowired(required = false)
     CryptVault cryptVault;
 
+    @Autowired
+    ProviderTuningReport providerTuning;
+
+    @Autowired
+    ReactiveCryptVault reactiveCryptVault;
+
+    @Autowired
+    CryptVaultJacksonModule jacksonModule;
+
+    public record Secret(@Encrypted String value) {
+    }
+
     @Test
     public void sanityTest() {
         assertThat(cryptVault).isNotNull();
@@ -40,6 +61,39 @@ public class EncryptionConfiguredSystemTest {
         assertThat(encryptedBlob.length).isEqualTo(1 + 1 + 1 + encryptedBlob[2] + cleartext.length);
     }
 
+    @Test
+    public void reactiveStreamsAreEncrypted() {
+        var keyVersion = cryptVault.keyVersions.get(5).orElseThrow();
+        var blob = DataBufferUtils.join(reactiveCryptVault.encrypt(keyVersion, Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(cleartext)), 8)).block();
+        byte[] bytes = new byte[blob.readableByteCount()];
+        blob.read(bytes);
+
+        assertThat(cryptVault.decrypt(bytes)).isEqualTo(cleartext);
+    }
+
+    @Test
+    public void jacksonDecryptsEncryptedProperties() throws Exception {
+        var blob = cryptVault.encrypt(cryptVault.keyVersions.get(5).orElseThrow(), cleartext);
+        String json = "{\"value\":\"" + Base64.getEncoder().encodeToString(blob) + "\"}";
+
+        var objectMapper = new ObjectMapper().registerModule(jacksonModule);
+        assertThat(objectMapper.readValue(json, Secret.class).value()).isEqualTo(new String(cleartext));
+    }
+
+    @Test
+    public void providersArePinnedOrTuned() {
+        assertThat(cryptVault.keyVersions.get(4).orElseThrow().provider).isEqualTo("SunJCE");
+
+        var tuned = providerTuning.getResults().get(5);
+        assertThat(tuned.getTransformation()).isEqualTo("AES/GCM/NoPadding");
+        assertThat(tuned.getOpsPerSecond()).containsKey(tuned.getProvider());
+        assertThat(cryptVault.keyVersions.get(5).orElseThrow().provider).isEqualTo(tuned.getProvider());
+        assertThat(providerTuning.getResults()).containsOnlyKeys(5);
+
+        var keyVersion = cryptVault.keyVersions.get(5).orElseThrow();
+        assertThat(cryptVault.decrypt(cryptVault.encrypt(keyVersion, cleartext))).isEqualTo(cleartext);
+    }
+
     @Test
     public void legacyKeyVersionShouldThrowWhenUsedForNewEncryption() {
         // CryptVault 1 did not specify a CryptVault protocol version in the encrypted blob
@@ -61,6 +115,17 @@ public class EncryptionConfiguredSystemTest {
         assertThat(new String(recoveredCleartextAsBytes)).isEqualTo("lorem ipsum");
     }
 
+    @Test
+    public void legacyKeyVersionShouldBeAbleToDecryptLegacyEncryptionIntoBuffer() {
+        var legacyBlob = ByteBuffer.wrap(Base64.getDecoder().decode("gV4dQBm9mYJ1JC3DDs7Wj4cdbJKJALhIPktD4AT2sq4/"));
+        var recovered = ByteBuffer.allocateDirect(cryptVault.maxDecryptedSize(legacyBlob));
+        int length = cryptVault.decrypt(legacyBlob, recovered);
+
+        byte[] recoveredCleartext = new byte[length];
+        recovered.flip().get(recoveredCleartext);
+        assertThat(new String(recoveredCleartext)).isEqualTo("lorem ipsum");
+    }
+
     @Test
     public void blobNotMarkedAsLegacyShouldFailDecryption() {
         var legacyBlob = Base64.getDecoder().decode("gl4dQBm9mYJ1JC3DDs7Wj4cdbJKJALhIPktD4AT2sq4/");
@@ -0,0 +1,46 @@
+package com.bol.system.autoconfig;
+
+import com.bol.crypt.CryptVault;
+import com.bol.crypt.DataKeyCache;
+import com.bol.crypt.KeyEncryptionService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.test.context.ActiveProfiles;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ActiveProfiles("autoconfig")
+@EnableAutoConfiguration
+@SpringBootTest(classes = {EnvelopeEncryptionConfiguredSystemTest.class, EnvelopeEncryptionConfiguredSystemTest.KeyEncryptionServiceConfiguration.class})
+public class EnvelopeEncryptionConfiguredSystemTest {
+    private static final byte[] cleartext = "Lorem ipsum dolor sit amet".getBytes();
+
+    @Autowired
+    CryptVault cryptVault;
+
+    @Autowired
+    DataKeyCache dataKeyCache;
+
+    @TestConfiguration
+    static class KeyEncryptionServiceConfiguration {
+        @Bean
+        KeyEncryptionService keyEncryptionService() {
+            return KeyEncryptionService.local();
+        }
+    }
+
+    @Test
+    public void envelopeEncryptionIsEnabled() {
+        byte[] blob = cryptVault.encryptEnveloped(cryptVault.keyVersions.get(5).orElseThrow(), cleartext);
+        dataKeyCache.clear();
+
+        assertThat(cryptVault.decrypt(blob)).isEqualTo(cleartext);
+        assertThat(cryptVault.decrypt(blob)).isEqualTo(cleartext);
+        assertThat(dataKeyCache.getMisses()).isEqualTo(1);
+        assertThat(dataKeyCache.getHits()).isEqualTo(1);
+    }
+}
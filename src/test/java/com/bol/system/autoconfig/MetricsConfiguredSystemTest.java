@@ -0,0 +1,44 @@
+package com.bol.system.autoconfig;
+
+import com.bol.crypt.CryptVault;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.test.context.ActiveProfiles;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ActiveProfiles("autoconfig")
+@EnableAutoConfiguration
+@SpringBootTest(classes = {MetricsConfiguredSystemTest.class, MetricsConfiguredSystemTest.MeterRegistryConfiguration.class})
+public class MetricsConfiguredSystemTest {
+    private static final byte[] cleartext = "Lorem ipsum dolor sit amet".getBytes();
+
+    @Autowired
+    CryptVault cryptVault;
+
+    @Autowired
+    MeterRegistry registry;
+
+    @TestConfiguration
+    static class MeterRegistryConfiguration {
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+
+    @Test
+    public void encryptionIsTimedPerKeyVersion() {
+        var keyVersion = cryptVault.keyVersions.get(5).orElseThrow();
+        cryptVault.decrypt(cryptVault.encrypt(keyVersion, cleartext));
+
+        assertThat(registry.get("cryptvault.encrypt").tag("key.version", "5").tag("transformation", "AES/GCM/NoPadding").timer().count()).isEqualTo(1);
+        assertThat(registry.get("cryptvault.decrypt").tag("key.version", "5").timer().count()).isEqualTo(1);
+    }
+}